@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.internet;
+
+import com.android.emailcommon.Logging;
+import com.android.emailcommon.mail.Body;
+import com.android.emailcommon.mail.MessagingException;
+import com.android.emailcommon.utility.BufferPool;
+
+import org.apache.commons.io.IOUtils;
+
+import android.util.Base64;
+import android.util.Base64OutputStream;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * A Body for a part that may take more than one attempt to download, e.g. a large attachment on
+ * a flaky connection.  The decoded data is appended to a file as it arrives, and a small state
+ * file next to it records how much of the encoded data that covers; after a dropped connection,
+ * or even a process restart, the download picks up at {@link #getEncodedOffset} rather than
+ * starting over.
+ *
+ * The encoded data is supplied in chunks by {@link #append}, each starting at the current
+ * encoded offset.  Base64 is only decoded in whole four character quanta, so the offset always
+ * falls on a quantum boundary and no decoder state has to be carried from one chunk to the next;
+ * any partial quantum at the end of a chunk is simply requested again with the next one.  Only
+ * base64 and the identity encodings can be resumed (see {@link #isResumable}).
+ */
+public class PartialFileBody implements Body {
+    private static final int STATE_VERSION = 1;
+    private static final String STATE_SUFFIX = ".state";
+
+    // Values of the base64 decoding table that aren't 6 bit values
+    private static final byte SKIP = -1;
+    private static final byte PAD = -2;
+    private static final byte[] BASE64_VALUES = new byte[256];
+
+    static {
+        final String alphabet =
+                "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < BASE64_VALUES.length; i++) {
+            BASE64_VALUES[i] = SKIP;
+        }
+        for (int i = 0; i < alphabet.length(); i++) {
+            BASE64_VALUES[alphabet.charAt(i)] = (byte) i;
+        }
+        BASE64_VALUES['='] = PAD;
+    }
+
+    private final File mFile;
+    private final File mStateFile;
+    private final boolean mBase64;
+    private long mEncodedOffset;
+    private long mDecodedLength;
+    private boolean mComplete;
+
+    private PartialFileBody(File file, boolean base64) {
+        mFile = file;
+        mStateFile = new File(file.getPath() + STATE_SUFFIX);
+        mBase64 = base64;
+    }
+
+    /**
+     * @return whether a part with this Content-Transfer-Encoding can be downloaded in pieces
+     */
+    public static boolean isResumable(String contentTransferEncoding) {
+        return contentTransferEncoding == null
+                || "base64".equalsIgnoreCase(contentTransferEncoding)
+                || "7bit".equalsIgnoreCase(contentTransferEncoding)
+                || "8bit".equalsIgnoreCase(contentTransferEncoding)
+                || "binary".equalsIgnoreCase(contentTransferEncoding);
+    }
+
+    /**
+     * Open a body, picking up whatever an earlier attempt managed to download into the file.
+     * If the saved state doesn't match the file (or is from a different encoding), the download
+     * starts over.
+     *
+     * @param file where the decoded data is kept; the directory is created if necessary
+     * @param contentTransferEncoding the encoding of the data; see {@link #isResumable}
+     */
+    public static PartialFileBody open(File file, String contentTransferEncoding) {
+        final boolean base64 = "base64".equalsIgnoreCase(contentTransferEncoding);
+        PartialFileBody body = new PartialFileBody(file, base64);
+        if (!body.restoreState()) {
+            body.delete();
+        }
+        return body;
+    }
+
+    private boolean restoreState() {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(mStateFile));
+            if (in.readInt() != STATE_VERSION || in.readBoolean() != mBase64) {
+                return false;
+            }
+            mEncodedOffset = in.readLong();
+            mDecodedLength = in.readLong();
+            mComplete = in.readBoolean();
+        } catch (FileNotFoundException e) {
+            return false;
+        } catch (IOException e) {
+            Log.w(Logging.LOG_TAG, "Unable to read partial download state: " + e);
+            return false;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+
+        // Anything written after the last saved state is thrown away, as we don't know which
+        // encoded data it came from
+        final long length = mFile.length();
+        if (length < mDecodedLength) {
+            return false;
+        } else if (length > mDecodedLength) {
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(mFile, "rw");
+                raf.setLength(mDecodedLength);
+            } catch (IOException e) {
+                return false;
+            } finally {
+                if (raf != null) {
+                    try {
+                        raf.close();
+                    } catch (IOException e) {
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private void saveState() throws IOException {
+        File temp = new File(mStateFile.getPath() + ".tmp");
+        DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(STATE_VERSION);
+            out.writeBoolean(mBase64);
+            out.writeLong(mEncodedOffset);
+            out.writeLong(mDecodedLength);
+            out.writeBoolean(mComplete);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(mStateFile)) {
+            temp.delete();
+            throw new IOException("Unable to save partial download state");
+        }
+    }
+
+    /**
+     * @return the offset in the encoded data at which the next chunk should start
+     */
+    public long getEncodedOffset() {
+        return mEncodedOffset;
+    }
+
+    /**
+     * @return the number of decoded bytes downloaded so far
+     */
+    public long getDecodedLength() {
+        return mDecodedLength;
+    }
+
+    /**
+     * @return whether all of the data has been downloaded
+     */
+    public boolean isComplete() {
+        return mComplete;
+    }
+
+    /**
+     * Decode and append a chunk of the encoded data, which must start at
+     * {@link #getEncodedOffset}, and save the new state.  A chunk that is shorter than was
+     * requested is taken to be the end of the data.
+     *
+     * @param in the encoded data
+     * @param requestedLength the number of encoded bytes that were asked for
+     */
+    public void append(InputStream in, long requestedLength) throws IOException {
+        if (mComplete) {
+            return;
+        }
+        File dir = mFile.getParentFile();
+        if (dir != null && !dir.exists()) {
+            dir.mkdirs();
+        }
+        final OutputStream out = new FileOutputStream(mFile, true);
+        final byte[] buffer = BufferPool.acquireBytes();
+        // Every four characters of base64 decode to three bytes, so this is always big enough
+        final byte[] decoded = mBase64 ? BufferPool.acquireBytes() : null;
+        long received = 0;
+        // The decoded length and encoded offset as of the last complete quantum
+        long decodedLength = mDecodedLength;
+        long encodedOffset = mEncodedOffset;
+        int quantum = 0;
+        int quantumChars = 0;
+        try {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                if (!mBase64) {
+                    out.write(buffer, 0, n);
+                    received += n;
+                    decodedLength += n;
+                    encodedOffset += n;
+                    continue;
+                }
+                int count = 0;
+                int quantumEnd = -1;
+                for (int i = 0; i < n; i++) {
+                    final byte value = BASE64_VALUES[buffer[i] & 0xff];
+                    if (value >= 0) {
+                        quantum = (quantum << 6) | value;
+                        if (++quantumChars < 4) {
+                            continue;
+                        }
+                        decoded[count++] = (byte) (quantum >> 16);
+                        decoded[count++] = (byte) (quantum >> 8);
+                        decoded[count++] = (byte) quantum;
+                    } else if (value == PAD && quantumChars >= 2) {
+                        // The padded end of the data
+                        count = finishQuantum(quantum, quantumChars, decoded, count);
+                    } else {
+                        // Line breaks (and anything else) between quanta needn't be fetched again
+                        if (quantumChars == 0) {
+                            quantumEnd = i + 1;
+                        }
+                        continue;
+                    }
+                    quantum = 0;
+                    quantumChars = 0;
+                    quantumEnd = i + 1;
+                }
+                out.write(decoded, 0, count);
+                decodedLength += count;
+                if (quantumEnd > 0) {
+                    encodedOffset = mEncodedOffset + received + quantumEnd;
+                }
+                received += n;
+            }
+            if (received < requestedLength) {
+                // This was the last chunk; decode anything that was left without padding
+                if (quantumChars >= 2) {
+                    int count = finishQuantum(quantum, quantumChars, decoded, 0);
+                    out.write(decoded, 0, count);
+                    decodedLength += count;
+                }
+                encodedOffset = mEncodedOffset + received;
+                mComplete = true;
+            }
+        } finally {
+            BufferPool.releaseBytes(buffer);
+            if (decoded != null) {
+                BufferPool.releaseBytes(decoded);
+            }
+            out.close();
+            // Whatever was decoded is kept, even if the chunk was cut short; anything written
+            // beyond the saved length is truncated when the body is reopened
+            mDecodedLength = decodedLength;
+            mEncodedOffset = encodedOffset;
+            saveState();
+        }
+    }
+
+    private static int finishQuantum(int quantum, int quantumChars, byte[] decoded, int count) {
+        if (quantumChars == 2) {
+            decoded[count++] = (byte) (quantum >> 4);
+        } else {
+            decoded[count++] = (byte) (quantum >> 10);
+            decoded[count++] = (byte) (quantum >> 2);
+        }
+        return count;
+    }
+
+    /**
+     * Delete the data and the saved state, e.g. once the data has been saved elsewhere.
+     */
+    public void delete() {
+        mFile.delete();
+        mStateFile.delete();
+        mEncodedOffset = 0;
+        mDecodedLength = 0;
+        mComplete = false;
+    }
+
+    /**
+     * Delete the partial downloads in a directory that haven't been touched for a while, as
+     * they're unlikely ever to be resumed.
+     */
+    public static void deleteStale(File dir, long maxAge) {
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        final long cutoff = System.currentTimeMillis() - maxAge;
+        for (File file : files) {
+            if (file.lastModified() < cutoff) {
+                file.delete();
+            }
+        }
+    }
+
+    public InputStream getInputStream() throws MessagingException {
+        try {
+            return new FileInputStream(mFile);
+        } catch (IOException ioe) {
+            throw new MessagingException("Unable to open body", ioe);
+        }
+    }
+
+    public void writeTo(OutputStream out) throws IOException, MessagingException {
+        InputStream in = getInputStream();
+        Base64OutputStream base64Out = new Base64OutputStream(
+            out, Base64.CRLF | Base64.NO_CLOSE);
+        try {
+            IOUtils.copy(in, base64Out);
+        } finally {
+            in.close();
+        }
+        base64Out.close();
+    }
+}
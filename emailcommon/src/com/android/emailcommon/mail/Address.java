@@ -70,6 +70,20 @@ public class Address {
         setPersonal(personal);
     }
 
+    private Address() {
+    }
+
+    /**
+     * Creates an Address from values that were already normalized by setAddress() and
+     * setPersonal(), e.g. when unpacking.  Skips the regex and MIME decoding passes.
+     */
+    private static Address createNormalized(String address, String personal) {
+        Address result = new Address();
+        result.mAddress = address;
+        result.mPersonal = personal;
+        return result;
+    }
+
     public Address(String address) {
         setAddress(address);
     }
@@ -342,8 +356,84 @@ public class Address {
      * This is an utility method that offers some performance optimization opportunities.
      */
     public static Address unpackFirst(String packedList) {
-        Address[] array = unpack(packedList);
-        return array.length > 0 ? array[0] : null;
+        if (!isPacked(packedList)) {
+            Address[] array = unpack(packedList);
+            return array.length > 0 ? array[0] : null;
+        }
+        int end = packedElementEnd(packedList, 0);
+        int personal = packedPersonalIndex(packedList, 0, end);
+        if (personal == -1) {
+            return createNormalized(packedList.substring(0, end), null);
+        }
+        return createNormalized(packedList.substring(0, personal),
+                packedList.substring(personal + 1, end));
+    }
+
+    /**
+     * Returns the address part of the first address in packedList, or null if it has none.
+     * The same as Address.unpackFirst(packedList).getAddress(), without creating an Address
+     * when the list is in the packed format.
+     */
+    public static String unpackFirstAddress(String packedList) {
+        if (!isPacked(packedList)) {
+            Address first = unpackFirst(packedList);
+            return first == null ? null : first.getAddress();
+        }
+        int end = packedElementEnd(packedList, 0);
+        int personal = packedPersonalIndex(packedList, 0, end);
+        return packedList.substring(0, personal == -1 ? end : personal);
+    }
+
+    /**
+     * Returns the friendly name of the first address in packedList, or null if it has none.
+     * The same as Address.unpackFirst(packedList).toFriendly(), without creating an Address
+     * when the list is in the packed format.
+     */
+    public static String unpackFirstFriendly(String packedList) {
+        if (!isPacked(packedList)) {
+            Address first = unpackFirst(packedList);
+            return first == null ? null : first.toFriendly();
+        }
+        int end = packedElementEnd(packedList, 0);
+        int personal = packedPersonalIndex(packedList, 0, end);
+        if (personal == -1) {
+            return packedList.substring(0, end);
+        }
+        return packedList.substring(personal + 1, end);
+    }
+
+    /**
+     * Returns exactly the same result as Address.toFriendly(Address.unpack(packedList)),
+     * without creating Address objects when the list is in the packed format.
+     */
+    public static String unpackToFriendly(String packedList) {
+        if (!isPacked(packedList)) {
+            return toFriendly(unpack(packedList));
+        }
+        int length = packedList.length();
+        int start = 0;
+        StringBuilder sb = null;
+        while (start < length) {
+            int end = packedElementEnd(packedList, start);
+            int personal = packedPersonalIndex(packedList, start, end);
+            if (sb == null) {
+                if (end == length) {
+                    // Single address; no need for a builder
+                    return personal == -1 ? packedList.substring(start, end)
+                            : packedList.substring(personal + 1, end);
+                }
+                sb = new StringBuilder(length);
+            } else {
+                sb.append(", ");
+            }
+            if (personal == -1) {
+                sb.append(packedList, start, end);
+            } else {
+                sb.append(packedList, personal + 1, end);
+            }
+            start = end + 1;
+        }
+        return sb == null ? null : sb.toString();
     }
 
     /**
@@ -356,8 +446,55 @@ public class Address {
     }
 
     /**
-     * Unpacks an address list that is either CSV of RFC822 addresses OR (for backward
-     * compatibility) previously packed with pack()
+     * Returns true if packedList is non-empty and in the packed format, i.e. it was written by
+     * pack() or is a single bare address, and can be read without the RFC822 tokenizer.
+     */
+    private static boolean isPacked(String packedList) {
+        if (packedList == null || packedList.length() == 0) {
+            return false;
+        }
+        if ((packedList.indexOf(LIST_DELIMITER_PERSONAL) != -1) ||
+                (packedList.indexOf(LIST_DELIMITER_EMAIL) != -1)) {
+            return true;
+        }
+        return isBareAddress(packedList);
+    }
+
+    /**
+     * Returns true if s is a single valid address with no name, brackets, quoting or list
+     * separators, so that parsing it as RFC822 would return it unchanged.
+     */
+    private static boolean isBareAddress(String s) {
+        for (int i = s.length() - 1; i >= 0; i--) {
+            switch (s.charAt(i)) {
+                case ' ': case '\t': case '\r': case '\n':
+                case ',': case ';': case ':': case '"': case '\\':
+                case '<': case '>': case '(': case ')': case '[': case ']':
+                    return false;
+            }
+        }
+        return isValidAddress(s);
+    }
+
+    /** Returns the end (exclusive) of the packed element that begins at start. */
+    private static int packedElementEnd(String packedList, int start) {
+        int end = packedList.indexOf(LIST_DELIMITER_EMAIL, start);
+        return end == -1 ? packedList.length() : end;
+    }
+
+    /** Returns the index of the personal delimiter within [start, end), or -1 if none. */
+    private static int packedPersonalIndex(String packedList, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (packedList.charAt(i) == LIST_DELIMITER_PERSONAL) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Unpacks an address list that is either packed with pack() OR (for backward
+     * compatibility) CSV of RFC822 addresses, as stored by database versions 30-39
      * @param addressList string packed with pack() or CSV of RFC822 addresses
      * @return array of addresses resulting from unpack
      */
@@ -366,51 +503,63 @@ public class Address {
             return EMPTY_ADDRESS_ARRAY;
         }
         // IF we're CSV, just parse
-        if ((addressList.indexOf(LIST_DELIMITER_PERSONAL) == -1) &&
-                (addressList.indexOf(LIST_DELIMITER_EMAIL) == -1)) {
+        if (!isPacked(addressList)) {
             return Address.parse(addressList);
         }
-        // Otherwise, do backward-compatibile unpack
-        ArrayList<Address> addresses = new ArrayList<Address>();
+        // Count first, so that we can fill the result array directly
         int length = addressList.length();
-        int pairStartIndex = 0;
-        int pairEndIndex = 0;
-
-        /* addressEndIndex is only re-scanned (indexOf()) when a LIST_DELIMITER_PERSONAL
-           is used, not for every email address; i.e. not for every iteration of the while().
-           This reduces the theoretical complexity from quadratic to linear,
-           and provides some speed-up in practice by removing redundant scans of the string.
-        */
-        int addressEndIndex = addressList.indexOf(LIST_DELIMITER_PERSONAL);
-
-        while (pairStartIndex < length) {
-            pairEndIndex = addressList.indexOf(LIST_DELIMITER_EMAIL, pairStartIndex);
-            if (pairEndIndex == -1) {
-                pairEndIndex = length;
+        int count = 1;
+        for (int i = 0; i < length; i++) {
+            if (addressList.charAt(i) == LIST_DELIMITER_EMAIL) {
+                count++;
             }
-            Address address;
-            if (addressEndIndex == -1 || pairEndIndex <= addressEndIndex) {
-                // in this case the DELIMITER_PERSONAL is in a future pair,
-                // so don't use personal, and don't update addressEndIndex
-                address = new Address(addressList.substring(pairStartIndex, pairEndIndex), null);
+        }
+        Address[] addresses = new Address[count];
+        int pairStartIndex = 0;
+        for (int i = 0; i < count; i++) {
+            int pairEndIndex = packedElementEnd(addressList, pairStartIndex);
+            int addressEndIndex = packedPersonalIndex(addressList, pairStartIndex, pairEndIndex);
+            // Values in the packed format were normalized when they were packed
+            if (addressEndIndex == -1) {
+                addresses[i] = createNormalized(
+                        addressList.substring(pairStartIndex, pairEndIndex), null);
             } else {
-                address = new Address(addressList.substring(pairStartIndex, addressEndIndex),
-                                      addressList.substring(addressEndIndex + 1, pairEndIndex));
-                // only update addressEndIndex when we use the LIST_DELIMITER_PERSONAL
-                addressEndIndex = addressList.indexOf(LIST_DELIMITER_PERSONAL, pairEndIndex + 1);
+                addresses[i] = createNormalized(
+                        addressList.substring(pairStartIndex, addressEndIndex),
+                        addressList.substring(addressEndIndex + 1, pairEndIndex));
             }
-            addresses.add(address);
             pairStartIndex = pairEndIndex + 1;
         }
-        return addresses.toArray(EMPTY_ADDRESS_ARRAY);
+        return addresses;
     }
 
     /**
-     * Generate a String containing RFC822 addresses separated by commas
-     * NOTE: We used to "pack" these addresses in an app-specific format, but no longer do so
+     * Generate a String containing addresses in the compact packed format:
+     * <code>address[\2personal]</code> for each address, separated by <code>\1</code>.
+     * The delimiters are control characters that cannot appear in a valid address, so the
+     * result can be read back by unpack() without the RFC822 tokenizer or any regex.
+     * NOTE: Database versions 30-39 stored CSV of RFC822 addresses instead; unpack() still
+     * accepts that format.
      */
     public static String pack(Address[] addresses) {
-        return Address.toHeader(addresses);
+        if (addresses == null) {
+            return null;
+        }
+        int count = addresses.length;
+        if (count == 0) {
+            return "";
+        }
+        if (count == 1) {
+            return addresses[0].pack();
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(LIST_DELIMITER_EMAIL);
+            }
+            addresses[i].appendPacked(sb);
+        }
+        return sb.toString();
     }
 
     /**
@@ -419,10 +568,37 @@ public class Address {
     public String pack() {
         final String address = getAddress();
         final String personal = getPersonal();
-        if (personal == null) {
+        if (personal == null && !hasDelimiter(address)) {
             return address;
-        } else {
-            return address + LIST_DELIMITER_PERSONAL + personal;
+        }
+        StringBuilder sb = new StringBuilder();
+        appendPacked(sb);
+        return sb.toString();
+    }
+
+    private void appendPacked(StringBuilder sb) {
+        appendWithoutDelimiters(sb, mAddress);
+        if (mPersonal != null) {
+            sb.append(LIST_DELIMITER_PERSONAL);
+            appendWithoutDelimiters(sb, mPersonal);
+        }
+    }
+
+    private static boolean hasDelimiter(String s) {
+        return s.indexOf(LIST_DELIMITER_EMAIL) != -1 || s.indexOf(LIST_DELIMITER_PERSONAL) != -1;
+    }
+
+    /** Appends s, dropping any control chars that would corrupt the packed format. */
+    private static void appendWithoutDelimiters(StringBuilder sb, String s) {
+        if (!hasDelimiter(s)) {
+            sb.append(s);
+            return;
+        }
+        for (int i = 0, length = s.length(); i < length; i++) {
+            char c = s.charAt(i);
+            if (c != LIST_DELIMITER_EMAIL && c != LIST_DELIMITER_PERSONAL) {
+                sb.append(c);
+            }
         }
     }
 }
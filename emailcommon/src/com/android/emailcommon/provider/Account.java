@@ -186,6 +186,9 @@ public final class Account extends EmailContent implements AccountColumns, Parce
     public static final String[] ACCOUNT_FLAGS_PROJECTION = new String[] {
             AccountColumns.ID, AccountColumns.FLAGS};
 
+    private static final String[] ATTACHMENT_STORAGE_PROJECTION = new String[] {
+            AccountColumns.ATTACHMENT_STORAGE};
+
     public static final String MAILBOX_SELECTION =
         MessageColumns.MAILBOX_KEY + " =?";
 
@@ -650,6 +653,16 @@ public final class Account extends EmailContent implements AccountColumns, Parce
                 & Account.FLAGS_SECURITY_HOLD) != 0;
     }
 
+    /**
+     * @return the total size, in bytes, of the attachments stored for an account (i.e. those
+     * that have been downloaded to the attachment directory), or 0 if the account isn't found
+     */
+    public static long getAttachmentStorage(Context context, long accountId) {
+        return Utility.getFirstRowLong(context,
+                ContentUris.withAppendedId(Account.CONTENT_URI, accountId),
+                ATTACHMENT_STORAGE_PROJECTION, null, null, null, 0, 0L);
+    }
+
     /**
      * @return id of the "inbox" mailbox, or -1 if not found.
      */
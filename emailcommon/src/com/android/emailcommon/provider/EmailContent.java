@@ -69,6 +69,8 @@ public abstract class EmailContent {
 
     public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY);
     public static final String PARAMETER_LIMIT = "limit";
+    // The search terms for a query on Message.SEARCH_URI
+    public static final String PARAMETER_SEARCH_FILTER = "filter";
 
     public static final Uri CONTENT_NOTIFIER_URI = Uri.parse("content://" + NOTIFIER_AUTHORITY);
 
@@ -511,7 +513,7 @@ public abstract class EmailContent {
         // Foreign key to the Account holding this message
         public static final String ACCOUNT_KEY = "accountKey";
 
-        // Address lists, packed with Address.pack()
+        // Address lists, packed with Address.pack(); CSV of RFC822 addresses is also accepted
         public static final String FROM_LIST = "fromList";
         public static final String TO_LIST = "toList";
         public static final String CC_LIST = "ccList";
@@ -545,6 +547,10 @@ public abstract class EmailContent {
             Uri.parse(EmailContent.CONTENT_URI + "/deletedMessage");
         public static final Uri UPDATED_CONTENT_URI =
             Uri.parse(EmailContent.CONTENT_URI + "/updatedMessage");
+        // Queries the local full-text index; the search terms are given in the
+        // PARAMETER_SEARCH_FILTER query parameter, and the selection applies to Message columns
+        public static final Uri SEARCH_URI =
+            Uri.parse(EmailContent.CONTENT_URI + "/message/search");
         public static final Uri NOTIFIER_URI =
             Uri.parse(EmailContent.CONTENT_NOTIFIER_URI + "/message");
 
@@ -1442,6 +1448,8 @@ public abstract class EmailContent {
         public static final String NOTIFIED_MESSAGE_ID = "notifiedMessageId";
         // For compatibility w/ Email1
         public static final String NOTIFIED_MESSAGE_COUNT = "notifiedMessageCount";
+        // The total size of this account's downloaded attachments; maintained by the provider
+        public static final String ATTACHMENT_STORAGE = "attachmentStorage";
     }
 
     public interface QuickResponseColumns {
@@ -42,6 +42,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collection;
 
 public class AttachmentUtilities {
     public static final String AUTHORITY = "com.android.email.attachmentprovider";
@@ -179,6 +180,27 @@ public class AttachmentUtilities {
         return context.getDatabasePath(accountId + ".db_att");
     }
 
+    /**
+     * Return the directory in which attachments that are only partly downloaded are kept, so
+     * that their downloads can be resumed.  Since it's a cache directory, the system may clear
+     * it, in which case the downloads simply start over.
+     *
+     * This does not create or write the directory.
+     */
+    public static File getPartialDownloadDirectory(Context context) {
+        return new File(context.getCacheDir(), "partialAttachments");
+    }
+
+    /**
+     * Return the file in which a partly downloaded attachment is kept.
+     *
+     * This does not create or write the file, or even the directory.
+     */
+    public static File getPartialDownloadFilename(Context context, long accountId,
+            long attachmentId) {
+        return new File(getPartialDownloadDirectory(context), accountId + "_" + attachmentId);
+    }
+
     /**
      * Helper to convert unknown or unmapped attachments to something useful based on filename
      * extensions. The mime type is inferred based upon the table below. It's not perfect, but
@@ -327,6 +349,35 @@ public class AttachmentUtilities {
         }
     }
 
+    /**
+     * In support of deleting a number of messages at once, delete the attachment files of all of
+     * them, with a single query of the attachments.
+     * @param context
+     * @param accountId the account for the messages
+     * @param messageIds the messages
+     */
+    public static void deleteAllAttachmentFiles(Context context, long accountId,
+            Collection<Long> messageIds) {
+        if (messageIds.isEmpty()) {
+            return;
+        }
+        Cursor c = context.getContentResolver().query(Attachment.CONTENT_URI,
+                Attachment.ID_PROJECTION,
+                Utility.buildInSelection(AttachmentColumns.MESSAGE_KEY, messageIds), null, null);
+        if (c == null) {
+            return;
+        }
+        try {
+            while (c.moveToNext()) {
+                long attachmentId = c.getLong(Attachment.ID_PROJECTION_COLUMN);
+                // Best-effort, as in deleteAllAttachmentFiles(Context, long, long)
+                getAttachmentFilename(context, accountId, attachmentId).delete();
+            }
+        } finally {
+            c.close();
+        }
+    }
+
     /**
      * In support of deleting a mailbox, find all messages and delete their attachments.
      *
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.utility;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A small process-wide pool of fixed-size byte and char scratch buffers, used by the IMAP,
+ * POP3 and MIME copy loops instead of allocating a fresh buffer per call.
+ *
+ * Usage:
+ * <pre>
+ * byte[] buffer = BufferPool.acquireBytes();
+ * try {
+ *     ... use buffer ...
+ * } finally {
+ *     BufferPool.releaseBytes(buffer);
+ * }
+ * </pre>
+ *
+ * A buffer must not be used after it has been released.  Releasing a buffer that didn't come
+ * from the pool (e.g. a different size) is harmless; it's simply dropped.
+ */
+public class BufferPool {
+    /** Size of the pooled byte buffers */
+    public static final int BYTE_BUFFER_SIZE = 16 * 1024;
+
+    /** Size of the pooled char buffers */
+    public static final int CHAR_BUFFER_SIZE = 4 * 1024;
+
+    /** Max number of idle buffers of each kind kept by the pool */
+    private static final int MAX_POOLED = 8;
+
+    private static final byte[][] sBytes = new byte[MAX_POOLED][];
+    private static int sBytesCount;
+
+    private static final char[][] sChars = new char[MAX_POOLED][];
+    private static int sCharsCount;
+
+    // Counters, so the pool's effect on allocations can be checked (e.g. during a full sync)
+    private static final AtomicLong sByteAcquires = new AtomicLong();
+    private static final AtomicLong sByteAllocations = new AtomicLong();
+    private static final AtomicLong sCharAcquires = new AtomicLong();
+    private static final AtomicLong sCharAllocations = new AtomicLong();
+
+    private BufferPool() {
+    }
+
+    /**
+     * @return a byte buffer of {@link #BYTE_BUFFER_SIZE} bytes.  Its contents are undefined.
+     */
+    public static byte[] acquireBytes() {
+        sByteAcquires.incrementAndGet();
+        synchronized (sBytes) {
+            if (sBytesCount > 0) {
+                byte[] buffer = sBytes[--sBytesCount];
+                sBytes[sBytesCount] = null;
+                return buffer;
+            }
+        }
+        sByteAllocations.incrementAndGet();
+        return new byte[BYTE_BUFFER_SIZE];
+    }
+
+    /**
+     * Returns a buffer obtained from {@link #acquireBytes()} to the pool.
+     */
+    public static void releaseBytes(byte[] buffer) {
+        if (buffer == null || buffer.length != BYTE_BUFFER_SIZE) {
+            return;
+        }
+        synchronized (sBytes) {
+            if (sBytesCount < MAX_POOLED) {
+                sBytes[sBytesCount++] = buffer;
+            }
+        }
+    }
+
+    /**
+     * @return a char buffer of {@link #CHAR_BUFFER_SIZE} chars.  Its contents are undefined.
+     */
+    public static char[] acquireChars() {
+        sCharAcquires.incrementAndGet();
+        synchronized (sChars) {
+            if (sCharsCount > 0) {
+                char[] buffer = sChars[--sCharsCount];
+                sChars[sCharsCount] = null;
+                return buffer;
+            }
+        }
+        sCharAllocations.incrementAndGet();
+        return new char[CHAR_BUFFER_SIZE];
+    }
+
+    /**
+     * Returns a buffer obtained from {@link #acquireChars()} to the pool.
+     */
+    public static void releaseChars(char[] buffer) {
+        if (buffer == null || buffer.length != CHAR_BUFFER_SIZE) {
+            return;
+        }
+        synchronized (sChars) {
+            if (sCharsCount < MAX_POOLED) {
+                sChars[sCharsCount++] = buffer;
+            }
+        }
+    }
+
+    /** @return the number of byte buffers handed out since startup (or the last reset) */
+    public static long getByteAcquireCount() {
+        return sByteAcquires.get();
+    }
+
+    /** @return the number of byte buffers the pool had to allocate */
+    public static long getByteAllocationCount() {
+        return sByteAllocations.get();
+    }
+
+    /** @return the number of char buffers handed out since startup (or the last reset) */
+    public static long getCharAcquireCount() {
+        return sCharAcquires.get();
+    }
+
+    /** @return the number of char buffers the pool had to allocate */
+    public static long getCharAllocationCount() {
+        return sCharAllocations.get();
+    }
+
+    /**
+     * @return a one-line summary of the counters, for logging.
+     */
+    public static String getStats() {
+        return "BufferPool bytes: " + sByteAllocations.get() + " allocated/"
+                + sByteAcquires.get() + " acquired, chars: " + sCharAllocations.get()
+                + " allocated/" + sCharAcquires.get() + " acquired";
+    }
+
+    /**
+     * Empties the pool and resets the counters.
+     */
+    @VisibleForTesting
+    public static void reset() {
+        synchronized (sBytes) {
+            for (int i = 0; i < sBytesCount; i++) {
+                sBytes[i] = null;
+            }
+            sBytesCount = 0;
+        }
+        synchronized (sChars) {
+            for (int i = 0; i < sCharsCount; i++) {
+                sChars[i] = null;
+            }
+            sCharsCount = 0;
+        }
+        sByteAcquires.set(0);
+        sByteAllocations.set(0);
+        sCharAcquires.set(0);
+        sCharAllocations.set(0);
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.utility;
+
+import java.util.ArrayList;
+import java.util.StringTokenizer;
+
+/**
+ * A case-insensitive matcher for all of the terms of a search query at once, used to highlight
+ * search terms in message lists and message bodies.
+ *
+ * The terms are compiled into an Aho-Corasick automaton, so that text can be scanned one
+ * character at a time, in a single pass, no matter how many terms the query has.  A matcher is
+ * immutable; build one per query (see {@link #compile}) and reuse it for every piece of text.
+ */
+public class SearchTermMatcher {
+    /** The state of the matcher before any text has been scanned */
+    public static final int START_STATE = 0;
+
+    private static final char[] NO_CHARS = new char[0];
+    private static final int[] NO_STATES = new int[0];
+
+    private final String mQuery;
+    // For each state, the characters that extend a partial match and the resulting states
+    private final char[][] mChars;
+    private final int[][] mTargets;
+    // For each state, the state for the longest proper suffix that is also a partial match
+    private final int[] mFailure;
+    // For each state, the length of the longest term that ends at that state (0 for none)
+    private final int[] mMatchLength;
+
+    private SearchTermMatcher(String query, char[][] chars, int[][] targets, int[] failure,
+            int[] matchLength) {
+        mQuery = query;
+        mChars = chars;
+        mTargets = targets;
+        mFailure = failure;
+        mMatchLength = matchLength;
+    }
+
+    /**
+     * Build a matcher for a query
+     *
+     * @param query the query, which can contain multiple terms separated by whitespace; may be
+     * null
+     * @return the matcher
+     */
+    public static SearchTermMatcher compile(String query) {
+        // Build the trie of the (lower case) terms; duplicate terms simply share their states
+        ArrayList<char[]> chars = new ArrayList<char[]>();
+        ArrayList<int[]> targets = new ArrayList<int[]>();
+        ArrayList<Integer> termLength = new ArrayList<Integer>();
+        chars.add(NO_CHARS);
+        targets.add(NO_STATES);
+        termLength.add(0);
+        if (query != null) {
+            StringTokenizer st = new StringTokenizer(query);
+            while (st.hasMoreTokens()) {
+                String term = st.nextToken();
+                int state = START_STATE;
+                for (int i = 0; i < term.length(); i++) {
+                    char chr = Character.toLowerCase(term.charAt(i));
+                    int next = findTarget(chars.get(state), targets.get(state), chr);
+                    if (next < 0) {
+                        next = chars.size();
+                        chars.add(NO_CHARS);
+                        targets.add(NO_STATES);
+                        termLength.add(0);
+                        char[] oldChars = chars.get(state);
+                        int[] oldTargets = targets.get(state);
+                        char[] newChars = new char[oldChars.length + 1];
+                        int[] newTargets = new int[oldTargets.length + 1];
+                        System.arraycopy(oldChars, 0, newChars, 0, oldChars.length);
+                        System.arraycopy(oldTargets, 0, newTargets, 0, oldTargets.length);
+                        newChars[oldChars.length] = chr;
+                        newTargets[oldTargets.length] = next;
+                        chars.set(state, newChars);
+                        targets.set(state, newTargets);
+                    }
+                    state = next;
+                }
+                termLength.set(state, term.length());
+            }
+        }
+
+        // Compute the failure transitions breadth first, so that the failure state (which is
+        // always shallower) is complete before it's used
+        final int count = chars.size();
+        SearchTermMatcher matcher = new SearchTermMatcher(query,
+                chars.toArray(new char[count][]), targets.toArray(new int[count][]),
+                new int[count], new int[count]);
+        int[] queue = new int[count];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = START_STATE;
+        while (head < tail) {
+            int state = queue[head++];
+            char[] stateChars = matcher.mChars[state];
+            int[] stateTargets = matcher.mTargets[state];
+            for (int i = 0; i < stateChars.length; i++) {
+                int child = stateTargets[i];
+                int failure = (state == START_STATE) ? START_STATE
+                        : matcher.nextLowerCase(matcher.mFailure[state], stateChars[i]);
+                matcher.mFailure[child] = failure;
+                int length = termLength.get(child);
+                matcher.mMatchLength[child] = (length > 0) ? length : matcher.mMatchLength[failure];
+                queue[tail++] = child;
+            }
+        }
+        return matcher;
+    }
+
+    private static int findTarget(char[] chars, int[] targets, char chr) {
+        for (int i = 0; i < chars.length; i++) {
+            if (chars[i] == chr) {
+                return targets[i];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the query this matcher was built from
+     */
+    public String getQuery() {
+        return mQuery;
+    }
+
+    /**
+     * @return whether the query has no terms (in which case nothing ever matches)
+     */
+    public boolean isEmpty() {
+        return mChars[START_STATE].length == 0;
+    }
+
+    /**
+     * Advance the matcher by one character of text
+     *
+     * @param state the current state ({@link #START_STATE} at the beginning of the text)
+     * @param chr the next character of the text
+     * @return the new state
+     */
+    public int next(int state, char chr) {
+        return nextLowerCase(state, Character.toLowerCase(chr));
+    }
+
+    private int nextLowerCase(int state, char chr) {
+        while (true) {
+            int target = findTarget(mChars[state], mTargets[state], chr);
+            if (target >= 0) {
+                return target;
+            }
+            if (state == START_STATE) {
+                return START_STATE;
+            }
+            state = mFailure[state];
+        }
+    }
+
+    /**
+     * @param state a state returned by {@link #next}
+     * @return the length of the longest term that ends at the character that led to this state,
+     * or 0 if no term ends there
+     */
+    public int getMatchLength(int state) {
+        return mMatchLength[state];
+    }
+}
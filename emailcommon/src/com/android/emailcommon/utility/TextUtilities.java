@@ -20,16 +20,12 @@ import com.google.common.annotations.VisibleForTesting;
 
 import android.graphics.Color;
 import android.text.Spannable;
-import android.text.SpannableString;
 import android.text.SpannableStringBuilder;
 import android.text.TextUtils;
 import android.text.style.BackgroundColorSpan;
 
-import java.io.IOException;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.StringTokenizer;
 
 public class TextUtilities {
     // Highlight color is yellow, as in other apps.
@@ -38,6 +34,14 @@ public class TextUtilities {
     // We AND off the "alpha" from the color (i.e. 0xFFFFFF00 -> 0x00FFFF00)
     /*package*/ static final String HIGHLIGHT_COLOR_STRING =
         '#' + Integer.toHexString(HIGHLIGHT_COLOR_INT & 0x00FFFFFF);
+    private static final String HIGHLIGHT_START =
+        "<span style=\"background-color: " + HIGHLIGHT_COLOR_STRING + "\">";
+    private static final String HIGHLIGHT_END = "</span>";
+    // Extra room for markup when highlighting HTML, enough for a few highlights
+    private static final int HIGHLIGHT_MARKUP_RESERVE = 256;
+
+    // The matcher for the most recently highlighted query
+    private static volatile SearchTermMatcher sLastSearchTermMatcher;
 
     // This is how many chars we'll allow in a snippet
     private static final int MAX_SNIPPET_LENGTH = 200;
@@ -513,12 +517,14 @@ public class TextUtilities {
      */
     @VisibleForTesting
     public static String highlightTermsInHtml(String text, String query) {
-        try {
-            return highlightTerms(text, query, true).toString();
-        } catch (IOException e) {
-            // Can't happen, but we must catch this
-            return text;
-        }
+        return highlightMatchesInHtml(text, getSearchTermMatcher(query));
+    }
+
+    /**
+     * As {@link #highlightTermsInHtml(String, String)}, with a precompiled query
+     */
+    public static String highlightMatchesInHtml(String text, SearchTermMatcher matcher) {
+        return highlightMatches(text, matcher, true).toString();
     }
 
     /**
@@ -530,26 +536,27 @@ public class TextUtilities {
      * @return a CharSequence with the search terms highlighted
      */
     public static CharSequence highlightTermsInText(String text, String query) {
-        try {
-            return highlightTerms(text, query, false);
-        } catch (IOException e) {
-            // Can't happen, but we must catch this
-            return text;
-        }
+        return highlightMatchesInText(text, getSearchTermMatcher(query));
     }
 
-    static class SearchTerm {
-        final String mTerm;
-        final String mTermLowerCase;
-        final int mLength;
-        int mMatchLength = 0;
-        int mMatchStart = -1;
-
-        SearchTerm(String term, boolean html) {
-            mTerm = term;
-            mTermLowerCase = term.toLowerCase();
-            mLength = term.length();
+    /**
+     * As {@link #highlightTermsInText(String, String)}, with a precompiled query
+     */
+    public static CharSequence highlightMatchesInText(String text, SearchTermMatcher matcher) {
+        return highlightMatches(text, matcher, false);
+    }
+
+    /**
+     * @return a matcher for the query; the most recently used one is kept, since the same query
+     * is typically used for every item in a list of search results
+     */
+    private static SearchTermMatcher getSearchTermMatcher(String query) {
+        SearchTermMatcher matcher = sLastSearchTermMatcher;
+        if (matcher == null || !stringOrNullEquals(query, matcher.getQuery())) {
+            matcher = SearchTermMatcher.compile(query);
+            sLastSearchTermMatcher = matcher;
         }
+        return matcher;
     }
 
     /**
@@ -561,159 +568,114 @@ public class TextUtilities {
      * @param query the query, which can contain multiple terms separated by whitespace
      * @param html whether or not the text to be processed is HTML
      * @return highlighted text
+     */
+    public static CharSequence highlightTerms(String text, String query, boolean html) {
+        return highlightMatches(text, getSearchTermMatcher(query), html);
+    }
+
+    /**
+     * As {@link #highlightTerms(String, String, boolean)}, with a precompiled query.  The text is
+     * scanned once, whatever the number of search terms.
      *
-     * @throws IOException as Appendable requires this
+     * Where matches overlap, the highlight is extended (as a separate span) rather than repeated,
+     * so that each character is highlighted at most once.
      */
-    public static CharSequence highlightTerms(String text, String query, boolean html)
-            throws IOException {
+    public static CharSequence highlightMatches(String text, SearchTermMatcher matcher,
+            boolean html) {
         // Handle null and empty string
         if (TextUtils.isEmpty(text)) return "";
         final int length = text.length();
 
-        // Break up the query into search terms
-        ArrayList<SearchTerm> terms = new ArrayList<SearchTerm>();
-        if (query != null) {
-            StringTokenizer st = new StringTokenizer(query);
-            while (st.hasMoreTokens()) {
-                terms.add(new SearchTerm(st.nextToken(), html));
-            }
+        if (matcher == null || matcher.isEmpty()) {
+            return html ? text : new SpannableStringBuilder(text);
         }
 
-        // Our appendable depends on whether we're building HTML text (for webview) or spannable
-        // text (for UI)
-        final Appendable sb = html ? new StringBuilder() : new SpannableStringBuilder();
+        // For HTML, we build the output as we go; for text, we just add spans to a copy
+        final StringBuilder sb = html ? new StringBuilder(length + HIGHLIGHT_MARKUP_RESERVE) : null;
+        final SpannableStringBuilder ssb = html ? null : new SpannableStringBuilder(text);
+
+        int state = SearchTermMatcher.START_STATE;
         // Indicates whether we're in the middle of an HTML tag
         boolean inTag = false;
-        // The position of the last input character copied to output
-        int lastOut = -1;
+        // The end of the text that has been highlighted (and for HTML, copied to the output)
+        int lastOut = 0;
 
         // Walk through the text until we're done with the input
         // Just copy any HTML tags directly into the output; search for terms in the remaining text
         for (int i = 0; i < length; i++) {
             char chr = text.charAt(i);
             if (html) {
-                if (!inTag && (chr == '<')) {
+                if (inTag) {
+                    if (chr == '>') {
+                        inTag = false;
+                    }
+                    continue;
+                }
+                if (chr == '<' && i < (length - 1)) {
                     // Find tags; they will begin with <! or !- or </ or <letter
-                    if (i < (length - 1)) {
-                        char peek = text.charAt(i + 1);
-                        if (peek == '!' || peek == '-' || peek == '/' || Character.isLetter(peek)) {
-                            inTag = true;
-                            // Skip content of title, script, style and applet tags
-                            if (i < (length - (MAX_STRIP_TAG_LENGTH + 2))) {
-                                String tag = text.substring(i + 1, i + MAX_STRIP_TAG_LENGTH + 1);
-                                String tagLowerCase = tag.toLowerCase();
-                                boolean stripContent = false;
-                                for (String stripTag: STRIP_TAGS) {
-                                    if (tagLowerCase.startsWith(stripTag)) {
-                                        stripContent = true;
-                                        tag = tag.substring(0, stripTag.length());
-                                        break;
-                                    }
-                                }
-                                if (stripContent) {
-                                    // Look for the end of this tag
-                                    int endTagPosition = findTagEnd(text, tag, i);
-                                    if (endTagPosition < 0) {
-                                        sb.append(text.substring(i));
-                                        break;
-                                    } else {
-                                        sb.append(text.substring(i, endTagPosition - 1));
-                                        i = endTagPosition - 1;
-                                        chr = text.charAt(i);
-                                    }
-                                }
-                            }
+                    char peek = text.charAt(i + 1);
+                    if (peek == '!' || peek == '-' || peek == '/' || Character.isLetter(peek)) {
+                        inTag = true;
+                        // Matches can't span tags
+                        state = SearchTermMatcher.START_STATE;
+                        // Skip content of title, script, style and applet tags
+                        int endTagPosition = findStripTagEnd(text, i);
+                        if (endTagPosition == -1) {
+                            break;
+                        } else if (endTagPosition > 0) {
+                            i = endTagPosition - 1;
                         }
+                        continue;
                     }
-                } else if (inTag && (chr == '>')) {
-                    inTag = false;
-                }
-
-                if (inTag) {
-                    sb.append(chr);
-                    continue;
                 }
             }
 
             // After all that, we've got some "body" text
-            char chrLowerCase = Character.toLowerCase(chr);
-            // Whether or not the current character should be appended to the output; we inhibit
-            // this while any search terms match
-            boolean appendNow = true;
-            // Look through search terms for matches
-            for (SearchTerm t: terms) {
-                if (chrLowerCase == t.mTermLowerCase.charAt(t.mMatchLength)) {
-                    if (t.mMatchLength++ == 0) {
-                        // New match start
-                        t.mMatchStart = i;
-                    }
-                    if (t.mMatchLength == t.mLength) {
-                        String matchText = text.substring(t.mMatchStart, t.mMatchStart + t.mLength);
-                        // Completed match; add highlight and reset term
-                        if (t.mMatchStart <= lastOut) {
-                            matchText = text.substring(lastOut + 1, i + 1);
-                        }
-                        /*else*/
-                        if (matchText.length() == 0) {} else
-                        if (html) {
-                            sb.append("<span style=\"background-color: " + HIGHLIGHT_COLOR_STRING +
-                                    "\">");
-                            sb.append(matchText);
-                            sb.append("</span>");
-                        } else {
-                            SpannableString highlightSpan = new SpannableString(matchText);
-                            highlightSpan.setSpan(new BackgroundColorSpan(HIGHLIGHT_COLOR_INT), 0,
-                                    highlightSpan.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                            sb.append(highlightSpan);
-                        }
-                        lastOut = t.mMatchStart + t.mLength - 1;
-                        t.mMatchLength = 0;
-                        t.mMatchStart = -1;
-                    }
-                    appendNow = false;
+            state = matcher.next(state, chr);
+            int matchLength = matcher.getMatchLength(state);
+            if (matchLength > 0) {
+                // Don't highlight anything that's already been highlighted
+                int matchStart = Math.max(i + 1 - matchLength, lastOut);
+                if (html) {
+                    sb.append(text, lastOut, matchStart);
+                    sb.append(HIGHLIGHT_START);
+                    sb.append(text, matchStart, i + 1);
+                    sb.append(HIGHLIGHT_END);
                 } else {
-                    if (t.mMatchStart >= 0) {
-                        // We're no longer matching; check for other matches in progress
-                        int leastOtherStart = -1;
-                        for (SearchTerm ot: terms) {
-                            // Save away the lowest match start for other search terms
-                            if ((ot != t) && (ot.mMatchStart >= 0) && ((leastOtherStart < 0) ||
-                                    (ot.mMatchStart <= leastOtherStart))) {
-                                leastOtherStart = ot.mMatchStart;
-                            }
-                        }
-                        int matchEnd = t.mMatchStart + t.mMatchLength;
-                        if (leastOtherStart < 0 || leastOtherStart > matchEnd) {
-                            // Append the whole thing
-                            if (t.mMatchStart > lastOut) {
-                                sb.append(text.substring(t.mMatchStart, matchEnd));
-                                lastOut = matchEnd;
-                            }
-                        } else if (leastOtherStart == t.mMatchStart) {
-                            // Ok to append the current char
-                        } else if (leastOtherStart < t.mMatchStart) {
-                            // We're already covered by another search term, so don't append
-                            appendNow = false;
-                        } else if (t.mMatchStart > lastOut) {
-                            // Append the piece of our term that's not already covered
-                            sb.append(text.substring(t.mMatchStart, leastOtherStart));
-                            lastOut = leastOtherStart;
-                        }
-                    }
-                    // Reset this term
-                    t.mMatchLength = 0;
-                    t.mMatchStart = -1;
+                    ssb.setSpan(new BackgroundColorSpan(HIGHLIGHT_COLOR_INT), matchStart, i + 1,
+                            Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
                 }
+                lastOut = i + 1;
             }
+        }
+
+        if (html) {
+            sb.append(text, lastOut, length);
+            return sb;
+        }
+        return ssb;
+    }
 
-            if (appendNow) {
-                sb.append(chr);
-                lastOut = i;
+    /**
+     * If the HTML tag starting at startPos is one whose content must be stripped, find its end
+     *
+     * @return the position just before the end of the tag, -1 if the tag's content must be
+     * stripped but the end can't be found, or 0 if the tag's content needn't be stripped
+     */
+    private static int findStripTagEnd(String text, int startPos) {
+        if (startPos >= (text.length() - (MAX_STRIP_TAG_LENGTH + 2))) {
+            return 0;
+        }
+        String tag = text.substring(startPos + 1, startPos + MAX_STRIP_TAG_LENGTH + 1);
+        String tagLowerCase = tag.toLowerCase();
+        for (String stripTag: STRIP_TAGS) {
+            if (tagLowerCase.startsWith(stripTag)) {
+                return findTagEnd(text, tag.substring(0, stripTag.length()), startPos);
             }
         }
+        return 0;
+    }
 
-        return (CharSequence)sb;
-   }
 
     /**
      * Determine whether two Strings (either of which might be null) are the same; this is true
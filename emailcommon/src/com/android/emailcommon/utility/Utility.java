@@ -370,6 +370,19 @@ public class Utility {
      * @return the time in milliseconds (since Jan 1, 1970)
      */
     public static long parseEmailDateTimeToMillis(String date) {
+        // Most dates are in exactly this form; those don't need a calendar
+        final int year = parseDigits(date, 0, 4);
+        final int month = parseDigits(date, 5, 7);
+        final int day = parseDigits(date, 8, 10);
+        final int hour = parseDigits(date, 11, 13);
+        final int minute = parseDigits(date, 14, 16);
+        final int second = parseDigits(date, 17, 19);
+        if (year >= 0 && month >= 0 && day >= 0 && hour >= 0 && minute >= 0 && second >= 0) {
+            final long millis = utcDateTimeToMillis(year, month, day, hour, minute, second);
+            if (millis != Long.MIN_VALUE) {
+                return millis;
+            }
+        }
         GregorianCalendar cal = new GregorianCalendar(Integer.parseInt(date.substring(0, 4)),
                 Integer.parseInt(date.substring(5, 7)) - 1, Integer.parseInt(date.substring(8, 10)),
                 Integer.parseInt(date.substring(11, 13)), Integer.parseInt(date.substring(14, 16)),
@@ -378,6 +391,54 @@ public class Utility {
         return cal.getTimeInMillis();
     }
 
+    /**
+     * @return the number made of the ASCII digits s[start, end), or -1 if there are other
+     * characters there, or the string isn't that long.
+     */
+    public static int parseDigits(String s, int start, int end) {
+        if (end > s.length()) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            final char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /** The number of days from 1 March of year 0 to 1 January 1970 */
+    private static final int DAYS_TO_EPOCH = 719468;
+
+    /**
+     * Converts a date and time in GMT to milliseconds since the epoch, with arithmetic instead of
+     * a {@link GregorianCalendar} and its time zone.  As with a lenient calendar, a day, hour,
+     * minute or second out of its usual range carries over into the next unit.
+     *
+     * It allocates nothing and shares no state, so the parsers of dates in messages, which run
+     * once per message, can use it from any thread.
+     *
+     * @param month 1 to 12
+     * @return the time in milliseconds (since Jan 1, 1970), or {@link Long#MIN_VALUE} if the
+     * month isn't valid or the year isn't within 1900-9999; the caller should use a calendar,
+     * which knows about the Julian calendar, for those.
+     */
+    public static long utcDateTimeToMillis(int year, int month, int day, int hour, int minute,
+            int second) {
+        if (year < 1900 || year > 9999 || month < 1 || month > 12) {
+            return Long.MIN_VALUE;
+        }
+        // Count the years from March, so that a leap day is the last day of its year
+        final int y = (month <= 2) ? year - 1 : year;
+        final int m = (month <= 2) ? month + 9 : month - 3;
+        final long days = 365 * y + y / 4 - y / 100 + y / 400 + (153 * m + 2) / 5
+                - DAYS_TO_EPOCH + (day - 1L);
+        return (((days * 24 + hour) * 60 + minute) * 60 + second) * 1000;
+    }
+
     private static byte[] encode(Charset charset, String s) {
         if (s == null) {
             return null;
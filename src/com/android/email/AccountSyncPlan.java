@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email;
+
+import com.android.emailcommon.mail.MessagingException;
+import com.android.emailcommon.provider.Mailbox;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * The mailboxes of an account to sync in one pass, and how many of them may be synced at once.
+ *
+ * The mailboxes are independent of each other, so up to {@link #getConcurrency()} of them are
+ * synced at a time on worker threads, each on its own connection to the server.  The results are
+ * still reported on the calling thread, and in the order of the plan: the first mailbox (usually
+ * the inbox) is reported as soon as it's done, and a mailbox that finishes early waits for the
+ * ones before it.
+ */
+class AccountSyncPlan {
+    /**
+     * Syncs the mailboxes of a plan.  {@link #sync} is called on worker threads, several at once;
+     * the other methods are called on the thread that runs the plan, one mailbox at a time.
+     */
+    interface MailboxSyncer<R> {
+        /** Syncs a mailbox with the server */
+        R sync(Mailbox mailbox) throws MessagingException;
+
+        /** Reports the results of {@link #sync} */
+        void onSynced(Mailbox mailbox, R results);
+
+        /** Reports that {@link #sync} failed */
+        void onFailed(Mailbox mailbox, MessagingException e);
+    }
+
+    private final List<Mailbox> mMailboxes;
+    private final int mConcurrency;
+
+    // The outcome of each mailbox, guarded by mLock
+    private final Object mLock = new Object();
+    private Object[] mResults;
+    private Throwable[] mFailures;
+    private boolean[] mDone;
+    private int mNext;
+
+    /**
+     * @param mailboxes the mailboxes to sync, in the order their results are reported
+     * @param maxConcurrency how many mailboxes may be synced at once (e.g. the number of
+     * connections that the server allows)
+     */
+    AccountSyncPlan(List<Mailbox> mailboxes, int maxConcurrency) {
+        mMailboxes = mailboxes;
+        mConcurrency = Math.max(1, Math.min(maxConcurrency, mailboxes.size()));
+    }
+
+    /** @return how many mailboxes are synced at once */
+    int getConcurrency() {
+        return mConcurrency;
+    }
+
+    /**
+     * Syncs the mailboxes, and reports each one before returning.  If there's only one worker,
+     * everything happens on the calling thread.
+     *
+     * @param executor runs the workers; it must be able to run {@link #getConcurrency()} at once
+     */
+    <R> void run(Executor executor, final MailboxSyncer<R> syncer) {
+        if (mConcurrency == 1) {
+            for (Mailbox mailbox : mMailboxes) {
+                R results;
+                try {
+                    results = syncer.sync(mailbox);
+                } catch (MessagingException e) {
+                    syncer.onFailed(mailbox, e);
+                    continue;
+                }
+                syncer.onSynced(mailbox, results);
+            }
+            return;
+        }
+
+        final int count = mMailboxes.size();
+        synchronized (mLock) {
+            mResults = new Object[count];
+            mFailures = new Throwable[count];
+            mDone = new boolean[count];
+            mNext = 0;
+        }
+        for (int i = 0; i < mConcurrency; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    int index;
+                    while ((index = takeNext()) < count) {
+                        Object results = null;
+                        Throwable failure = null;
+                        try {
+                            results = syncer.sync(mMailboxes.get(index));
+                        } catch (Throwable t) {
+                            failure = t;
+                        }
+                        setDone(index, results, failure);
+                    }
+                }
+            });
+        }
+
+        boolean interrupted = false;
+        try {
+            for (int index = 0; index < count; index++) {
+                final Throwable failure;
+                final Object results;
+                synchronized (mLock) {
+                    while (!mDone[index]) {
+                        try {
+                            mLock.wait();
+                        } catch (InterruptedException e) {
+                            // Keep waiting, as the workers can't be stopped; the interrupt is
+                            // passed on once we're done
+                            interrupted = true;
+                        }
+                    }
+                    failure = mFailures[index];
+                    results = mResults[index];
+                    // Let go of the results as soon as they're reported
+                    mResults[index] = null;
+                }
+                final Mailbox mailbox = mMailboxes.get(index);
+                if (failure == null) {
+                    @SuppressWarnings("unchecked")
+                    R r = (R) results;
+                    syncer.onSynced(mailbox, r);
+                } else if (failure instanceof MessagingException) {
+                    syncer.onFailed(mailbox, (MessagingException) failure);
+                } else if (failure instanceof RuntimeException) {
+                    throw (RuntimeException) failure;
+                } else {
+                    throw (Error) failure;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private int takeNext() {
+        synchronized (mLock) {
+            return mNext++;
+        }
+    }
+
+    private void setDone(int index, Object results, Throwable failure) {
+        synchronized (mLock) {
+            mResults[index] = results;
+            mFailures[index] = failure;
+            mDone[index] = true;
+            mLock.notifyAll();
+        }
+    }
+}
@@ -17,11 +17,13 @@
 package com.android.email;
 
 import android.app.Service;
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
@@ -101,6 +103,15 @@ public class Controller {
     };
     private static final int MESSAGEID_TO_ACCOUNTID_COLUMN_ACCOUNTID = 1;
 
+    private static final String[] MESSAGEID_TO_ACCOUNT_AND_MAILBOX_PROJECTION = new String[] {
+        EmailContent.RECORD_ID,
+        EmailContent.MessageColumns.ACCOUNT_KEY,
+        EmailContent.MessageColumns.MAILBOX_KEY
+    };
+    private static final int MESSAGEID_TO_ACCOUNT_AND_MAILBOX_COLUMN_ID = 0;
+    private static final int MESSAGEID_TO_ACCOUNT_AND_MAILBOX_COLUMN_ACCOUNTID = 1;
+    private static final int MESSAGEID_TO_ACCOUNT_AND_MAILBOX_COLUMN_MAILBOXID = 2;
+
     private static final String[] BODY_SOURCE_KEY_PROJECTION =
         new String[] {Body.SOURCE_MESSAGE_KEY};
     private static final int BODY_SOURCE_KEY_COLUMN = 0;
@@ -761,13 +772,112 @@ public class Controller {
         }
         EmailAsyncTask.runAsyncParallel(new Runnable() {
             public void run() {
-                for (long messageId: messageIds) {
-                    deleteMessageSync(messageId);
-                }
+                deleteMessagesSync(messageIds);
             }
         });
     }
 
+    /**
+     * Delete a number of messages, as {@link #deleteMessageSync} does for each of them, but
+     * looking up each account and mailbox only once, and making all of the changes in a single
+     * transaction.
+     *
+     * @param messageIds The ids of the messages to "delete".
+     */
+    /* package */ void deleteMessagesSync(long[] messageIds) {
+        ContentResolver resolver = mProviderContext.getContentResolver();
+
+        // 1. Get the messages' accounts and original mailboxes, all at once
+        ArrayList<Long> ids = new ArrayList<Long>(messageIds.length);
+        for (long messageId : messageIds) {
+            ids.add(messageId);
+        }
+        Cursor c = resolver.query(Message.CONTENT_URI, MESSAGEID_TO_ACCOUNT_AND_MAILBOX_PROJECTION,
+                Utility.buildInSelection(EmailContent.RECORD_ID, ids), null, null);
+        if (c == null) return;
+        // Account id -> message id -> original mailbox id
+        HashMap<Long, HashMap<Long, Long>> messagesByAccount =
+                new HashMap<Long, HashMap<Long, Long>>();
+        try {
+            while (c.moveToNext()) {
+                long accountId = c.getLong(MESSAGEID_TO_ACCOUNT_AND_MAILBOX_COLUMN_ACCOUNTID);
+                HashMap<Long, Long> messages = messagesByAccount.get(accountId);
+                if (messages == null) {
+                    messages = new HashMap<Long, Long>();
+                    messagesByAccount.put(accountId, messages);
+                }
+                messages.put(c.getLong(MESSAGEID_TO_ACCOUNT_AND_MAILBOX_COLUMN_ID),
+                        c.getLong(MESSAGEID_TO_ACCOUNT_AND_MAILBOX_COLUMN_MAILBOXID));
+            }
+        } finally {
+            c.close();
+        }
+
+        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        ArrayList<Long> legacyAccountIds = new ArrayList<Long>();
+        HashMap<Long, Integer> mailboxTypes = new HashMap<Long, Integer>();
+        for (Long accountId : messagesByAccount.keySet()) {
+            if (Account.restoreAccountWithId(mProviderContext, accountId) == null) continue;
+
+            // 2. Confirm that there is a trash mailbox available.  If not, create one
+            long trashMailboxId = findOrCreateMailboxOfType(accountId, Mailbox.TYPE_TRASH);
+
+            HashMap<Long, Long> messages = messagesByAccount.get(accountId);
+            ArrayList<Long> deletedIds = new ArrayList<Long>(messages.size());
+            for (Long messageId : messages.keySet()) {
+                // 3. Get the type of the message's original mailbox, which must still exist
+                long mailboxId = messages.get(messageId);
+                Integer mailboxType = mailboxTypes.get(mailboxId);
+                if (mailboxType == null) {
+                    mailboxType = Mailbox.getMailboxType(mProviderContext, mailboxId);
+                    mailboxTypes.put(mailboxId, mailboxType);
+                }
+                if (mailboxType < 0) continue;
+                deletedIds.add(messageId);
+
+                // 4. Perform "delete" as appropriate
+                Uri uri = ContentUris.withAppendedId(EmailContent.Message.SYNCED_CONTENT_URI,
+                        messageId);
+                if ((mailboxId == trashMailboxId) || (mailboxType == Mailbox.TYPE_DRAFTS)) {
+                    // 4a. Really delete it
+                    ops.add(ContentProviderOperation.newDelete(uri).build());
+                } else {
+                    // 4b. Move to trash
+                    ops.add(ContentProviderOperation.newUpdate(uri)
+                            .withValue(EmailContent.MessageColumns.MAILBOX_KEY, trashMailboxId)
+                            .build());
+                }
+            }
+
+            // 5.  Drop non-essential data for the messages (e.g. attachment files)
+            AttachmentUtilities.deleteAllAttachmentFiles(mProviderContext, accountId, deletedIds);
+
+            if (!deletedIds.isEmpty() && isMessagingController(accountId)) {
+                legacyAccountIds.add(accountId);
+            }
+        }
+
+        applyMessageOperations(ops);
+        for (long accountId : legacyAccountIds) {
+            mLegacyController.processPendingActions(accountId);
+        }
+    }
+
+    /**
+     * Apply changes to messages in a single transaction.
+     */
+    private void applyMessageOperations(ArrayList<ContentProviderOperation> ops) {
+        if (ops.isEmpty()) return;
+        try {
+            mProviderContext.getContentResolver().applyBatch(EmailContent.AUTHORITY, ops);
+        } catch (RemoteException e) {
+            // The provider is in our own process, so this can't happen
+            Log.w(Logging.LOG_TAG, "Unable to change messages: " + e);
+        } catch (OperationApplicationException e) {
+            // Can't happen; our provider doesn't throw this exception
+        }
+    }
+
     /**
      * Delete a single message by moving it to the trash, or really delete it if it's already in
      * trash or a draft message.
@@ -816,7 +926,7 @@ public class Controller {
     }
 
     /**
-     * Moves messages to a new mailbox.
+     * Moves messages to a new mailbox, in a single transaction.
      *
      * This function has no callback, no result reporting, because the desired outcome
      * is reflected entirely by changes to one or more cursors.
@@ -837,14 +947,16 @@ public class Controller {
             public void run() {
                 Account account = Account.getAccountForMessageId(mProviderContext, messageIds[0]);
                 if (account != null) {
-                    ContentValues cv = new ContentValues();
-                    cv.put(EmailContent.MessageColumns.MAILBOX_KEY, newMailboxId);
-                    ContentResolver resolver = mProviderContext.getContentResolver();
+                    ArrayList<ContentProviderOperation> ops =
+                            new ArrayList<ContentProviderOperation>(messageIds.length);
                     for (long messageId : messageIds) {
                         Uri uri = ContentUris.withAppendedId(
                                 EmailContent.Message.SYNCED_CONTENT_URI, messageId);
-                        resolver.update(uri, cv, null, null);
+                        ops.add(ContentProviderOperation.newUpdate(uri)
+                                .withValue(EmailContent.MessageColumns.MAILBOX_KEY, newMailboxId)
+                                .build());
                     }
+                    applyMessageOperations(ops);
                     if (isMessagingController(account)) {
                         mLegacyController.processPendingActions(account.mId);
                     }
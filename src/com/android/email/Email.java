@@ -24,6 +24,7 @@ import android.content.pm.PackageManager;
 import android.database.Cursor;
 import android.util.Log;
 
+import com.android.email.activity.ContactStatusCache;
 import com.android.email.activity.MessageCompose;
 import com.android.email.activity.ShortcutPicker;
 import com.android.email.service.AttachmentDownloadService;
@@ -197,6 +198,9 @@ public class Email extends Application {
         enableStrictMode(prefs.getEnableStrictMode());
         TempDirectory.setTempDirectory(this);
 
+        // Keep the contact information of recent senders until the contacts change
+        ContactStatusCache.init(this);
+
         // Tie MailRefreshManager to the Controller.
         RefreshManager.getInstance(this);
         // Reset all accounts to default visible window
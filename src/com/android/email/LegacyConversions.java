@@ -51,6 +51,14 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class LegacyConversions {
 
@@ -68,6 +76,19 @@ public class LegacyConversions {
     /* package */ static final String BODY_QUOTED_PART_FORWARD = "quoted-forward";
     /* package */ static final String BODY_QUOTED_PART_INTRO = "quoted-intro";
 
+    /**
+     * Maximum number of attachment bodies written in parallel by updateAttachments().  Bounded
+     * by the core count, and kept small since each writer also does a provider update.
+     */
+    private static final int MAX_ATTACHMENT_WRITERS =
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    /** Idle writer threads are released after this long */
+    private static final long ATTACHMENT_WRITER_KEEP_ALIVE_SECONDS = 30;
+
+    /** Lazily created; see {@link #getAttachmentWriter()} */
+    private static ThreadPoolExecutor sAttachmentWriter;
+
     /**
      * Copy field-by-field from a "store" message to a "provider" message
      * @param message The message we've just downloaded (must be a MimeMessage)
@@ -153,19 +174,111 @@ public class LegacyConversions {
     /**
      * Copy attachments from MimeMessage to provider Message.
      *
+     * The attachment rows are matched or created in order on the calling thread.  When more
+     * than one attachment has a body, the bodies are then written to their attachment files
+     * (and their rows updated) in parallel, on a small bounded pool.  This method does not
+     * return until all of them are written.
+     *
      * @param context a context for file operations
      * @param localMessage the attachments will be built against this message
      * @param attachments the attachments to add
      * @throws IOException
      */
-    public static void updateAttachments(Context context, EmailContent.Message localMessage,
-            ArrayList<Part> attachments) throws MessagingException, IOException {
+    public static void updateAttachments(final Context context,
+            final EmailContent.Message localMessage, ArrayList<Part> attachments)
+            throws MessagingException, IOException {
         localMessage.mAttachments = null;
+        int withBody = 0;
         for (Part attachmentPart : attachments) {
-            addOneAttachment(context, localMessage, attachmentPart);
+            if (attachmentPart.getBody() != null) {
+                withBody++;
+            }
+        }
+        if (withBody < 2) {
+            for (Part attachmentPart : attachments) {
+                Attachment localAttachment =
+                        addOneAttachment(context, localMessage, attachmentPart);
+                saveAttachmentBody(context, attachmentPart, localAttachment,
+                        localMessage.mAccountKey);
+            }
+            return;
+        }
+
+        ArrayList<Future<Void>> writes = new ArrayList<Future<Void>>(withBody);
+        try {
+            for (final Part attachmentPart : attachments) {
+                final Attachment localAttachment =
+                        addOneAttachment(context, localMessage, attachmentPart);
+                if (attachmentPart.getBody() != null) {
+                    writes.add(getAttachmentWriter().submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws MessagingException, IOException {
+                            saveAttachmentBody(context, attachmentPart, localAttachment,
+                                    localMessage.mAccountKey);
+                            return null;
+                        }
+                    }));
+                }
+            }
+        } finally {
+            waitForAttachmentWrites(writes);
+        }
+    }
+
+    /**
+     * Waits for all of the given writes to finish, then rethrows the first failure, if any.
+     */
+    private static void waitForAttachmentWrites(ArrayList<Future<Void>> writes)
+            throws MessagingException, IOException {
+        Throwable failure = null;
+        boolean interrupted = false;
+        for (Future<Void> write : writes) {
+            while (true) {
+                try {
+                    write.get();
+                    break;
+                } catch (InterruptedException e) {
+                    // Keep waiting; the writers still reference parts owned by the caller
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                    }
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure instanceof MessagingException) {
+            throw (MessagingException) failure;
+        } else if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
         }
     }
 
+    private static synchronized ThreadPoolExecutor getAttachmentWriter() {
+        if (sAttachmentWriter == null) {
+            sAttachmentWriter = new ThreadPoolExecutor(MAX_ATTACHMENT_WRITERS,
+                    MAX_ATTACHMENT_WRITERS, ATTACHMENT_WRITER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            return new Thread(r, "AttachmentWriter #" + mCount.incrementAndGet());
+                        }
+                    });
+            sAttachmentWriter.allowCoreThreadTimeOut(true);
+        }
+        return sAttachmentWriter;
+    }
+
     /**
      * Add a single attachment part to the message
      *
@@ -182,10 +295,11 @@ public class LegacyConversions {
      * @param context a context for file operations
      * @param localMessage the attachments will be built against this message
      * @param part a single attachment part from POP or IMAP
+     * @return the attachment, saved to the provider; its body (if any) is not written yet
      * @throws IOException
      */
-    private static void addOneAttachment(Context context, EmailContent.Message localMessage,
-            Part part) throws MessagingException, IOException {
+    private static Attachment addOneAttachment(Context context,
+            EmailContent.Message localMessage, Part part) throws MessagingException, IOException {
 
         Attachment localAttachment = new Attachment();
 
@@ -262,14 +376,12 @@ public class LegacyConversions {
             localAttachment.save(context);
         }
 
-        // If an attachment body was actually provided, we need to write the file now
-        saveAttachmentBody(context, part, localAttachment, localMessage.mAccountKey);
-
         if (localMessage.mAttachments == null) {
             localMessage.mAttachments = new ArrayList<Attachment>();
         }
         localMessage.mAttachments.add(localAttachment);
         localMessage.mFlagAttachment = true;
+        return localAttachment;
     }
 
     /**
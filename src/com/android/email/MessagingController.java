@@ -16,25 +16,30 @@
 
 package com.android.email;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.TrafficStats;
 import android.net.Uri;
 import android.os.Process;
+import android.os.RemoteException;
 import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.email.mail.Sender;
 import com.android.email.mail.Store;
+import com.android.email.mail.transport.TlsSessionTracker;
 import com.android.emailcommon.Logging;
 import com.android.emailcommon.TrafficFlags;
 import com.android.emailcommon.internet.MimeBodyPart;
 import com.android.emailcommon.internet.MimeHeader;
 import com.android.emailcommon.internet.MimeMultipart;
 import com.android.emailcommon.internet.MimeUtility;
+import com.android.emailcommon.internet.PartialFileBody;
 import com.android.emailcommon.mail.AuthenticationFailedException;
 import com.android.emailcommon.mail.FetchProfile;
 import com.android.emailcommon.mail.Flag;
@@ -56,18 +61,25 @@ import com.android.emailcommon.provider.EmailContent.SyncColumns;
 import com.android.emailcommon.provider.Mailbox;
 import com.android.emailcommon.service.SearchParams;
 import com.android.emailcommon.utility.AttachmentUtilities;
+import com.android.emailcommon.utility.BufferPool;
 import com.android.emailcommon.utility.ConversionUtilities;
 import com.android.emailcommon.utility.Utility;
+import com.google.common.annotations.VisibleForTesting;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Starts a long running (application) Thread that will run through commands
@@ -113,12 +125,58 @@ public class MessagingController implements Runnable {
     private static final String LOCAL_SERVERID_PREFIX = "Local-";
 
     /**
-     * Cache search results by account; this allows for "load more" support without having to
-     * redo the search (which can be quite slow).  SortableMessage is a smallish class, so memory
-     * shouldn't be an issue
+     * The UIDs of recent server search results; this allows for "load more" support without
+     * having to redo the search (which can be quite slow).
      */
-    private static final HashMap<Long, SortableMessage[]> sSearchResults =
-        new HashMap<Long, SortableMessage[]>();
+    private final SearchResultCache mSearchResultCache;
+
+    private static final String[] LOADED_UID_PROJECTION = new String[] {SyncColumns.SERVER_ID};
+    private static final String LOADED_UID_SELECTION = MessageColumns.MAILBOX_KEY + "=? and "
+            + MessageColumns.FLAG_LOADED + "=" + EmailContent.Message.FLAG_LOADED_COMPLETE;
+
+    private static final String SEARCH_RESULT_CACHE_FILE = "searchResults";
+
+    /**
+     * Small attachments of a message that are fetched along with a background attachment
+     * download; this saves a round trip (and a command) per attachment when prefetching
+     */
+    private static final long MAX_BATCHED_ATTACHMENT_SIZE = 256 * 1024;
+    private static final long MAX_BATCH_SIZE = 1024 * 1024;
+    private static final int MAX_BATCHED_ATTACHMENTS = 8;
+
+    /**
+     * Attachments at least this large are downloaded into a file that outlives a failed attempt,
+     * so that the next attempt resumes where the last one stopped (if the store supports it)
+     */
+    private static final long MIN_RESUMABLE_ATTACHMENT_SIZE = 512 * 1024;
+
+    /**
+     * The most mailboxes of an account that checkMail syncs at once, each on its own connection;
+     * the store may allow fewer (see {@link Store#getMaxConcurrentConnections()})
+     */
+    private static final int MAX_CONCURRENT_MAILBOX_SYNCS = 4;
+
+    /** Idle mailbox sync threads are released after this long */
+    private static final long MAILBOX_SYNC_KEEP_ALIVE_SECONDS = 30;
+
+    /** Lazily created; see {@link #getMailboxSyncExecutor()} */
+    private static ThreadPoolExecutor sMailboxSyncExecutor;
+
+    /**
+     * The mailboxes that checkMail syncs along with the inbox: those that have been given a sync
+     * interval of their own (or are pushed)
+     */
+    private static final String CHECKED_MAILBOXES_SELECTION = MailboxColumns.ACCOUNT_KEY
+            + "=? and " + MailboxColumns.ID + "!=? and " + MailboxColumns.TYPE + " not in ("
+            + Mailbox.TYPE_DRAFTS + "," + Mailbox.TYPE_OUTBOX + "," + Mailbox.TYPE_SEARCH + ")"
+            + " and (" + MailboxColumns.SYNC_INTERVAL + ">0 or " + MailboxColumns.SYNC_INTERVAL
+            + "=" + Mailbox.CHECK_INTERVAL_PUSH + ")";
+
+    private static final String[] LOCAL_SEARCH_RESULT_PROJECTION = new String[] {
+        EmailContent.RECORD_ID, SyncColumns.SERVER_ID
+    };
+    private static final int LOCAL_SEARCH_RESULT_ID_COLUMN = 0;
+    private static final int LOCAL_SEARCH_RESULT_SERVER_ID_COLUMN = 1;
 
     private static final ContentValues PRUNE_ATTACHMENT_CV = new ContentValues();
     static {
@@ -126,7 +184,7 @@ public class MessagingController implements Runnable {
     }
 
     private static MessagingController sInstance = null;
-    private final BlockingQueue<Command> mCommands = new LinkedBlockingQueue<Command>();
+    private final BlockingDeque<Command> mCommands = new LinkedBlockingDeque<Command>();
     private final Thread mThread;
 
     /**
@@ -148,6 +206,8 @@ public class MessagingController implements Runnable {
     protected MessagingController(Context _context, Controller _controller) {
         mContext = _context.getApplicationContext();
         mController = _controller;
+        mSearchResultCache = new SearchResultCache(
+                new File(mContext.getCacheDir(), SEARCH_RESULT_CACHE_FILE));
         mThread = new Thread(this);
         mThread.start();
     }
@@ -196,12 +256,25 @@ public class MessagingController implements Runnable {
     }
 
     private void put(String description, MessagingListener listener, Runnable runnable) {
+        put(description, listener, runnable, false);
+    }
+
+    /**
+     * @param urgent if true, the command runs ahead of those already queued (e.g. an attachment
+     * the user is waiting for shouldn't wait for background downloads)
+     */
+    private void put(String description, MessagingListener listener, Runnable runnable,
+            boolean urgent) {
         try {
             Command command = new Command();
             command.listener = listener;
             command.runnable = runnable;
             command.description = description;
-            mCommands.add(command);
+            if (urgent) {
+                mCommands.addFirst(command);
+            } else {
+                mCommands.addLast(command);
+            }
         }
         catch (IllegalStateException ie) {
             throw new Error(ie);
@@ -358,30 +431,202 @@ public class MessagingController implements Runnable {
             mListeners.synchronizeMailboxFinished(account.mId, folder.mId, 0, 0, null);
             return;
         }
-        NotificationController nc = NotificationController.getInstance(mContext);
         try {
             processPendingActionsSynchronous(account);
 
             // Select generic sync or store-specific sync
-            SyncResults results = synchronizeMailboxGeneric(account, folder);
-            // The account might have been deleted
-            if (results == null) return;
-            mListeners.synchronizeMailboxFinished(account.mId, folder.mId,
-                                                  results.mTotalMessages,
-                                                  results.mAddedMessages.size(),
-                                                  results.mAddedMessages);
-            // Clear authentication notification for this account
-            nc.cancelLoginFailedNotification(account.mId);
+            SyncWriter writer = new SyncWriter(account, folder, false);
+            SyncResults results =
+                    synchronizeMailboxGeneric(account, folder, writer) ? writer.commit() : null;
+            reportSyncResults(account, folder, results);
         } catch (MessagingException e) {
-            if (Logging.LOGD) {
-                Log.v(Logging.LOG_TAG, "synchronizeMailbox", e);
+            reportSyncFailure(account, folder, e);
+        }
+    }
+
+    /**
+     * Synchronizes several mailboxes of an account in one pass.  As many of them as the store
+     * allows connections (up to {@link #MAX_CONCURRENT_MAILBOX_SYNCS}) are synced at once, but
+     * their results are written to the provider and reported in order, on this thread (see
+     * {@link SyncWriter}).  Called by checkMail.
+     *
+     * Mailboxes that are in the same state on the server as at the end of their last sync (see
+     * {@link Store#getFolderStates}) are skipped.  Changes that don't show in that state (e.g. a
+     * message starred elsewhere) are picked up by the next sync that isn't skipped, or when the
+     * user refreshes the mailbox.
+     *
+     * @param mailboxes the mailboxes, in the order their results should be reported
+     */
+    private void synchronizeMailboxesSynchronous(final Account account,
+            ArrayList<Mailbox> mailboxes) {
+        TrafficStats.setThreadStatsTag(TrafficFlags.getSyncFlags(mContext, account));
+        final ArrayList<Mailbox> mailboxesToSync = new ArrayList<Mailbox>();
+        for (Mailbox mailbox : mailboxes) {
+            mListeners.synchronizeMailboxStarted(account.mId, mailbox.mId);
+            if ((mailbox.mFlags & Mailbox.FLAG_HOLDS_MAIL) == 0) {
+                // We don't hold messages, so, nothing to synchronize
+                mListeners.synchronizeMailboxFinished(account.mId, mailbox.mId, 0, 0, null);
+            } else {
+                mailboxesToSync.add(mailbox);
             }
-            if (e instanceof AuthenticationFailedException) {
-                // Generate authentication notification
-                nc.showLoginFailedNotification(account.mId);
+        }
+        final Store remoteStore;
+        try {
+            // Pending actions can involve any of the mailboxes, so they're all done first
+            processPendingActionsSynchronous(account);
+            remoteStore = Store.getInstance(account, mContext);
+        } catch (MessagingException e) {
+            for (Mailbox mailbox : mailboxesToSync) {
+                reportSyncFailure(account, mailbox, e);
             }
-            mListeners.synchronizeMailboxFailed(account.mId, folder.mId, e);
+            return;
+        }
+        // The account might have been deleted
+        if (remoteStore == null) return;
+
+        HashMap<String, String> states = null;
+        final ArrayList<String> serverIds = new ArrayList<String>();
+        for (Mailbox mailbox : mailboxesToSync) {
+            serverIds.add(mailbox.mServerId);
+        }
+        try {
+            states = remoteStore.getFolderStates(serverIds);
+        } catch (MessagingException e) {
+            // Just sync them all
+            Log.w(Logging.LOG_TAG, "Unable to get mailbox states: " + e);
         }
+        final HashMap<String, String> mailboxStates = states;
+
+        AccountSyncPlan plan = new AccountSyncPlan(mailboxesToSync, Math.min(
+                MAX_CONCURRENT_MAILBOX_SYNCS, remoteStore.getMaxConcurrentConnections()));
+        if (Email.DEBUG) {
+            Log.d(Logging.LOG_TAG, "Syncing " + mailboxesToSync.size() + " mailboxes, "
+                    + plan.getConcurrency() + " at a time");
+        }
+        // With a single worker, the syncs run here anyway, and can write as they go
+        final boolean deferWrites = plan.getConcurrency() > 1;
+        plan.run(getMailboxSyncExecutor(), new AccountSyncPlan.MailboxSyncer<SyncWriter>() {
+            @Override
+            public SyncWriter sync(Mailbox mailbox) throws MessagingException {
+                final SyncWriter writer = new SyncWriter(account, mailbox, deferWrites);
+                final String state =
+                        (mailboxStates == null) ? null : mailboxStates.get(mailbox.mServerId);
+                if (state != null && state.equals(mailbox.mSyncKey)) {
+                    if (Email.DEBUG) {
+                        Log.d(Logging.LOG_TAG, "Mailbox " + mailbox.mId + " unchanged; skipped");
+                    }
+                    writer.setTotalMessages(EmailContent.count(mContext,
+                            EmailContent.Message.CONTENT_URI, MessageColumns.MAILBOX_KEY + "=?",
+                            new String[] {Long.toString(mailbox.mId)}));
+                    return writer;
+                }
+                TrafficStats.setThreadStatsTag(TrafficFlags.getSyncFlags(mContext, account));
+                if (!synchronizeMailboxGeneric(account, mailbox, writer)) {
+                    return null;
+                }
+                // The state from before the sync, so that anything that changed during the sync
+                // is picked up by the next one
+                writer.setState(state);
+                return writer;
+            }
+
+            @Override
+            public void onSynced(Mailbox mailbox, SyncWriter writer) {
+                reportSyncResults(account, mailbox, (writer == null) ? null : writer.commit());
+            }
+
+            @Override
+            public void onFailed(Mailbox mailbox, MessagingException e) {
+                reportSyncFailure(account, mailbox, e);
+            }
+        });
+    }
+
+    /**
+     * Remembers the state of a mailbox on the server as of its last sync, in its sync key (which
+     * the legacy stores don't otherwise use).
+     */
+    private void saveMailboxState(Mailbox mailbox, String state) {
+        ContentValues cv = new ContentValues();
+        cv.put(MailboxColumns.SYNC_KEY, state);
+        mContext.getContentResolver().update(
+                ContentUris.withAppendedId(Mailbox.CONTENT_URI, mailbox.mId), cv, null, null);
+        mailbox.mSyncKey = state;
+    }
+
+    /**
+     * Reports a successful sync of a mailbox to the listeners.
+     *
+     * @param results the results of the sync; null if the account was deleted
+     */
+    private void reportSyncResults(Account account, Mailbox folder, SyncResults results) {
+        // The account might have been deleted
+        if (results == null) return;
+        mListeners.synchronizeMailboxFinished(account.mId, folder.mId,
+                                              results.mTotalMessages,
+                                              results.mAddedMessages.size(),
+                                              results.mAddedMessages);
+        if (Email.DEBUG) {
+            Log.d(Logging.LOG_TAG, "synchronizeMailbox done; " + BufferPool.getStats() + "; "
+                    + TlsSessionTracker.getStats());
+        }
+        // Clear authentication notification for this account
+        NotificationController.getInstance(mContext).cancelLoginFailedNotification(account.mId);
+    }
+
+    /**
+     * Reports a failed sync of a mailbox to the listeners.
+     */
+    private void reportSyncFailure(Account account, Mailbox folder, MessagingException e) {
+        if (Logging.LOGD) {
+            Log.v(Logging.LOG_TAG, "synchronizeMailbox", e);
+        }
+        if (e instanceof AuthenticationFailedException) {
+            // Generate authentication notification
+            NotificationController.getInstance(mContext).showLoginFailedNotification(account.mId);
+        }
+        mListeners.synchronizeMailboxFailed(account.mId, folder.mId, e);
+    }
+
+    /**
+     * @return the mailboxes of an account, other than the inbox, that are checked for new mail
+     * (see {@link #CHECKED_MAILBOXES_SELECTION})
+     */
+    @VisibleForTesting
+    static ArrayList<Mailbox> getCheckedMailboxes(Context context, long accountId, long inboxId) {
+        final ArrayList<Mailbox> mailboxes = new ArrayList<Mailbox>();
+        Cursor c = context.getContentResolver().query(Mailbox.CONTENT_URI,
+                Mailbox.CONTENT_PROJECTION, CHECKED_MAILBOXES_SELECTION,
+                new String[] {Long.toString(accountId), Long.toString(inboxId)},
+                MailboxColumns.TYPE + "," + MailboxColumns.DISPLAY_NAME);
+        if (c == null) return mailboxes;
+        try {
+            while (c.moveToNext()) {
+                Mailbox mailbox = new Mailbox();
+                mailbox.restore(c);
+                mailboxes.add(mailbox);
+            }
+        } finally {
+            c.close();
+        }
+        return mailboxes;
+    }
+
+    private static synchronized ThreadPoolExecutor getMailboxSyncExecutor() {
+        if (sMailboxSyncExecutor == null) {
+            sMailboxSyncExecutor = new ThreadPoolExecutor(MAX_CONCURRENT_MAILBOX_SYNCS,
+                    MAX_CONCURRENT_MAILBOX_SYNCS, MAILBOX_SYNC_KEEP_ALIVE_SECONDS,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            return new Thread(r, "MailboxSync #" + mCount.incrementAndGet());
+                        }
+                    });
+            sMailboxSyncExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sMailboxSyncExecutor;
     }
 
     /**
@@ -431,15 +676,13 @@ public class MessagingController implements Runnable {
 
     /**
      * Load the structure and body of messages not yet synced
-     * @param account the account we're syncing
      * @param remoteFolder the (open) Folder we're working on
      * @param unsyncedMessages an array of Message's we've got headers for
-     * @param toMailbox the destination mailbox we're syncing
+     * @param writer stores the messages in the mailbox we're syncing
      * @throws MessagingException
      */
-    void loadUnsyncedMessages(final Account account, Folder remoteFolder,
-            ArrayList<Message> unsyncedMessages, final Mailbox toMailbox)
-            throws MessagingException {
+    private void loadUnsyncedMessages(Folder remoteFolder, ArrayList<Message> unsyncedMessages,
+            final SyncWriter writer) throws MessagingException {
 
         // 1. Divide the unsynced messages into small & large (by size)
 
@@ -472,8 +715,7 @@ public class MessagingController implements Runnable {
                 new MessageRetrievalListener() {
                     public void messageRetrieved(Message message) {
                         // Store the updated message locally and mark it fully loaded
-                        copyOneMessageToProvider(message, account, toMailbox,
-                                EmailContent.Message.FLAG_LOADED_COMPLETE);
+                        writer.saveMessage(message, EmailContent.Message.FLAG_LOADED_COMPLETE);
                     }
 
                     @Override
@@ -486,21 +728,11 @@ public class MessagingController implements Runnable {
         fp.clear();
         fp.add(FetchProfile.Item.STRUCTURE);
         remoteFolder.fetch(largeMessages.toArray(new Message[largeMessages.size()]), fp, null);
+        ArrayList<Message> unstructuredMessages = new ArrayList<Message>();
         for (Message message : largeMessages) {
             if (message.getBody() == null) {
-                // POP doesn't support STRUCTURE mode, so we'll just do a partial download
-                // (hopefully enough to see some/all of the body) and mark the message for
-                // further download.
-                fp.clear();
-                fp.add(FetchProfile.Item.BODY_SANE);
-                //  TODO a good optimization here would be to make sure that all Stores set
-                //  the proper size after this fetch and compare the before and after size. If
-                //  they equal we can mark this SYNCHRONIZED instead of PARTIALLY_SYNCHRONIZED
-                remoteFolder.fetch(new Message[] { message }, fp, null);
-
-                // Store the partially-loaded message and mark it partially loaded
-                copyOneMessageToProvider(message, account, toMailbox,
-                        EmailContent.Message.FLAG_LOADED_PARTIAL);
+                // POP doesn't support STRUCTURE mode; these are partially downloaded below
+                unstructuredMessages.add(message);
             } else {
                 // We have a structure to deal with, from which
                 // we can pull down the parts we want to actually store.
@@ -518,16 +750,34 @@ public class MessagingController implements Runnable {
                     remoteFolder.fetch(new Message[] { message }, fp, null);
                 }
                 // Store the updated message locally and mark it fully loaded
-                copyOneMessageToProvider(message, account, toMailbox,
-                        EmailContent.Message.FLAG_LOADED_COMPLETE);
+                writer.saveMessage(message, EmailContent.Message.FLAG_LOADED_COMPLETE);
             }
         }
 
+        // 4. Without a structure, we'll just do a partial download (hopefully enough to see
+        // some/all of the body) and mark the message for further download.  They're fetched
+        // together, so that the store can pipeline the requests.
+        //  TODO a good optimization here would be to make sure that all Stores set
+        //  the proper size after this fetch and compare the before and after size. If
+        //  they equal we can mark this SYNCHRONIZED instead of PARTIALLY_SYNCHRONIZED
+        fp.clear();
+        fp.add(FetchProfile.Item.BODY_SANE);
+        remoteFolder.fetch(unstructuredMessages.toArray(new Message[unstructuredMessages.size()]),
+                fp, new MessageRetrievalListener() {
+                    public void messageRetrieved(Message message) {
+                        // Store the partially-loaded message and mark it partially loaded
+                        writer.saveMessage(message, EmailContent.Message.FLAG_LOADED_PARTIAL);
+                    }
+
+                    @Override
+                    public void loadAttachmentProgress(int progress) {
+                    }
+        });
     }
 
-    public void downloadFlagAndEnvelope(final Account account, final Mailbox mailbox,
-            Folder remoteFolder, ArrayList<Message> unsyncedMessages,
-            HashMap<String, LocalMessageInfo> localMessageMap, final ArrayList<Long> unseenMessages)
+    private void downloadFlagAndEnvelope(Folder remoteFolder,
+            ArrayList<Message> unsyncedMessages,
+            HashMap<String, LocalMessageInfo> localMessageMap, final SyncWriter writer)
             throws MessagingException {
         FetchProfile fp = new FetchProfile();
         fp.add(FetchProfile.Item.FLAGS);
@@ -544,41 +794,8 @@ public class MessagingController implements Runnable {
                 new MessageRetrievalListener() {
                     @Override
                     public void messageRetrieved(Message message) {
-                        try {
-                            // Determine if the new message was already known (e.g. partial)
-                            // And create or reload the full message info
-                            LocalMessageInfo localMessageInfo =
-                                localMapCopy.get(message.getUid());
-                            EmailContent.Message localMessage = null;
-                            if (localMessageInfo == null) {
-                                localMessage = new EmailContent.Message();
-                            } else {
-                                localMessage = EmailContent.Message.restoreMessageWithId(
-                                        mContext, localMessageInfo.mId);
-                            }
-
-                            if (localMessage != null) {
-                                try {
-                                    // Copy the fields that are available into the message
-                                    LegacyConversions.updateMessageFields(localMessage,
-                                            message, account.mId, mailbox.mId);
-                                    // Commit the message to the local store
-                                    saveOrUpdate(localMessage, mContext);
-                                    // Track the "new" ness of the downloaded message
-                                    if (!message.isSet(Flag.SEEN) && unseenMessages != null) {
-                                        unseenMessages.add(localMessage.mId);
-                                    }
-                                } catch (MessagingException me) {
-                                    Log.e(Logging.LOG_TAG,
-                                            "Error while copying downloaded message." + me);
-                                }
-
-                            }
-                        }
-                        catch (Exception e) {
-                            Log.e(Logging.LOG_TAG,
-                                    "Error while storing downloaded message." + e.toString());
-                        }
+                        // Determine if the new message was already known (e.g. partial)
+                        writer.saveEnvelope(message, localMapCopy.get(message.getUid()));
                     }
 
                     @Override
@@ -588,19 +805,6 @@ public class MessagingController implements Runnable {
 
     }
 
-    /**
-     * A message and numeric uid that's easily sortable
-     */
-    private static class SortableMessage {
-        private final Message mMessage;
-        private final long mUid;
-
-        SortableMessage(Message message, long uid) {
-            mMessage = message;
-            mUid = uid;
-        }
-    }
-
     public int searchMailbox(long accountId, SearchParams searchParams, long destMailboxId)
             throws MessagingException {
         try {
@@ -626,47 +830,81 @@ public class MessagingController implements Runnable {
         // Tell UI that we're loading messages
         mListeners.synchronizeMailboxStarted(accountId, destMailbox.mId);
 
-        Store remoteStore = Store.getInstance(account, mContext);
-        Folder remoteFolder = remoteStore.getFolder(mailbox.mServerId);
-        remoteFolder.open(OpenMode.READ_WRITE);
+        // The results are the messages we've already synced, followed by those found on the
+        // server, and each call loads a page of them.  The local ones come from the full-text
+        // index, so they show up right away (and work offline, and for POP3)
+        final String filter = searchParams.mFilter;
+        HashSet<String> localUids = new HashSet<String>();
+        int numLocalResults = copyLocalSearchResults(mailbox, filter, searchParams.mOffset,
+                searchParams.mLimit, destMailboxId, localUids);
+        SearchResultCache.Session session = null;
+        if (searchParams.mOffset != 0) {
+            session = mSearchResultCache.get(accountId, mailbox.mId, filter);
+            if (session == null) {
+                return numLocalResults;
+            }
+            // Where the server's results start in the list, as of the first page
+            numLocalResults = session.mLocalCount;
+        }
 
-        SortableMessage[] sortableMessages = new SortableMessage[0];
-        if (searchParams.mOffset == 0) {
-            // Get the "bare" messages (basically uid)
-            Message[] remoteMessages = remoteFolder.getMessages(searchParams, null);
-            int remoteCount = remoteMessages.length;
-            if (remoteCount > 0) {
-                sortableMessages = new SortableMessage[remoteCount];
-                int i = 0;
-                for (Message msg : remoteMessages) {
-                    sortableMessages[i++] = new SortableMessage(msg, Long.parseLong(msg.getUid()));
+        Folder remoteFolder;
+        try {
+            Store remoteStore = Store.getInstance(account, mContext);
+            remoteFolder = remoteStore.getFolder(mailbox.mServerId);
+            remoteFolder.open(OpenMode.READ_WRITE);
+
+            if (searchParams.mOffset == 0) {
+                long now = System.currentTimeMillis();
+                long[] uids;
+                SearchResultCache.Session previous =
+                    mSearchResultCache.get(accountId, mailbox.mId, filter);
+                if (previous != null && previous.isReusable(now)) {
+                    // The same search was just run; don't bother the server again
+                    uids = previous.mUids;
+                    now = previous.mTimestamp;
+                } else {
+                    uids = searchRemoteUids(remoteFolder, searchParams, mailbox.mId, localUids);
                 }
-                // Sort the uid's, most recent first
-                // Note: Not all servers will be nice and return results in the order of request;
-                // those that do will see messages arrive from newest to oldest
-                Arrays.sort(sortableMessages, new Comparator<SortableMessage>() {
-                    @Override
-                    public int compare(SortableMessage lhs, SortableMessage rhs) {
-                        return lhs.mUid > rhs.mUid ? -1 : lhs.mUid < rhs.mUid ? 1 : 0;
-                    }
-                });
-                sSearchResults.put(accountId, sortableMessages);
+                session = new SearchResultCache.Session(accountId, mailbox.mId, filter, uids,
+                        numLocalResults, now);
+                mSearchResultCache.put(session);
             }
-        } else {
-            sortableMessages = sSearchResults.get(accountId);
+        } catch (MessagingException me) {
+            if (numLocalResults == 0) {
+                throw me;
+            }
+            // Offline, or the server is unhappy; the local results will have to do
+            Log.d(Logging.LOG_TAG, "Server search failed, using local results only: " + me);
+            return numLocalResults;
         }
 
-        final int numSearchResults = sortableMessages.length;
-        final int numToLoad =
-            Math.min(numSearchResults - searchParams.mOffset, searchParams.mLimit);
+        // The part of the page that comes from the server
+        final long[] uids = session.mUids;
+        final int remoteStart = Math.max(searchParams.mOffset - numLocalResults, 0);
+        final int remoteEnd = Math.min(searchParams.mOffset + searchParams.mLimit
+                - numLocalResults, uids.length);
+        final int numToLoad = remoteEnd - remoteStart;
         if (numToLoad <= 0) {
-            return 0;
+            return session.getCount();
         }
 
+        // Messages we already have locally (e.g. only partially loaded ones, or ones that were
+        // synced since the search was run) are copied, rather than downloaded again
+        String[] pageUids = new String[numToLoad];
+        for (int i = 0; i < numToLoad; i++) {
+            pageUids[i] = Long.toString(uids[remoteStart + i]);
+        }
+        HashSet<String> copied = copyLocalMessagesByUid(mailbox, pageUids, destMailboxId);
         final ArrayList<Message> messageList = new ArrayList<Message>();
-        for (int i = searchParams.mOffset; i < numToLoad + searchParams.mOffset; i++) {
-            messageList.add(sortableMessages[i].mMessage);
+        for (String uid : pageUids) {
+            if (!copied.contains(uid)) {
+                messageList.add(remoteFolder.createMessage(uid));
+            }
         }
+        if (messageList.isEmpty()) {
+            return session.getCount();
+        }
+
         // Get everything in one pass, rather than two (as in sync); this starts getting us
         // usable results quickly.
         FetchProfile fp = new FetchProfile();
@@ -712,7 +950,180 @@ public class MessagingController implements Runnable {
             public void loadAttachmentProgress(int progress) {
             }
         });
-        return numSearchResults;
+        return session.getCount();
+    }
+
+    /**
+     * Runs a search on the server.
+     *
+     * @param localUids the server ids of messages that need not be returned; the ids of the
+     * fully loaded messages in the mailbox are added to it
+     * @return the UIDs of the matching messages, most recent first
+     */
+    private long[] searchRemoteUids(Folder remoteFolder, SearchParams searchParams,
+            long mailboxId, HashSet<String> localUids) throws MessagingException {
+        // Get the "bare" messages (basically uid); stores that can't search on the server
+        // return null
+        Message[] remoteMessages = remoteFolder.getMessages(searchParams, null);
+        if (remoteMessages == null || remoteMessages.length == 0) {
+            return new long[0];
+        }
+        // The server is only needed for messages outside of what we've synced; fully loaded
+        // local messages have already been matched (or not) locally
+        addLoadedLocalUids(mailboxId, localUids);
+        long[] uids = new long[remoteMessages.length];
+        int count = 0;
+        for (Message msg : remoteMessages) {
+            if (!localUids.contains(msg.getUid())) {
+                uids[count++] = Long.parseLong(msg.getUid());
+            }
+        }
+        // Sort the uid's, most recent first
+        // Note: Not all servers will be nice and return results in the order of request; those
+        // that do will see messages arrive from newest to oldest
+        Arrays.sort(uids, 0, count);
+        long[] result = new long[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = uids[count - 1 - i];
+        }
+        return result;
+    }
+
+    /**
+     * Copies those of the given messages that are available locally (with at least a partial
+     * body) into the search mailbox.
+     *
+     * @return the server ids of the messages that were copied
+     */
+    private HashSet<String> copyLocalMessagesByUid(Mailbox mailbox, String[] uids,
+            long destMailboxId) {
+        HashSet<String> copied = new HashSet<String>();
+        StringBuilder selection = new StringBuilder(MessageColumns.MAILBOX_KEY + "=? and "
+                + EmailContent.Message.FLAG_LOADED_SELECTION + " and " + SyncColumns.SERVER_ID
+                + " in (");
+        String[] args = new String[uids.length + 1];
+        args[0] = Long.toString(mailbox.mId);
+        for (int i = 0; i < uids.length; i++) {
+            selection.append((i == 0) ? "?" : ",?");
+            args[i + 1] = uids[i];
+        }
+        selection.append(')');
+        Cursor c = mContext.getContentResolver().query(EmailContent.Message.CONTENT_URI,
+                EmailContent.Message.CONTENT_PROJECTION, selection.toString(), args, null);
+        if (c == null) {
+            return copied;
+        }
+        try {
+            while (c.moveToNext()) {
+                EmailContent.Message localMessage =
+                    EmailContent.getContent(c, EmailContent.Message.class);
+                copied.add(localMessage.mServerId);
+                copyToSearchMailbox(mContext, localMessage, mailbox, destMailboxId);
+            }
+        } finally {
+            c.close();
+        }
+        return copied;
+    }
+
+    /**
+     * Copies the local messages of a mailbox that match a search, and fall in a page of the
+     * results, into the search mailbox.  The local matches come first in the results, most
+     * recent first.
+     *
+     * @param mailbox the mailbox being searched
+     * @param filter the search terms
+     * @param offset the position of the page in the results
+     * @param limit the size of the page
+     * @param destMailboxId the search mailbox
+     * @param foundUids receives the server ids of all of the matching messages
+     * @return the number of matching messages
+     */
+    private int copyLocalSearchResults(Mailbox mailbox, String filter, int offset, int limit,
+            long destMailboxId, HashSet<String> foundUids) {
+        Uri uri = EmailContent.Message.SEARCH_URI.buildUpon()
+                .appendQueryParameter(EmailContent.PARAMETER_SEARCH_FILTER, filter).build();
+        Cursor c = mContext.getContentResolver().query(uri, LOCAL_SEARCH_RESULT_PROJECTION,
+                MessageColumns.MAILBOX_KEY + "=?", new String[] {Long.toString(mailbox.mId)},
+                MessageColumns.TIMESTAMP + " desc");
+        if (c == null) {
+            return 0;
+        }
+        try {
+            while (c.moveToNext()) {
+                String serverId = c.getString(LOCAL_SEARCH_RESULT_SERVER_ID_COLUMN);
+                if (serverId != null) {
+                    foundUids.add(serverId);
+                }
+                final int position = c.getPosition();
+                if (position < offset || position >= offset + limit) {
+                    continue;
+                }
+                EmailContent.Message localMessage = EmailContent.Message.restoreMessageWithId(
+                        mContext, c.getLong(LOCAL_SEARCH_RESULT_ID_COLUMN));
+                if (localMessage != null) {
+                    copyToSearchMailbox(mContext, localMessage, mailbox, destMailboxId);
+                }
+            }
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Saves a copy of a local message (with its body and attachments) in the search mailbox,
+     * set up exactly as if it had been found by a server search.  The copied attachments aren't
+     * downloaded; they'd otherwise share (and be counted against the account's storage along
+     * with) the files of the originals.
+     */
+    @VisibleForTesting
+    static void copyToSearchMailbox(Context context, EmailContent.Message message,
+            Mailbox mailbox, long destMailboxId) {
+        EmailContent.Body body = EmailContent.Body.restoreBodyWithMessageId(context, message.mId);
+        if (body != null) {
+            message.mText = body.mTextContent;
+            message.mHtml = body.mHtmlContent;
+        }
+        Attachment[] attachments =
+            Attachment.restoreAttachmentsWithMessageId(context, message.mId);
+        if (attachments.length > 0) {
+            message.mAttachments = new ArrayList<Attachment>(attachments.length);
+            for (Attachment att : attachments) {
+                att.mId = EmailContent.NOT_SAVED;
+                att.mContentUri = null;
+                att.mFlags &= ~(Attachment.FLAG_DOWNLOAD_FORWARD
+                        | Attachment.FLAG_DOWNLOAD_USER_REQUEST);
+                message.mAttachments.add(att);
+            }
+        }
+        message.mId = EmailContent.NOT_SAVED;
+        message.mMailboxKey = destMailboxId;
+        // As for server results, the source mailbox is kept in protocolSearchInfo
+        message.mProtocolSearchInfo = mailbox.mServerId;
+        message.save(context);
+    }
+
+    /**
+     * Adds the server ids of the fully loaded messages in a mailbox to a set.
+     */
+    private void addLoadedLocalUids(long mailboxId, HashSet<String> uids) {
+        Cursor c = mContext.getContentResolver().query(EmailContent.Message.CONTENT_URI,
+                LOADED_UID_PROJECTION, LOADED_UID_SELECTION,
+                new String[] {Long.toString(mailboxId)}, null);
+        if (c == null) {
+            return;
+        }
+        try {
+            while (c.moveToNext()) {
+                String uid = c.getString(0);
+                if (uid != null) {
+                    uids.add(uid);
+                }
+            }
+        } finally {
+            c.close();
+        }
     }
 
 
@@ -723,25 +1134,19 @@ public class MessagingController implements Runnable {
      *
      * @param account the account to sync
      * @param mailbox the mailbox to sync
-     * @return results of the sync pass
+     * @param writer writes the results of the sync pass to the provider
+     * @return false if the account was deleted
      * @throws MessagingException
      */
-    private SyncResults synchronizeMailboxGeneric(final Account account, final Mailbox mailbox)
-            throws MessagingException {
-
-        /*
-         * A list of IDs for messages that were downloaded and did not have the seen flag set.
-         * This serves as the "true" new message count reported to the user via notification.
-         */
-        final ArrayList<Long> unseenMessages = new ArrayList<Long>();
-
+    private boolean synchronizeMailboxGeneric(final Account account, final Mailbox mailbox,
+            SyncWriter writer) throws MessagingException {
         Log.d(Logging.LOG_TAG, "*** synchronizeMailboxGeneric ***");
         ContentResolver resolver = mContext.getContentResolver();
 
         // 0.  We do not ever sync DRAFTS or OUTBOX (down or up)
         if (mailbox.mType == Mailbox.TYPE_DRAFTS || mailbox.mType == Mailbox.TYPE_OUTBOX) {
-            int totalMessages = EmailContent.count(mContext, mailbox.getUri(), null, null);
-            return new SyncResults(totalMessages, unseenMessages);
+            writer.setTotalMessages(EmailContent.count(mContext, mailbox.getUri(), null, null));
+            return true;
         }
 
         // 1.  Get the message list from the local store and create an index of the uids
@@ -774,7 +1179,7 @@ public class MessagingController implements Runnable {
 
         Store remoteStore = Store.getInstance(account, mContext);
         // The account might have been deleted
-        if (remoteStore == null) return null;
+        if (remoteStore == null) return false;
         Folder remoteFolder = remoteStore.getFolder(mailbox.mServerId);
 
         /*
@@ -788,7 +1193,7 @@ public class MessagingController implements Runnable {
                 || mailbox.mType == Mailbox.TYPE_DRAFTS) {
             if (!remoteFolder.exists()) {
                 if (!remoteFolder.create(FolderType.HOLDS_MESSAGES)) {
-                    return new SyncResults(0, unseenMessages);
+                    return true;
                 }
             }
         }
@@ -858,8 +1263,7 @@ public class MessagingController implements Runnable {
          * critical data as fast as possible, and then we'll fill in the details.
          */
         if (unsyncedMessages.size() > 0) {
-            downloadFlagAndEnvelope(account, mailbox, remoteFolder, unsyncedMessages,
-                    localMessageMap, unseenMessages);
+            downloadFlagAndEnvelope(remoteFolder, unsyncedMessages, localMessageMap, writer);
         }
 
         // 9. Refresh the flags for any messages in the local store that we didn't just download.
@@ -898,8 +1302,6 @@ public class MessagingController implements Runnable {
                 boolean remoteAnswered = remoteMessage.isSet(Flag.ANSWERED);
                 boolean newAnswered = (remoteSupportsAnswered && (localAnswered != remoteAnswered));
                 if (newSeen || newFlagged || newAnswered) {
-                    Uri uri = ContentUris.withAppendedId(
-                            EmailContent.Message.CONTENT_URI, localMessageInfo.mId);
                     ContentValues updateValues = new ContentValues();
                     updateValues.put(MessageColumns.FLAG_READ, remoteSeen);
                     updateValues.put(MessageColumns.FLAG_FAVORITE, remoteFlagged);
@@ -909,7 +1311,7 @@ public class MessagingController implements Runnable {
                         localFlags &= ~EmailContent.Message.FLAG_REPLIED_TO;
                     }
                     updateValues.put(MessageColumns.FLAGS, localFlags);
-                    resolver.update(uri, updateValues, null, null);
+                    writer.updateMessage(localMessageInfo.mId, updateValues);
                 }
             }
         }
@@ -918,33 +1320,16 @@ public class MessagingController implements Runnable {
         HashSet<String> localUidsToDelete = new HashSet<String>(localMessageMap.keySet());
         localUidsToDelete.removeAll(remoteUidMap.keySet());
         for (String uidToDelete : localUidsToDelete) {
-            LocalMessageInfo infoToDelete = localMessageMap.get(uidToDelete);
-
-            // Delete associated data (attachment files)
-            // Attachment & Body records are auto-deleted when we delete the Message record
-            AttachmentUtilities.deleteAllAttachmentFiles(mContext, account.mId,
-                    infoToDelete.mId);
-
-            // Delete the message itself
-            Uri uriToDelete = ContentUris.withAppendedId(
-                    EmailContent.Message.CONTENT_URI, infoToDelete.mId);
-            resolver.delete(uriToDelete, null, null);
-
-            // Delete extra rows (e.g. synced or deleted)
-            Uri syncRowToDelete = ContentUris.withAppendedId(
-                    EmailContent.Message.UPDATED_CONTENT_URI, infoToDelete.mId);
-            resolver.delete(syncRowToDelete, null, null);
-            Uri deletERowToDelete = ContentUris.withAppendedId(
-                    EmailContent.Message.UPDATED_CONTENT_URI, infoToDelete.mId);
-            resolver.delete(deletERowToDelete, null, null);
+            writer.deleteMessage(localMessageMap.get(uidToDelete).mId);
         }
 
-        loadUnsyncedMessages(account, remoteFolder, unsyncedMessages, mailbox);
+        loadUnsyncedMessages(remoteFolder, unsyncedMessages, writer);
 
         // 14. Clean up and report results
         remoteFolder.close(false);
 
-        return new SyncResults(remoteMessageCount, unseenMessages);
+        writer.setTotalMessages(remoteMessageCount);
+        return true;
     }
 
     /**
@@ -1950,45 +2335,75 @@ public class MessagingController implements Runnable {
 
                     // 3. Generate a shell message in which to retrieve the attachment,
                     // and a shell BodyPart for the attachment.  Then glue them together.
+                    // In the background, the message's other small attachments that are waiting
+                    // to be prefetched come along in the same request
+                    Attachment[] batched = background
+                            ? getBatchedAttachments(messageId, attachmentId)
+                            : new Attachment[0];
                     Message storeMessage = remoteFolder.createMessage(message.mServerId);
-                    MimeBodyPart storePart = new MimeBodyPart();
-                    storePart.setSize((int)attachment.mSize);
-                    storePart.setHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA,
-                            attachment.mLocation);
-                    storePart.setHeader(MimeHeader.HEADER_CONTENT_TYPE,
-                            String.format("%s;\n name=\"%s\"",
-                            attachment.mMimeType,
-                            attachment.mFileName));
-                    // TODO is this always true for attachments?  I think we dropped the
-                    // true encoding along the way
-                    storePart.setHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING, "base64");
-
                     MimeMultipart multipart = new MimeMultipart();
                     multipart.setSubType("mixed");
+                    FetchProfile fp = new FetchProfile();
+                    MimeBodyPart storePart = createStorePart(attachment);
+                    PartialFileBody partialBody = null;
+                    // Only some encodings can be decoded a chunk at a time
+                    final String[] encodings =
+                            storePart.getHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING);
+                    final String encoding = (encodings == null) ? null : encodings[0];
+                    if (attachment.mSize >= MIN_RESUMABLE_ATTACHMENT_SIZE
+                            && remoteStore.canResumeAttachmentDownloads()
+                            && PartialFileBody.isResumable(encoding)) {
+                        partialBody = PartialFileBody.open(
+                                AttachmentUtilities.getPartialDownloadFilename(mContext,
+                                        accountId, attachmentId),
+                                encoding);
+                        storePart.setBody(partialBody);
+                    }
                     multipart.addBodyPart(storePart);
+                    fp.add(storePart);
+                    MimeBodyPart[] batchedParts = new MimeBodyPart[batched.length];
+                    for (int i = 0; i < batched.length; i++) {
+                        batchedParts[i] = createStorePart(batched[i]);
+                        multipart.addBodyPart(batchedParts[i]);
+                        fp.add(batchedParts[i]);
+                    }
 
                     storeMessage.setHeader(MimeHeader.HEADER_CONTENT_TYPE, "multipart/mixed");
                     storeMessage.setBody(multipart);
 
                     // 4. Now ask for the attachment to be fetched
-                    FetchProfile fp = new FetchProfile();
-                    fp.add(storePart);
                     remoteFolder.fetch(new Message[] { storeMessage }, fp,
                             mController.new MessageRetrievalListenerBridge(
                                     messageId, attachmentId));
 
                     // If we failed to load the attachment, throw an Exception here, so that
                     // AttachmentDownloadService knows that we failed
-                    if (storePart.getBody() == null) {
+                    // (A partial download is kept, and resumed the next time we're asked)
+                    if (storePart.getBody() == null
+                            || (partialBody != null && !partialBody.isComplete())) {
                         throw new MessagingException("Attachment not loaded.");
                     }
 
                     // 5. Save the downloaded file and update the attachment as necessary
                     LegacyConversions.saveAttachmentBody(mContext, storePart, attachment,
                             accountId);
+                    if (partialBody != null) {
+                        partialBody.delete();
+                    }
 
                     // 6. Report success
                     mListeners.loadAttachmentFinished(accountId, messageId, attachmentId);
+
+                    // 7. Save whichever of the batched attachments arrived; any others will just
+                    // be tried again later
+                    for (int i = 0; i < batched.length; i++) {
+                        if (batchedParts[i].getBody() != null) {
+                            LegacyConversions.saveAttachmentBody(mContext, batchedParts[i],
+                                    batched[i], accountId);
+                            mListeners.loadAttachmentFinished(accountId, messageId,
+                                    batched[i].mId);
+                        }
+                    }
                 }
                 catch (MessagingException me) {
                     if (Logging.LOGD) Log.v(Logging.LOG_TAG, "", me);
@@ -1997,7 +2412,49 @@ public class MessagingController implements Runnable {
                 } catch (IOException ioe) {
                     Log.e(Logging.LOG_TAG, "Error while storing attachment." + ioe.toString());
                 }
-            }});
+            }}, !background);
+    }
+
+    /**
+     * Create a shell BodyPart in which to retrieve an attachment
+     */
+    private static MimeBodyPart createStorePart(Attachment attachment)
+            throws MessagingException {
+        MimeBodyPart storePart = new MimeBodyPart();
+        storePart.setSize((int)attachment.mSize);
+        storePart.setHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA,
+                attachment.mLocation);
+        storePart.setHeader(MimeHeader.HEADER_CONTENT_TYPE,
+                String.format("%s;\n name=\"%s\"",
+                attachment.mMimeType,
+                attachment.mFileName));
+        // TODO is this always true for attachments?  I think we dropped the
+        // true encoding along the way
+        storePart.setHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING, "base64");
+        return storePart;
+    }
+
+    /**
+     * @return the other attachments of a message that can be prefetched along with the given
+     * one: those that aren't loaded, aren't marked for download, and are small
+     */
+    private Attachment[] getBatchedAttachments(long messageId, long attachmentId) {
+        ArrayList<Attachment> batched = new ArrayList<Attachment>();
+        long batchSize = 0;
+        for (Attachment att : Attachment.restoreAttachmentsWithMessageId(mContext, messageId)) {
+            if (batched.size() >= MAX_BATCHED_ATTACHMENTS) {
+                break;
+            }
+            if (att.mId == attachmentId || att.mContentUri != null || att.mFlags != 0
+                    || att.mLocation == null || att.mSize <= 0
+                    || att.mSize > MAX_BATCHED_ATTACHMENT_SIZE
+                    || batchSize + att.mSize > MAX_BATCH_SIZE) {
+                continue;
+            }
+            batched.add(att);
+            batchSize += att.mSize;
+        }
+        return batched.toArray(new Attachment[batched.size()]);
     }
 
     /**
@@ -2145,16 +2602,22 @@ public class MessagingController implements Runnable {
                     if (sentboxId != Mailbox.NO_MAILBOX) {
                         sendPendingMessagesSynchronous(account, sentboxId);
                     }
-                    // find mailbox # for inbox and sync it.
+                    // find mailbox # for inbox and sync it, along with any other mailboxes
+                    // that are checked for new mail.
                     // TODO we already know this in Controller, can we pass it in?
                     inboxId = Mailbox.findMailboxOfType(mContext, accountId, Mailbox.TYPE_INBOX);
+                    ArrayList<Mailbox> mailboxes = new ArrayList<Mailbox>();
                     if (inboxId != Mailbox.NO_MAILBOX) {
                         Mailbox mailbox =
                             Mailbox.restoreMailboxWithId(mContext, inboxId);
                         if (mailbox != null) {
-                            synchronizeMailboxSynchronous(account, mailbox);
+                            mailboxes.add(mailbox);
                         }
                     }
+                    mailboxes.addAll(getCheckedMailboxes(mContext, accountId, inboxId));
+                    if (!mailboxes.isEmpty()) {
+                        synchronizeMailboxesSynchronous(account, mailboxes);
+                    }
                 }
                 mListeners.checkMailFinished(mContext, accountId, inboxId, tag);
             }
@@ -2189,4 +2652,181 @@ public class MessagingController implements Runnable {
             mAddedMessages = addedMessages;
         }
     }
+
+    /**
+     * The provider writes of a sync of one mailbox.  A sync that's reported on the thread that
+     * runs it makes them as it goes.  A sync that runs on a worker (see
+     * synchronizeMailboxesSynchronous) only collects them, and {@link #commit} makes them on the
+     * thread that reports it, so that the mailboxes of an account are written one at a time, in
+     * the order they're reported.
+     */
+    private class SyncWriter {
+        private final Account mAccount;
+        private final Mailbox mMailbox;
+        private final boolean mDeferred;
+
+        /** Flag updates and deletions of local messages */
+        private final ArrayList<ContentProviderOperation> mOps =
+                new ArrayList<ContentProviderOperation>();
+        /** The messages deleted by mOps, whose attachment files must go too */
+        private final ArrayList<Long> mDeletedMessageIds = new ArrayList<Long>();
+        /** Downloaded envelopes, and the local messages they update (or null) */
+        private final ArrayList<Message> mEnvelopes = new ArrayList<Message>();
+        private final ArrayList<LocalMessageInfo> mEnvelopeInfos =
+                new ArrayList<LocalMessageInfo>();
+        /** Downloaded messages, and how much of each of them was loaded */
+        private final ArrayList<Message> mMessages = new ArrayList<Message>();
+        private final ArrayList<Integer> mLoadStatuses = new ArrayList<Integer>();
+
+        /**
+         * A list of IDs for messages that were downloaded and did not have the seen flag set.
+         * This serves as the "true" new message count reported to the user via notification.
+         */
+        private final ArrayList<Long> mUnseenMessages = new ArrayList<Long>();
+        private int mTotalMessages;
+        private String mState;
+
+        /**
+         * @param deferred whether to hold the writes until {@link #commit}
+         */
+        SyncWriter(Account account, Mailbox mailbox, boolean deferred) {
+            mAccount = account;
+            mMailbox = mailbox;
+            mDeferred = deferred;
+        }
+
+        /** Sets the total # of messages in the mailbox, for the results */
+        void setTotalMessages(int totalMessages) {
+            mTotalMessages = totalMessages;
+        }
+
+        /** Sets the state of the mailbox to save with it once it's written (see getFolderStates) */
+        void setState(String state) {
+            mState = state;
+        }
+
+        void updateMessage(long messageId, ContentValues values) {
+            mOps.add(ContentProviderOperation.newUpdate(ContentUris.withAppendedId(
+                    EmailContent.Message.CONTENT_URI, messageId)).withValues(values).build());
+            writeIfNotDeferred();
+        }
+
+        /**
+         * Deletes a local message that's no longer on the server, along with its attachment
+         * files.  Attachment & Body records are auto-deleted with the Message record.
+         */
+        void deleteMessage(long messageId) {
+            mDeletedMessageIds.add(messageId);
+            mOps.add(ContentProviderOperation.newDelete(ContentUris.withAppendedId(
+                    EmailContent.Message.CONTENT_URI, messageId)).build());
+            // Delete extra rows (e.g. synced)
+            mOps.add(ContentProviderOperation.newDelete(ContentUris.withAppendedId(
+                    EmailContent.Message.UPDATED_CONTENT_URI, messageId)).build());
+            writeIfNotDeferred();
+        }
+
+        /**
+         * Creates or updates a local message from a downloaded envelope.
+         *
+         * @param info the local message, if it was already known (e.g. partial)
+         */
+        void saveEnvelope(Message message, LocalMessageInfo info) {
+            mEnvelopes.add(message);
+            mEnvelopeInfos.add(info);
+            writeIfNotDeferred();
+        }
+
+        /**
+         * Stores a downloaded message (which may have partially-loaded sections) into its local
+         * message, which has been created by {@link #saveEnvelope}.
+         */
+        void saveMessage(Message message, int loadStatus) {
+            mMessages.add(message);
+            mLoadStatuses.add(loadStatus);
+            writeIfNotDeferred();
+        }
+
+        /**
+         * Makes the writes that haven't been made yet.
+         *
+         * @return the results of the sync
+         */
+        SyncResults commit() {
+            write();
+            if (mState != null) {
+                saveMailboxState(mMailbox, mState);
+            }
+            return new SyncResults(mTotalMessages, mUnseenMessages);
+        }
+
+        private void writeIfNotDeferred() {
+            if (!mDeferred) {
+                write();
+            }
+        }
+
+        private void write() {
+            for (long messageId : mDeletedMessageIds) {
+                AttachmentUtilities.deleteAllAttachmentFiles(mContext, mAccount.mId, messageId);
+            }
+            mDeletedMessageIds.clear();
+            if (!mOps.isEmpty()) {
+                try {
+                    mContext.getContentResolver().applyBatch(EmailContent.AUTHORITY, mOps);
+                } catch (RemoteException e) {
+                    // The provider is in our own process, so this can't happen
+                    Log.w(Logging.LOG_TAG, "Unable to change messages: " + e);
+                } catch (OperationApplicationException e) {
+                    // Can't happen; our provider doesn't throw this exception
+                }
+                mOps.clear();
+            }
+            for (int i = 0, count = mEnvelopes.size(); i < count; i++) {
+                writeEnvelope(mEnvelopes.get(i), mEnvelopeInfos.get(i));
+            }
+            mEnvelopes.clear();
+            mEnvelopeInfos.clear();
+            for (int i = 0, count = mMessages.size(); i < count; i++) {
+                copyOneMessageToProvider(mMessages.get(i), mAccount, mMailbox,
+                        mLoadStatuses.get(i));
+            }
+            mMessages.clear();
+            mLoadStatuses.clear();
+        }
+
+        private void writeEnvelope(Message message, LocalMessageInfo localMessageInfo) {
+            try {
+                // Create or reload the full message info
+                EmailContent.Message localMessage = null;
+                if (localMessageInfo == null) {
+                    localMessage = new EmailContent.Message();
+                } else {
+                    localMessage = EmailContent.Message.restoreMessageWithId(
+                            mContext, localMessageInfo.mId);
+                }
+
+                if (localMessage != null) {
+                    try {
+                        // Copy the fields that are available into the message
+                        LegacyConversions.updateMessageFields(localMessage,
+                                message, mAccount.mId, mMailbox.mId);
+                        // Commit the message to the local store
+                        saveOrUpdate(localMessage, mContext);
+                        // Track the "new" ness of the downloaded message
+                        if (!message.isSet(Flag.SEEN)) {
+                            mUnseenMessages.add(localMessage.mId);
+                        }
+                    } catch (MessagingException me) {
+                        Log.e(Logging.LOG_TAG,
+                                "Error while copying downloaded message." + me);
+                    }
+
+                }
+            }
+            catch (Exception e) {
+                Log.e(Logging.LOG_TAG,
+                        "Error while storing downloaded message." + e.toString());
+            }
+        }
+    }
 }
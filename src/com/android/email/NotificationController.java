@@ -28,6 +28,7 @@ import android.content.Intent;
 import android.content.res.Resources;
 import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.media.AudioManager;
@@ -36,12 +37,13 @@ import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Process;
+import android.os.SystemClock;
 import android.text.SpannableString;
 import android.text.TextUtils;
 import android.text.style.TextAppearanceSpan;
 import android.util.Log;
 
-import com.android.email.activity.ContactStatusLoader;
+import com.android.email.activity.ContactStatusCache;
 import com.android.email.activity.Welcome;
 import com.android.email.activity.MessageCompose;
 import com.android.email.activity.setup.AccountSecurity;
@@ -63,6 +65,8 @@ import com.google.common.annotations.VisibleForTesting;
 
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.TreeSet;
 
 /**
  * Class that manages notifications.
@@ -132,6 +136,17 @@ public class NotificationController {
      */
     private static final long MIN_SOUND_INTERVAL_MS = 15 * 1000; // 15 seconds
 
+    /**
+     * Message changes are collected for this long after the last one before the new message
+     * notification is updated, so that a sync that changes many messages updates it just once;
+     * however, the update is never put off for longer than the maximum delay.
+     */
+    private static final long UPDATE_DELAY_MS = 2 * 1000;
+    private static final long MAX_UPDATE_DELAY_MS = 10 * 1000;
+
+    /** If more messages than this change at once, the unseen messages are simply requeried */
+    private static final int MAX_CHANGED_MESSAGES = 100;
+
     private static boolean isRunningJellybeanOrLater() {
         return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
     }
@@ -409,20 +424,17 @@ public class NotificationController {
 
     /**
      * Returns a picture of the sender of the given message. If no picture is available, returns
-     * {@code null}.
+     * {@code null}.  Recent senders' pictures are cached (see {@link ContactStatusCache}), since
+     * looking one up means a trip to the contacts provider.
      *
      * NOTE: DO NOT CALL THIS METHOD FROM THE UI THREAD (DATABASE ACCESS)
      */
     private Bitmap getSenderPhoto(Message message) {
-        Address sender = Address.unpackFirst(message.mFrom);
-        if (sender == null) {
-            return null;
-        }
-        String email = sender.getAddress();
+        String email = Address.unpackFirstAddress(message.mFrom);
         if (TextUtils.isEmpty(email)) {
             return null;
         }
-        Bitmap photo = ContactStatusLoader.getContactInfo(mContext, email).mPhoto;
+        Bitmap photo = ContactStatusCache.get(mContext, email).mPhoto;
 
         if (photo != null) {
             final Resources res = mContext.getResources();
@@ -458,7 +470,7 @@ public class NotificationController {
             return null; // no message found???
         }
 
-        String senderName = Address.toFriendly(Address.unpack(message.mFrom));
+        String senderName = Address.unpackToFriendly(message.mFrom);
         if (senderName == null) {
             senderName = ""; // Happens when a message has no from.
         }
@@ -604,7 +616,7 @@ public class NotificationController {
     private static CharSequence getSingleMessageInboxLine(Context context, Message message) {
         final String subject = message.mSubject;
         final String snippet = message.mSnippet;
-        final String senders = Address.toFriendly(Address.unpack(message.mFrom));
+        final String senders = Address.unpackToFriendly(message.mFrom);
 
         final String subjectSnippet = !TextUtils.isEmpty(subject) ? subject : snippet;
 
@@ -869,6 +881,12 @@ public class NotificationController {
 
     /**
      * Observer invoked whenever a message we're notifying the user about changes.
+     *
+     * Rather than querying for all of the unseen messages on every change, the observer keeps
+     * the set of unseen message ids, and only looks at the messages that changed (which are
+     * identified by the notification URI; see EmailProvider#sendNotifierChange).  Changes are
+     * collected for a short while before the notification is updated, so that a sync that
+     * inserts a batch of messages rebuilds the notification once rather than once per message.
      */
     private static class MessageContentObserver extends ContentObserver {
         /** A selection to get messages the user hasn't seen before */
@@ -877,13 +895,39 @@ public class NotificationController {
                 + MessageColumns.ID + ">? AND "
                 + MessageColumns.FLAG_READ + "=0 AND "
                 + Message.FLAG_LOADED_SELECTION;
+        /** The same, for particular messages; the list of ids is appended */
+        private final static String CHANGED_MESSAGE_SELECTION =
+                MESSAGE_SELECTION + " AND " + MessageColumns.ID + " IN ";
         private final Context mContext;
         private final long mMailboxId;
         private final long mAccountId;
+        private final Handler mHandler;
+
+        /** The messages the user hasn't seen before, as of the last update */
+        private final TreeSet<Long> mUnseenIds = new TreeSet<Long>();
+        /** The mailbox's last seen message as of the last update; -1 before the first update */
+        private long mLastSeenMessageId = -1;
+        /** The ids of the messages that have changed since the last update */
+        private final HashSet<Long> mChangedIds = new HashSet<Long>();
+        /** Whether a change since the last update couldn't be tied to particular messages */
+        private boolean mFullUpdateNeeded = true;
+        /** When the first change since the last update arrived; 0 if there has been none */
+        private long mFirstChangeTime;
+        /** The count and newest message we last notified for; -1 if not yet read from account */
+        private int mNotifiedMessageCount = -1;
+        private long mNotifiedMessageId;
+
+        private final Runnable mUpdateRunnable = new Runnable() {
+            @Override
+            public void run() {
+                update();
+            }
+        };
 
         public MessageContentObserver(
                 Handler handler, Context context, long mailboxId, long accountId) {
             super(handler);
+            mHandler = handler;
             mContext = context;
             mMailboxId = mailboxId;
             mAccountId = accountId;
@@ -891,8 +935,46 @@ public class NotificationController {
 
         @Override
         public void onChange(boolean selfChange) {
+            // Older platforms don't tell us which URI changed
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            long messageId = -1;
+            if (uri != null) {
+                try {
+                    messageId = ContentUris.parseId(uri);
+                } catch (NumberFormatException e) {
+                    // e.g. an update of many messages at once
+                }
+            }
+            if (messageId > 0 && mChangedIds.size() < MAX_CHANGED_MESSAGES) {
+                mChangedIds.add(messageId);
+            } else {
+                mFullUpdateNeeded = true;
+            }
+
+            // Wait for the changes to settle, but not indefinitely
+            final long now = SystemClock.uptimeMillis();
+            if (mFirstChangeTime == 0) {
+                mFirstChangeTime = now;
+            }
+            mHandler.removeCallbacks(mUpdateRunnable);
+            if (now - mFirstChangeTime >= MAX_UPDATE_DELAY_MS) {
+                mHandler.post(mUpdateRunnable);
+            } else {
+                mHandler.postDelayed(mUpdateRunnable, UPDATE_DELAY_MS);
+            }
+        }
+
+        private void update() {
+            mFirstChangeTime = 0;
             if (mAccountId == sInstance.mSuspendAccountId
                     || sInstance.mSuspendAccountId == Account.ACCOUNT_ID_COMBINED_VIEW) {
+                // We'll have to catch up on whatever happens in the meantime
+                mChangedIds.clear();
+                mFullUpdateNeeded = true;
                 return;
             }
 
@@ -903,15 +985,17 @@ public class NotificationController {
                 Log.w(Logging.LOG_TAG, "Received notification when observer data was null");
                 return;
             }
-            Account account = Account.restoreAccountWithId(mContext, mAccountId);
-            if (account == null) {
-                Log.w(Logging.LOG_TAG, "Couldn't find account for changed message notification");
-                return;
+            if (mNotifiedMessageCount < 0) {
+                Account account = Account.restoreAccountWithId(mContext, mAccountId);
+                if (account == null) {
+                    Log.w(Logging.LOG_TAG,
+                            "Couldn't find account for changed message notification");
+                    return;
+                }
+                mNotifiedMessageId = account.mNotifiedMessageId;
+                mNotifiedMessageCount = account.mNotifiedMessageCount;
             }
-            long oldMessageId = account.mNotifiedMessageId;
-            int oldMessageCount = account.mNotifiedMessageCount;
 
-            ContentResolver resolver = mContext.getContentResolver();
             Long lastSeenMessageId = Utility.getFirstRowLong(
                     mContext, ContentUris.withAppendedId(Mailbox.CONTENT_URI, mMailboxId),
                     new String[] { MailboxColumns.LAST_SEEN_MESSAGE_KEY },
@@ -922,39 +1006,37 @@ public class NotificationController {
                 return;
             }
 
-            Cursor c = resolver.query(
-                    Message.CONTENT_URI, EmailContent.ID_PROJECTION,
-                    MESSAGE_SELECTION,
-                    new String[] { Long.toString(mMailboxId), Long.toString(lastSeenMessageId) },
-                    MessageColumns.ID + " DESC");
-            if (c == null) {
+            if (!updateUnseenIds(lastSeenMessageId)) {
                 // Couldn't find message info - things may be getting deleted in bulk.
                 Log.w(Logging.LOG_TAG, "#onChange(); NULL response for message id query");
                 return;
             }
-            try {
-                int newMessageCount = c.getCount();
-                long newMessageId = 0L;
-                if (c.moveToNext()) {
-                    newMessageId = c.getLong(EmailContent.ID_PROJECTION_COLUMN);
-                }
+            final int newMessageCount = mUnseenIds.size();
+            final long newMessageId = (newMessageCount == 0) ? 0L : mUnseenIds.last();
 
-                if (newMessageCount == 0) {
-                    // No messages to notify for; clear the notification
-                    int notificationId = sInstance.getNewMessageNotificationId(mAccountId);
-                    sInstance.mNotificationManager.cancel(notificationId);
-                } else if (newMessageCount != oldMessageCount
-                        || (newMessageId != 0 && newMessageId != oldMessageId)) {
-                    // Either the count or last message has changed; update the notification
-                    Integer unreadCount = Utility.getFirstRowInt(
-                            mContext, ContentUris.withAppendedId(Mailbox.CONTENT_URI, mMailboxId),
-                            new String[] { MailboxColumns.UNREAD_COUNT },
-                            null, null, null, 0);
-                    if (unreadCount == null) {
-                        Log.w(Logging.LOG_TAG, "Couldn't find unread count for mailbox");
-                        return;
-                    }
+            if (newMessageCount == 0) {
+                // No messages to notify for; clear the notification
+                int notificationId = sInstance.getNewMessageNotificationId(mAccountId);
+                sInstance.mNotificationManager.cancel(notificationId);
+            } else if (newMessageCount != mNotifiedMessageCount
+                    || newMessageId != mNotifiedMessageId) {
+                // Either the count or last message has changed; update the notification
+                Integer unreadCount = Utility.getFirstRowInt(
+                        mContext, ContentUris.withAppendedId(Mailbox.CONTENT_URI, mMailboxId),
+                        new String[] { MailboxColumns.UNREAD_COUNT },
+                        null, null, null, 0);
+                if (unreadCount == null) {
+                    Log.w(Logging.LOG_TAG, "Couldn't find unread count for mailbox");
+                    return;
+                }
 
+                // The digest wants the unseen messages, most recent first
+                MatrixCursor c = new MatrixCursor(EmailContent.ID_PROJECTION, newMessageCount);
+                for (Iterator<Long> i = mUnseenIds.descendingIterator(); i.hasNext(); ) {
+                    c.addRow(new Object[] { i.next() });
+                }
+                try {
+                    c.moveToFirst();
                     Notification n = sInstance.createNewMessageNotification(
                             mAccountId, mMailboxId, c, newMessageId,
                             newMessageCount, unreadCount);
@@ -963,16 +1045,72 @@ public class NotificationController {
                         sInstance.mNotificationManager.notify(
                                 sInstance.getNewMessageNotificationId(mAccountId), n);
                     }
+                } finally {
+                    c.close();
                 }
-                // Save away the new values
+            }
+
+            // Save away the new values
+            if (newMessageCount != mNotifiedMessageCount || newMessageId != mNotifiedMessageId) {
+                mNotifiedMessageId = newMessageId;
+                mNotifiedMessageCount = newMessageCount;
                 ContentValues cv = new ContentValues();
                 cv.put(AccountColumns.NOTIFIED_MESSAGE_ID, newMessageId);
                 cv.put(AccountColumns.NOTIFIED_MESSAGE_COUNT, newMessageCount);
-                resolver.update(ContentUris.withAppendedId(Account.CONTENT_URI, mAccountId), cv,
+                mContext.getContentResolver().update(
+                        ContentUris.withAppendedId(Account.CONTENT_URI, mAccountId), cv,
                         null, null);
+            }
+        }
+
+        /**
+         * Bring {@link #mUnseenIds} up to date: from scratch if the last seen message has moved
+         * or we don't know what changed, otherwise by checking just the changed messages.
+         *
+         * @return false if the messages couldn't be queried
+         */
+        private boolean updateUnseenIds(long lastSeenMessageId) {
+            final boolean fullUpdate =
+                    mFullUpdateNeeded || lastSeenMessageId != mLastSeenMessageId;
+            final StringBuilder ids = new StringBuilder();
+            if (!fullUpdate) {
+                for (long id : mChangedIds) {
+                    // Messages the user has seen can't become unseen
+                    if (id > lastSeenMessageId) {
+                        ids.append((ids.length() == 0) ? '(' : ',').append(id);
+                        mUnseenIds.remove(id);
+                    }
+                }
+                if (ids.length() == 0) {
+                    mChangedIds.clear();
+                    return true;
+                }
+                ids.append(')');
+            }
+
+            Cursor c = mContext.getContentResolver().query(
+                    Message.CONTENT_URI, EmailContent.ID_PROJECTION,
+                    fullUpdate ? MESSAGE_SELECTION : CHANGED_MESSAGE_SELECTION + ids,
+                    new String[] { Long.toString(mMailboxId), Long.toString(lastSeenMessageId) },
+                    null);
+            if (c == null) {
+                mFullUpdateNeeded = true;
+                return false;
+            }
+            try {
+                if (fullUpdate) {
+                    mUnseenIds.clear();
+                }
+                while (c.moveToNext()) {
+                    mUnseenIds.add(c.getLong(EmailContent.ID_PROJECTION_COLUMN));
+                }
             } finally {
                 c.close();
             }
+            mChangedIds.clear();
+            mFullUpdateNeeded = false;
+            mLastSeenMessageId = lastSeenMessageId;
+            return true;
         }
     }
 
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email;
+
+import com.android.emailcommon.Logging;
+import com.google.common.annotations.VisibleForTesting;
+
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the results of recent server searches, so that "load more" can page through them
+ * without repeating the search (even after the process has been restarted), and so that
+ * running the same search again shortly afterwards doesn't hit the server.
+ *
+ * Sessions are keyed by account, mailbox and filter; the cache holds at most
+ * {@link #MAX_SESSIONS}, dropping the least recently used.  Each session holds the server UIDs
+ * of the matching messages, most recent first, as a long[].  The whole cache is written to a
+ * small file whenever a session is added.
+ */
+public class SearchResultCache {
+    @VisibleForTesting
+    static final int MAX_SESSIONS = 8;
+
+    /** A new search reuses the UIDs of an identical search at most this old */
+    @VisibleForTesting
+    static final long MAX_REUSE_AGE = 10 * DateUtils.MINUTE_IN_MILLIS;
+
+    private static final int FILE_VERSION = 1;
+
+    /**
+     * The results of one search.
+     */
+    public static class Session {
+        public final long mAccountId;
+        public final long mMailboxId;
+        public final String mFilter;
+        /** Server UIDs of the matches that have to be loaded from the server, most recent first */
+        public final long[] mUids;
+        /** The number of matches that were found in the local search index */
+        public final int mLocalCount;
+        /** When the server search was run */
+        public final long mTimestamp;
+
+        public Session(long accountId, long mailboxId, String filter, long[] uids,
+                int localCount, long timestamp) {
+            mAccountId = accountId;
+            mMailboxId = mailboxId;
+            mFilter = filter;
+            mUids = uids;
+            mLocalCount = localCount;
+            mTimestamp = timestamp;
+        }
+
+        /** @return the total number of results */
+        public int getCount() {
+            return mLocalCount + mUids.length;
+        }
+
+        /** @return whether a new, identical search can reuse these results */
+        public boolean isReusable(long now) {
+            return (now >= mTimestamp) && (now - mTimestamp) < MAX_REUSE_AGE;
+        }
+
+        private String getKey() {
+            return SearchResultCache.getKey(mAccountId, mMailboxId, mFilter);
+        }
+    }
+
+    private final File mFile;
+    private final LinkedHashMap<String, Session> mSessions =
+        new LinkedHashMap<String, Session>(MAX_SESSIONS, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Session> eldest) {
+                return size() > MAX_SESSIONS;
+            }
+        };
+    private boolean mLoaded;
+
+    /**
+     * @param file where the cache is persisted
+     */
+    public SearchResultCache(File file) {
+        mFile = file;
+    }
+
+    private static String getKey(long accountId, long mailboxId, String filter) {
+        return accountId + "/" + mailboxId + "/" + filter;
+    }
+
+    /**
+     * @return the cached session for a search, or null if there isn't one
+     */
+    public synchronized Session get(long accountId, long mailboxId, String filter) {
+        ensureLoaded();
+        return mSessions.get(getKey(accountId, mailboxId, filter));
+    }
+
+    /**
+     * Adds (or replaces) a session, and persists the cache.
+     */
+    public synchronized void put(Session session) {
+        ensureLoaded();
+        mSessions.put(session.getKey(), session);
+        save();
+    }
+
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != FILE_VERSION) {
+                return;
+            }
+            // Sessions are stored least recently used first
+            for (int count = in.readInt(); count > 0; count--) {
+                long accountId = in.readLong();
+                long mailboxId = in.readLong();
+                String filter = in.readUTF();
+                long timestamp = in.readLong();
+                int localCount = in.readInt();
+                long[] uids = new long[in.readInt()];
+                for (int i = 0; i < uids.length; i++) {
+                    uids[i] = in.readLong();
+                }
+                Session session =
+                    new Session(accountId, mailboxId, filter, uids, localCount, timestamp);
+                mSessions.put(session.getKey(), session);
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing saved yet
+        } catch (IOException e) {
+            Log.w(Logging.LOG_TAG, "Unable to read search results: " + e);
+            mSessions.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private void save() {
+        File temp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(FILE_VERSION);
+            out.writeInt(mSessions.size());
+            for (Session session : mSessions.values()) {
+                out.writeLong(session.mAccountId);
+                out.writeLong(session.mMailboxId);
+                out.writeUTF(session.mFilter);
+                out.writeLong(session.mTimestamp);
+                out.writeInt(session.mLocalCount);
+                out.writeInt(session.mUids.length);
+                for (long uid : session.mUids) {
+                    out.writeLong(uid);
+                }
+            }
+            out.close();
+            out = null;
+            if (!temp.renameTo(mFile)) {
+                Log.w(Logging.LOG_TAG, "Unable to save search results");
+                temp.delete();
+            }
+        } catch (IOException e) {
+            Log.w(Logging.LOG_TAG, "Unable to save search results: " + e);
+            temp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+}
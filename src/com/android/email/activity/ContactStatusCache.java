@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.activity;
+
+import com.android.email.activity.ContactStatusLoader.Result;
+import com.android.emailcommon.utility.EmailAsyncTask;
+import com.google.common.annotations.VisibleForTesting;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.provider.ContactsContract;
+import android.text.TextUtils;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Locale;
+
+/**
+ * Process-wide cache of the contact information of email addresses (photo, presence and lookup
+ * URI; see {@link ContactStatusLoader#getContactInfo}), shared by the message view and the new
+ * message notifications, so that e.g. reading several messages from the same sender only goes to
+ * the contacts provider once.
+ *
+ * The cache is bounded by the approximate size of its entries, most of which is the photos, and
+ * drops the least recently used entries first.  It is cleared whenever anything in the contacts
+ * provider changes.  Until {@link #init} has been called, nothing would clear it, so nothing is
+ * cached.
+ */
+public class ContactStatusCache {
+    /** Upper bound on the total size of the cached entries */
+    @VisibleForTesting
+    static final int MAX_CACHE_BYTES = 2 * 1024 * 1024;
+
+    /** Approximate size of an entry, apart from its photo and key */
+    private static final int ENTRY_OVERHEAD_BYTES = 128;
+
+    /** The number of senders at the top of the message list to look up ahead of time */
+    public static final int MAX_PREFETCH_ADDRESSES = 20;
+
+    private static final LruCache<String, Result> sCache =
+            new LruCache<String, Result>(MAX_CACHE_BYTES) {
+        @Override
+        protected int sizeOf(String key, Result value) {
+            int size = ENTRY_OVERHEAD_BYTES + key.length() * 2;
+            if (value.mPhoto != null) {
+                size += value.mPhoto.getRowBytes() * value.mPhoto.getHeight();
+            }
+            return size;
+        }
+    };
+
+    /** Guards {@link #sGeneration} and {@link #sObserver} */
+    private static final Object sLock = new Object();
+
+    /**
+     * Incremented every time the cache is cleared, so that a lookup which was started before the
+     * contacts changed doesn't put its (possibly outdated) result in the cache.
+     */
+    private static int sGeneration;
+
+    private static ContentResolver sResolver;
+    private static ContentObserver sObserver;
+
+    private ContactStatusCache() {
+    }
+
+    /**
+     * Start watching the contacts provider, which enables the cache.  Must be called on the UI
+     * thread.
+     */
+    public static void init(Context context) {
+        synchronized (sLock) {
+            if (sObserver != null) {
+                return;
+            }
+            // No handler; we're only clearing the cache, which can be done on any thread
+            sObserver = new ContentObserver(null) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    clear();
+                }
+            };
+            sResolver = context.getContentResolver();
+            sResolver.registerContentObserver(ContactsContract.AUTHORITY_URI, true, sObserver);
+        }
+    }
+
+    /**
+     * Stop watching the contacts provider and clear the cache, which disables it.
+     */
+    @VisibleForTesting
+    static void reset() {
+        synchronized (sLock) {
+            if (sObserver != null) {
+                sResolver.unregisterContentObserver(sObserver);
+                sObserver = null;
+                sResolver = null;
+            }
+        }
+        clear();
+    }
+
+    /**
+     * Drop all of the cached entries.
+     */
+    public static void clear() {
+        synchronized (sLock) {
+            sGeneration++;
+            sCache.evictAll();
+        }
+    }
+
+    private static String getKey(String emailAddress) {
+        return emailAddress.toLowerCase(Locale.US);
+    }
+
+    /**
+     * Returns the contact information of an email address, from the cache if possible.
+     *
+     * NOTE: DO NOT CALL THIS METHOD FROM THE UI THREAD (DATABASE ACCESS)
+     */
+    public static Result get(Context context, String emailAddress) {
+        if (TextUtils.isEmpty(emailAddress)) {
+            return Result.UNKNOWN;
+        }
+        final String key = getKey(emailAddress);
+        final int generation;
+        synchronized (sLock) {
+            if (sObserver == null) {
+                return ContactStatusLoader.getContactInfo(context, emailAddress);
+            }
+            generation = sGeneration;
+        }
+        Result result = sCache.get(key);
+        if (result != null) {
+            return result;
+        }
+        result = ContactStatusLoader.getContactInfo(context, emailAddress);
+        synchronized (sLock) {
+            if (generation == sGeneration) {
+                sCache.put(key, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Looks up the contact information of the given email addresses in the background, so that
+     * it's already cached when it's needed, e.g. for the senders of the messages in the list.
+     */
+    public static void prefetch(Context context, Collection<String> emailAddresses) {
+        synchronized (sLock) {
+            if (sObserver == null) {
+                return;
+            }
+        }
+        final Context appContext = context.getApplicationContext();
+        final ArrayList<String> missing = new ArrayList<String>();
+        for (String emailAddress : emailAddresses) {
+            if (!TextUtils.isEmpty(emailAddress) && sCache.get(getKey(emailAddress)) == null) {
+                missing.add(emailAddress);
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+        EmailAsyncTask.runAsyncParallel(new Runnable() {
+            @Override
+            public void run() {
+                for (String emailAddress : missing) {
+                    get(appContext, emailAddress);
+                }
+            }
+        });
+    }
+}
@@ -92,11 +92,12 @@ public class ContactStatusLoader extends AsyncTaskLoader<ContactStatusLoader.Res
 
     @Override
     public Result loadInBackground() {
-        return getContactInfo(mContext, mEmailAddress);
+        return ContactStatusCache.get(mContext, mEmailAddress);
     }
 
     /**
-     * Synchronously loads contact data.
+     * Synchronously loads contact data.  Use {@link ContactStatusCache#get} instead, unless the
+     * data must not come from the cache.
      *
      * NOTE: DO NOT CALL THIS METHOD FROM THE UI THREAD (DATABASE ACCESS)
      */
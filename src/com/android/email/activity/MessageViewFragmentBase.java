@@ -63,6 +63,7 @@ import com.android.email.Preferences;
 import com.android.email.R;
 import com.android.email.Throttle;
 import com.android.email.mail.internet.EmailHtmlUtil;
+import com.android.email.provider.ThumbnailCache;
 import com.android.email.service.AttachmentDownloadService;
 import com.android.emailcommon.Logging;
 import com.android.emailcommon.mail.Address;
@@ -108,9 +109,6 @@ public abstract class MessageViewFragmentBase extends Fragment implements View.O
     // Regex that matches Web URL protocol part as case insensitive.
     private static final Pattern WEB_URL_PROTOCOL = Pattern.compile("(?i)http|https://");
 
-    private static int PREVIEW_ICON_WIDTH = 62;
-    private static int PREVIEW_ICON_HEIGHT = 62;
-
     // The different levels of zoom: read from the Preferences.
     private static String[] sZoomSizes = null;
 
@@ -1018,14 +1016,11 @@ public abstract class MessageViewFragmentBase extends Fragment implements View.O
         initContactStatusViews(); // Initialize the state, just in case.
 
         // Find the sender email address, and start presence check.
-        Address sender = Address.unpackFirst(mMessage.mFrom);
-        if (sender != null) {
-            String email = sender.getAddress();
-            if (email != null) {
-                getLoaderManager().restartLoader(PHOTO_LOADER_ID,
-                        ContactStatusLoaderCallbacks.createArguments(email),
-                        new ContactStatusLoaderCallbacks(this));
-            }
+        String email = Address.unpackFirstAddress(mMessage.mFrom);
+        if (email != null) {
+            getLoaderManager().restartLoader(PHOTO_LOADER_ID,
+                    ContactStatusLoaderCallbacks.createArguments(email),
+                    new ContactStatusLoaderCallbacks(this));
         }
     }
 
@@ -1241,17 +1236,25 @@ public abstract class MessageViewFragmentBase extends Fragment implements View.O
         }
     }
 
+    /**
+     * Reads the attachment's preview icon.  Thumbnails of downloaded images are normally
+     * generated in the background when the download completes, so this is usually just a read
+     * of a small cached file.
+     */
     private static Bitmap getPreviewIcon(Context context, AttachmentInfo attachment) {
+        InputStream in = null;
         try {
-            return BitmapFactory.decodeStream(
-                    context.getContentResolver().openInputStream(
-                            AttachmentUtilities.getAttachmentThumbnailUri(
-                                    attachment.mAccountKey, attachment.mId,
-                                    PREVIEW_ICON_WIDTH,
-                                    PREVIEW_ICON_HEIGHT)));
+            in = context.getContentResolver().openInputStream(
+                    AttachmentUtilities.getAttachmentThumbnailUri(
+                            attachment.mAccountKey, attachment.mId,
+                            ThumbnailCache.PREVIEW_ICON_WIDTH,
+                            ThumbnailCache.PREVIEW_ICON_HEIGHT));
+            return BitmapFactory.decodeStream(in);
         } catch (Exception e) {
             Log.d(Logging.LOG_TAG, "Attachment preview failed with exception " + e.getMessage());
             return null;
+        } finally {
+            IOUtils.closeQuietly(in);
         }
     }
 
@@ -1605,9 +1608,9 @@ public abstract class MessageViewFragmentBase extends Fragment implements View.O
         // To/Cc/Bcc
         final Resources res = mContext.getResources();
         final SpannableStringBuilder ssb = new SpannableStringBuilder();
-        final String friendlyTo = Address.toFriendly(Address.unpack(message.mTo));
-        final String friendlyCc = Address.toFriendly(Address.unpack(message.mCc));
-        final String friendlyBcc = Address.toFriendly(Address.unpack(message.mBcc));
+        final String friendlyTo = Address.unpackToFriendly(message.mTo);
+        final String friendlyCc = Address.unpackToFriendly(message.mCc);
+        final String friendlyBcc = Address.unpackToFriendly(message.mBcc);
 
         if (!TextUtils.isEmpty(friendlyTo)) {
             Utility.appendBold(ssb, res.getString(R.string.message_view_to_label));
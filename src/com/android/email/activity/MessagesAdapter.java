@@ -32,12 +32,14 @@ import com.android.email.MessageListContext;
 import com.android.email.ResourceHelper;
 import com.android.email.data.ThrottlingCursorLoader;
 import com.android.emailcommon.Logging;
+import com.android.emailcommon.mail.Address;
 import com.android.emailcommon.mail.MessagingException;
 import com.android.emailcommon.provider.Account;
 import com.android.emailcommon.provider.EmailContent;
 import com.android.emailcommon.provider.EmailContent.Message;
 import com.android.emailcommon.provider.EmailContent.MessageColumns;
 import com.android.emailcommon.provider.Mailbox;
+import com.android.emailcommon.utility.SearchTermMatcher;
 import com.android.emailcommon.utility.TextUtilities;
 import com.android.emailcommon.utility.Utility;
 import com.google.common.base.Preconditions;
@@ -57,7 +59,7 @@ import java.util.Set;
         EmailContent.RECORD_ID, MessageColumns.MAILBOX_KEY, MessageColumns.ACCOUNT_KEY,
         MessageColumns.DISPLAY_NAME, MessageColumns.SUBJECT, MessageColumns.TIMESTAMP,
         MessageColumns.FLAG_READ, MessageColumns.FLAG_FAVORITE, MessageColumns.FLAG_ATTACHMENT,
-        MessageColumns.FLAGS, MessageColumns.SNIPPET
+        MessageColumns.FLAGS, MessageColumns.SNIPPET, MessageColumns.FROM_LIST
     };
 
     public static final int COLUMN_ID = 0;
@@ -71,14 +73,15 @@ import java.util.Set;
     public static final int COLUMN_ATTACHMENTS = 8;
     public static final int COLUMN_FLAGS = 9;
     public static final int COLUMN_SNIPPET = 10;
+    public static final int COLUMN_FROM_LIST = 11;
 
     private final ResourceHelper mResourceHelper;
 
     /** If true, show color chips. */
     private boolean mShowColorChips;
 
-    /** If not null, the query represented by this group of messages */
-    private String mQuery;
+    /** If not null, the query represented by this group of messages, compiled for highlighting */
+    private SearchTermMatcher mQuery;
 
     /**
      * Set of seleced message IDs.
@@ -164,7 +167,7 @@ import java.util.Set;
     }
 
     public void setQuery(String query) {
-        mQuery = query;
+        mQuery = (query != null) ? SearchTermMatcher.compile(query) : null;
     }
 
     public Set<Long> getSelectedSet() {
@@ -220,7 +223,7 @@ import java.util.Set;
 
         if (mQuery != null && itemView.mSnippet != null) {
             itemView.mSnippet =
-                TextUtilities.highlightTermsInText(cursor.getString(COLUMN_SNIPPET), mQuery);
+                TextUtilities.highlightMatchesInText(cursor.getString(COLUMN_SNIPPET), mQuery);
         }
     }
 
@@ -307,7 +310,31 @@ import java.util.Set;
             // Build the where cause (which can't be done on the UI thread.)
             setSelection(Message.buildMessageListSelection(mContext, mAccountId, mMailboxId));
             // Then do a query to get the cursor
-            return loadExtras(super.loadInBackground());
+            final Cursor cursor = super.loadInBackground();
+            prefetchSenders(cursor);
+            return loadExtras(cursor);
+        }
+
+        /**
+         * Look up the senders at the top of the list in the background, so that their contact
+         * information is cached by the time a message is opened.
+         */
+        private void prefetchSenders(Cursor cursor) {
+            if (cursor == null) {
+                return;
+            }
+            final HashSet<String> senders = new HashSet<String>();
+            cursor.moveToPosition(-1);
+            while (cursor.moveToNext()
+                    && senders.size() < ContactStatusCache.MAX_PREFETCH_ADDRESSES) {
+                final String sender =
+                        Address.unpackFirstAddress(cursor.getString(COLUMN_FROM_LIST));
+                if (sender != null) {
+                    senders.add(sender);
+                }
+            }
+            cursor.moveToPosition(-1);
+            ContactStatusCache.prefetch(mContext, senders);
         }
 
         private Cursor loadExtras(Cursor baseCursor) {
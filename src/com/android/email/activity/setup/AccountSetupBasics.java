@@ -635,6 +635,12 @@ public class AccountSetupBasics extends AccountSetupActivity
             account.mFlags |= Account.FLAGS_SUPPORTS_SEARCH;
         }
 
+        if (HostAuth.SCHEME_POP3.equals(protocol)) {
+            // POP3 can't search on the server, but messages that have been downloaded can be
+            // searched locally
+            account.mFlags |= Account.FLAGS_SUPPORTS_SEARCH;
+        }
+
         if (HostAuth.SCHEME_EAS.equals(protocol)) {
             account.setDeletePolicy(Account.DELETE_POLICY_ON_DELETE);
             account.setSyncInterval(Account.CHECK_INTERVAL_PUSH);
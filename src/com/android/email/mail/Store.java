@@ -34,6 +34,7 @@ import com.android.emailcommon.provider.Mailbox;
 import com.google.common.annotations.VisibleForTesting;
 
 import java.lang.reflect.Method;
+import java.util.Collection;
 import java.util.HashMap;
 
 /**
@@ -146,10 +147,41 @@ public abstract class Store {
         return true;
     }
 
+    /**
+     * @return whether a folder of this store can fetch an attachment into a
+     * {@link com.android.emailcommon.internet.PartialFileBody}, so that an interrupted download
+     * can be resumed
+     */
+    public boolean canResumeAttachmentDownloads() {
+        return false;
+    }
+
+    /**
+     * @return how many connections to the server may be open at once, e.g. to sync several
+     * folders in parallel
+     */
+    public int getMaxConcurrentConnections() {
+        return 1;
+    }
+
     public Folder getFolder(String name) throws MessagingException {
         return null;
     }
 
+    /**
+     * Gets a summary of the state of each of the given folders on the server, without opening
+     * them.  While a folder's summary stays the same, nothing has been added to or removed from
+     * it, so a sync can skip it.
+     *
+     * @param names the names (server ids) of the folders
+     * @return the summaries, by folder name; a folder that the server can't summarize is left
+     * out.  null if the store can't summarize folders at all.
+     */
+    public HashMap<String, String> getFolderStates(Collection<String> names)
+            throws MessagingException {
+        return null;
+    }
+
     /**
      * Updates the local list of mailboxes according to what is located on the remote server.
      * <em>Note: This does not perform folder synchronization and it will not remove mailboxes
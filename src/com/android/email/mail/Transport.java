@@ -118,6 +118,24 @@ public interface Transport extends Cloneable {
      */
     public void reopenTls() throws MessagingException;
 
+    /**
+     * @return true if the connection can be compressed with {@link #startCompression()}
+     */
+    public boolean canTryCompression();
+
+    /**
+     * Compresses the connection with raw DEFLATE, in both directions, from the next byte sent or
+     * received; the streams and lines are uncompressed transparently.  The protocol must have
+     * agreed on it with the server first.
+     */
+    public void startCompression() throws IOException;
+
+    /**
+     * @return how many times smaller the data sent and received has been on the wire since
+     * {@link #startCompression()}, or 0 if the connection isn't compressed.
+     */
+    public float getCompressionRatio();
+
     /**
      * @return true if the connection is open
      */
@@ -35,6 +35,7 @@ import com.android.emailcommon.mail.CertificateValidationException;
 import com.android.emailcommon.mail.MessagingException;
 
 import java.io.IOException;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -57,10 +58,16 @@ class ImapConnection {
     public static final int CAPABILITY_STARTTLS  = 1 << 2;
     /** UIDPLUS capability per RFC 4315 */
     public static final int CAPABILITY_UIDPLUS   = 1 << 3;
+    /** COMPRESS=DEFLATE capability per RFC 4978 */
+    public static final int CAPABILITY_COMPRESS_DEFLATE = 1 << 4;
+    /** LIST-STATUS capability per RFC 5819 */
+    public static final int CAPABILITY_LIST_STATUS = 1 << 5;
 
     /** The capabilities supported; a set of CAPABILITY_* values. */
     private int mCapabilities;
     private static final String IMAP_REDACTED_LOG = "[IMAP command redacted]";
+    /** How long {@link #isIdleConnectionAlive} waits for the server to say something */
+    private static final int IDLE_CHECK_TIMEOUT_MILLIS = 10;
     Transport mTransport;
     private ImapResponseParser mParser;
     private ImapStore mImapStore;
@@ -138,6 +145,9 @@ class ImapConnection {
             // LOGIN
             doLogin();
 
+            // COMPRESS (only once authenticated, so that the credentials aren't compressed)
+            doCompress(isCapable(CAPABILITY_COMPRESS_DEFLATE));
+
             // NAMESPACE (only valid in the Authenticated state)
             doGetNamespace(isCapable(CAPABILITY_NAMESPACE));
 
@@ -184,12 +194,20 @@ class ImapConnection {
         return (mCapabilities & capability) != 0;
     }
 
+    /**
+     * @return whether the server can return the STATUS of each mailbox that it lists. Only known
+     * once the connection is open.
+     */
+    boolean canListStatus() {
+        return isCapable(CAPABILITY_LIST_STATUS);
+    }
+
     /**
      * Sets the capability flags according to the response provided by the server.
      * Note: We only set the capability flags that we are interested in. There are many IMAP
      * capabilities that we do not track.
      */
-    private void setCapabilities(ImapResponse capabilities) {
+    private void setCapabilities(ImapList capabilities) {
         if (capabilities.contains(ImapConstants.ID)) {
             mCapabilities |= CAPABILITY_ID;
         }
@@ -202,6 +220,12 @@ class ImapConnection {
         if (capabilities.contains(ImapConstants.STARTTLS)) {
             mCapabilities |= CAPABILITY_STARTTLS;
         }
+        if (capabilities.contains(ImapConstants.COMPRESS_DEFLATE_CAPABILITY)) {
+            mCapabilities |= CAPABILITY_COMPRESS_DEFLATE;
+        }
+        if (capabilities.contains(ImapConstants.LIST_STATUS)) {
+            mCapabilities |= CAPABILITY_LIST_STATUS;
+        }
     }
 
     /**
@@ -222,6 +246,33 @@ class ImapConnection {
         }
     }
 
+    /**
+     * @return whether an idle connection still looks usable, without sending anything to the
+     * server: it's open, and the server hasn't sent anything (typically a BYE) since the last
+     * response.  This briefly reads the connection, since available() is always 0 for SSL and
+     * compressed streams; if anything is read, the connection must be closed.
+     */
+    boolean isIdleConnectionAlive() {
+        if (mTransport == null || !mTransport.isOpen()) {
+            return false;
+        }
+        try {
+            mTransport.setSoTimeout(IDLE_CHECK_TIMEOUT_MILLIS);
+            try {
+                // An idle connection gets nothing but a BYE, or -1 if the server has hung up
+                mTransport.getInputStream().read();
+                return false;
+            } finally {
+                mTransport.setSoTimeout(MailTransport.SOCKET_READ_TIMEOUT);
+            }
+        } catch (SocketTimeoutException e) {
+            // Nothing to read
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
     boolean isTransportOpenForTest() {
         return mTransport != null ? mTransport.isOpen() : false;
     }
@@ -230,6 +281,12 @@ class ImapConnection {
         return mParser.readResponse();
     }
 
+    /** @see ImapResponseParser#readResponse(ImapResponseParser.LiteralConsumer) */
+    ImapResponse readResponse(ImapResponseParser.LiteralConsumer consumer)
+            throws IOException, MessagingException {
+        return mParser.readResponse(consumer);
+    }
+
     /**
      * Send a single command to the server.  The command will be preceded by an IMAP command
      * tag and followed by \r\n (caller need not supply them).
@@ -445,7 +502,18 @@ class ImapConnection {
         try {
             // TODO eventually we need to add additional authentication
             // options such as SASL
-            executeSimpleCommand(mLoginPhrase, true);
+            List<ImapResponse> responses = executeSimpleCommand(mLoginPhrase, true);
+
+            // Servers may announce more capabilities (e.g. COMPRESS) once we're logged in,
+            // either in a CAPABILITY response or in the response code of the tagged OK.
+            for (ImapResponse response : responses) {
+                if (response.is(0, ImapConstants.CAPABILITY)) {
+                    setCapabilities(response);
+                } else if (response.isTagged()
+                        && response.getResponseCodeOrEmpty().is(ImapConstants.CAPABILITY)) {
+                    setCapabilities(response.getListOrEmpty(1));
+                }
+            }
         } catch (ImapException ie) {
             if (Email.DEBUG) {
                 Log.d(Logging.LOG_TAG, ie.toString());
@@ -457,6 +525,36 @@ class ImapConnection {
         }
     }
 
+    /**
+     * Turns on compression per RFC 4978, if both the server and the transport support it.  If the
+     * server refuses, the connection simply stays uncompressed.
+     */
+    private void doCompress(boolean hasCompressCapability)
+            throws IOException, MessagingException {
+        if (!hasCompressCapability || !mTransport.canTryCompression()) return;
+
+        try {
+            executeSimpleCommand(ImapConstants.COMPRESS_DEFLATE);
+        } catch (ImapException ie) {
+            // Log for debugging, but this is not a fatal problem.
+            if (Email.DEBUG) {
+                Log.d(Logging.LOG_TAG, ie.toString());
+            }
+            return;
+        }
+        // Everything after the OK is compressed, both ways
+        mTransport.startCompression();
+        createParser();
+    }
+
+    /**
+     * @return how many times smaller the traffic of this connection has been thanks to
+     * COMPRESS=DEFLATE, or 0 if it isn't compressed.
+     */
+    float getCompressionRatio() {
+        return (mTransport != null) ? mTransport.getCompressionRatio() : 0;
+    }
+
     /**
      * Gets the path separator per the LIST command in RFC 3501. If the path separator
      * was obtained while obtaining the namespace or there is no prefix defined, this
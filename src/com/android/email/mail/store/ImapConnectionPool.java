@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store;
+
+import android.util.Log;
+
+import com.android.email.Clock;
+import com.android.email.Email;
+import com.android.email.mail.store.imap.ImapConstants;
+import com.android.emailcommon.Logging;
+import com.android.emailcommon.mail.MessagingException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * The idle connections of an {@link ImapStore}, kept for reuse.
+ *
+ * A connection that was in use a moment ago is handed out again as is; only one that has been
+ * idle for longer than {@link #NOOP_IDLE_MILLIS} is checked with a NOOP first.  The pool holds at
+ * most {@link #MAX_POOLED_CONNECTIONS}, and closes those that have been idle for longer than
+ * {@link #MAX_IDLE_MILLIS}.  While it holds any, it also looks at them every
+ * {@link #SWEEP_INTERVAL_MILLIS} and closes the ones that are closed at our end or that the server
+ * has said something on (typically a BYE).  That check reads from the sockets, with a short
+ * timeout, but sends nothing, so it doesn't keep the radio up.  The pool isn't locked meanwhile;
+ * the connections being checked are taken out of it instead.
+ *
+ * All methods may be called from any thread.
+ */
+class ImapConnectionPool {
+    /** How many idle connections are kept; more are closed, least recently used first */
+    static final int MAX_POOLED_CONNECTIONS = 3;
+
+    /** Connections idle for longer than this are checked with a NOOP before they're reused */
+    static final long NOOP_IDLE_MILLIS = 30 * 1000;
+
+    /** Connections idle for longer than this are closed */
+    static final long MAX_IDLE_MILLIS = 5 * 60 * 1000;
+
+    /** How often the idle connections are looked at, while there are any */
+    static final long SWEEP_INTERVAL_MILLIS = 60 * 1000;
+
+    private static final Timer TIMER = new Timer("ImapConnectionPool", true);
+
+    private static class Entry {
+        final ImapConnection mConnection;
+        final long mIdleSince;
+
+        Entry(ImapConnection connection, long idleSince) {
+            mConnection = connection;
+            mIdleSince = idleSince;
+        }
+    }
+
+    private final Clock mClock;
+    private final Timer mTimer;
+
+    /** The idle connections, least recently used first */
+    private final LinkedList<Entry> mEntries = new LinkedList<Entry>();
+
+    private TimerTask mSweepTask;
+
+    // Statistics, for logging
+    private int mCheckouts;
+    private int mReuses;
+    private int mNoops;
+    private int mEvictions;
+
+    ImapConnectionPool() {
+        this(Clock.INSTANCE, TIMER);
+    }
+
+    /** Constructor for tests */
+    /* package */ ImapConnectionPool(Clock clock, Timer timer) {
+        mClock = clock;
+        mTimer = timer;
+    }
+
+    /**
+     * Gets a connection for the store, reusing an idle one if there's one that's still good.
+     * A new connection isn't opened yet.
+     */
+    ImapConnection getConnection(ImapStore store, String username, String password) {
+        synchronized (this) {
+            mCheckouts++;
+        }
+        Entry entry;
+        while ((entry = pollMostRecentlyUsed()) != null) {
+            final ImapConnection connection = entry.mConnection;
+            connection.setStore(store, username, password);
+            if (mClock.getTime() - entry.mIdleSince < NOOP_IDLE_MILLIS || isAlive(connection)) {
+                synchronized (this) {
+                    mReuses++;
+                }
+                return connection;
+            }
+            connection.close();
+        }
+        return new ImapConnection(store, username, password);
+    }
+
+    /**
+     * Makes sure that a connection that has been idle for a while still works.
+     */
+    private boolean isAlive(ImapConnection connection) {
+        synchronized (this) {
+            mNoops++;
+        }
+        try {
+            connection.executeSimpleCommand(ImapConstants.NOOP);
+            return true;
+        } catch (MessagingException e) {
+            // Fall through
+        } catch (IOException e) {
+            // Fall through
+        }
+        return false;
+    }
+
+    private synchronized Entry pollMostRecentlyUsed() {
+        Entry entry = mEntries.pollLast();
+        if (mEntries.isEmpty()) {
+            cancelSweep();
+        }
+        return entry;
+    }
+
+    /**
+     * Keeps a connection for reuse.  Any responses associated with the connection are destroyed.
+     */
+    void poolConnection(ImapConnection connection) {
+        connection.destroyResponses();
+        ImapConnection evicted = null;
+        synchronized (this) {
+            mEntries.addLast(new Entry(connection, mClock.getTime()));
+            if (mEntries.size() > MAX_POOLED_CONNECTIONS) {
+                evicted = mEntries.removeFirst().mConnection;
+                mEvictions++;
+            }
+            scheduleSweep();
+        }
+        if (evicted != null) {
+            evicted.close();
+        }
+    }
+
+    private void scheduleSweep() {
+        if (mSweepTask == null) {
+            mSweepTask = new TimerTask() {
+                @Override
+                public void run() {
+                    sweep();
+                }
+            };
+            mTimer.schedule(mSweepTask, SWEEP_INTERVAL_MILLIS, SWEEP_INTERVAL_MILLIS);
+        }
+    }
+
+    private void cancelSweep() {
+        if (mSweepTask != null) {
+            mSweepTask.cancel();
+            mSweepTask = null;
+        }
+    }
+
+    /**
+     * Closes the idle connections that have expired, or that are no longer usable.
+     */
+    /* package */ void sweep() {
+        final ArrayList<ImapConnection> evicted = new ArrayList<ImapConnection>();
+        final ArrayList<Entry> candidates = new ArrayList<Entry>();
+        synchronized (this) {
+            final long now = mClock.getTime();
+            for (Entry entry : mEntries) {
+                if (now - entry.mIdleSince >= MAX_IDLE_MILLIS) {
+                    evicted.add(entry.mConnection);
+                } else {
+                    candidates.add(entry);
+                }
+            }
+            mEntries.clear();
+        }
+
+        // Checking a connection reads from its socket, so don't hold the lock while doing it
+        final ArrayList<Entry> alive = new ArrayList<Entry>();
+        for (Entry entry : candidates) {
+            if (entry.mConnection.isIdleConnectionAlive()) {
+                alive.add(entry);
+            } else {
+                evicted.add(entry.mConnection);
+            }
+        }
+
+        synchronized (this) {
+            // Any connection pooled in the meantime was used more recently than these
+            mEntries.addAll(0, alive);
+            while (mEntries.size() > MAX_POOLED_CONNECTIONS) {
+                evicted.add(mEntries.removeFirst().mConnection);
+            }
+            mEvictions += evicted.size();
+            if (mEntries.isEmpty()) {
+                cancelSweep();
+            } else {
+                scheduleSweep();
+            }
+        }
+        for (ImapConnection connection : evicted) {
+            connection.close();
+        }
+        if (Email.DEBUG && !evicted.isEmpty()) {
+            Log.d(Logging.LOG_TAG, "Closed " + evicted.size() + " idle IMAP connections; "
+                    + getStats());
+        }
+    }
+
+    /** @return the number of idle connections */
+    synchronized int size() {
+        return mEntries.size();
+    }
+
+    /** @return how many of the connections handed out were reused */
+    synchronized int getReuseCount() {
+        return mReuses;
+    }
+
+    /** @return how many NOOPs have been sent to check idle connections */
+    synchronized int getNoopCount() {
+        return mNoops;
+    }
+
+    /**
+     * @return a one-line summary of the pool's use, for logging.
+     */
+    synchronized String getStats() {
+        final int hitRate = (mCheckouts == 0) ? 0 : (100 * mReuses / mCheckouts);
+        return "IMAP connection pool: " + mEntries.size() + " idle, " + mCheckouts + " checkouts, "
+                + mReuses + " reused (" + hitRate + "%), " + mNoops + " NOOPs, "
+                + mEvictions + " evicted";
+    }
+}
@@ -28,6 +28,7 @@ import com.android.email.mail.store.imap.ImapConstants;
 import com.android.email.mail.store.imap.ImapElement;
 import com.android.email.mail.store.imap.ImapList;
 import com.android.email.mail.store.imap.ImapResponse;
+import com.android.email.mail.store.imap.ImapResponseParser;
 import com.android.email.mail.store.imap.ImapString;
 import com.android.email.mail.store.imap.ImapUtility;
 import com.android.email.mail.transport.CountingOutputStream;
@@ -38,9 +39,11 @@ import com.android.emailcommon.internet.MimeBodyPart;
 import com.android.emailcommon.internet.MimeHeader;
 import com.android.emailcommon.internet.MimeMultipart;
 import com.android.emailcommon.internet.MimeUtility;
+import com.android.emailcommon.internet.PartialFileBody;
 import com.android.emailcommon.mail.AuthenticationFailedException;
 import com.android.emailcommon.mail.Body;
 import com.android.emailcommon.mail.FetchProfile;
+import com.android.emailcommon.mail.Fetchable;
 import com.android.emailcommon.mail.Flag;
 import com.android.emailcommon.mail.Folder;
 import com.android.emailcommon.mail.Message;
@@ -48,6 +51,7 @@ import com.android.emailcommon.mail.MessagingException;
 import com.android.emailcommon.mail.Part;
 import com.android.emailcommon.provider.Mailbox;
 import com.android.emailcommon.service.SearchParams;
+import com.android.emailcommon.utility.BufferPool;
 import com.android.emailcommon.utility.Utility;
 import com.google.common.annotations.VisibleForTesting;
 
@@ -59,13 +63,16 @@ import java.util.Arrays;
 import java.util.Date;
 import java.util.Locale;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 
 class ImapFolder extends Folder {
     private final static Flag[] PERMANENT_FLAGS =
         { Flag.DELETED, Flag.SEEN, Flag.FLAGGED, Flag.ANSWERED };
-    private static final int COPY_BUFFER_SIZE = 16*1024;
+
+    /** The most encoded data fetched at once for a part that's downloaded in pieces */
+    /* package */ static final int PARTIAL_FETCH_CHUNK_SIZE = 256 * 1024;
 
     private final ImapStore mStore;
     private final String mName;
@@ -541,7 +548,8 @@ class ImapFolder extends Folder {
          * STRUCTURE - UID FETCH (BODYSTRUCTURE)
          * BODY_SANE - UID FETCH (BODY.PEEK[]<0.N>) where N = max bytes returned
          * BODY      - UID FETCH (BODY.PEEK[])
-         * Part      - UID FETCH (BODY.PEEK[ID]) where ID = mime part ID
+         * Part      - UID FETCH (BODY.PEEK[ID]) where ID = mime part ID; several parts (e.g.
+         *             the small attachments of a message) can be fetched at once
          */
 
         final LinkedHashSet<String> fetchFields = new LinkedHashSet<String>();
@@ -566,17 +574,50 @@ class ImapFolder extends Folder {
             fetchFields.add(ImapConstants.FETCH_FIELD_BODY_PEEK);
         }
 
-        final Part fetchPart = fp.getFirstPart();
-        if (fetchPart != null) {
-            final String[] partIds =
-                    fetchPart.getHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA);
-            if (partIds != null) {
-                fetchFields.add(ImapConstants.FETCH_FIELD_BODY_PEEK_BARE
-                        + "[" + partIds[0] + "]");
+        final ArrayList<Part> fetchParts = new ArrayList<Part>();
+        final ArrayList<String> fetchPartIds = new ArrayList<String>();
+        final ArrayList<Part> partialParts = new ArrayList<Part>();
+        final ArrayList<String> partialPartIds = new ArrayList<String>();
+        for (Fetchable fetchable : fp) {
+            if (fetchable instanceof Part) {
+                final Part fetchPart = (Part) fetchable;
+                final String[] partIds =
+                        fetchPart.getHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA);
+                if (partIds != null && fetchPart.getBody() instanceof PartialFileBody) {
+                    // Fetched separately, a chunk at a time
+                    partialParts.add(fetchPart);
+                    partialPartIds.add(partIds[0]);
+                } else if (partIds != null) {
+                    fetchFields.add(ImapConstants.FETCH_FIELD_BODY_PEEK_BARE
+                            + "[" + partIds[0] + "]");
+                    fetchParts.add(fetchPart);
+                    fetchPartIds.add(partIds[0]);
+                }
             }
         }
 
         try {
+            for (int i = 0, count = partialParts.size(); i < count; i++) {
+                final Part part = partialParts.get(i);
+                for (Message message : messages) {
+                    fetchPartialPart(message, part, partialPartIds.get(i),
+                            (PartialFileBody) part.getBody(), listener);
+                }
+            }
+            if (!partialParts.isEmpty() && fetchParts.isEmpty() && fetchFields.size() == 1) {
+                // Nothing else was asked for
+                return;
+            }
+
+            // Bodies are parsed as they arrive, unless the envelope or the structure (which
+            // are handled once the whole response has been read) are being fetched with them.
+            final boolean streamBody = (fp.contains(FetchProfile.Item.BODY)
+                    || fp.contains(FetchProfile.Item.BODY_SANE))
+                    && !fp.contains(FetchProfile.Item.ENVELOPE)
+                    && !fp.contains(FetchProfile.Item.STRUCTURE);
+            final FetchLiteralConsumer consumer = new FetchLiteralConsumer(messageMap,
+                    streamBody, fetchParts, fetchPartIds, listener);
+
             mConnection.sendCommand(String.format(Locale.US,
                     ImapConstants.UID_FETCH + " %s (%s)", ImapStore.joinMessageUids(messages),
                     Utility.combine(fetchFields.toArray(new String[fetchFields.size()]), ' ')
@@ -586,7 +627,8 @@ class ImapFolder extends Folder {
             do {
                 response = null;
                 try {
-                    response = mConnection.readResponse();
+                    consumer.mConsumed.clear();
+                    response = mConnection.readResponse(consumer);
 
                     if (!response.isDataResponse(1, ImapConstants.FETCH)) {
                         continue; // Ignore
@@ -641,8 +683,9 @@ class ImapFolder extends Folder {
                             }
                         }
                     }
-                    if (fp.contains(FetchProfile.Item.BODY)
-                            || fp.contains(FetchProfile.Item.BODY_SANE)) {
+                    if ((fp.contains(FetchProfile.Item.BODY)
+                            || fp.contains(FetchProfile.Item.BODY_SANE))
+                            && !consumer.mConsumed.contains(FetchLiteralConsumer.BODY)) {
                         // Body is keyed by "BODY[]...".
                         // Previously used "BODY[..." but this can be confused with "BODY[HEADER..."
                         // TODO Should we accept "RFC822" as well??
@@ -650,10 +693,15 @@ class ImapFolder extends Folder {
                         InputStream bodyStream = body.getAsStream();
                         message.parse(bodyStream);
                     }
-                    if (fetchPart != null && fetchPart.getSize() > 0) {
+                    for (int i = 0, count = fetchParts.size(); i < count; i++) {
+                        final Part fetchPart = fetchParts.get(i);
+                        if (fetchPart.getSize() <= 0) continue;
+                        if (consumer.mConsumed.contains(fetchPartIds.get(i))) continue;
+                        // With a single part, accept any "BODY[..." key, as we always have
+                        final String key = (count == 1) ? "BODY["
+                                : "BODY[" + fetchPartIds.get(i) + "]";
                         InputStream bodyStream =
-                                fetchList.getKeyedStringOrEmpty("BODY[", true).getAsStream();
-                        String contentType = fetchPart.getContentType();
+                                fetchList.getKeyedStringOrEmpty(key, true).getAsStream();
                         String contentTransferEncoding = fetchPart.getHeader(
                                 MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING)[0];
 
@@ -677,6 +725,150 @@ class ImapFolder extends Folder {
         }
     }
 
+    /**
+     * Streams the bodies and parts in FETCH responses to where they're going as they're parsed,
+     * instead of having the parser keep each of them (in memory, up to 2MB) until the whole
+     * response has been read.  Literals that come before the UID of their message, or whose
+     * item name doesn't match what was asked for, are left to the parser, and handled with the
+     * rest of the response as before.
+     */
+    private class FetchLiteralConsumer implements ImapResponseParser.LiteralConsumer {
+        /** Stands for the message body in {@link #mConsumed}; parts are there by their IDs */
+        static final String BODY = "BODY[]";
+
+        private final HashMap<String, Message> mMessageMap;
+        private final boolean mStreamBody;
+        private final ArrayList<Part> mParts;
+        private final ArrayList<String> mPartIds;
+        private final MessageRetrievalListener mListener;
+
+        /** What's been consumed from the current response */
+        final HashSet<String> mConsumed = new HashSet<String>();
+
+        FetchLiteralConsumer(HashMap<String, Message> messageMap, boolean streamBody,
+                ArrayList<Part> parts, ArrayList<String> partIds,
+                MessageRetrievalListener listener) {
+            mMessageMap = messageMap;
+            mStreamBody = streamBody;
+            mParts = parts;
+            mPartIds = partIds;
+            mListener = listener;
+        }
+
+        @Override
+        public boolean consumeLiteral(ImapResponse response, ImapList list, InputStream in)
+                throws IOException, MessagingException {
+            if (!response.isDataResponse(1, ImapConstants.FETCH) || list.isEmpty()) {
+                return false;
+            }
+            final ImapMessage message = (ImapMessage) mMessageMap.get(
+                    list.getKeyedStringOrEmpty(ImapConstants.UID).getString());
+            if (message == null) {
+                return false;
+            }
+            final int keyIndex = list.size() - 1;
+            if (mStreamBody && list.is(keyIndex, BODY, true)) {
+                message.parse(in);
+                mConsumed.add(BODY);
+                return true;
+            }
+            for (int i = 0, count = mParts.size(); i < count; i++) {
+                final Part part = mParts.get(i);
+                final String partId = mPartIds.get(i);
+                if (part.getSize() <= 0 || mConsumed.contains(partId)
+                        || !list.is(keyIndex, "BODY[" + partId + "]", true)) {
+                    continue;
+                }
+                part.setBody(decodeBody(in,
+                        part.getHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING)[0],
+                        part.getSize(), mListener));
+                mConsumed.add(partId);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Fetch a part into a {@link PartialFileBody}, starting where the body left off, in chunks
+     * of {@link #PARTIAL_FETCH_CHUNK_SIZE} encoded bytes (e.g. BODY.PEEK[2]<0.262144>).  The body
+     * saves its progress after each chunk, so if the connection drops only the current chunk has
+     * to be fetched again.  If the server doesn't return the part, the body is left incomplete;
+     * if it refuses the command, an {@link ImapException} is thrown.
+     */
+    private void fetchPartialPart(Message message, Part part, String partId,
+            final PartialFileBody body, MessageRetrievalListener listener)
+            throws IOException, MessagingException {
+        final String uid = message.getUid();
+        final String key = "BODY[" + partId + "]";
+        final int size = part.getSize();
+        while (!body.isComplete()) {
+            mConnection.sendCommand(String.format(Locale.US,
+                    ImapConstants.UID_FETCH + " %s (%s %s[%s]<%d.%d>)", uid, ImapConstants.UID,
+                    ImapConstants.FETCH_FIELD_BODY_PEEK_BARE, partId, body.getEncodedOffset(),
+                    PARTIAL_FETCH_CHUNK_SIZE), false);
+            // The chunk is appended as it arrives, if the UID comes first (as it's asked for)
+            final boolean[] appended = new boolean[1];
+            final ImapResponseParser.LiteralConsumer consumer =
+                    new ImapResponseParser.LiteralConsumer() {
+                @Override
+                public boolean consumeLiteral(ImapResponse response, ImapList list,
+                        InputStream in) throws IOException {
+                    if (!response.isDataResponse(1, ImapConstants.FETCH) || list.isEmpty()
+                            || !uid.equals(list.getKeyedStringOrEmpty(ImapConstants.UID)
+                                    .getString())
+                            || !list.is(list.size() - 1, key, true)) {
+                        return false;
+                    }
+                    body.append(in, PARTIAL_FETCH_CHUNK_SIZE);
+                    appended[0] = true;
+                    return true;
+                }
+            };
+            boolean received = false;
+            ImapResponse response;
+            do {
+                response = null;
+                try {
+                    appended[0] = false;
+                    response = mConnection.readResponse(consumer);
+
+                    if (response.isTagged() && !response.isOk()) {
+                        throw new ImapException(response.toString(),
+                                response.getAlertTextOrEmpty().getString());
+                    }
+                    if (!response.isDataResponse(1, ImapConstants.FETCH)) {
+                        continue; // Ignore
+                    }
+                    final ImapList fetchList = response.getListOrEmpty(2);
+                    if (!uid.equals(
+                            fetchList.getKeyedStringOrEmpty(ImapConstants.UID).getString())) {
+                        continue;
+                    }
+                    // Past the end of the part, the server returns an empty string (or NIL)
+                    if (appended[0]) {
+                        received = true;
+                    } else if (fetchList.hasKey(key, true)) {
+                        body.append(fetchList.getKeyedStringOrEmpty(key, true).getAsStream(),
+                                PARTIAL_FETCH_CHUNK_SIZE);
+                        received = true;
+                    }
+                } finally {
+                    destroyResponses();
+                }
+            } while (!response.isTagged());
+
+            if (!received) {
+                return;
+            }
+            // The size of an attachment is its decoded size
+            if (listener != null && size > 0) {
+                listener.loadAttachmentProgress(
+                        (int) Math.min(100, body.getDecodedLength() * 100 / size));
+            }
+        }
+    }
+
     /**
      * Removes any content transfer encoding from the stream and returns a Body.
      * This code is taken/condensed from MimeUtility.decodeBody
@@ -687,8 +879,8 @@ class ImapFolder extends Folder {
         in = MimeUtility.getInputStreamForContentTransferEncoding(in, contentTransferEncoding);
         BinaryTempFileBody tempBody = new BinaryTempFileBody();
         OutputStream out = tempBody.getOutputStream();
+        byte[] buffer = BufferPool.acquireBytes();
         try {
-            byte[] buffer = new byte[COPY_BUFFER_SIZE];
             int n = 0;
             int count = 0;
             while (-1 != (n = in.read(buffer))) {
@@ -702,6 +894,7 @@ class ImapFolder extends Folder {
             String warning = "\n\n" + Email.getMessageDecodeErrorString();
             out.write(warning.getBytes());
         } finally {
+            BufferPool.releaseBytes(buffer);
             out.close();
         }
         return tempBody;
@@ -24,12 +24,14 @@ import android.text.TextUtils;
 import android.util.Base64;
 import android.util.Log;
 
+import com.android.email.Clock;
 import com.android.email.LegacyConversions;
 import com.android.email.Preferences;
 import com.android.email.VendorPolicyLoader;
 import com.android.email.mail.Store;
 import com.android.email.mail.Transport;
 import com.android.email.mail.store.imap.ImapConstants;
+import com.android.email.mail.store.imap.ImapList;
 import com.android.email.mail.store.imap.ImapResponse;
 import com.android.email.mail.store.imap.ImapString;
 import com.android.email.mail.transport.MailTransport;
@@ -57,8 +59,8 @@ import java.security.NoSuchAlgorithmException;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.regex.Pattern;
 
 
@@ -87,8 +89,22 @@ public class ImapStore extends Store {
     @VisibleForTesting String mPathPrefix;
     @VisibleForTesting String mPathSeparator;
 
-    private final ConcurrentLinkedQueue<ImapConnection> mConnectionPool =
-            new ConcurrentLinkedQueue<ImapConnection>();
+    private ImapConnectionPool mConnectionPool = new ImapConnectionPool();
+
+    /** The STATUS items that make up the state of a folder; see {@link #getFolderStates} */
+    private static final String STATUS_ITEMS = "(" + ImapConstants.MESSAGES + " "
+            + ImapConstants.UIDNEXT + " " + ImapConstants.UIDVALIDITY + " "
+            + ImapConstants.UNSEEN + ")";
+
+    /** How long the folder states that come with the folder list stay good for */
+    private static final long LISTED_FOLDER_STATES_MAX_AGE_MILLIS = 60 * 1000;
+
+    /**
+     * The folder states from the last LIST of updateFolders(), if the server returned them; handed
+     * out (once) by getFolderStates().  Guarded by this.
+     */
+    private HashMap<String, String> mListedFolderStates;
+    private long mListedFolderStatesTime;
 
     /**
      * Static named constructor.
@@ -142,10 +158,15 @@ public class ImapStore extends Store {
     }
 
     @VisibleForTesting
-    Collection<ImapConnection> getConnectionPoolForTest() {
+    ImapConnectionPool getConnectionPoolForTest() {
         return mConnectionPool;
     }
 
+    @VisibleForTesting
+    void setConnectionPoolForTest(ImapConnectionPool pool) {
+        mConnectionPool = pool;
+    }
+
     /**
      * For testing only.  Injects a different root transport (it will be copied using
      * newInstanceWithConfiguration() each time IMAP sets up a new channel).  The transport
@@ -310,6 +331,20 @@ public class ImapStore extends Store {
     }
 
 
+    @Override
+    public boolean canResumeAttachmentDownloads() {
+        return true;
+    }
+
+    /**
+     * Well below the per-user limit of common servers, and no more than the pool keeps, so that
+     * the connections of one sync pass are all reused by the next.
+     */
+    @Override
+    public int getMaxConcurrentConnections() {
+        return ImapConnectionPool.MAX_POOLED_CONNECTIONS;
+    }
+
     @Override
     public Folder getFolder(String name) {
         return new ImapFolder(this, name);
@@ -390,12 +425,19 @@ public class ImapStore extends Store {
             // Establish a connection to the IMAP server; if necessary
             // This ensures a valid prefix if the prefix is automatically set by the server
             connection.executeSimpleCommand(ImapConstants.NOOP);
-            String imapCommand = ImapConstants.LIST + " \"\" \"*\"";
-            if (mPathPrefix != null) {
-                imapCommand = ImapConstants.LIST + " \"\" \"" + mPathPrefix + "*\"";
+            // If the server can, it returns the state of each folder too, saving a sync the
+            // trouble of asking again
+            HashMap<String, String> states = null;
+            if (connection.canListStatus()) {
+                states = new HashMap<String, String>();
             }
-            List<ImapResponse> responses = connection.executeSimpleCommand(imapCommand);
+            List<ImapResponse> responses =
+                    connection.executeSimpleCommand(getListCommand(states != null));
             for (ImapResponse response : responses) {
+                if (states != null && response.isDataResponse(0, ImapConstants.STATUS)) {
+                    addFolderState(states, response);
+                    continue;
+                }
                 // S: * LIST (\Noselect) "/" ~/Mail/foo
                 if (response.isDataResponse(0, ImapConstants.LIST)) {
                     // Get folder name.
@@ -423,6 +465,12 @@ public class ImapStore extends Store {
             mailboxes.put(ImapConstants.INBOX, (ImapFolder)newFolder);
             createHierarchy(mailboxes);
             saveMailboxList(mContext, mailboxes);
+            if (states != null) {
+                synchronized (this) {
+                    mListedFolderStates = states;
+                    mListedFolderStatesTime = Clock.INSTANCE.getTime();
+                }
+            }
             return mailboxes.values().toArray(new Folder[] {});
         } catch (IOException ioe) {
             connection.close();
@@ -440,6 +488,149 @@ public class ImapStore extends Store {
         }
     }
 
+    /**
+     * @param withStatus whether to ask for the STATUS of each folder as well (RFC 5819)
+     * @return the LIST command for all of the folders under the path prefix
+     */
+    private String getListCommand(boolean withStatus) {
+        String imapCommand = ImapConstants.LIST + " \"\" \"*\"";
+        if (mPathPrefix != null) {
+            imapCommand = ImapConstants.LIST + " \"\" \"" + mPathPrefix + "*\"";
+        }
+        if (withStatus) {
+            imapCommand += " " + ImapConstants.RETURN + " (" + ImapConstants.STATUS + " "
+                    + STATUS_ITEMS + ")";
+        }
+        return imapCommand;
+    }
+
+    /**
+     * @return a LIST command for just the given folders, that returns their STATUS as well
+     * (LIST-STATUS, RFC 5819, which requires the multiple patterns of LIST-EXTENDED, RFC 5258)
+     */
+    private String getListStatusCommand(Collection<String> names) {
+        StringBuilder sb = new StringBuilder(ImapConstants.LIST + " \"\" (");
+        boolean first = true;
+        for (String name : names) {
+            if (!first) {
+                sb.append(' ');
+            }
+            first = false;
+            sb.append('"').append(encodeFolderName(name, mPathPrefix)).append('"');
+        }
+        sb.append(") " + ImapConstants.RETURN + " (" + ImapConstants.STATUS + " " + STATUS_ITEMS
+                + ")");
+        return sb.toString();
+    }
+
+    /**
+     * The state of a folder is its UIDVALIDITY, UIDNEXT, MESSAGES and UNSEEN.  A new message
+     * changes UIDNEXT, an expunge changes MESSAGES, and a message that's been read elsewhere
+     * changes UNSEEN.
+     *
+     * All of the folders are covered by one command: a LIST of just those folders that returns
+     * their STATUS, if the server can, or else a STATUS for each folder, all sent before the first
+     * response is read.  Right after updateFolders() it's free, as the folder list came with the
+     * states.
+     */
+    @Override
+    public HashMap<String, String> getFolderStates(Collection<String> names)
+            throws MessagingException {
+        final HashMap<String, String> states = new HashMap<String, String>();
+        synchronized (this) {
+            final HashMap<String, String> listed = mListedFolderStates;
+            mListedFolderStates = null;
+            if (listed != null && Clock.INSTANCE.getTime() - mListedFolderStatesTime
+                    < LISTED_FOLDER_STATES_MAX_AGE_MILLIS) {
+                for (String name : names) {
+                    final String state = listed.get(name);
+                    if (state != null) {
+                        states.put(name, state);
+                    }
+                }
+                return states;
+            }
+        }
+        if (names.isEmpty()) {
+            return states;
+        }
+        ImapConnection connection = getConnection();
+        try {
+            connection.open();
+            if (connection.canListStatus()) {
+                for (ImapResponse response : connection.executeSimpleCommand(
+                        getListStatusCommand(names))) {
+                    if (response.isDataResponse(0, ImapConstants.STATUS)) {
+                        addFolderState(states, response);
+                    }
+                }
+                // Keep only what was asked for, should the server have matched anything else
+                states.keySet().retainAll(names);
+                return states;
+            }
+            for (String name : names) {
+                connection.sendCommand(String.format(Locale.US,
+                        ImapConstants.STATUS + " \"%s\" " + STATUS_ITEMS,
+                        encodeFolderName(name, mPathPrefix)), false);
+            }
+            for (int i = 0; i < names.size(); i++) {
+                ImapResponse response;
+                do {
+                    response = connection.readResponse();
+                    if (response.isDataResponse(0, ImapConstants.STATUS)) {
+                        addFolderState(states, response);
+                    }
+                } while (!response.isTagged());
+                // A folder that the server won't report on (e.g. it's gone) is left out
+            }
+            return states;
+        } catch (IOException ioe) {
+            connection.close();
+            throw new MessagingException("Unable to get folder states.", ioe);
+        } catch (AuthenticationFailedException afe) {
+            // We do NOT want this connection pooled
+            connection.destroyResponses();
+            connection = null;
+            throw afe;
+        } finally {
+            if (connection != null) {
+                poolConnection(connection);
+            }
+        }
+    }
+
+    /**
+     * Adds the state of a folder, from its STATUS response, to a map of states by folder name.
+     */
+    private void addFolderState(HashMap<String, String> states, ImapResponse response) {
+        // S: * STATUS "INBOX" (MESSAGES 231 UIDNEXT 44292 UIDVALIDITY 1 UNSEEN 5)
+        ImapString encodedFolder = response.getStringOrEmpty(1);
+        String state = getFolderState(response.getListOrEmpty(2));
+        if (encodedFolder.isEmpty() || state == null) return;
+        String folderName = decodeFolderName(encodedFolder.getString(), mPathPrefix);
+        if (ImapConstants.INBOX.equalsIgnoreCase(folderName)) {
+            folderName = ImapConstants.INBOX;
+        }
+        states.put(folderName, state);
+    }
+
+    /**
+     * @return the state of a folder, from the attributes of its STATUS response; null if they
+     * don't include UIDVALIDITY and UIDNEXT
+     */
+    @VisibleForTesting
+    static String getFolderState(ImapList status) {
+        final String uidValidity = status.getKeyedStringOrEmpty(ImapConstants.UIDVALIDITY)
+                .getString();
+        final String uidNext = status.getKeyedStringOrEmpty(ImapConstants.UIDNEXT).getString();
+        if (uidValidity.length() == 0 || uidNext.length() == 0) {
+            return null;
+        }
+        return uidValidity + ":" + uidNext + ":"
+                + status.getKeyedStringOrEmpty(ImapConstants.MESSAGES).getString() + ":"
+                + status.getKeyedStringOrEmpty(ImapConstants.UNSEEN).getString();
+    }
+
     @Override
     public Bundle checkSettings() throws MessagingException {
         int result = MessagingException.NO_ERROR;
@@ -503,24 +694,7 @@ public class ImapStore extends Store {
      * Gets a connection if one is available from the pool, or creates a new one if not.
      */
     ImapConnection getConnection() {
-        ImapConnection connection = null;
-        while ((connection = mConnectionPool.poll()) != null) {
-            try {
-                connection.setStore(this, mUsername, mPassword);
-                connection.executeSimpleCommand(ImapConstants.NOOP);
-                break;
-            } catch (MessagingException e) {
-                // Fall through
-            } catch (IOException e) {
-                // Fall through
-            }
-            connection.close();
-            connection = null;
-        }
-        if (connection == null) {
-            connection = new ImapConnection(this, mUsername, mPassword);
-        }
-        return connection;
+        return mConnectionPool.getConnection(this, mUsername, mPassword);
     }
 
     /**
@@ -529,8 +703,7 @@ public class ImapStore extends Store {
      */
     void poolConnection(ImapConnection connection) {
         if (connection != null) {
-            connection.destroyResponses();
-            mConnectionPool.add(connection);
+            mConnectionPool.poolConnection(connection);
         }
     }
 
@@ -43,6 +43,7 @@ import com.android.emailcommon.utility.LoggingInputStream;
 import com.android.emailcommon.utility.Utility;
 import com.google.common.annotations.VisibleForTesting;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
@@ -56,10 +57,24 @@ public class Pop3Store extends Store {
     private static boolean DEBUG_FORCE_SINGLE_LINE_UIDL = false;
     private static boolean DEBUG_LOG_RAW_STREAM = false;
 
+    /** How many commands are sent ahead of their responses, to a server that can pipeline */
+    private static final int PIPELINE_DEPTH = 16;
+
+    /** Maildrops with at least this many messages keep a {@link Pop3UidlSnapshot} */
+    private static final int UIDL_SNAPSHOT_MIN_MESSAGES = 1000;
+
+    /**
+     * Without pipelining, the unique-ids of at most this many new messages are asked for one at a
+     * time; for more, the whole listing is taken.
+     */
+    private static final int MAX_SINGLE_UIDL_COMMANDS = 50;
+
     private static final Flag[] PERMANENT_FLAGS = { Flag.DELETED };
     /** The name of the only mailbox available to POP3 accounts */
     private static final String POP3_MAILBOX_NAME = "INBOX";
     private final HashMap<String, Folder> mFolders = new HashMap<String, Folder>();
+    /** Identifies the server and user of a {@link Pop3UidlSnapshot} */
+    private final String mUidlSnapshotKey;
 
 //    /**
 //     * Detected latency, used for usage scaling.
@@ -131,6 +146,14 @@ public class Pop3Store extends Store {
             mUsername = userInfoParts[0];
             mPassword = userInfoParts[1];
         }
+        mUidlSnapshotKey = mUsername + "@" + recvAuth.mAddress + ":" + port;
+    }
+
+    /**
+     * @return the file that keeps the UIDL listing of the last sync of a large maildrop
+     */
+    /* package */ File getUidlSnapshotFile() {
+        return Pop3UidlSnapshot.getFile(mContext, mAccount.mId);
     }
 
     /**
@@ -215,6 +238,8 @@ public class Pop3Store extends Store {
         private final String mName;
         private int mMessageCount;
         private Pop3Capabilities mCapabilities;
+        /** The unique-ids of all the messages, by message number less one; null until needed */
+        private ArrayList<String> mUids;
 
         public Pop3Folder(String name) {
             if (name.equalsIgnoreCase(POP3_MAILBOX_NAME)) {
@@ -329,6 +354,7 @@ public class Pop3Store extends Store {
             mUidToMsgMap.clear();
             mMsgNumToMsgMap.clear();
             mUidToMsgNumMap.clear();
+            mUids = null;
         }
 
         @Override
@@ -448,13 +474,11 @@ public class Pop3Store extends Store {
             if (unindexedMessageCount == 0) {
                 return;
             }
-            UidlParser parser = new UidlParser();
-            if (DEBUG_FORCE_SINGLE_LINE_UIDL ||
-                    (unindexedMessageCount < 50 && mMessageCount > 5000)) {
+            if (DEBUG_FORCE_SINGLE_LINE_UIDL) {
                 /*
-                 * In extreme cases we'll do a UIDL command per message instead of a bulk
-                 * download.
+                 * Do a UIDL command per message instead of a bulk download.
                  */
+                UidlParser parser = new UidlParser();
                 for (int msgNum = start; msgNum <= end; msgNum++) {
                     Pop3Message message = mMsgNumToMsgMap.get(msgNum);
                     if (message == null) {
@@ -466,23 +490,13 @@ public class Pop3Store extends Store {
                         indexMessage(msgNum, message);
                     }
                 }
-            } else {
-                String response = executeSimpleCommand("UIDL");
-                while ((response = mTransport.readLine()) != null) {
-                    if (!parser.parseMultiLine(response)) {
-                        throw new IOException();
-                    }
-                    if (parser.mEndOfMessage) {
-                        break;
-                    }
-                    int msgNum = parser.mMessageNumber;
-                    if (msgNum >= start && msgNum <= end) {
-                        Pop3Message message = mMsgNumToMsgMap.get(msgNum);
-                        if (message == null) {
-                            message = new Pop3Message(parser.mUniqueId, this);
-                            indexMessage(msgNum, message);
-                        }
-                    }
+                return;
+            }
+            ArrayList<String> uids = loadUids();
+            for (int msgNum = start; msgNum <= Math.min(end, uids.size()); msgNum++) {
+                String uid = uids.get(msgNum - 1);
+                if (uid != null && mMsgNumToMsgMap.get(msgNum) == null) {
+                    indexMessage(msgNum, new Pop3Message(uid, this));
                 }
             }
         }
@@ -498,25 +512,184 @@ public class Pop3Store extends Store {
             if (unindexedUids.size() == 0) {
                 return;
             }
-            /*
-             * If we are missing uids in the cache the only sure way to
-             * get them is to do a full UIDL list. A possible optimization
-             * would be trying UIDL for the latest X messages and praying.
-             */
+            ArrayList<String> allUids = loadUids();
+            for (int msgNum = 1; msgNum <= allUids.size(); msgNum++) {
+                String uid = allUids.get(msgNum - 1);
+                if (uid != null && unindexedUids.contains(uid)) {
+                    Pop3Message message = mUidToMsgMap.get(uid);
+                    if (message == null) {
+                        message = new Pop3Message(uid, this);
+                    }
+                    indexMessage(msgNum, message);
+                }
+            }
+        }
+
+        /**
+         * Gets the unique-ids of all the messages, if we don't have them yet.  That takes one
+         * UIDL of the whole maildrop; but a large maildrop keeps that listing in a
+         * {@link Pop3UidlSnapshot}, and if the server still agrees with it, only the messages
+         * that arrived since are asked about.
+         *
+         * @return the unique-ids, by message number less one
+         */
+        private ArrayList<String> loadUids() throws MessagingException, IOException {
+            if (mUids != null) {
+                return mUids;
+            }
+            final boolean useSnapshot = mMessageCount >= UIDL_SNAPSHOT_MIN_MESSAGES;
+            ArrayList<String> uids = null;
+            if (useSnapshot) {
+                uids = Pop3UidlSnapshot.read(getUidlSnapshotFile(), mUidlSnapshotKey);
+            }
+            final int known = (uids == null) ? 0 : uids.size();
+            final int listed;
+            if (known > 0 && (canPipeline() || mMessageCount - known <= MAX_SINGLE_UIDL_COMMANDS)
+                    && isSnapshotCurrent(uids)) {
+                readNewUids(uids);
+                listed = mMessageCount - known;
+            } else {
+                uids = readAllUids();
+                listed = uids.size();
+            }
+            if (Email.DEBUG) {
+                Log.d(Logging.LOG_TAG, "POP3 UIDL: listed " + listed + " of " + uids.size()
+                        + " messages");
+            }
+            // If nothing had to be listed, the snapshot is still current
+            if (useSnapshot && listed > 0 && !uids.contains(null)) {
+                Pop3UidlSnapshot.write(getUidlSnapshotFile(), mUidlSnapshotKey, uids);
+            }
+            mUids = uids;
+            return uids;
+        }
+
+        /**
+         * @return whether the server still has the messages of the snapshot, with the same
+         * message numbers.  Only the last of them needs to be checked; see
+         * {@link Pop3UidlSnapshot}.
+         */
+        private boolean isSnapshotCurrent(ArrayList<String> uids)
+                throws MessagingException, IOException {
+            final int last = uids.size();
+            if (last > mMessageCount) {
+                return false;
+            }
+            final String response;
+            try {
+                response = executeSimpleCommand("UIDL " + last);
+            } catch (MessagingException me) {
+                return false;
+            }
+            UidlParser parser = new UidlParser();
+            if (!parser.parseSingleLine(response)) {
+                throw new IOException();
+            }
+            return parser.mMessageNumber == last && uids.get(last - 1).equals(parser.mUniqueId);
+        }
+
+        /**
+         * Takes the UIDL of the whole maildrop.
+         *
+         * @return the unique-ids, by message number less one; any that the server left out are
+         * null.
+         */
+        private ArrayList<String> readAllUids() throws MessagingException, IOException {
+            ArrayList<String> uids = new ArrayList<String>(mMessageCount);
             UidlParser parser = new UidlParser();
             String response = executeSimpleCommand("UIDL");
             while ((response = mTransport.readLine()) != null) {
-                parser.parseMultiLine(response);
+                if (!parser.parseMultiLine(response)) {
+                    throw new IOException();
+                }
                 if (parser.mEndOfMessage) {
                     break;
                 }
-                if (unindexedUids.contains(parser.mUniqueId)) {
-                    Pop3Message message = mUidToMsgMap.get(parser.mUniqueId);
-                    if (message == null) {
-                        message = new Pop3Message(parser.mUniqueId, this);
+                int msgNum = parser.mMessageNumber;
+                if (msgNum < 1) {
+                    throw new IOException();
+                }
+                while (uids.size() < msgNum) {
+                    uids.add(null);
+                }
+                uids.set(msgNum - 1, parser.mUniqueId);
+            }
+            return uids;
+        }
+
+        /**
+         * Adds the unique-ids of the messages after those already in the list, with a UIDL
+         * command for each; they're pipelined, if the server can.
+         */
+        private void readNewUids(final ArrayList<String> uids)
+                throws MessagingException, IOException {
+            final int first = uids.size() + 1;
+            ArrayList<String> commands = new ArrayList<String>();
+            for (int msgNum = first; msgNum <= mMessageCount; msgNum++) {
+                commands.add("UIDL " + msgNum);
+            }
+            final UidlParser parser = new UidlParser();
+            executePipelined(commands, new ResponseHandler() {
+                @Override
+                public void onResponse(int index, String response)
+                        throws MessagingException, IOException {
+                    if (!parser.parseSingleLine(response) || parser.mErr
+                            || parser.mMessageNumber != first + index) {
+                        throw new IOException();
+                    }
+                    uids.add(parser.mUniqueId);
+                }
+            });
+        }
+
+        /** @return whether the server said that it can take several commands at once */
+        private boolean canPipeline() {
+            return mCapabilities != null && mCapabilities.pipelining;
+        }
+
+        /**
+         * Handles the responses of {@link #executePipelined}.
+         */
+        private abstract class ResponseHandler {
+            /**
+             * @param index the index of the command
+             * @param response the first line of its response, which may be an error; the
+             * handler must read the rest of a multi-line response.
+             */
+            public abstract void onResponse(int index, String response)
+                    throws MessagingException, IOException;
+        }
+
+        /**
+         * Sends the commands, and hands their responses to the handler, in order.  If the server
+         * can pipeline (RFC 2449), up to {@link #PIPELINE_DEPTH} commands are sent ahead of the
+         * responses, so that the whole batch takes about one round trip rather than one for each
+         * command.  Reopens the connection, if it is closed.
+         */
+        private void executePipelined(ArrayList<String> commands, ResponseHandler handler)
+                throws MessagingException, IOException {
+            if (commands.isEmpty()) {
+                return;
+            }
+            open(OpenMode.READ_WRITE);
+            final int depth = canPipeline() ? PIPELINE_DEPTH : 1;
+            final int count = commands.size();
+            int sent = 0;
+            int received = 0;
+            try {
+                while (received < count) {
+                    while (sent < count && sent - received < depth) {
+                        mTransport.writeLine(commands.get(sent++), null);
                     }
-                    indexMessage(parser.mMessageNumber, message);
+                    handler.onResponse(received, mTransport.readLine());
+                    received++;
+                }
+            } catch (MessagingException me) {
+                // The responses to the commands that were sent ahead would confuse the next one
+                if (sent > received + 1) {
+                    mTransport.close();
                 }
+                throw me;
             }
         }
 
@@ -662,6 +835,19 @@ public class Pop3Store extends Store {
                 }
                 throw new MessagingException("fetch", ioe);
             }
+            if (messages.length > 1 && canPipelineBodies(fp)) {
+                try {
+                    fetchBodiesPipelined(messages, fp.contains(FetchProfile.Item.BODY)
+                            ? -1 : FETCH_BODY_SANE_SUGGESTED_SIZE / 76, listener);
+                } catch (IOException ioe) {
+                    mTransport.close();
+                    if (Email.DEBUG) {
+                        Log.d(Logging.LOG_TAG, ioe.toString());
+                    }
+                    throw new MessagingException("Unable to fetch message", ioe);
+                }
+                return;
+            }
             for (int i = 0, count = messages.length; i < count; i++) {
                 Message message = messages[i];
                 if (!(message instanceof Pop3Message)) {
@@ -701,7 +887,7 @@ public class Pop3Store extends Store {
         }
 
         private void fetchEnvelope(Message[] messages,
-                MessageRetrievalListener listener)  throws IOException, MessagingException {
+                final MessageRetrievalListener listener)  throws IOException, MessagingException {
             int unsizedMessages = 0;
             for (Message message : messages) {
                 if (message.getSize() == -1) {
@@ -714,29 +900,42 @@ public class Pop3Store extends Store {
             if (unsizedMessages < 50 && mMessageCount > 5000) {
                 /*
                  * In extreme cases we'll do a command per message instead of a bulk request
-                 * to hopefully save some time and bandwidth.
+                 * to hopefully save some time and bandwidth.  They're pipelined, if the server
+                 * can.
                  */
+                final Pop3Message[] pop3Messages = new Pop3Message[messages.length];
+                ArrayList<String> commands = new ArrayList<String>(messages.length);
                 for (int i = 0, count = messages.length; i < count; i++) {
                     Message message = messages[i];
                     if (!(message instanceof Pop3Message)) {
                         throw new MessagingException(
                                 "Pop3Store.fetch called with non-Pop3 Message");
                     }
-                    Pop3Message pop3Message = (Pop3Message)message;
-                    String response = executeSimpleCommand(String.format("LIST %d",
-                            mUidToMsgNumMap.get(pop3Message.getUid())));
-                    try {
-                        String[] listParts = response.split(" ");
-                        int msgNum = Integer.parseInt(listParts[1]);
-                        int msgSize = Integer.parseInt(listParts[2]);
-                        pop3Message.setSize(msgSize);
-                    } catch (NumberFormatException nfe) {
-                        throw new IOException();
-                    }
-                    if (listener != null) {
-                        listener.messageRetrieved(pop3Message);
-                    }
+                    pop3Messages[i] = (Pop3Message)message;
+                    commands.add(String.format("LIST %d",
+                            mUidToMsgNumMap.get(pop3Messages[i].getUid())));
                 }
+                executePipelined(commands, new ResponseHandler() {
+                    @Override
+                    public void onResponse(int index, String response)
+                            throws MessagingException, IOException {
+                        if (response.length() > 1 && response.charAt(0) == '-') {
+                            throw new MessagingException(response);
+                        }
+                        Pop3Message pop3Message = pop3Messages[index];
+                        try {
+                            String[] listParts = response.split(" ");
+                            int msgNum = Integer.parseInt(listParts[1]);
+                            int msgSize = Integer.parseInt(listParts[2]);
+                            pop3Message.setSize(msgSize);
+                        } catch (NumberFormatException nfe) {
+                            throw new IOException();
+                        }
+                        if (listener != null) {
+                            listener.messageRetrieved(pop3Message);
+                        }
+                    }
+                });
             } else {
                 HashSet<String> msgUidIndex = new HashSet<String>();
                 for (Message message : messages) {
@@ -803,25 +1002,108 @@ public class Pop3Store extends Store {
                 }
             }
             if (response != null)  {
-                try {
-                    InputStream in = mTransport.getInputStream();
-                    if (DEBUG_LOG_RAW_STREAM && Email.DEBUG) {
-                        in = new LoggingInputStream(in);
-                    }
-                    message.parse(new Pop3ResponseInputStream(in));
+                parseBody(message, lines);
+            }
+        }
+
+        /**
+         * Fetches the bodies of several messages, like {@link #fetchBody}, but sends the RETR or
+         * TOP commands ahead of the responses.  Only used if the server can pipeline, and, for
+         * TOP, has said that it supports TOP.
+         */
+        private void fetchBodiesPipelined(Message[] messages, final int lines,
+                final MessageRetrievalListener listener) throws IOException, MessagingException {
+            final Pop3Message[] pop3Messages = new Pop3Message[messages.length];
+            ArrayList<String> commands = new ArrayList<String>(messages.length);
+            for (int i = 0, count = messages.length; i < count; i++) {
+                Message message = messages[i];
+                if (!(message instanceof Pop3Message)) {
+                    throw new MessagingException("Pop3Store.fetch called with non-Pop3 Message");
+                }
+                pop3Messages[i] = (Pop3Message)message;
+                int messageId = mUidToMsgNumMap.get(message.getUid());
+                if (lines == -1) {
+                    commands.add(String.format(Locale.US, "RETR %d", messageId));
+                } else {
+                    commands.add(String.format(Locale.US, "TOP %d %d", messageId, lines));
                 }
-                catch (MessagingException me) {
-                    /*
-                     * If we're only downloading headers it's possible
-                     * we'll get a broken MIME message which we're not
-                     * real worried about. If we've downloaded the body
-                     * and can't parse it we need to let the user know.
-                     */
-                    if (lines == -1) {
-                        throw me;
+            }
+            final ArrayList<Pop3Message> refused = new ArrayList<Pop3Message>();
+            executePipelined(commands, new ResponseHandler() {
+                @Override
+                public void onResponse(int index, String response)
+                        throws MessagingException, IOException {
+                    Pop3Message message = pop3Messages[index];
+                    if (response.length() > 1 && response.charAt(0) == '-') {
+                        if (lines == -1) {
+                            throw new MessagingException(response);
+                        }
+                        refused.add(message);
+                        return;
                     }
+                    parseBody(message, lines);
+                    if (listener != null) {
+                        listener.messageRetrieved(message);
+                    }
+                }
+            });
+            // The server refused TOP for these after all; as fetchBody() does, fall back to RETR
+            for (Pop3Message message : refused) {
+                int messageId = mUidToMsgNumMap.get(message.getUid());
+                try {
+                    executeSimpleCommand(String.format(Locale.US, "RETR %d", messageId));
+                    parseBody(message, lines);
+                } catch (MessagingException e) {
+                    Log.w(Logging.LOG_TAG, "Can't read message " + messageId);
                 }
+                if (listener != null) {
+                    listener.messageRetrieved(message);
+                }
+            }
+        }
+
+        /**
+         * Reads the rest of a RETR or TOP response into the message.
+         */
+        private void parseBody(Pop3Message message, int lines)
+                throws IOException, MessagingException {
+            InputStream in = mTransport.getInputStream();
+            if (DEBUG_LOG_RAW_STREAM && Email.DEBUG) {
+                in = new LoggingInputStream(in);
+            }
+            Pop3ResponseInputStream response = new Pop3ResponseInputStream(in);
+            try {
+                message.parse(response);
+            }
+            catch (MessagingException me) {
+                /*
+                 * If we're only downloading headers it's possible
+                 * we'll get a broken MIME message which we're not
+                 * real worried about. If we've downloaded the body
+                 * and can't parse it we need to let the user know.
+                 */
+                if (lines == -1) {
+                    throw me;
+                }
+                // Skip what the parser left, so that the next response is read from its start
+                while (response.read() != -1) {
+                }
+            }
+        }
+
+        /**
+         * @return whether the bodies that the profile asks for can be fetched with pipelined
+         * commands.
+         */
+        private boolean canPipelineBodies(FetchProfile fp) {
+            if (!canPipeline()) {
+                return false;
+            }
+            if (fp.contains(FetchProfile.Item.BODY)) {
+                return true;
             }
+            // Without CAPA saying so, TOP has to be probed one message at a time
+            return fp.contains(FetchProfile.Item.BODY_SANE) && mCapabilities.top;
         }
 
         @Override
@@ -1018,7 +1300,7 @@ public class Pop3Store extends Store {
         public boolean user;
         /** the optional UIDL command is supported (unused) */
         public boolean uidl;
-        /** the server is capable of accepting multiple commands at a time (unused) */
+        /** the server is capable of accepting multiple commands at a time */
         public boolean pipelining;
 
         @Override
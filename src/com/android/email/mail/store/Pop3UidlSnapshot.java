@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.android.emailcommon.Logging;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The UIDL listing of a POP3 maildrop as of the last sync, kept in a file in the cache directory
+ * so that the next sync only has to ask the server about the messages that arrived since.
+ *
+ * A POP3 server numbers the messages in the order they arrived, and a message's unique-id never
+ * changes.  So if message N still has the unique-id it had then, messages 1 to N haven't changed
+ * either; if it doesn't (say, because messages have been deleted), the listing is simply taken
+ * again.  Losing the file only costs that one full listing.
+ */
+class Pop3UidlSnapshot {
+    private static final String FILE_PREFIX = "pop3-uidl-";
+    private static final int FILE_VERSION = 1;
+
+    private Pop3UidlSnapshot() {
+    }
+
+    /** @return the file that keeps the snapshot of an account */
+    static File getFile(Context context, long accountId) {
+        return new File(context.getCacheDir(), FILE_PREFIX + accountId);
+    }
+
+    /**
+     * @param server identifies the server and user; a snapshot taken of any other is ignored
+     * @return the unique-ids, by message number less one, or null if there's no snapshot of the
+     * server
+     */
+    static ArrayList<String> read(File file, String server) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FILE_VERSION || !server.equals(in.readUTF())) {
+                return null;
+            }
+            final int count = in.readInt();
+            final ArrayList<String> uids = new ArrayList<String>(count);
+            for (int i = 0; i < count; i++) {
+                uids.add(in.readUTF());
+            }
+            return uids;
+        } catch (FileNotFoundException e) {
+            // Nothing saved yet
+        } catch (IOException e) {
+            Log.w(Logging.LOG_TAG, "Unable to read UIDL snapshot: " + e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Replaces the snapshot in the file.
+     *
+     * @param server identifies the server and user
+     * @param uids the unique-ids, by message number less one
+     */
+    static void write(File file, String server, List<String> uids) {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(FILE_VERSION);
+            out.writeUTF(server);
+            out.writeInt(uids.size());
+            for (String uid : uids) {
+                out.writeUTF(uid);
+            }
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                Log.w(Logging.LOG_TAG, "Unable to save UIDL snapshot");
+                temp.delete();
+            }
+        } catch (IOException e) {
+            Log.w(Logging.LOG_TAG, "Unable to save UIDL snapshot: " + e);
+            temp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+}
@@ -18,6 +18,8 @@ package com.android.email.mail.store.imap;
 
 import com.android.email.mail.Store;
 
+import java.util.HashMap;
+
 public final class ImapConstants {
     private ImapConstants() {}
 
@@ -39,6 +41,8 @@ public final class ImapConstants {
     public static final String CAPABILITY = "CAPABILITY";
     public static final String CHECK = "CHECK";
     public static final String CLOSE = "CLOSE";
+    public static final String COMPRESS_DEFLATE = "COMPRESS DEFLATE";
+    public static final String COMPRESS_DEFLATE_CAPABILITY = "COMPRESS=DEFLATE";
     public static final String COPY = "COPY";
     public static final String COPYUID = "COPYUID";
     public static final String CREATE = "CREATE";
@@ -58,9 +62,11 @@ public final class ImapConstants {
     public static final String INBOX = "INBOX";
     public static final String INTERNALDATE = "INTERNALDATE";
     public static final String LIST = "LIST";
+    public static final String LIST_STATUS = "LIST-STATUS";
     public static final String LOGIN = "LOGIN";
     public static final String LOGOUT = "LOGOUT";
     public static final String LSUB = "LSUB";
+    public static final String MESSAGES = "MESSAGES";
     public static final String NAMESPACE = "NAMESPACE";
     public static final String NO = "NO";
     public static final String NOOP = "NOOP";
@@ -71,6 +77,7 @@ public final class ImapConstants {
     public static final String READ_ONLY = "READ-ONLY";
     public static final String READ_WRITE = "READ-WRITE";
     public static final String RENAME = "RENAME";
+    public static final String RETURN = "RETURN";
     public static final String RFC822_SIZE = "RFC822.SIZE";
     public static final String SEARCH = "SEARCH";
     public static final String SELECT = "SELECT";
@@ -92,4 +99,28 @@ public final class ImapConstants {
     public static final String UNSUBSCRIBE = "UNSUBSCRIBE";
     public static final String APPENDUID = "APPENDUID";
     public static final String NIL = "NIL";
+
+    /** The constants that the parser hands out instead of equal atoms; see {@link #intern} */
+    private static final HashMap<String, String> sResponseAtoms = new HashMap<String, String>();
+
+    static {
+        for (String atom : new String[] {
+                ALERT, APPENDUID, BAD, BODYSTRUCTURE, BYE, CAPABILITY, COPYUID, EXISTS, EXPUNGE,
+                FETCH, FLAGS, INTERNALDATE, LIST, LSUB, MESSAGES, NAMESPACE, NO, OK,
+                PERMANENTFLAGS, PREAUTH, READ_ONLY, READ_WRITE, RFC822_SIZE, SEARCH, STATUS,
+                TRYCREATE, UID, UIDNEXT, UIDVALIDITY, UNSEEN}) {
+            sResponseAtoms.put(atom, atom);
+        }
+    }
+
+    /**
+     * Returns the constant that's equal to {@code atom} (in the same case), if it's one of the
+     * keywords and keys of the responses, or {@code atom} itself if not.  As the parser hands
+     * out the constants, comparing a response's strings with them (and looking them up in key
+     * indexes) mostly comes down to comparing references.
+     */
+    public static String intern(String atom) {
+        final String constant = sResponseAtoms.get(atom);
+        return (constant != null) ? constant : atom;
+    }
 }
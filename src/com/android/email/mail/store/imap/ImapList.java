@@ -17,6 +17,8 @@
 package com.android.email.mail.store.imap;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
 
 /**
  * Class represents an IMAP list.
@@ -36,13 +38,27 @@ public class ImapList extends ImapElement {
         }
     };
 
+    /**
+     * Keyed lookups in lists at least this long go through {@link #mKeyIndex}; shorter lists are
+     * faster to scan.  (A FETCH response with UID, FLAGS, INTERNALDATE, RFC822.SIZE and the
+     * headers has 10 elements.)
+     */
+    /* package */ static final int KEY_INDEX_MIN_SIZE = 8;
+
     private ArrayList<ImapElement> mList = new ArrayList<ImapElement>();
 
+    /**
+     * The elements by their (upper case) keys, for exact keyed lookups; built by the first one.
+     * Only atoms (not literals) are indexed as keys, and only the first element for each key.
+     */
+    private HashMap<String, ImapElement> mKeyIndex;
+
     /* package */ void add(ImapElement e) {
         if (e == null) {
             throw new RuntimeException("Can't add null");
         }
         mList.add(e);
+        mKeyIndex = null;
     }
 
     @Override
@@ -113,6 +129,19 @@ public class ImapList extends ImapElement {
      * at an even index.
      */
     /* package */ final ImapElement getKeyedElementOrNull(String key, boolean prefixMatch) {
+        if (prefixMatch || key == null || size() < KEY_INDEX_MIN_SIZE) {
+            return scanForKeyedElement(key, prefixMatch);
+        }
+        if (mKeyIndex == null) {
+            buildKeyIndex();
+        }
+        return mKeyIndex.get(toUpperCase(key));
+    }
+
+    /**
+     * Same as {@link #getKeyedElementOrNull}, but always scans the list.
+     */
+    /* package */ final ImapElement scanForKeyedElement(String key, boolean prefixMatch) {
         for (int i = 1; i < size(); i += 2) {
             if (is(i-1, key, prefixMatch)) {
                 return mList.get(i);
@@ -121,6 +150,34 @@ public class ImapList extends ImapElement {
         return null;
     }
 
+    private void buildKeyIndex() {
+        final int size = size();
+        mKeyIndex = new HashMap<String, ImapElement>(size);
+        for (int i = 1; i < size; i += 2) {
+            final ImapElement key = mList.get(i - 1);
+            if (key instanceof ImapSimpleString) {
+                final String name = toUpperCase(((ImapSimpleString) key).getString());
+                if (!mKeyIndex.containsKey(name)) {
+                    mKeyIndex.put(name, mList.get(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return {@code s} in upper case; {@code s} itself (e.g. one of {@link ImapConstants}) if
+     * it's in upper case already, as keys almost always are.
+     */
+    private static String toUpperCase(String s) {
+        for (int i = 0, length = s.length(); i < length; i++) {
+            final char c = s.charAt(i);
+            if (c >= 'a' && c <= 'z' || c > 0x7f) {
+                return s.toUpperCase(Locale.US);
+            }
+        }
+        return s;
+    }
+
     /**
      * Return an {@link ImapList} keyed by {@code key}.
      * Return {@link ImapList#EMPTY} if not found.
@@ -155,6 +212,13 @@ public class ImapList extends ImapElement {
         return (e != null) ? ((ImapString) e) : ImapString.EMPTY;
     }
 
+    /**
+     * Return true if it has an element keyed by {@code key}, even an empty one (e.g. NIL).
+     */
+    public final boolean hasKey(String key, boolean prefixMatch) {
+        return getKeyedElementOrNull(key, prefixMatch) != null;
+    }
+
     /**
      * Return true if it contains {@code s}.
      */
@@ -169,6 +233,7 @@ public class ImapList extends ImapElement {
 
     @Override
     public void destroy() {
+        mKeyIndex = null;
         if (mList != null) {
             for (ImapElement e : mList) {
                 e.destroy();
@@ -18,6 +18,7 @@ package com.android.email.mail.store.imap;
 
 import com.android.email.FixedLengthInputStream;
 import com.android.emailcommon.Logging;
+import com.android.emailcommon.utility.BufferPool;
 import com.android.emailcommon.utility.Utility;
 
 import android.util.Log;
@@ -30,43 +31,152 @@ import java.io.InputStream;
  * Subclass of {@link ImapString} used for literals backed by an in-memory byte array.
  */
 public class ImapMemoryLiteral extends ImapString {
+    /**
+     * Literals at least this long (and no longer than a pooled buffer) are read into a buffer
+     * from {@link BufferPool}; at that size, a pooled buffer wastes at most half of itself.
+     * Shorter ones get an array of their own size.
+     */
+    /* package */ static final int MIN_POOLED_LENGTH = BufferPool.BYTE_BUFFER_SIZE / 2;
+
     private byte[] mData;
+    private final int mLength;
+
+    /**
+     * True if mData came from {@link BufferPool} and must be returned to it, once the literal
+     * has been destroyed and no stream from {@link #getAsStream()} is still being read.  Guarded by
+     * this, as is mOpenStreams.
+     */
+    private boolean mPooled;
+    private int mOpenStreams;
+    private boolean mDestroyed;
 
     /* package */ ImapMemoryLiteral(FixedLengthInputStream in) throws IOException {
         // We could use ByteArrayOutputStream and IOUtils.copy, but it'd perform an unnecessary
         // copy....
-        mData = new byte[in.getLength()];
+        mLength = in.getLength();
+        // The buffer is returned once ImapResponseParser has destroyed the response, and any
+        // streams over it have been read.
+        if (mLength >= MIN_POOLED_LENGTH && mLength <= BufferPool.BYTE_BUFFER_SIZE) {
+            mData = BufferPool.acquireBytes();
+            mPooled = true;
+        } else {
+            mData = new byte[mLength];
+        }
         int pos = 0;
-        while (pos < mData.length) {
-            int read = in.read(mData, pos, mData.length - pos);
+        while (pos < mLength) {
+            int read = in.read(mData, pos, mLength - pos);
             if (read < 0) {
                 break;
             }
             pos += read;
         }
-        if (pos != mData.length) {
+        if (pos != mLength) {
             Log.w(Logging.LOG_TAG, "");
         }
     }
 
     @Override
     public void destroy() {
-        mData = null;
+        synchronized (this) {
+            mDestroyed = true;
+            releaseIfUnused();
+        }
         super.destroy();
     }
 
+    /** Returns the pooled buffer, unless the literal or a stream over it is still in use */
+    private void releaseIfUnused() {
+        if (mDestroyed && mOpenStreams == 0) {
+            if (mPooled) {
+                BufferPool.releaseBytes(mData);
+                mPooled = false;
+            }
+            mData = null;
+        }
+    }
+
     @Override
     public String getString() {
-        return Utility.fromAscii(mData);
+        return new String(mData, 0, mLength, Utility.ASCII);
     }
 
+    /**
+     * A stream over a pooled buffer keeps it from going back to the pool until the stream has
+     * been read to the end or closed.  A stream that's left half read just means that the buffer
+     * is left to the garbage collector.
+     */
     @Override
-    public InputStream getAsStream() {
-        return new ByteArrayInputStream(mData);
+    public synchronized InputStream getAsStream() {
+        if (!mPooled) {
+            return new ByteArrayInputStream(mData, 0, mLength);
+        }
+        mOpenStreams++;
+        return new PooledStream(mData, mLength);
+    }
+
+    /**
+     * Reads a pooled buffer, and lets go of it as soon as it's been read to the end.
+     */
+    private class PooledStream extends ByteArrayInputStream {
+        private boolean mFinished;
+
+        PooledStream(byte[] buffer, int length) {
+            super(buffer, 0, length);
+        }
+
+        @Override
+        public synchronized int read() {
+            int b = super.read();
+            finishIfRead();
+            return b;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            int read = super.read(b, off, len);
+            finishIfRead();
+            return read;
+        }
+
+        @Override
+        public synchronized long skip(long n) {
+            long skipped = super.skip(n);
+            finishIfRead();
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish();
+            super.close();
+        }
+
+        private void finishIfRead() {
+            if (pos >= count) {
+                finish();
+            }
+        }
+
+        /**
+         * Drops the buffer (so that mark/reset can't bring it back), and returns it to the pool
+         * if the literal is done with it too.
+         */
+        private synchronized void finish() {
+            if (mFinished) {
+                return;
+            }
+            mFinished = true;
+            buf = new byte[0];
+            pos = count = mark = 0;
+            synchronized (ImapMemoryLiteral.this) {
+                mOpenStreams--;
+                releaseIfUnused();
+            }
+        }
     }
 
     @Override
     public String toString() {
-        return String.format("{%d byte literal(memory)}", mData.length);
+        return String.format("{%d byte literal(memory)}", mLength);
     }
 }
@@ -66,6 +66,34 @@ public class ImapResponseParser {
      */
     private final ArrayList<ImapResponse> mResponsesToDestroy = new ArrayList<ImapResponse>();
 
+    /**
+     * Consumes literals as they're parsed, rather than having them kept in the response; e.g.
+     * a message body can be streamed to where it's going without being held in memory first.
+     */
+    public interface LiteralConsumer {
+        /**
+         * Called when a literal starts.  The elements before it have been parsed already; in a
+         * FETCH response, the item name of the literal (e.g. "BODY[]") is the last element of
+         * {@code list}, and the UID will usually be in it too.
+         *
+         * @param response the response being parsed.  Only its first elements (e.g. "1 FETCH")
+         *     are there; the list that holds the literal hasn't been added to it yet.
+         * @param list the list that holds the literal, as parsed so far
+         * @param in the literal.  Whatever the consumer doesn't read is skipped.
+         * @return true if the literal has been consumed, in which case it's replaced with an
+         *     empty string in the response.  If false, the consumer must not have read from
+         *     {@code in}, and the literal is kept in the response as usual.
+         */
+        boolean consumeLiteral(ImapResponse response, ImapList list, InputStream in)
+                throws IOException, MessagingException;
+    }
+
+    /** The consumer of the literals of the response being parsed, if any */
+    private LiteralConsumer mLiteralConsumer;
+
+    /** The response being parsed */
+    private ImapResponse mResponseBeingParsed;
+
     /**
      * Exception thrown when we receive BYE.  It derives from IOException, so it'll be treated
      * in the same way EOF does.
@@ -158,7 +186,17 @@ public class ImapResponseParser {
      * @exception ByeException when detects BYE.
      */
     public ImapResponse readResponse() throws IOException, MessagingException {
+        return readResponse(null);
+    }
+
+    /**
+     * Same as {@link #readResponse()}, but the literals of the response may be consumed as they
+     * arrive by {@code consumer}.
+     */
+    public ImapResponse readResponse(LiteralConsumer consumer)
+            throws IOException, MessagingException {
         ImapResponse response = null;
+        mLiteralConsumer = consumer;
         try {
             response = parseResponse();
             if (Email.DEBUG) {
@@ -173,6 +211,9 @@ public class ImapResponseParser {
             // Network error, or received an unexpected char.
             onParseError(e);
             throw e;
+        } finally {
+            mLiteralConsumer = null;
+            mResponseBeingParsed = null;
         }
 
         // Handle this outside of try-catch.  We don't have to dump protocol log when getting BYE.
@@ -279,6 +320,7 @@ public class ImapResponseParser {
                     tag = readUntil(' ');
                 }
                 responseToDestroy = new ImapResponse(tag, false);
+                mResponseBeingParsed = responseToDestroy;
 
                 final ImapString firstString = parseBareString();
                 responseToDestroy.add(firstString);
@@ -327,7 +369,10 @@ public class ImapResponseParser {
         return responseToReturn;
     }
 
-    private ImapElement parseElement() throws IOException, MessagingException {
+    /**
+     * @param list the list that the element will be added to
+     */
+    private ImapElement parseElement(ImapList list) throws IOException, MessagingException {
         final int next = peek();
         switch (next) {
             case '(':
@@ -338,7 +383,7 @@ public class ImapResponseParser {
                 readByte(); // Skip "
                 return new ImapSimpleString(readUntil('"'));
             case '{':
-                return parseLiteral();
+                return parseLiteral(list);
             case '\r':  // CR
                 readByte(); // Consume \r
                 expect('\n'); // Should be followed by LF.
@@ -387,7 +432,7 @@ public class ImapResponseParser {
                 if (ImapConstants.NIL.equalsIgnoreCase(s)) {
                     return ImapString.EMPTY;
                 }
-                return new ImapSimpleString(s);
+                return new ImapSimpleString(ImapConstants.intern(s));
             } else if (ch == '[') {
                 // Eat all until next ']'
                 mParseBareString.append((char) readByte());
@@ -413,7 +458,7 @@ public class ImapResponseParser {
                 // Skip space
                 readByte();
             }
-            final ImapElement el = parseElement();
+            final ImapElement el = parseElement(list);
             if (el == null) { // EOL
                 return;
             }
@@ -430,7 +475,7 @@ public class ImapResponseParser {
         return list;
     }
 
-    private ImapString parseLiteral() throws IOException, MessagingException {
+    private ImapString parseLiteral(ImapList list) throws IOException, MessagingException {
         expect('{');
         final int size;
         try {
@@ -441,6 +486,17 @@ public class ImapResponseParser {
         expect('\r');
         expect('\n');
         FixedLengthInputStream in = new FixedLengthInputStream(mIn, size);
+        if (mLiteralConsumer != null && mResponseBeingParsed != null
+                && mLiteralConsumer.consumeLiteral(mResponseBeingParsed, list, in)) {
+            // Skip whatever the consumer left
+            int remaining;
+            while ((remaining = in.available()) > 0) {
+                if (in.skip(remaining) <= 0) {
+                    throw newEOSException();
+                }
+            }
+            return ImapString.EMPTY;
+        }
         if (size > mLiteralKeepInMemoryThreshold) {
             return new ImapTempFileLiteral(in);
         } else {
@@ -17,6 +17,7 @@
 package com.android.email.mail.store.imap;
 
 import com.android.emailcommon.Logging;
+import com.android.emailcommon.utility.Utility;
 
 import android.util.Log;
 
@@ -56,11 +57,22 @@ public abstract class ImapString extends ImapElement {
         }
     };
 
+    /** The month names of IMAP's date-time, three characters each */
+    private static final String MONTHS = "JanFebMarAprMayJunJulAugSepOctNovDec";
+
     // This is used only for parsing IMAP's FETCH ENVELOPE command, in which
     // en_US-like date format is used like "01-Jan-2009 11:20:39 -0800", so this should be
     // handled by Locale.US
-    private final static SimpleDateFormat DATE_TIME_FORMAT =
-            new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss Z", Locale.US);
+    // Only the dates that parseDateTime() doesn't take are parsed with it.  SimpleDateFormat isn't
+    // thread-safe, and responses are parsed on several connections at once, so there's one per
+    // thread.
+    private static final ThreadLocal<SimpleDateFormat> DATE_TIME_FORMAT =
+            new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss Z", Locale.US);
+        }
+    };
 
     private boolean mIsInteger;
     private int mParsedInteger;
@@ -119,7 +131,8 @@ public abstract class ImapString extends ImapElement {
     }
 
     /**
-     * @return whether it can be parsed as a date using {@link #DATE_TIME_FORMAT}.
+     * @return whether it can be parsed as a date, with {@link #parseDateTime} or else
+     * {@link #DATE_TIME_FORMAT}.
      */
     public final boolean isDate() {
         if (mParsedDate != null) {
@@ -128,15 +141,78 @@ public abstract class ImapString extends ImapElement {
         if (isEmpty()) {
             return false;
         }
+        final String s = getString();
+        final long millis = parseDateTime(s);
+        if (millis != Long.MIN_VALUE) {
+            mParsedDate = new Date(millis);
+            return true;
+        }
         try {
-            mParsedDate = DATE_TIME_FORMAT.parse(getString());
+            mParsedDate = DATE_TIME_FORMAT.get().parse(s);
             return true;
         } catch (ParseException e) {
-            Log.w(Logging.LOG_TAG, getString() + " can't be parsed as a date.");
+            Log.w(Logging.LOG_TAG, s + " can't be parsed as a date.");
             return false;
         }
     }
 
+    /**
+     * Parses IMAP's date-time (RFC 3501), like "01-Jan-2009 11:20:39 -0800"; the day may also be a
+     * space and a digit, or just a digit.  It's done for the INTERNALDATE of each message of a
+     * sync, so it's done by hand, without allocating anything.
+     *
+     * @return the time in milliseconds, or {@link Long#MIN_VALUE} if the string isn't exactly in
+     * that form, or any of its fields is out of range.
+     */
+    /* package */ static long parseDateTime(String s) {
+        final int length = s.length();
+        final int day;
+        if (length == 26) {
+            day = Utility.parseDigits(s, (s.charAt(0) == ' ') ? 1 : 0, 2);
+        } else if (length == 25) {
+            day = Utility.parseDigits(s, 0, 1);
+        } else {
+            return Long.MIN_VALUE;
+        }
+        // Where the "-" after the day is
+        final int i = length - 24;
+        if (s.charAt(i) != '-' || s.charAt(i + 4) != '-' || s.charAt(i + 9) != ' '
+                || s.charAt(i + 12) != ':' || s.charAt(i + 15) != ':' || s.charAt(i + 18) != ' ') {
+            return Long.MIN_VALUE;
+        }
+        final int month = parseMonth(s, i + 1);
+        final int year = Utility.parseDigits(s, i + 5, i + 9);
+        final int hour = Utility.parseDigits(s, i + 10, i + 12);
+        final int minute = Utility.parseDigits(s, i + 13, i + 15);
+        final int second = Utility.parseDigits(s, i + 16, i + 18);
+        final int zoneHours = Utility.parseDigits(s, i + 20, i + 22);
+        final int zoneMinutes = Utility.parseDigits(s, i + 22, i + 24);
+        final char zoneSign = s.charAt(i + 19);
+        if (day < 1 || day > 31 || hour < 0 || hour > 23 || minute < 0 || minute > 59
+                || second < 0 || second > 60 || zoneHours < 0 || zoneMinutes < 0
+                || zoneMinutes > 59 || (zoneSign != '+' && zoneSign != '-')) {
+            return Long.MIN_VALUE;
+        }
+        final long millis = Utility.utcDateTimeToMillis(year, month, day, hour, minute, second);
+        if (millis == Long.MIN_VALUE) {
+            return Long.MIN_VALUE;
+        }
+        final long zoneMillis = (zoneHours * 60 + zoneMinutes) * 60 * 1000L;
+        return (zoneSign == '+') ? millis - zoneMillis : millis + zoneMillis;
+    }
+
+    /**
+     * @return the month (1 to 12) whose name is at s[start], in any case, or -1.
+     */
+    private static int parseMonth(String s, int start) {
+        for (int month = 0; month < 12; month++) {
+            if (s.regionMatches(true, start, MONTHS, month * 3, 3)) {
+                return month + 1;
+            }
+        }
+        return -1;
+    }
+
     /**
      * @return value it can be parsed as a {@link Date}, or null otherwise.
      */
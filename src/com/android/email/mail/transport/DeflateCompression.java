@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The streams of a connection compressed with raw DEFLATE, as IMAP's COMPRESS=DEFLATE (RFC 4978)
+ * does it: each side compresses everything it sends as a single stream, and flushes it (with a
+ * zlib "sync flush") whenever it's waiting for the other side.
+ *
+ * Both streams count the bytes that go through them, compressed and not, for
+ * {@link #getCompressionRatio()}.
+ *
+ * The connection may be closed from another thread, while its owner is blocked reading or writing;
+ * the zlib state is only released once the owner can no longer be using it.
+ */
+public class DeflateCompression {
+    /** The size of the buffers between the socket and zlib */
+    private static final int BUFFER_SIZE = 4 * 1024;
+
+    /** Deflater.SYNC_FLUSH; hidden (along with the method that takes it) before KitKat */
+    private static final int SYNC_FLUSH = 2;
+
+    /** Deflater.deflate(byte[], int, int, int), or null if there isn't one */
+    private static final Method DEFLATE_WITH_FLUSH = findDeflateWithFlush();
+
+    private final InflatingInputStream mInputStream;
+    private final DeflatingOutputStream mOutputStream;
+
+    private static Method findDeflateWithFlush() {
+        try {
+            return Deflater.class.getMethod("deflate",
+                    byte[].class, int.class, int.class, int.class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return whether compression can be used here; without a sync flush, we couldn't send a
+     * command without closing the stream.
+     */
+    public static boolean isSupported() {
+        return DEFLATE_WITH_FLUSH != null;
+    }
+
+    /**
+     * @param in the stream that the compressed data is read from
+     * @param out the stream that the compressed data is written to
+     */
+    public DeflateCompression(InputStream in, OutputStream out) {
+        mInputStream = new InflatingInputStream(in);
+        mOutputStream = new DeflatingOutputStream(out);
+    }
+
+    /** @return the stream of the uncompressed data read from the connection */
+    public InputStream getInputStream() {
+        return mInputStream;
+    }
+
+    /** @return the stream that compresses the data written to the connection */
+    public OutputStream getOutputStream() {
+        return mOutputStream;
+    }
+
+    /**
+     * @return how many times smaller the data has been on the wire, both ways together, or 0 if
+     * nothing has been sent or received yet.
+     */
+    public float getCompressionRatio() {
+        long compressed = mInputStream.mCompressedBytes + mOutputStream.mCompressedBytes;
+        long uncompressed = mInputStream.mUncompressedBytes + mOutputStream.mUncompressedBytes;
+        return (compressed == 0) ? 0 : (float) uncompressed / compressed;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("DEFLATE: in %d/%d, out %d/%d bytes, ratio %.2f",
+                mInputStream.mCompressedBytes, mInputStream.mUncompressedBytes,
+                mOutputStream.mCompressedBytes, mOutputStream.mUncompressedBytes,
+                getCompressionRatio());
+    }
+
+    private static class InflatingInputStream extends InputStream {
+        private final InputStream mIn;
+        private final Inflater mInflater = new Inflater(true);
+        private final byte[] mBuffer = new byte[BUFFER_SIZE];
+        private final byte[] mOneByte = new byte[1];
+        private boolean mClosed;
+
+        volatile long mCompressedBytes;
+        volatile long mUncompressedBytes;
+
+        InflatingInputStream(InputStream in) {
+            mIn = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return (read(mOneByte, 0, 1) == -1) ? -1 : mOneByte[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (true) {
+                synchronized (mInflater) {
+                    if (mClosed) {
+                        throw new IOException("Stream closed");
+                    }
+                    try {
+                        int n = mInflater.inflate(b, off, len);
+                        if (n > 0) {
+                            mUncompressedBytes += n;
+                            return n;
+                        }
+                    } catch (DataFormatException e) {
+                        throw new IOException(e.toString());
+                    }
+                    if (mInflater.finished() || mInflater.needsDictionary()) {
+                        return -1;
+                    }
+                }
+                // Only wait for the socket once everything it sent has been inflated, and not
+                // while holding the lock that close() needs.
+                int count = mIn.read(mBuffer, 0, mBuffer.length);
+                if (count < 0) {
+                    return -1;
+                }
+                synchronized (mInflater) {
+                    if (mClosed) {
+                        throw new IOException("Stream closed");
+                    }
+                    mCompressedBytes += count;
+                    mInflater.setInput(mBuffer, 0, count);
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                mIn.close();
+            } finally {
+                synchronized (mInflater) {
+                    if (!mClosed) {
+                        mClosed = true;
+                        mInflater.end();
+                    }
+                }
+            }
+        }
+    }
+
+    private static class DeflatingOutputStream extends OutputStream {
+        private final OutputStream mOut;
+        private final Deflater mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        private final byte[] mBuffer = new byte[BUFFER_SIZE];
+        private boolean mClosed;
+
+        volatile long mCompressedBytes;
+        volatile long mUncompressedBytes;
+
+        DeflatingOutputStream(OutputStream out) {
+            mOut = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            synchronized (mDeflater) {
+                if (mClosed) {
+                    throw new IOException("Stream closed");
+                }
+                mDeflater.setInput(b, off, len);
+                mUncompressedBytes += len;
+                while (!mDeflater.needsInput()) {
+                    writeCompressed(mDeflater.deflate(mBuffer, 0, mBuffer.length));
+                }
+            }
+        }
+
+        /**
+         * Sends everything written so far, in a form that the server can inflate without waiting
+         * for more.
+         */
+        @Override
+        public void flush() throws IOException {
+            synchronized (mDeflater) {
+                if (mClosed) {
+                    throw new IOException("Stream closed");
+                }
+                int count;
+                do {
+                    count = deflateWithSyncFlush();
+                    writeCompressed(count);
+                } while (count == mBuffer.length);
+            }
+            mOut.flush();
+        }
+
+        private int deflateWithSyncFlush() throws IOException {
+            try {
+                return (Integer) DEFLATE_WITH_FLUSH.invoke(mDeflater,
+                        mBuffer, 0, mBuffer.length, SYNC_FLUSH);
+            } catch (IllegalAccessException e) {
+                throw new IOException(e.toString());
+            } catch (InvocationTargetException e) {
+                throw new IOException(e.getCause().toString());
+            }
+        }
+
+        private void writeCompressed(int count) throws IOException {
+            if (count > 0) {
+                mOut.write(mBuffer, 0, count);
+                mCompressedBytes += count;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                mOut.close();
+            } finally {
+                synchronized (mDeflater) {
+                    if (!mClosed) {
+                        mClosed = true;
+                        mDeflater.end();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * The buffered input stream of a {@link MailTransport}, which can also read the text lines of
+ * the mail protocols without going through the stream a byte at a time.
+ *
+ * A line is found by scanning the buffer for its LF, and is decoded in one go; only a line that
+ * is longer than what's left in the buffer has to be copied.  Reads at least as large as the
+ * buffer (e.g. of a message body) skip it and go straight to the socket.
+ *
+ * Like the rest of a transport, this isn't thread-safe; it's only ever read by one thread.
+ */
+public class LineInputStream extends InputStream {
+    /** Size of the read buffer; large enough for a whole TLS record */
+    /* package */ static final int BUFFER_SIZE = 16 * 1024;
+
+    /** Bytes are mapped straight to chars, as the protocols' lines are ASCII */
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private final InputStream mIn;
+    private byte[] mBuffer;
+    private int mPos;
+    private int mCount;
+
+    /** Holds the start of a line that didn't fit in the buffer; only allocated if needed */
+    private byte[] mLineBuffer;
+
+    public LineInputStream(InputStream in) {
+        this(in, BUFFER_SIZE);
+    }
+
+    /* package */ LineInputStream(InputStream in, int bufferSize) {
+        mIn = in;
+        mBuffer = new byte[bufferSize];
+    }
+
+    private void ensureOpen() throws IOException {
+        if (mBuffer == null) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    /**
+     * Refill the (empty) buffer.
+     * @return false at the end of the stream
+     */
+    private boolean fill() throws IOException {
+        ensureOpen();
+        mPos = 0;
+        mCount = 0;
+        int n = mIn.read(mBuffer, 0, mBuffer.length);
+        if (n <= 0) {
+            return false;
+        }
+        mCount = n;
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        ensureOpen();
+        if (mPos >= mCount && !fill()) {
+            return -1;
+        }
+        return mBuffer[mPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (len == 0) {
+            return 0;
+        }
+        int available = mCount - mPos;
+        if (available <= 0) {
+            if (len >= mBuffer.length) {
+                // Copying through the buffer would gain nothing
+                return mIn.read(b, off, len);
+            }
+            if (!fill()) {
+                return -1;
+            }
+            available = mCount;
+        }
+        int n = Math.min(available, len);
+        System.arraycopy(mBuffer, mPos, b, off, n);
+        mPos += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        ensureOpen();
+        if (n <= 0) {
+            return 0;
+        }
+        int available = mCount - mPos;
+        if (available <= 0) {
+            return mIn.skip(n);
+        }
+        int skipped = (int) Math.min(available, n);
+        mPos += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        ensureOpen();
+        return (mCount - mPos) + mIn.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mBuffer = null;
+        mLineBuffer = null;
+        mIn.close();
+    }
+
+    /**
+     * Reads a single line, using either CRLF or LF as the delimiter.  The delimiter isn't
+     * included in the result, and neither is any other CR.
+     *
+     * @return the line, or null if the stream ended before anything was read.  If the stream
+     * ends in the middle of a line, what was read of it is returned.
+     */
+    public String readLine() throws IOException {
+        ensureOpen();
+        int lineLength = 0;
+        while (true) {
+            if (mPos >= mCount && !fill()) {
+                return (lineLength == 0) ? null : decode(mLineBuffer, 0, lineLength);
+            }
+            final byte[] buffer = mBuffer;
+            final int start = mPos;
+            final int count = mCount;
+            int end = start;
+            while (end < count && buffer[end] != '\n') {
+                end++;
+            }
+            if (end < count) {
+                mPos = end + 1;
+                if (lineLength == 0) {
+                    // The usual case; the whole line is in the buffer
+                    return decode(buffer, start, end - start);
+                }
+                lineLength = appendToLine(lineLength, start, end);
+                return decode(mLineBuffer, 0, lineLength);
+            }
+            lineLength = appendToLine(lineLength, start, count);
+            mPos = count;
+        }
+    }
+
+    private int appendToLine(int lineLength, int start, int end) {
+        final int length = end - start;
+        if (mLineBuffer == null || mLineBuffer.length < lineLength + length) {
+            int size = (mLineBuffer == null) ? mBuffer.length : mLineBuffer.length;
+            while (size < lineLength + length) {
+                size *= 2;
+            }
+            byte[] lineBuffer = new byte[size];
+            if (lineLength > 0) {
+                System.arraycopy(mLineBuffer, 0, lineBuffer, 0, lineLength);
+            }
+            mLineBuffer = lineBuffer;
+        }
+        System.arraycopy(mBuffer, start, mLineBuffer, lineLength, length);
+        return lineLength + length;
+    }
+
+    private static String decode(byte[] bytes, int offset, int length) {
+        if (length > 0 && bytes[offset + length - 1] == '\r') {
+            length--;
+        }
+        String line = new String(bytes, offset, length, ISO_8859_1);
+        if (line.indexOf('\r') >= 0) {
+            line = line.replace("\r", "");
+        }
+        return line;
+    }
+}
@@ -23,9 +23,12 @@ import com.android.emailcommon.mail.CertificateValidationException;
 import com.android.emailcommon.mail.MessagingException;
 import com.android.emailcommon.utility.SSLUtils;
 
+import android.net.SSLCertificateSocketFactory;
+import android.os.Build;
+import android.os.SystemClock;
+import android.text.format.DateUtils;
 import android.util.Log;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -42,6 +45,7 @@ import javax.net.ssl.SSLException;
 import javax.net.ssl.SSLPeerUnverifiedException;
 import javax.net.ssl.SSLSession;
 import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
 
 /**
  * This class implements the common aspects of "transport", one layer below the
@@ -53,6 +57,11 @@ public class MailTransport implements Transport {
     /*protected*/ public static final int SOCKET_CONNECT_TIMEOUT = 10000;
     /*protected*/ public static final int SOCKET_READ_TIMEOUT = 60000;
 
+    /** Commands are small, but a message being sent is written through this buffer too */
+    private static final int OUTPUT_BUFFER_SIZE = 4 * 1024;
+
+    private static final byte[] CRLF = { '\r', '\n' };
+
     private static final HostnameVerifier HOSTNAME_VERIFIER =
             HttpsURLConnection.getDefaultHostnameVerifier();
 
@@ -74,9 +83,12 @@ public class MailTransport implements Transport {
     private boolean mTrustCertificates;
 
     private Socket mSocket;
-    private InputStream mIn;
+    private LineInputStream mIn;
     private OutputStream mOut;
 
+    /** The compression of the streams above, if it's been started */
+    private DeflateCompression mCompression;
+
     /**
      * Simple constructor for starting from scratch.  Call setUri() and setSecurity() to
      * complete the configuration.
@@ -169,16 +181,21 @@ public class MailTransport implements Transport {
             if (canTrySslSecurity()) {
                 mSocket = SSLUtils.getSSLSocketFactory(
                         canTrustAllCertificates(), SOCKET_CONNECT_TIMEOUT).createSocket();
+                prepareSslSocket(mSocket);
             } else {
                 mSocket = new Socket();
             }
             mSocket.connect(socketAddress, SOCKET_CONNECT_TIMEOUT);
+            if (canTrySslSecurity()) {
+                startHandshake(mSocket);
+            }
             // After the socket connects to an SSL server, confirm that the hostname is as expected
             if (canTrySslSecurity() && !canTrustAllCertificates()) {
                 verifyHostname(mSocket, getHost());
             }
-            mIn = new BufferedInputStream(mSocket.getInputStream(), 1024);
-            mOut = new BufferedOutputStream(mSocket.getOutputStream(), 512);
+            mIn = new LineInputStream(mSocket.getInputStream());
+            mOut = new BufferedOutputStream(mSocket.getOutputStream(), OUTPUT_BUFFER_SIZE);
+            mCompression = null;
 
         } catch (SSLException e) {
             if (Email.DEBUG) {
@@ -196,20 +213,29 @@ public class MailTransport implements Transport {
     /**
      * Attempts to reopen a TLS connection using the Uri supplied for connection parameters.
      *
-     * NOTE: No explicit hostname verification is required here, because it's handled automatically
-     * by the call to createSocket().
+     * NOTE: The secure SSLCertificateSocketFactory would verify the hostname in createSocket(),
+     * which means handshaking before the socket can be prepared for session resumption.  So the
+     * socket is layered by a factory that leaves the handshake for later (the platform's default
+     * one, which still checks the certificate chain), and the hostname is verified explicitly.
      *
      * TODO should we explicitly close the old socket?  This seems funky to abandon it.
      */
     @Override
     public void reopenTls() throws MessagingException {
         try {
-            mSocket =
-                    SSLUtils.getSSLSocketFactory(canTrustAllCertificates(), SOCKET_CONNECT_TIMEOUT)
-                            .createSocket(mSocket, getHost(), getPort(), true);
+            final SSLSocketFactory factory = canTrustAllCertificates()
+                    ? SSLUtils.getSSLSocketFactory(true, SOCKET_CONNECT_TIMEOUT)
+                    : (SSLSocketFactory) SSLSocketFactory.getDefault();
+            mSocket = factory.createSocket(mSocket, getHost(), getPort(), true);
+            prepareSslSocket(mSocket);
             mSocket.setSoTimeout(SOCKET_READ_TIMEOUT);
-            mIn = new BufferedInputStream(mSocket.getInputStream(), 1024);
-            mOut = new BufferedOutputStream(mSocket.getOutputStream(), 512);
+            startHandshake(mSocket);
+            if (!canTrustAllCertificates()) {
+                verifyHostname(mSocket, getHost());
+            }
+            mIn = new LineInputStream(mSocket.getInputStream());
+            mOut = new BufferedOutputStream(mSocket.getOutputStream(), OUTPUT_BUFFER_SIZE);
+            mCompression = null;
 
         } catch (SSLException e) {
             if (Email.DEBUG) {
@@ -224,6 +250,48 @@ public class MailTransport implements Transport {
         }
     }
 
+    /**
+     * Prepares an SSL socket for its handshake.  The socket factories keep the sessions of the
+     * whole process, by server; naming the server (which also sends it with SNI) and allowing
+     * session tickets lets a reconnection resume the previous session, whether the server
+     * remembers it by ID or hands it back to us as a ticket.
+     */
+    private void prepareSslSocket(Socket socket) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            SSLCertificateSocketFactory factory = SSLUtils.getSSLSocketFactory(
+                    canTrustAllCertificates(), SOCKET_CONNECT_TIMEOUT);
+            factory.setHostname(socket, getHost());
+            factory.setUseSessionTickets(socket, true);
+        }
+    }
+
+    /**
+     * Performs the handshake of an SSL socket now, rather than on its first read or write, and
+     * records how long it took and whether it resumed an earlier session.
+     *
+     * A session that was created before the handshake started was resumed.  Session times only
+     * have a resolution of a second, so a session resumed within a second of its creation is
+     * only recognized if it kept its ID (which it may not, when resumed from a ticket).
+     */
+    private void startHandshake(Socket socket) throws IOException {
+        SSLSocket ssl = (SSLSocket) socket;
+        long startTime = System.currentTimeMillis();
+        long start = SystemClock.elapsedRealtime();
+        ssl.startHandshake();
+        long millis = SystemClock.elapsedRealtime() - start;
+
+        SSLSession session = ssl.getSession();
+        boolean createdEarlier = (session != null)
+                && session.getCreationTime() < startTime - DateUtils.SECOND_IN_MILLIS;
+        boolean resumed = TlsSessionTracker.onHandshake(getHost(), getPort(),
+                (session != null) ? session.getId() : null, createdEarlier, millis);
+        if (Email.DEBUG) {
+            Log.d(Logging.LOG_TAG, "*** " + mDebugLabel + (resumed ? " resumed" : " new")
+                    + " TLS session in " + millis + "ms; "
+                    + TlsSessionTracker.getStats(getHost(), getPort()));
+        }
+    }
+
     /**
      * Lightweight version of SSLCertificateSocketFactory.verifyHostname, which provides this
      * service but is not in the public API.
@@ -262,6 +330,28 @@ public class MailTransport implements Transport {
         }
     }
 
+    @Override
+    public boolean canTryCompression() {
+        return DeflateCompression.isSupported();
+    }
+
+    /**
+     * Compresses the connection from here on.  Whatever has already been read from the socket
+     * past the last line (i.e. the start of the compressed stream) is inflated first.
+     */
+    @Override
+    public void startCompression() throws IOException {
+        mOut.flush();
+        mCompression = new DeflateCompression(mIn, mOut);
+        mIn = new LineInputStream(mCompression.getInputStream());
+        mOut = new BufferedOutputStream(mCompression.getOutputStream(), OUTPUT_BUFFER_SIZE);
+    }
+
+    @Override
+    public float getCompressionRatio() {
+        return (mCompression == null) ? 0 : mCompression.getCompressionRatio();
+    }
+
     /**
      * Set the socket timeout.
      * @param timeoutMilliseconds the read timeout value if greater than {@code 0}, or
@@ -286,6 +376,9 @@ public class MailTransport implements Transport {
         if (Email.DEBUG) {
             Log.d(Logging.LOG_TAG, "*** " + mDebugLabel + " close " +
                     getHost() + ":" + String.valueOf(getPort()));
+            if (mCompression != null) {
+                Log.d(Logging.LOG_TAG, "*** " + mDebugLabel + " " + mCompression);
+            }
         }
 
         try {
@@ -314,6 +407,7 @@ public class MailTransport implements Transport {
         }
         mIn = null;
         mOut = null;
+        mCompression = null;
         mSocket = null;
     }
 
@@ -342,8 +436,7 @@ public class MailTransport implements Transport {
 
         OutputStream out = getOutputStream();
         out.write(s.getBytes());
-        out.write('\r');
-        out.write('\n');
+        out.write(CRLF);
         out.flush();
     }
 
@@ -353,22 +446,13 @@ public class MailTransport implements Transport {
      */
     @Override
     public String readLine() throws IOException {
-        StringBuffer sb = new StringBuffer();
-        InputStream in = getInputStream();
-        int d;
-        while ((d = in.read()) != -1) {
-            if (((char)d) == '\r') {
-                continue;
-            } else if (((char)d) == '\n') {
-                break;
-            } else {
-                sb.append((char)d);
+        String ret = mIn.readLine();
+        if (ret == null) {
+            if (Email.DEBUG) {
+                Log.d(Logging.LOG_TAG, "End of stream reached while trying to read line.");
             }
+            ret = "";
         }
-        if (d == -1 && Email.DEBUG) {
-            Log.d(Logging.LOG_TAG, "End of stream reached while trying to read line.");
-        }
-        String ret = sb.toString();
         if (Email.DEBUG) {
             Log.d(Logging.LOG_TAG, "<<< " + ret);
         }
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.transport;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Keeps track of the TLS sessions of the mail connections (IMAP, POP3 and SMTP alike), per
+ * server, so that we can tell whether a handshake resumed the server's previous session, and how
+ * long handshakes take with and without resumption.
+ *
+ * The sessions themselves are cached by the process-wide socket factories of
+ * {@link com.android.emailcommon.utility.SSLUtils}, keyed by host and port.
+ */
+public class TlsSessionTracker {
+    /** What we know about the sessions with one server */
+    private static class ServerStats {
+        byte[] mLastSessionId;
+        int mFullHandshakes;
+        long mFullHandshakeMillis;
+        int mResumedHandshakes;
+        long mResumedHandshakeMillis;
+    }
+
+    /** host:port -> stats */
+    private static final HashMap<String, ServerStats> sServers = new HashMap<String, ServerStats>();
+
+    private static int sFullHandshakes;
+    private static long sFullHandshakeMillis;
+    private static int sResumedHandshakes;
+    private static long sResumedHandshakeMillis;
+
+    private TlsSessionTracker() {
+    }
+
+    /**
+     * Records a completed handshake.
+     *
+     * @param host the server's host name
+     * @param port the server's port
+     * @param sessionId the ID of the session that the handshake established or resumed
+     * @param createdEarlier whether the session was created before the handshake, i.e. it was
+     * resumed, whatever its ID (a session resumed from a ticket may get a new one)
+     * @param millis how long the handshake took
+     * @return whether the handshake resumed an earlier session with the server
+     */
+    public static synchronized boolean onHandshake(String host, int port, byte[] sessionId,
+            boolean createdEarlier, long millis) {
+        final String key = host + ":" + port;
+        ServerStats stats = sServers.get(key);
+        if (stats == null) {
+            stats = new ServerStats();
+            sServers.put(key, stats);
+        }
+        final boolean resumed = createdEarlier || (sessionId != null && sessionId.length > 0
+                && Arrays.equals(sessionId, stats.mLastSessionId));
+        if (resumed) {
+            stats.mResumedHandshakes++;
+            stats.mResumedHandshakeMillis += millis;
+            sResumedHandshakes++;
+            sResumedHandshakeMillis += millis;
+        } else {
+            stats.mFullHandshakes++;
+            stats.mFullHandshakeMillis += millis;
+            sFullHandshakes++;
+            sFullHandshakeMillis += millis;
+        }
+        stats.mLastSessionId = sessionId;
+        return resumed;
+    }
+
+    /** @return the number of handshakes that resumed an earlier session */
+    public static synchronized int getResumedHandshakeCount() {
+        return sResumedHandshakes;
+    }
+
+    /** @return the number of handshakes that established a new session */
+    public static synchronized int getFullHandshakeCount() {
+        return sFullHandshakes;
+    }
+
+    private static long average(long millis, int count) {
+        return (count == 0) ? 0 : millis / count;
+    }
+
+    /**
+     * @return a one-line summary of the handshakes with all servers, for logging.
+     */
+    public static synchronized String getStats() {
+        return "TLS handshakes: " + sFullHandshakes + " full (avg "
+                + average(sFullHandshakeMillis, sFullHandshakes) + "ms), " + sResumedHandshakes
+                + " resumed (avg " + average(sResumedHandshakeMillis, sResumedHandshakes) + "ms)";
+    }
+
+    /**
+     * @return a one-line summary of the handshakes with one server, for logging.
+     */
+    public static synchronized String getStats(String host, int port) {
+        ServerStats stats = sServers.get(host + ":" + port);
+        if (stats == null) {
+            return "no TLS handshakes with " + host + ":" + port;
+        }
+        return "TLS handshakes with " + host + ":" + port + ": " + stats.mFullHandshakes
+                + " full (avg " + average(stats.mFullHandshakeMillis, stats.mFullHandshakes)
+                + "ms), " + stats.mResumedHandshakes + " resumed (avg "
+                + average(stats.mResumedHandshakeMillis, stats.mResumedHandshakes) + "ms)";
+    }
+
+    /**
+     * Forgets all of the servers and resets the counters.
+     */
+    @VisibleForTesting
+    static synchronized void reset() {
+        sServers.clear();
+        sFullHandshakes = 0;
+        sFullHandshakeMillis = 0;
+        sResumedHandshakes = 0;
+        sResumedHandshakeMillis = 0;
+    }
+}
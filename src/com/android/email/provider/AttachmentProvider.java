@@ -16,8 +16,6 @@
 
 package com.android.email.provider;
 
-import com.android.emailcommon.Logging;
-import com.android.emailcommon.internet.MimeUtility;
 import com.android.emailcommon.provider.EmailContent;
 import com.android.emailcommon.provider.EmailContent.Attachment;
 import com.android.emailcommon.provider.EmailContent.AttachmentColumns;
@@ -31,18 +29,12 @@ import android.content.Context;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
 import android.database.MatrixCursor;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.ParcelFileDescriptor;
-import android.util.Log;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
 import java.util.List;
 
 /*
@@ -57,11 +49,11 @@ import java.util.List;
  * The on-disk (storage) schema is as follows.
  *
  * Attachments are stored at:  <database-path>/account#.db_att/item#
- * Thumbnails are stored at:   <cache-path>/thmb_account#_item#
+ * Thumbnails are stored at:   <cache-path>/thumbnails/thmb_account#_item#_size_widthxheight
  *
  * Using the standard application context, account #10 and attachment # 20, this would be:
  *      /data/data/com.android.email/databases/10.db_att/20
- *      /data/data/com.android.email/cache/thmb_10_20
+ *      /data/data/com.android.email/cache/thumbnails/thmb_10_20_<size>_62x62
  */
 public class AttachmentProvider extends ContentProvider {
 
@@ -77,7 +69,9 @@ public class AttachmentProvider extends ContentProvider {
     public boolean onCreate() {
         /*
          * We use the cache dir as a temporary directory (since Android doesn't give us one) so
-         * on startup we'll clean up any .tmp files from the last run.
+         * on startup we'll clean up any .tmp files from the last run.  Thumbnails used to be
+         * kept here too, and were thrown away on every start; they now live in a persistent,
+         * size-bounded cache (see ThumbnailCache), so just remove any old-style ones.
          */
         File[] files = getContext().getCacheDir().listFiles();
         for (File file : files) {
@@ -86,6 +80,7 @@ public class AttachmentProvider extends ContentProvider {
                 file.delete();
             }
         }
+        ThumbnailCache.cleanup(getContext());
         return true;
     }
 
@@ -129,7 +124,7 @@ public class AttachmentProvider extends ContentProvider {
      * Open an attachment file.  There are two "formats" - "raw", which returns an actual file,
      * and "thumbnail", which attempts to generate a thumbnail image.
      *
-     * Thumbnails are cached for easy space recovery and cleanup.
+     * Thumbnails are cached persistently by {@link ThumbnailCache}.
      *
      * TODO:  The thumbnail format returns null for its failure cases, instead of throwing
      * FileNotFoundException, and should be fixed for consistency.
@@ -168,47 +163,10 @@ public class AttachmentProvider extends ContentProvider {
             if (AttachmentUtilities.FORMAT_THUMBNAIL.equals(format)) {
                 int width = Integer.parseInt(segments.get(3));
                 int height = Integer.parseInt(segments.get(4));
-                String filename = "thmb_" + accountId + "_" + id;
-                File dir = getContext().getCacheDir();
-                File file = new File(dir, filename);
-                if (!file.exists()) {
-                    Uri attachmentUri = AttachmentUtilities.
-                        getAttachmentUri(Long.parseLong(accountId), Long.parseLong(id));
-                    Cursor c = query(attachmentUri,
-                            new String[] { Columns.DATA }, null, null, null);
-                    if (c != null) {
-                        try {
-                            if (c.moveToFirst()) {
-                                attachmentUri = Uri.parse(c.getString(0));
-                            } else {
-                                return null;
-                            }
-                        } finally {
-                            c.close();
-                        }
-                    }
-                    String type = getContext().getContentResolver().getType(attachmentUri);
-                    try {
-                        InputStream in =
-                            getContext().getContentResolver().openInputStream(attachmentUri);
-                        Bitmap thumbnail = createThumbnail(type, in);
-                        if (thumbnail == null) {
-                            return null;
-                        }
-                        thumbnail = Bitmap.createScaledBitmap(thumbnail, width, height, true);
-                        FileOutputStream out = new FileOutputStream(file);
-                        thumbnail.compress(Bitmap.CompressFormat.PNG, 100, out);
-                        out.close();
-                        in.close();
-                    } catch (IOException ioe) {
-                        Log.d(Logging.LOG_TAG, "openFile/thumbnail failed with " +
-                                ioe.getMessage());
-                        return null;
-                    } catch (OutOfMemoryError oome) {
-                        Log.d(Logging.LOG_TAG, "openFile/thumbnail failed with " +
-                                oome.getMessage());
-                        return null;
-                    }
+                File file = ThumbnailCache.getThumbnail(getContext(), Long.parseLong(accountId),
+                        Long.parseLong(id), width, height);
+                if (file == null) {
+                    return null;
                 }
                 return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
             }
@@ -304,26 +262,6 @@ public class AttachmentProvider extends ContentProvider {
         return 0;
     }
 
-    private Bitmap createThumbnail(String type, InputStream data) {
-        if(MimeUtility.mimeTypeMatches(type, "image/*")) {
-            return createImageThumbnail(data);
-        }
-        return null;
-    }
-
-    private Bitmap createImageThumbnail(InputStream data) {
-        try {
-            Bitmap bitmap = BitmapFactory.decodeStream(data);
-            return bitmap;
-        } catch (OutOfMemoryError oome) {
-            Log.d(Logging.LOG_TAG, "createImageThumbnail failed with " + oome.getMessage());
-            return null;
-        } catch (Exception e) {
-            Log.d(Logging.LOG_TAG, "createImageThumbnail failed with " + e.getMessage());
-            return null;
-        }
-    }
-
     /**
      * Need this to suppress warning in unit tests.
      */
@@ -50,6 +50,7 @@ import com.android.emailcommon.provider.Mailbox;
 import com.android.emailcommon.provider.Policy;
 import com.android.emailcommon.provider.QuickResponse;
 import com.android.emailcommon.service.LegacyPolicySet;
+import com.android.emailcommon.utility.AttachmentUtilities;
 import com.google.common.annotations.VisibleForTesting;
 
 public final class DBHelper {
@@ -121,10 +122,13 @@ public final class DBHelper {
     // Version 36: mblank intentionally left this space
     // Version 37: Add flag for settings support in folders
     // Version 38&39: Add threadTopic to message (for future support)
+    // Version 40: Use compact packed addresses (Address.pack()) instead of CSV of RFC822
+    // Version 41: Add attachmentStorage to Account, maintained by triggers on Attachment
+    // Version 42: Update POP3 accounts to add FLAG_SUPPORTS_SEARCH flag (they search locally)
 
     // Versions 100+ are in Email2
 
-    public static final int DATABASE_VERSION = 39;
+    public static final int DATABASE_VERSION = 42;
 
     // Any changes to the database format *must* include update-in-place code.
     // Original version: 2
@@ -133,10 +137,11 @@ public final class DBHelper {
     // Version 5: Database wipe required; changing AccountManager interface w/Exchange
     // Version 6: Adding Body.mIntroText column
     // Version 7/8: Adding quoted text start pos
+    // Version 9: Add the MessageSearch full-text index
 
     // Versions 100+ are in Email2
 
-    public static final int BODY_DATABASE_VERSION = 8;
+    public static final int BODY_DATABASE_VERSION = 9;
 
     /*
      * Internal helper method for index creation.
@@ -319,7 +324,8 @@ public final class DBHelper {
             + AccountColumns.SIGNATURE + " text, "
             + AccountColumns.POLICY_KEY + " integer, "
             + AccountColumns.NOTIFIED_MESSAGE_ID + " integer, "
-            + AccountColumns.NOTIFIED_MESSAGE_COUNT + " integer"
+            + AccountColumns.NOTIFIED_MESSAGE_COUNT + " integer, "
+            + AccountColumns.ATTACHMENT_STORAGE + " integer default 0"
             + ");";
         db.execSQL("create table " + Account.TABLE_NAME + s);
         // Deleting an account deletes associated Mailboxes and HostAuth's
@@ -449,6 +455,46 @@ public final class DBHelper {
             + ");";
         db.execSQL("create table " + Attachment.TABLE_NAME + s);
         db.execSQL(createIndex(Attachment.TABLE_NAME, AttachmentColumns.MESSAGE_KEY));
+        createAttachmentStorageTriggers(db);
+    }
+
+    // Attachments whose content is stored in the attachment directory (i.e. not attachments of
+    // outgoing messages, nor those saved to external storage)
+    private static String attachmentIsStored(String row) {
+        return row + "." + AttachmentColumns.CONTENT_URI + " like '" +
+                AttachmentUtilities.CONTENT_URI + "/%'";
+    }
+
+    private static String addAttachmentStorage(String row, char op) {
+        return "update " + Account.TABLE_NAME + " set " + AccountColumns.ATTACHMENT_STORAGE +
+                '=' + AccountColumns.ATTACHMENT_STORAGE + op + "coalesce(" + row + "." +
+                AttachmentColumns.SIZE + ",0) where " + EmailContent.RECORD_ID + '=' + row + "." +
+                AttachmentColumns.ACCOUNT_KEY;
+    }
+
+    /**
+     * Keep the attachment storage of each account (see {@link AccountColumns#ATTACHMENT_STORAGE})
+     * accurate, as attachments are downloaded, changed, and deleted
+     */
+    static void createAttachmentStorageTriggers(SQLiteDatabase db) {
+        // Insert an attachment that's already been downloaded
+        db.execSQL("create trigger attachment_storage_insert after insert on " +
+                Attachment.TABLE_NAME + " when " + attachmentIsStored("NEW") +
+                " begin " + addAttachmentStorage("NEW", '+') + "; end");
+
+        // Delete a downloaded attachment (including by deleting its message)
+        db.execSQL("create trigger attachment_storage_delete after delete on " +
+                Attachment.TABLE_NAME + " when " + attachmentIsStored("OLD") +
+                " begin " + addAttachmentStorage("OLD", '-') + "; end");
+
+        // Download an attachment, or change the size or account of a downloaded attachment
+        db.execSQL("create trigger attachment_storage_update after update of " +
+                AttachmentColumns.CONTENT_URI + "," + AttachmentColumns.SIZE + "," +
+                AttachmentColumns.ACCOUNT_KEY + " on " + Attachment.TABLE_NAME +
+                " begin " + addAttachmentStorage("OLD", '-') + " and " +
+                attachmentIsStored("OLD") +
+                "; " + addAttachmentStorage("NEW", '+') + " and " + attachmentIsStored("NEW") +
+                "; end");
     }
 
     static void resetAttachmentTable(SQLiteDatabase db, int oldVersion, int newVersion) {
@@ -511,6 +557,17 @@ public final class DBHelper {
             }
             oldVersion = 8;
         }
+        if (oldVersion == 8) {
+            try {
+                // EmailProvider fills it with the existing messages in the background
+                SearchIndex.createTable(db);
+                SearchIndex.markForRebuild(db);
+            } catch (SQLException e) {
+                // Without the index, search just goes to the server
+                Log.w(TAG, "Exception upgrading EmailProviderBody.db from v8 to v9", e);
+            }
+            oldVersion = 9;
+        }
     }
 
     protected static class BodyDatabaseHelper extends SQLiteOpenHelper {
@@ -522,6 +579,12 @@ public final class DBHelper {
         public void onCreate(SQLiteDatabase db) {
             Log.d(TAG, "Creating EmailProviderBody database");
             createBodyTable(db);
+            try {
+                SearchIndex.createTable(db);
+            } catch (SQLException e) {
+                // Without the index, search just goes to the server
+                Log.w(TAG, "Unable to create the search index", e);
+            }
         }
 
         @Override
@@ -939,6 +1002,18 @@ public final class DBHelper {
                 }
                 oldVersion = 39;
             }
+            if (oldVersion == 39) {
+                upgradeFromVersion39ToVersion40(db);
+                oldVersion = 40;
+            }
+            if (oldVersion == 40) {
+                upgradeFromVersion40ToVersion41(db);
+                oldVersion = 41;
+            }
+            if (oldVersion == 41) {
+                upgradeFromVersion41ToVersion42(db);
+                oldVersion = 42;
+            }
         }
 
         @Override
@@ -1183,7 +1258,8 @@ public final class DBHelper {
 
     private static void upgradeFromVersion29ToVersion30(SQLiteDatabase db) {
         try {
-            // Loop through all messages, updating address columns to new format (CSV, RFC822)
+            // Loop through all messages, updating address columns to new format (CSV, RFC822).
+            // That's what Address.pack() wrote at the time; v40 converts it to today's format.
             Cursor messageCursor = db.query(Message.TABLE_NAME, Message.CONTENT_PROJECTION, null,
                     null, null, null, null);
             ContentValues cv = new ContentValues();
@@ -1193,7 +1269,7 @@ public final class DBHelper {
                     for (int i = 0; i < ADDRESS_COLUMN_INDICES.length; i++) {
                         Address[] addrs =
                                 Address.unpack(messageCursor.getString(ADDRESS_COLUMN_INDICES[i]));
-                        cv.put(ADDRESS_COLUMN_NAMES[i], Address.pack(addrs));
+                        cv.put(ADDRESS_COLUMN_NAMES[i], Address.toHeader(addrs));
                     }
                     whereArgs[0] = messageCursor.getString(Message.CONTENT_ID_COLUMN);
                     db.update(Message.TABLE_NAME, cv, WHERE_ID, whereArgs);
@@ -1207,4 +1283,85 @@ public final class DBHelper {
         }
     }
 
+    /** Projection for the v39 to v40 upgrade; the id followed by ADDRESS_COLUMN_NAMES */
+    private static final String[] V39_ADDRESS_PROJECTION = new String[] {
+        EmailContent.RECORD_ID, Message.BCC_LIST, Message.CC_LIST, Message.FROM_LIST,
+        Message.REPLY_TO_LIST, Message.TO_LIST
+    };
+
+    /**
+     * Upgrades the database from v39 to v40 by converting the address fields in Message from
+     * CSV of RFC822 addresses to the compact format written by Address.pack().  Only rows
+     * whose values actually change are written.
+     */
+    @VisibleForTesting
+    static void upgradeFromVersion39ToVersion40(SQLiteDatabase db) {
+        try {
+            Cursor messageCursor = db.query(Message.TABLE_NAME, V39_ADDRESS_PROJECTION, null,
+                    null, null, null, null);
+            ContentValues cv = new ContentValues();
+            String[] whereArgs = new String[1];
+            try {
+                while (messageCursor.moveToNext()) {
+                    cv.clear();
+                    for (int i = 0; i < ADDRESS_COLUMN_NAMES.length; i++) {
+                        String oldValue = messageCursor.getString(i + 1);
+                        if (oldValue == null) {
+                            continue;
+                        }
+                        String newValue = Address.pack(Address.unpack(oldValue));
+                        if (!oldValue.equals(newValue)) {
+                            cv.put(ADDRESS_COLUMN_NAMES[i], newValue);
+                        }
+                    }
+                    if (cv.size() > 0) {
+                        whereArgs[0] = messageCursor.getString(0);
+                        db.update(Message.TABLE_NAME, cv, WHERE_ID, whereArgs);
+                    }
+                }
+            } finally {
+                messageCursor.close();
+            }
+        } catch (SQLException e) {
+            // Shouldn't be needed unless we're debugging and interrupt the process
+            Log.w(TAG, "Exception upgrading EmailProvider.db from 39 to 40 " + e);
+        }
+    }
+
+    /** Upgrades the database from v40 to v41 */
+    @VisibleForTesting
+    static void upgradeFromVersion40ToVersion41(SQLiteDatabase db) {
+        try {
+            db.execSQL("alter table " + Account.TABLE_NAME + " add column " +
+                    AccountColumns.ATTACHMENT_STORAGE + " integer default 0;");
+            // Start with the attachments that are already stored; the triggers take it from here
+            db.execSQL("update " + Account.TABLE_NAME + " set " +
+                    AccountColumns.ATTACHMENT_STORAGE + "=(select coalesce(sum(" +
+                    AttachmentColumns.SIZE + "),0) from " + Attachment.TABLE_NAME + " where " +
+                    AttachmentColumns.ACCOUNT_KEY + "=" + Account.TABLE_NAME + "." +
+                    EmailContent.RECORD_ID + " and " + attachmentIsStored(Attachment.TABLE_NAME) +
+                    ");");
+            createAttachmentStorageTriggers(db);
+        } catch (SQLException e) {
+            // Shouldn't be needed unless we're debugging and interrupt the process
+            Log.w(TAG, "Exception upgrading EmailProvider.db from 40 to 41 " + e);
+        }
+    }
+
+    /**
+     * Upgrades the database from v41 to v42 by adding the search flag to POP3 accounts, which
+     * search the messages they've downloaded (see MessagingController.searchMailbox)
+     */
+    static void upgradeFromVersion41ToVersion42(SQLiteDatabase db) {
+        try {
+            db.execSQL("update " + Account.TABLE_NAME + " set " + AccountColumns.FLAGS + "="
+                    + AccountColumns.FLAGS + "|" + Account.FLAGS_SUPPORTS_SEARCH + " where "
+                    + AccountColumns.HOST_AUTH_KEY_RECV + " in (select " + EmailContent.RECORD_ID
+                    + " from " + HostAuth.TABLE_NAME + " where " + HostAuthColumns.PROTOCOL
+                    + "='" + HostAuth.SCHEME_POP3 + "');");
+        } catch (SQLException e) {
+            // Shouldn't be needed unless we're debugging and interrupt the process
+            Log.w(TAG, "Exception upgrading EmailProvider.db from 41 to 42 " + e);
+        }
+    }
 }
@@ -55,6 +55,7 @@ import com.android.emailcommon.provider.HostAuth;
 import com.android.emailcommon.provider.Mailbox;
 import com.android.emailcommon.provider.Policy;
 import com.android.emailcommon.provider.QuickResponse;
+import com.android.emailcommon.utility.EmailAsyncTask;
 import com.google.common.annotations.VisibleForTesting;
 
 import java.io.File;
@@ -62,6 +63,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 
@@ -159,6 +161,7 @@ public class EmailProvider extends ContentProvider {
     private static final int MESSAGE = MESSAGE_BASE;
     private static final int MESSAGE_ID = MESSAGE_BASE + 1;
     private static final int SYNCED_MESSAGE_ID = MESSAGE_BASE + 2;
+    private static final int MESSAGE_SEARCH = MESSAGE_BASE + 3;
 
     private static final int ATTACHMENT_BASE = 0x3000;
     private static final int ATTACHMENT = ATTACHMENT_BASE;
@@ -334,6 +337,8 @@ public class EmailProvider extends ContentProvider {
         // A specific message
         // insert into this URI causes an attachment to be added to the message
         matcher.addURI(EmailContent.AUTHORITY, "message/#", MESSAGE_ID);
+        // Messages matching a search of the local full-text index
+        matcher.addURI(EmailContent.AUTHORITY, "message/search", MESSAGE_SEARCH);
 
         // A specific attachment
         matcher.addURI(EmailContent.AUTHORITY, "attachment", ATTACHMENT);
@@ -434,6 +439,8 @@ public class EmailProvider extends ContentProvider {
 
     private SQLiteDatabase mDatabase;
     private SQLiteDatabase mBodyDatabase;
+    /** Whether the search index exists, and must be kept up to date (see {@link SearchIndex}) */
+    private volatile boolean mSearchIndexAvailable;
 
     public static Uri uiUri(String type, long id) {
         return Uri.parse(uiUriString(type, id));
@@ -495,6 +502,23 @@ public class EmailProvider extends ContentProvider {
                 Account.TABLE_NAME);
         deleteUnlinked(mDatabase, Policy.TABLE_NAME, PolicyColumns.ID, AccountColumns.POLICY_KEY,
                 Account.TABLE_NAME);
+        mSearchIndexAvailable = (mBodyDatabase != null) && SearchIndex.isAvailable(mDatabase);
+        if (mSearchIndexAvailable && SearchIndex.needsRebuild(mDatabase)) {
+            // The search index was added on upgrade (or the last rebuild didn't finish); fill it
+            // with the existing messages, without holding up whoever is opening the database
+            final SQLiteDatabase db = mDatabase;
+            EmailAsyncTask.runAsyncParallel(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        SearchIndex.rebuild(db);
+                    } catch (RuntimeException e) {
+                        // e.g. the database was closed; the rebuild starts over next time
+                        Log.w(TAG, "Unable to rebuild the search index", e);
+                    }
+                }
+            });
+        }
         preCacheData();
         return mDatabase;
     }
@@ -699,7 +723,6 @@ public class EmailProvider extends ContentProvider {
         int table = match >> BASE_SHIFT;
         String id = "0";
         boolean messageDeletion = false;
-        ContentResolver resolver = context.getContentResolver();
 
         ContentCache cache = mContentCaches[table];
         String tableName = TABLE_NAMES[table];
@@ -839,6 +862,12 @@ public class EmailProvider extends ContentProvider {
                     // Delete any orphaned Body records
                     db.execSQL(DELETE_ORPHAN_BODIES);
                 }
+                // Likewise for the search index
+                if (mSearchIndexAvailable) {
+                    SearchIndex.onMessagesDeleted(db,
+                            (match == MESSAGE_ID || match == SYNCED_MESSAGE_ID)
+                                    ? Long.parseLong(id) : -1);
+                }
                 db.setTransactionSuccessful();
             }
         } catch (SQLiteException e) {
@@ -854,7 +883,7 @@ public class EmailProvider extends ContentProvider {
         sendNotifierChange(getBaseNotificationUri(match), NOTIFICATION_OP_DELETE, id);
 
         // Notify all email content cursors
-        resolver.notifyChange(EmailContent.CONTENT_URI, null);
+        notifyChange(EmailContent.CONTENT_URI);
         return result;
     }
 
@@ -909,7 +938,6 @@ public class EmailProvider extends ContentProvider {
     public Uri insert(Uri uri, ContentValues values) {
         int match = findMatch(uri, "insert");
         Context context = getContext();
-        ContentResolver resolver = context.getContentResolver();
 
         // See the comment at delete(), above
         SQLiteDatabase db = getDatabase(context);
@@ -942,6 +970,13 @@ public class EmailProvider extends ContentProvider {
                 case QUICK_RESPONSE:
                     longId = db.insert(TABLE_NAMES[table], "foo", values);
                     resultUri = ContentUris.withAppendedId(uri, longId);
+                    if (longId >= 0 && mSearchIndexAvailable) {
+                        if (match == MESSAGE) {
+                            SearchIndex.onMessageInserted(db, longId);
+                        } else if (match == BODY) {
+                            SearchIndex.onBodiesChanged(db, values, null, null);
+                        }
+                    }
                     switch(match) {
                         case MAILBOX:
                             if (values.containsKey(MailboxColumns.TYPE)) {
@@ -1018,7 +1053,7 @@ public class EmailProvider extends ContentProvider {
         sendNotifierChange(getBaseNotificationUri(match), NOTIFICATION_OP_INSERT, id);
 
         // Notify all existing cursors.
-        resolver.notifyChange(EmailContent.CONTENT_URI, null);
+        notifyChange(EmailContent.CONTENT_URI);
         return resultUri;
     }
 
@@ -1206,6 +1241,24 @@ public class EmailProvider extends ContentProvider {
                         }
                     }
                     break;
+                case MESSAGE_SEARCH:
+                    // Messages matching the filter in the local search index
+                    String matchExpression = SearchIndex.buildMatchExpression(
+                            uri.getQueryParameter(EmailContent.PARAMETER_SEARCH_FILTER));
+                    if (matchExpression == null || !mSearchIndexAvailable) {
+                        c = new MatrixCursor(projection, 0);
+                        break;
+                    }
+                    String[] args = new String[1 + ((selectionArgs == null) ? 0
+                            : selectionArgs.length)];
+                    args[0] = matchExpression;
+                    if (selectionArgs != null) {
+                        System.arraycopy(selectionArgs, 0, args, 1, selectionArgs.length);
+                    }
+                    c = db.query(Message.TABLE_NAME, projection,
+                            whereWith(SearchIndex.MATCHING_MESSAGES_SELECTION, selection), args,
+                            null, null, sortOrder, limit);
+                    break;
                 case ATTACHMENTS_MESSAGE_ID:
                     // All attachments for the given message
                     id = uri.getPathSegments().get(2);
@@ -1453,7 +1506,6 @@ public class EmailProvider extends ContentProvider {
 
         int match = findMatch(uri, "update");
         Context context = getContext();
-        ContentResolver resolver = context.getContentResolver();
         // See the comment at delete(), above
         SQLiteDatabase db = getDatabase(context);
         int table = match >> BASE_SHIFT;
@@ -1540,6 +1592,15 @@ outer:
                         }
                         result = db.update(tableName, values, whereWithId(id, selection),
                                 selectionArgs);
+                        if (result > 0 && mSearchIndexAvailable) {
+                            if (match == MESSAGE_ID || match == SYNCED_MESSAGE_ID) {
+                                SearchIndex.onMessagesUpdated(db, values,
+                                        EmailContent.RECORD_ID + "=" + id, null);
+                            } else if (match == BODY_ID) {
+                                SearchIndex.onBodiesChanged(db, values,
+                                        EmailContent.RECORD_ID + "=" + id, null);
+                            }
+                        }
                     } catch (SQLiteException e) {
                         // Null out values (so they aren't cached) and re-throw
                         values = null;
@@ -1597,6 +1658,15 @@ outer:
                             //$FALL-THROUGH$
                         default:
                             result = db.update(tableName, values, selection, selectionArgs);
+                            if (result > 0 && mSearchIndexAvailable) {
+                                if (match == MESSAGE) {
+                                    SearchIndex.onMessagesUpdated(db, values, selection,
+                                            selectionArgs);
+                                } else if (match == BODY) {
+                                    SearchIndex.onBodiesChanged(db, values, selection,
+                                            selectionArgs);
+                                }
+                            }
                             break outer;
                     }
                 case ACCOUNT_RESET_NEW_COUNT_ID:
@@ -1640,7 +1710,7 @@ outer:
         // Notify all notifier cursors
         sendNotifierChange(getBaseNotificationUri(match), NOTIFICATION_OP_UPDATE, id);
 
-        resolver.notifyChange(notificationUri, null);
+        notifyChange(notificationUri);
         return result;
     }
 
@@ -1694,19 +1764,49 @@ outer:
             longId = Long.valueOf(id);
         } catch (NumberFormatException ignore) {}
 
-        final ContentResolver resolver = getContext().getContentResolver();
         if (longId > 0) {
-            resolver.notifyChange(ContentUris.withAppendedId(uri, longId), null);
+            notifyChange(ContentUris.withAppendedId(uri, longId));
         } else {
-            resolver.notifyChange(uri, null);
+            notifyChange(uri);
         }
 
         // If a message has changed, notify any widgets
         if (baseUri.equals(Message.NOTIFIER_URI)) {
-            sendMessageListDataChangedNotification();
+            final BatchNotifications batch = mBatchNotifications.get();
+            if (batch != null) {
+                batch.mMessageListChanged = true;
+            } else {
+                sendMessageListDataChangedNotification();
+            }
         }
     }
 
+    /**
+     * Notifies the observers of a URI, unless a batch is being applied on this thread, in which
+     * case the notification is held back until the batch is done.
+     */
+    private void notifyChange(Uri uri) {
+        final BatchNotifications batch = mBatchNotifications.get();
+        if (batch != null) {
+            batch.mUris.add(uri);
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * The notifications held back while a batch is applied.  Observers are only told about the
+     * changes once they've been committed, and only once for each URI, no matter how many of the
+     * operations in the batch changed it.
+     */
+    private static class BatchNotifications {
+        final LinkedHashSet<Uri> mUris = new LinkedHashSet<Uri>();
+        boolean mMessageListChanged;
+    }
+
+    private final ThreadLocal<BatchNotifications> mBatchNotifications =
+            new ThreadLocal<BatchNotifications>();
+
     private void sendMessageListDataChangedNotification() {
         final Context context = getContext();
         final Intent intent = new Intent(ACTION_NOTIFY_MESSAGE_LIST_DATASET_CHANGED);
@@ -1721,6 +1821,10 @@ outer:
             throws OperationApplicationException {
         Context context = getContext();
         SQLiteDatabase db = getDatabase(context);
+        final boolean outermost = (mBatchNotifications.get() == null);
+        if (outermost) {
+            mBatchNotifications.set(new BatchNotifications());
+        }
         db.beginTransaction();
         try {
             ContentProviderResult[] results = super.applyBatch(operations);
@@ -1728,6 +1832,17 @@ outer:
             return results;
         } finally {
             db.endTransaction();
+            if (outermost) {
+                final BatchNotifications batch = mBatchNotifications.get();
+                mBatchNotifications.remove();
+                final ContentResolver resolver = context.getContentResolver();
+                for (Uri uri : batch.mUris) {
+                    resolver.notifyChange(uri, null);
+                }
+                if (batch.mMessageListChanged) {
+                    sendMessageListDataChangedNotification();
+                }
+            }
         }
     }
 
@@ -0,0 +1,404 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.Body;
+import com.android.emailcommon.provider.EmailContent.BodyColumns;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.google.common.annotations.VisibleForTesting;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.util.Log;
+
+/**
+ * The local full-text index of messages, used for offline (and fast) search.
+ *
+ * The index is an FTS3 table in the body database; its docid is the _id of the Message it
+ * covers, and it holds the subject, sender, recipients, snippet and (stripped) body text of
+ * the message.  Because triggers can't span the two databases, EmailProvider keeps the index
+ * up to date by calling into this class whenever it writes the Message or Body tables.  All
+ * of the methods here must be called on the main (EmailProvider.db) database, with the body
+ * database attached, except for those that create tables.
+ *
+ * If the index table couldn't be created (e.g. FTS3 isn't available), EmailProvider doesn't
+ * maintain it, and finds no matches; searches then go to the server only.
+ */
+public class SearchIndex {
+    private static final String TAG = "SearchIndex";
+
+    public static final String TABLE_NAME = "MessageSearch";
+
+    /**
+     * Exists while the index has yet to be filled from the Message and Body tables (after an
+     * upgrade), so that a rebuild that didn't finish is started over
+     */
+    private static final String REBUILD_TABLE_NAME = "MessageSearchRebuild";
+
+    /** A rebuild indexes this many messages per transaction, so as not to hold up the provider */
+    private static final int REBUILD_BATCH_SIZE = 100;
+
+    /*package*/ static final String SUBJECT = "subject";
+    /*package*/ static final String SENDER = "sender";
+    /*package*/ static final String RECIPIENTS = "recipients";
+    /*package*/ static final String SNIPPET = "snippet";
+    /*package*/ static final String BODY = "body";
+    private static final String DOCID = "docid";
+
+    /** Only the start of very long bodies is indexed */
+    @VisibleForTesting
+    static final int MAX_INDEXED_BODY_LENGTH = 32 * 1024;
+
+    private static final String[] INDEXED_MESSAGE_COLUMNS = new String[] {
+        MessageColumns.SUBJECT, MessageColumns.FROM_LIST, MessageColumns.TO_LIST,
+        MessageColumns.CC_LIST, MessageColumns.BCC_LIST, MessageColumns.SNIPPET
+    };
+
+    private static final String INDEX_QUERY_START = "select m." + EmailContent.RECORD_ID
+            + ", m." + MessageColumns.SUBJECT + ", m." + MessageColumns.FROM_LIST
+            + ", m." + MessageColumns.TO_LIST + ", m." + MessageColumns.CC_LIST
+            + ", m." + MessageColumns.BCC_LIST + ", m." + MessageColumns.SNIPPET
+            + ", b." + BodyColumns.TEXT_CONTENT + ", b." + BodyColumns.HTML_CONTENT
+            + " from (select * from " + Message.TABLE_NAME;
+    private static final String INDEX_QUERY_END = ") m left join " + Body.TABLE_NAME
+            + " b on b." + BodyColumns.MESSAGE_KEY + "=m." + EmailContent.RECORD_ID;
+    private static final int INDEX_QUERY_ID_COLUMN = 0;
+    private static final int INDEX_QUERY_SUBJECT_COLUMN = 1;
+    private static final int INDEX_QUERY_FROM_COLUMN = 2;
+    private static final int INDEX_QUERY_TO_COLUMN = 3;
+    private static final int INDEX_QUERY_CC_COLUMN = 4;
+    private static final int INDEX_QUERY_BCC_COLUMN = 5;
+    private static final int INDEX_QUERY_SNIPPET_COLUMN = 6;
+    private static final int INDEX_QUERY_TEXT_COLUMN = 7;
+    private static final int INDEX_QUERY_HTML_COLUMN = 8;
+
+    private static final String REBUILD_BATCH_END = "select max(" + EmailContent.RECORD_ID
+            + ") from (select " + EmailContent.RECORD_ID + " from " + Message.TABLE_NAME
+            + " where " + EmailContent.RECORD_ID + ">? order by " + EmailContent.RECORD_ID
+            + " limit " + REBUILD_BATCH_SIZE + ")";
+
+    private static final String DELETE_ORPHANS = "delete from " + TABLE_NAME + " where "
+            + DOCID + " not in (select " + EmailContent.RECORD_ID + " from "
+            + Message.TABLE_NAME + ")";
+
+    /**
+     * The selection used to find the messages matching a search; its single argument is a
+     * match expression built by {@link #buildMatchExpression}.
+     */
+    public static final String MATCHING_MESSAGES_SELECTION = EmailContent.RECORD_ID
+            + " in (select " + DOCID + " from " + TABLE_NAME + " where " + TABLE_NAME
+            + " match ?)";
+
+    private SearchIndex() {
+    }
+
+    /**
+     * Creates the index table; called on the body database.
+     */
+    /*package*/ static void createTable(SQLiteDatabase db) {
+        db.execSQL("create virtual table " + TABLE_NAME + " using fts3 (" + SUBJECT + ", "
+                + SENDER + ", " + RECIPIENTS + ", " + SNIPPET + ", " + BODY + ")");
+    }
+
+    /**
+     * Marks the index as needing a {@link #rebuild}; called on the body database, when the index
+     * table is added to existing messages.
+     */
+    /*package*/ static void markForRebuild(SQLiteDatabase db) {
+        db.execSQL("create table " + REBUILD_TABLE_NAME + " (" + EmailContent.RECORD_ID
+                + " integer)");
+    }
+
+    /**
+     * @return whether the index table exists; if it doesn't, it mustn't be written
+     */
+    /*package*/ static boolean isAvailable(SQLiteDatabase db) {
+        return tableExists(db, TABLE_NAME);
+    }
+
+    /**
+     * @return whether the index has yet to be filled by {@link #rebuild}
+     */
+    /*package*/ static boolean needsRebuild(SQLiteDatabase db) {
+        return tableExists(db, REBUILD_TABLE_NAME);
+    }
+
+    private static boolean tableExists(SQLiteDatabase db, String table) {
+        try {
+            db.rawQuery("select 1 from " + table + " limit 1", null).close();
+            return true;
+        } catch (SQLiteException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Indexes all of the messages in the Message and Body tables.  This is only needed when the
+     * index table is added to existing messages (on upgrade), and may take a while, so it's done
+     * in the background, a batch of messages at a time; messages written meanwhile are indexed
+     * as usual.  Indexing a message replaces its old entry, so a rebuild can be started over.
+     */
+    /*package*/ static void rebuild(SQLiteDatabase db) {
+        long start = System.currentTimeMillis();
+        int count = 0;
+        long lastId = -1;
+        while (true) {
+            db.beginTransaction();
+            try {
+                long endId = getRebuildBatchEnd(db, lastId);
+                if (endId < 0) {
+                    db.execSQL("drop table " + REBUILD_TABLE_NAME);
+                    db.setTransactionSuccessful();
+                    break;
+                }
+                count += indexMessages(db, EmailContent.RECORD_ID + ">" + lastId + " and "
+                        + EmailContent.RECORD_ID + "<=" + endId, null);
+                db.setTransactionSuccessful();
+                lastId = endId;
+            } finally {
+                db.endTransaction();
+            }
+        }
+        Log.d(TAG, "Indexed " + count + " messages in "
+                + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * @return the id of the last message in the rebuild batch after lastId, or -1 if there are
+     * no more messages
+     */
+    private static long getRebuildBatchEnd(SQLiteDatabase db, long lastId) {
+        Cursor c = db.rawQuery(REBUILD_BATCH_END, new String[] {Long.toString(lastId)});
+        try {
+            return (c.moveToFirst() && !c.isNull(0)) ? c.getLong(0) : -1;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * (Re)indexes the messages matching a selection on the Message table.
+     * @return the number of messages indexed
+     */
+    /*package*/ static int indexMessages(SQLiteDatabase db, String selection,
+            String[] selectionArgs) {
+        String where = (selection == null) ? "" : (" where " + selection);
+        Cursor c = db.rawQuery(INDEX_QUERY_START + where + INDEX_QUERY_END, selectionArgs);
+        int count = 0;
+        try {
+            ContentValues cv = new ContentValues();
+            String[] docid = new String[1];
+            while (c.moveToNext()) {
+                docid[0] = c.getString(INDEX_QUERY_ID_COLUMN);
+                cv.clear();
+                cv.put(DOCID, c.getLong(INDEX_QUERY_ID_COLUMN));
+                cv.put(SUBJECT, c.getString(INDEX_QUERY_SUBJECT_COLUMN));
+                cv.put(SENDER, c.getString(INDEX_QUERY_FROM_COLUMN));
+                cv.put(RECIPIENTS, join(c.getString(INDEX_QUERY_TO_COLUMN),
+                        c.getString(INDEX_QUERY_CC_COLUMN), c.getString(INDEX_QUERY_BCC_COLUMN)));
+                cv.put(SNIPPET, c.getString(INDEX_QUERY_SNIPPET_COLUMN));
+                cv.put(BODY, getIndexableBody(c.getString(INDEX_QUERY_TEXT_COLUMN),
+                        c.getString(INDEX_QUERY_HTML_COLUMN)));
+                db.delete(TABLE_NAME, DOCID + "=?", docid);
+                db.insert(TABLE_NAME, null, cv);
+                count++;
+            }
+        } finally {
+            c.close();
+        }
+        return count;
+    }
+
+    /**
+     * Called after a Message row has been inserted.
+     */
+    /*package*/ static void onMessageInserted(SQLiteDatabase db, long messageId) {
+        indexMessages(db, EmailContent.RECORD_ID + "=" + messageId, null);
+    }
+
+    /**
+     * Called after Message rows have been updated; reindexes them only if one of the indexed
+     * columns changed (flag changes, which are by far the most common updates, are ignored).
+     */
+    /*package*/ static void onMessagesUpdated(SQLiteDatabase db, ContentValues values,
+            String selection, String[] selectionArgs) {
+        if (values == null) {
+            return;
+        }
+        for (String column : INDEXED_MESSAGE_COLUMNS) {
+            if (values.containsKey(column)) {
+                indexMessages(db, selection, selectionArgs);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Called after Body rows have been inserted or updated.
+     */
+    /*package*/ static void onBodiesChanged(SQLiteDatabase db, ContentValues values,
+            String bodySelection, String[] selectionArgs) {
+        if (values == null || !(values.containsKey(BodyColumns.TEXT_CONTENT)
+                || values.containsKey(BodyColumns.HTML_CONTENT))) {
+            return;
+        }
+        Long messageKey = values.getAsLong(BodyColumns.MESSAGE_KEY);
+        if (messageKey != null) {
+            indexMessages(db, EmailContent.RECORD_ID + "=" + messageKey, null);
+        } else {
+            String where = (bodySelection == null) ? "" : (" where " + bodySelection);
+            indexMessages(db, EmailContent.RECORD_ID + " in (select " + BodyColumns.MESSAGE_KEY
+                    + " from " + Body.TABLE_NAME + where + ")", selectionArgs);
+        }
+    }
+
+    /**
+     * Called after one or more messages were deleted.
+     * @param messageId the id of the deleted message, or -1 if the deletion may have affected
+     * any number of messages
+     */
+    /*package*/ static void onMessagesDeleted(SQLiteDatabase db, long messageId) {
+        if (messageId >= 0) {
+            db.delete(TABLE_NAME, DOCID + "=" + messageId, null);
+        } else {
+            db.execSQL(DELETE_ORPHANS);
+        }
+    }
+
+    private static String join(String to, String cc, String bcc) {
+        StringBuilder sb = new StringBuilder();
+        for (String list : new String[] {to, cc, bcc}) {
+            if (list != null) {
+                if (sb.length() > 0) {
+                    sb.append(' ');
+                }
+                sb.append(list);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the text to index for a body; plain text is preferred, otherwise the tags are
+     * stripped from the html
+     */
+    @VisibleForTesting
+    static String getIndexableBody(String text, String html) {
+        if (text != null) {
+            return (text.length() > MAX_INDEXED_BODY_LENGTH)
+                    ? text.substring(0, MAX_INDEXED_BODY_LENGTH) : text;
+        }
+        if (html == null) {
+            return null;
+        }
+        return stripHtml(html, MAX_INDEXED_BODY_LENGTH);
+    }
+
+    /**
+     * A fast, approximate tag stripper; good enough to keep markup out of the index.  The
+     * contents of script and style elements are dropped, and entities become spaces.
+     */
+    @VisibleForTesting
+    static String stripHtml(String html, int maxLength) {
+        final int length = html.length();
+        StringBuilder sb = new StringBuilder(Math.min(length, maxLength));
+        int i = 0;
+        while (i < length && sb.length() < maxLength) {
+            char c = html.charAt(i);
+            if (c == '<') {
+                int end = html.indexOf('>', i);
+                if (end < 0) {
+                    break;
+                }
+                if (startsWithIgnoreCase(html, i + 1, "script")
+                        || startsWithIgnoreCase(html, i + 1, "style")) {
+                    String closing = startsWithIgnoreCase(html, i + 1, "script") ? "</script"
+                            : "</style";
+                    int close = indexOfIgnoreCase(html, closing, end);
+                    end = (close < 0) ? -1 : html.indexOf('>', close);
+                    if (end < 0) {
+                        break;
+                    }
+                }
+                sb.append(' ');
+                i = end + 1;
+            } else if (c == '&') {
+                int end = html.indexOf(';', i);
+                if (end < 0 || end - i > 8) {
+                    sb.append(c);
+                    i++;
+                } else {
+                    sb.append(' ');
+                    i = end + 1;
+                }
+            } else {
+                sb.append(c);
+                i++;
+            }
+        }
+        return sb.toString();
+    }
+
+    private static boolean startsWithIgnoreCase(String s, int offset, String prefix) {
+        return s.regionMatches(true, offset, prefix, 0, prefix.length());
+    }
+
+    private static int indexOfIgnoreCase(String s, String target, int from) {
+        for (int i = from, last = s.length() - target.length(); i <= last; i++) {
+            if (s.regionMatches(true, i, target, 0, target.length())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Converts a user's search filter into an FTS match expression: each word of the filter
+     * becomes a prefix term, and all terms must match (as for a server-side search).
+     *
+     * @return the match expression, or null if the filter has no searchable words
+     */
+    public static String buildMatchExpression(String filter) {
+        if (filter == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        final int length = filter.length();
+        int i = 0;
+        while (i < length) {
+            while (i < length && !Character.isLetterOrDigit(filter.charAt(i))) {
+                i++;
+            }
+            int start = i;
+            while (i < length && Character.isLetterOrDigit(filter.charAt(i))) {
+                i++;
+            }
+            if (i > start) {
+                if (sb.length() > 0) {
+                    sb.append(' ');
+                }
+                // Lower case, so that words like "or" aren't taken as operators
+                sb.append(filter.substring(start, i).toLowerCase()).append('*');
+            }
+        }
+        return (sb.length() == 0) ? null : sb.toString();
+    }
+}
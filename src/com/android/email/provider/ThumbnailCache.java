@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import com.android.emailcommon.Logging;
+import com.android.emailcommon.internet.MimeUtility;
+import com.android.emailcommon.provider.EmailContent.Attachment;
+import com.android.emailcommon.utility.AttachmentUtilities;
+import com.google.common.annotations.VisibleForTesting;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Persistent cache of attachment thumbnails, used by {@link AttachmentProvider}.
+ *
+ * Thumbnails are stored as PNG files in <cache-path>/thumbnails, named
+ * thmb_account#_item#_size_widthxheight, so that a thumbnail is never served for a different
+ * size request or for a different version of the attachment.  The cache survives process
+ * restarts; its total size is bounded by evicting the least recently used files, using the
+ * file modification time as the access time.
+ *
+ * Source images are decoded with a sample size, so that a large photo is never decoded at full
+ * resolution just to produce a small icon.
+ */
+public class ThumbnailCache {
+    /** Size of the attachment icons in the message view */
+    public static final int PREVIEW_ICON_WIDTH = 62;
+    public static final int PREVIEW_ICON_HEIGHT = 62;
+
+    private static final String THUMBNAIL_DIRECTORY = "thumbnails";
+    private static final String THUMBNAIL_PREFIX = "thmb_";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /** Upper bound on the total size of the cached thumbnails */
+    @VisibleForTesting
+    static final long MAX_CACHE_BYTES = 4 * 1024 * 1024;
+    /** Upper bound on the number of cached thumbnails */
+    @VisibleForTesting
+    static final int MAX_CACHE_ENTRIES = 512;
+
+    private ThumbnailCache() {
+    }
+
+    /**
+     * @return the directory in which thumbnails are kept; it's created if necessary
+     */
+    public static File getThumbnailDirectory(Context context) {
+        File dir = new File(context.getCacheDir(), THUMBNAIL_DIRECTORY);
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        return dir;
+    }
+
+    /**
+     * @return the cache file for a thumbnail of the given attachment and dimensions
+     */
+    @VisibleForTesting
+    static File getThumbnailFile(Context context, long accountId, long attachmentId,
+            long attachmentSize, int width, int height) {
+        return new File(getThumbnailDirectory(context), THUMBNAIL_PREFIX + accountId + "_"
+                + attachmentId + "_" + attachmentSize + "_" + width + "x" + height);
+    }
+
+    /**
+     * Removes temporary files left behind by a previous process.
+     */
+    public static void cleanup(Context context) {
+        File[] files = getThumbnailDirectory(context).listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Returns the thumbnail of an attachment, generating and caching it if necessary.  This may
+     * decode the whole attachment, so it must not be called on the UI thread.
+     *
+     * @return the thumbnail file, or null if the attachment doesn't exist, hasn't been
+     * downloaded, or isn't an image
+     */
+    public static File getThumbnail(Context context, long accountId, long attachmentId,
+            int width, int height) {
+        Attachment attachment = Attachment.restoreAttachmentWithId(context, attachmentId);
+        if (attachment == null || attachment.mContentUri == null) {
+            return null;
+        }
+        File file = getThumbnailFile(context, accountId, attachmentId, attachment.mSize,
+                width, height);
+        if (file.exists()) {
+            // Record the access for LRU eviction
+            file.setLastModified(System.currentTimeMillis());
+            return file;
+        }
+        String type = AttachmentUtilities.inferMimeType(attachment.mFileName,
+                attachment.mMimeType);
+        if (!MimeUtility.mimeTypeMatches(type, "image/*")) {
+            return null;
+        }
+        Bitmap thumbnail = createImageThumbnail(context.getContentResolver(),
+                Uri.parse(attachment.mContentUri), width, height);
+        if (thumbnail == null) {
+            return null;
+        }
+        try {
+            // Write to a temporary file first, so that a concurrent reader never sees a
+            // partially written thumbnail
+            File dir = file.getParentFile();
+            File temp = File.createTempFile(file.getName(), TEMP_SUFFIX, dir);
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                thumbnail.compress(Bitmap.CompressFormat.PNG, 100, out);
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                return null;
+            }
+        } catch (IOException ioe) {
+            Log.d(Logging.LOG_TAG, "getThumbnail failed with " + ioe.getMessage());
+            return null;
+        } finally {
+            thumbnail.recycle();
+        }
+        trim(file.getParentFile(), MAX_CACHE_BYTES, MAX_CACHE_ENTRIES);
+        return file;
+    }
+
+    /**
+     * Generates the preview icon thumbnail of a freshly downloaded attachment, so that the
+     * message view can read it straight from the cache.  Must not be called on the UI thread.
+     */
+    public static void prefetchPreviewIcon(Context context, long accountId, long attachmentId) {
+        getThumbnail(context, accountId, attachmentId, PREVIEW_ICON_WIDTH, PREVIEW_ICON_HEIGHT);
+    }
+
+    /**
+     * Decodes an image at the smallest power-of-two sample size that still covers the
+     * requested dimensions, and scales it to them.
+     */
+    private static Bitmap createImageThumbnail(ContentResolver resolver, Uri uri, int width,
+            int height) {
+        try {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            decodeStream(resolver, uri, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                return null;
+            }
+            options.inSampleSize =
+                computeSampleSize(options.outWidth, options.outHeight, width, height);
+            options.inJustDecodeBounds = false;
+            Bitmap bitmap = decodeStream(resolver, uri, options);
+            if (bitmap == null) {
+                return null;
+            }
+            Bitmap thumbnail = Bitmap.createScaledBitmap(bitmap, width, height, true);
+            if (thumbnail != bitmap) {
+                bitmap.recycle();
+            }
+            return thumbnail;
+        } catch (OutOfMemoryError oome) {
+            Log.d(Logging.LOG_TAG, "createImageThumbnail failed with " + oome.getMessage());
+            return null;
+        } catch (Exception e) {
+            Log.d(Logging.LOG_TAG, "createImageThumbnail failed with " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static Bitmap decodeStream(ContentResolver resolver, Uri uri,
+            BitmapFactory.Options options) throws IOException {
+        InputStream in = resolver.openInputStream(uri);
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return the largest power of two by which an image of srcWidth x srcHeight can be
+     * subsampled while still being at least dstWidth x dstHeight
+     */
+    @VisibleForTesting
+    static int computeSampleSize(int srcWidth, int srcHeight, int dstWidth, int dstHeight) {
+        int sampleSize = 1;
+        while ((srcWidth / (sampleSize * 2)) >= dstWidth
+                && (srcHeight / (sampleSize * 2)) >= dstHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Deletes the least recently used thumbnails in a directory until it holds at most maxBytes
+     * in at most maxEntries files.
+     */
+    @VisibleForTesting
+    static void trim(File dir, long maxBytes, int maxEntries) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        // The times are read once, as getThumbnail() may touch the files while they're sorted
+        final HashMap<File, Long> lastModified = new HashMap<File, Long>();
+        ArrayList<File> thumbnails = new ArrayList<File>();
+        long totalBytes = 0;
+        for (File file : files) {
+            if (file.getName().startsWith(THUMBNAIL_PREFIX)
+                    && !file.getName().endsWith(TEMP_SUFFIX)) {
+                totalBytes += file.length();
+                lastModified.put(file, file.lastModified());
+                thumbnails.add(file);
+            }
+        }
+        int count = thumbnails.size();
+        if (totalBytes <= maxBytes && count <= maxEntries) {
+            return;
+        }
+        // Least recently used first
+        Collections.sort(thumbnails, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lastModified.get(lhs);
+                long r = lastModified.get(rhs);
+                return (l < r) ? -1 : ((l == r) ? 0 : 1);
+            }
+        });
+        for (File file : thumbnails) {
+            if (totalBytes <= maxBytes && count <= maxEntries) {
+                break;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                totalBytes -= length;
+                count--;
+            }
+        }
+    }
+}
@@ -83,12 +83,17 @@ public class WidgetProvider extends AppWidgetProvider {
             final ComponentName component = new ComponentName(context, WidgetProvider.class);
             final int[] widgetIds = appWidgetManager.getAppWidgetIds(component);
 
-            // Ideally, this would only call notify AppWidgetViewDataChanged for the widgets, where
-            // the account had the change, but the current intent doesn't include this information.
-
-            // Calling notifyAppWidgetViewDataChanged will cause onDataSetChanged() to be called
-            // on the RemoteViewsService.RemoteViewsFactory, starting the service if necessary.
-            appWidgetManager.notifyAppWidgetViewDataChanged(widgetIds, R.id.message_list);
+            // The widgets that are already running watch the messages themselves, and only redraw
+            // when a change affects them; redrawing them here would redraw every row every time.
+            final WidgetManager widgetManager = WidgetManager.getInstance();
+            for (int widgetId : widgetIds) {
+                if (!widgetManager.hasWidget(widgetId)) {
+                    // Calling notifyAppWidgetViewDataChanged will cause onDataSetChanged() to be
+                    // called on the RemoteViewsService.RemoteViewsFactory, starting the service
+                    // if necessary.
+                    appWidgetManager.notifyAppWidgetViewDataChanged(widgetId, R.id.message_list);
+                }
+            }
         }
     }
 
@@ -37,6 +37,8 @@ import com.android.email.Controller.ControllerService;
 import com.android.email.Email;
 import com.android.email.EmailConnectivityManager;
 import com.android.email.NotificationController;
+import com.android.email.provider.ThumbnailCache;
+import com.android.emailcommon.internet.PartialFileBody;
 import com.android.emailcommon.provider.Account;
 import com.android.emailcommon.provider.EmailContent;
 import com.android.emailcommon.provider.EmailContent.Attachment;
@@ -45,6 +47,7 @@ import com.android.emailcommon.service.EmailServiceProxy;
 import com.android.emailcommon.service.EmailServiceStatus;
 import com.android.emailcommon.service.IEmailServiceCallback;
 import com.android.emailcommon.utility.AttachmentUtilities;
+import com.android.emailcommon.utility.EmailAsyncTask;
 import com.android.emailcommon.utility.Utility;
 
 import java.io.File;
@@ -52,6 +55,7 @@ import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
@@ -67,6 +71,8 @@ public class AttachmentDownloadService extends Service implements Runnable {
     private static final int CALLBACK_TIMEOUT = 30 * ((int)DateUtils.SECOND_IN_MILLIS);
     // Try to download an attachment in the background this many times before giving up
     private static final int MAX_DOWNLOAD_RETRIES = 5;
+    // Partly downloaded attachments that haven't been resumed for this long are deleted
+    private static final long MAX_PARTIAL_DOWNLOAD_AGE = 7 * DateUtils.DAY_IN_MILLIS;
     private static final int PRIORITY_NONE = -1;
     @SuppressWarnings("unused")
     // Low priority will be used for opportunistic downloads
@@ -81,13 +87,26 @@ public class AttachmentDownloadService extends Service implements Runnable {
     // Maximum prefetch storage (also 25% of total memory)
     private static final float PREFETCH_MAXIMUM_ATTACHMENT_STORAGE = 0.25F;
 
-    // We can try various values here; I think 2 is completely reasonable as a first pass
-    private static final int MAX_SIMULTANEOUS_DOWNLOADS = 2;
+    // Limits on the number of simultaneous downloads, by type of network; one of these is always
+    // left for user requests.  See getMaxSimultaneousDownloads()
+    private static final int MAX_SIMULTANEOUS_DOWNLOADS_WIFI = 4;
+    private static final int MAX_SIMULTANEOUS_DOWNLOADS_MOBILE = 2;
     // Limit on the number of simultaneous downloads per account
     // Note that a limit of 1 is currently enforced by both Services (MailService and Controller)
     private static final int MAX_SIMULTANEOUS_DOWNLOADS_PER_ACCOUNT = 1;
-    // Limit on the number of attachments we'll check for background download
-    private static final int MAX_ATTACHMENTS_TO_CHECK = 25;
+    // When downloads are this slow (bytes per second), running more of them at once only splits
+    // the bandwidth, so we run just one background download at a time
+    private static final long SLOW_DOWNLOAD_THROUGHPUT = 16 * 1024;
+    // Downloads smaller than this are dominated by latency, so they don't tell us the throughput
+    private static final long MIN_MEASURED_DOWNLOAD_SIZE = 32 * 1024;
+    // The number of attachments we check for background download per query, and in all
+    private static final int ATTACHMENTS_TO_CHECK_PER_QUERY = 25;
+    private static final int MAX_ATTACHMENTS_TO_CHECK = 500;
+
+    // A page of attachments to check for background download; the argument is the lowest
+    // attachment id of the previous page
+    private static final String PRECACHE_PAGE_SELECTION =
+        Attachment.PRECACHE_INBOX_SELECTION + " AND " + Attachment.RECORD_ID + "<?";
 
     private static final String EXTRA_ATTACHMENT =
         "com.android.email.AttachmentDownloadService.attachment";
@@ -102,11 +121,6 @@ public class AttachmentDownloadService extends Service implements Runnable {
     /*package*/ final DownloadSet mDownloadSet = new DownloadSet(new DownloadComparator());
 
     private final HashMap<Long, Intent> mAccountServiceMap = new HashMap<Long, Intent>();
-    // A map of attachment storage used per account
-    // NOTE: This map is not kept current in terms of deletions (i.e. it stores the last calculated
-    // amount plus the size of any new attachments laoded).  If and when we reach the per-account
-    // limit, we recalculate the actual usage
-    /*package*/ final HashMap<Long, Long> mAttachmentStorageMap = new HashMap<Long, Long>();
     // A map of attachment ids to the number of failed attempts to download the attachment
     // NOTE: We do not want to persist this. This allows us to retry background downloading
     // if any transient network errors are fixed & and the app is restarted
@@ -246,6 +260,16 @@ public class AttachmentDownloadService extends Service implements Runnable {
         /*package*/ final ConcurrentHashMap<Long, DownloadRequest> mDownloadsInProgress =
             new ConcurrentHashMap<Long, DownloadRequest>();
 
+        /**
+         * The throughput of recent downloads, in bytes per second (0 if not yet measured)
+         */
+        /*package*/ long mDownloadThroughput = 0;
+
+        /**
+         * Background downloads that were preempted by user requests, but are still running
+         */
+        private final HashSet<Long> mPreemptedDownloads = new HashSet<Long>();
+
         /**
          * onChange is called by the AttachmentReceiver upon receipt of a valid notification from
          * EmailProvider that an attachment has been inserted or modified.  It's not strictly
@@ -310,83 +334,178 @@ public class AttachmentDownloadService extends Service implements Runnable {
 
         /**
          * Run through the AttachmentMap and find DownloadRequests that can be executed, enforcing
-         * the limit on maximum downloads
+         * the limit on maximum downloads; then fill any remaining slots with background downloads
          */
         /*package*/ synchronized void processQueue() {
             if (Email.DEBUG) {
                 Log.d(TAG, "== Checking attachment queue, " + mDownloadSet.size() + " entries");
             }
 
+            EmailConnectivityManager ecm = mConnectivityManager;
+            int networkType = (ecm != null) ? ecm.getActiveNetworkType()
+                    : EmailConnectivityManager.NO_ACTIVE_NETWORK;
+            int maxDownloads = getMaxSimultaneousDownloads(networkType);
+
             Iterator<DownloadRequest> iterator = mDownloadSet.descendingIterator();
             // First, start up any required downloads, in priority order
-            while (iterator.hasNext() &&
-                    (mDownloadsInProgress.size() < MAX_SIMULTANEOUS_DOWNLOADS)) {
+            while (iterator.hasNext()) {
                 DownloadRequest req = iterator.next();
-                 // Enforce per-account limit here
-                if (downloadsForAccount(req.accountId) >= MAX_SIMULTANEOUS_DOWNLOADS_PER_ACCOUNT) {
-                    if (Email.DEBUG) {
-                        Log.d(TAG, "== Skip #" + req.attachmentId + "; maxed for acct #" +
-                                req.accountId);
+                if (req.inProgress) continue;
+                boolean accountFull =
+                    downloadsForAccount(req.accountId) >= MAX_SIMULTANEOUS_DOWNLOADS_PER_ACCOUNT;
+                if (accountFull || mDownloadsInProgress.size() >= maxDownloads) {
+                    // The user shouldn't have to wait for background downloads
+                    if (req.priority != PRIORITY_FOREGROUND ||
+                            !preemptBackgroundDownload(accountFull ? req.accountId : -1)) {
+                        if (Email.DEBUG) {
+                            Log.d(TAG, "== Skip #" + req.attachmentId + "; maxed for acct #" +
+                                    req.accountId);
+                        }
+                        continue;
                     }
-                    continue;
-                }
-
-                if (!req.inProgress) {
-                    mDownloadSet.tryStartDownload(req);
                 }
+                mDownloadSet.tryStartDownload(req);
             }
 
             // Don't prefetch if background downloading is disallowed
-            EmailConnectivityManager ecm = mConnectivityManager;
             if (ecm == null) return;
             if (!ecm.isAutoSyncAllowed()) return;
             // Don't prefetch unless we're on a WiFi network
-            if (ecm.getActiveNetworkType() != ConnectivityManager.TYPE_WIFI) {
+            if (networkType != ConnectivityManager.TYPE_WIFI) {
                 return;
             }
-            // Then, try opportunistic download of appropriate attachments
-            int backgroundDownloads = MAX_SIMULTANEOUS_DOWNLOADS - mDownloadsInProgress.size();
-            // Always leave one slot for user requested download
-            if (backgroundDownloads > (MAX_SIMULTANEOUS_DOWNLOADS - 1)) {
-                // We'll load up the newest 25 attachments that aren't loaded or queued
+            // Then, try opportunistic download of appropriate attachments, filling every slot but
+            // the one we always leave for a user request
+            int backgroundDownloads = getMaxBackgroundDownloads(networkType) -
+                    mDownloadsInProgress.size();
+            if (backgroundDownloads <= 0) return;
+
+            // Accounts we've already looked at, and whether we can prefetch for them
+            HashMap<Long, Boolean> accountsChecked = new HashMap<Long, Boolean>();
+            File cacheDir = mContext.getCacheDir();
+            // Page through the attachments that aren't loaded or queued, newest first
+            long lastId = Long.MAX_VALUE;
+            int checked = 0;
+            while (backgroundDownloads > 0 && checked < MAX_ATTACHMENTS_TO_CHECK) {
                 Uri lookupUri = EmailContent.uriWithLimit(Attachment.CONTENT_URI,
-                        MAX_ATTACHMENTS_TO_CHECK);
+                        ATTACHMENTS_TO_CHECK_PER_QUERY);
                 Cursor c = mContext.getContentResolver().query(lookupUri, AttachmentInfo.PROJECTION,
-                        EmailContent.Attachment.PRECACHE_INBOX_SELECTION,
-                        null, Attachment.RECORD_ID + " DESC");
-                File cacheDir = mContext.getCacheDir();
+                        PRECACHE_PAGE_SELECTION, new String[] {Long.toString(lastId)},
+                        Attachment.RECORD_ID + " DESC");
+                if (c == null) return;
+                int count = 0;
                 try {
-                    while (c.moveToNext()) {
+                    while (backgroundDownloads > 0 && c.moveToNext()) {
+                        count++;
                         long accountKey = c.getLong(AttachmentInfo.COLUMN_ACCOUNT_KEY);
                         long id = c.getLong(AttachmentInfo.COLUMN_ID);
-                        Account account = Account.restoreAccountWithId(mContext, accountKey);
-                        if (account == null) {
-                            // Clean up this orphaned attachment; there's no point in keeping it
-                            // around; then try to find another one
-                            EmailContent.delete(mContext, Attachment.CONTENT_URI, id);
-                        } else if (canPrefetchForAccount(account, cacheDir)) {
-                            // Check that the attachment meets system requirements for download
-                            AttachmentInfo info = new AttachmentInfo(mContext, c);
-                            if (info.isEligibleForDownload()) {
-                                Attachment att = Attachment.restoreAttachmentWithId(mContext, id);
-                                if (att != null) {
-                                    Integer tryCount;
-                                    tryCount = mAttachmentFailureMap.get(att.mId);
-                                    if (tryCount != null && tryCount > MAX_DOWNLOAD_RETRIES) {
-                                        // move onto the next attachment
-                                        continue;
-                                    }
-                                    // Start this download and we're done
-                                    DownloadRequest req = new DownloadRequest(mContext, att);
-                                    mDownloadSet.tryStartDownload(req);
-                                    break;
-                                }
+                        lastId = id;
+                        // Skip attachments that are already being downloaded, and accounts that
+                        // are already busy
+                        if (mDownloadsInProgress.containsKey(id) ||
+                                mPreemptedDownloads.contains(id) ||
+                                downloadsForAccount(accountKey) >=
+                                    MAX_SIMULTANEOUS_DOWNLOADS_PER_ACCOUNT) {
+                            continue;
+                        }
+                        Boolean canPrefetch = accountsChecked.get(accountKey);
+                        if (canPrefetch == null) {
+                            Account account = Account.restoreAccountWithId(mContext, accountKey);
+                            if (account == null) {
+                                // Clean up this orphaned attachment; there's no point in keeping
+                                // it around; then try to find another one
+                                EmailContent.delete(mContext, Attachment.CONTENT_URI, id);
+                                continue;
+                            }
+                            canPrefetch = canPrefetchForAccount(account, cacheDir);
+                            accountsChecked.put(accountKey, canPrefetch);
+                        }
+                        if (!canPrefetch) continue;
+                        // Check that the attachment meets system requirements for download
+                        AttachmentInfo info = new AttachmentInfo(mContext, c);
+                        if (!info.isEligibleForDownload()) continue;
+                        Integer tryCount = mAttachmentFailureMap.get(id);
+                        if (tryCount != null && tryCount > MAX_DOWNLOAD_RETRIES) {
+                            // move onto the next attachment
+                            continue;
+                        }
+                        Attachment att = Attachment.restoreAttachmentWithId(mContext, id);
+                        if (att != null) {
+                            DownloadRequest req = new DownloadRequest(mContext, att);
+                            if (mDownloadSet.tryStartDownload(req)) {
+                                backgroundDownloads--;
                             }
                         }
                     }
                 } finally {
                     c.close();
                 }
+                if (count < ATTACHMENTS_TO_CHECK_PER_QUERY) break;
+                checked += count;
+            }
+        }
+
+        /**
+         * Make room for a user request by no longer counting a background download against our
+         * limits.  The download itself can't be stopped, but the service that runs it queues the
+         * user's request ahead of any other background work.
+         *
+         * @param accountId the account that needs room, or -1 for any account
+         * @return whether a background download was preempted
+         */
+        private boolean preemptBackgroundDownload(long accountId) {
+            for (DownloadRequest req: mDownloadsInProgress.values()) {
+                if (req.priority < PRIORITY_SEND_MAIL &&
+                        (accountId == -1 || req.accountId == accountId)) {
+                    if (Email.DEBUG) {
+                        Log.d(TAG, "== Preempting background download of " + req.attachmentId);
+                    }
+                    cancelDownload(req);
+                    mPreemptedDownloads.add(req.attachmentId);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return the number of downloads to run at once on the given type of network
+         */
+        /*package*/ int getMaxSimultaneousDownloads(int networkType) {
+            switch (networkType) {
+                case ConnectivityManager.TYPE_WIFI:
+                case ConnectivityManager.TYPE_ETHERNET:
+                    return MAX_SIMULTANEOUS_DOWNLOADS_WIFI;
+                default:
+                    return MAX_SIMULTANEOUS_DOWNLOADS_MOBILE;
+            }
+        }
+
+        /**
+         * @return the number of background downloads to run at once on the given type of network,
+         * which depends on how fast recent downloads have been
+         */
+        /*package*/ int getMaxBackgroundDownloads(int networkType) {
+            // Always leave one slot for user requested download
+            int max = getMaxSimultaneousDownloads(networkType) - 1;
+            if (mDownloadThroughput > 0 && mDownloadThroughput < SLOW_DOWNLOAD_THROUGHPUT) {
+                max = Math.min(max, 1);
+            }
+            return max;
+        }
+
+        /**
+         * Update our (smoothed) estimate of the throughput of a single download
+         * @param bytes the size of a completed download
+         * @param millis how long the download took
+         */
+        /*package*/ synchronized void recordDownloadThroughput(long bytes, long millis) {
+            if (bytes < MIN_MEASURED_DOWNLOAD_SIZE || millis <= 0) return;
+            long throughput = bytes * DateUtils.SECOND_IN_MILLIS / millis;
+            if (mDownloadThroughput == 0) {
+                mDownloadThroughput = throughput;
+            } else {
+                mDownloadThroughput = (mDownloadThroughput * 3 + throughput) / 4;
             }
         }
 
@@ -511,9 +630,10 @@ public class AttachmentDownloadService extends Service implements Runnable {
          * @param attachmentId the id of the attachment whose download is finished
          * @param statusCode the EmailServiceStatus code returned by the Service
          */
-        /*package*/ synchronized void endDownload(long attachmentId, int statusCode) {
+        /*package*/ synchronized void endDownload(final long attachmentId, int statusCode) {
             // Say we're no longer downloading this
-            mDownloadsInProgress.remove(attachmentId);
+            DownloadRequest inProgressReq = mDownloadsInProgress.remove(attachmentId);
+            mPreemptedDownloads.remove(attachmentId);
 
             // TODO: This code is conservative and treats connection issues as failures.
             // Since we have no mechanism to throttle reconnection attempts, it makes
@@ -562,13 +682,22 @@ public class AttachmentDownloadService extends Service implements Runnable {
 
             Attachment attachment = Attachment.restoreAttachmentWithId(mContext, attachmentId);
             if (attachment != null) {
-                long accountId = attachment.mAccountKey;
-                // Update our attachment storage for this account
-                Long currentStorage = mAttachmentStorageMap.get(accountId);
-                if (currentStorage == null) {
-                    currentStorage = 0L;
+                final long accountId = attachment.mAccountKey;
+                if (statusCode == EmailServiceStatus.SUCCESS && inProgressReq != null) {
+                    recordDownloadThroughput(attachment.mSize,
+                            System.currentTimeMillis() - inProgressReq.startTime);
+                }
+                if (statusCode == EmailServiceStatus.SUCCESS
+                        && (attachment.mFlags & Attachment.FLAG_DOWNLOAD_FORWARD) == 0) {
+                    // Generate the preview icon now, so the message view needn't decode the
+                    // image itself; non-image attachments are ignored by the cache
+                    EmailAsyncTask.runAsyncParallel(new Runnable() {
+                        @Override
+                        public void run() {
+                            ThumbnailCache.prefetchPreviewIcon(mContext, accountId, attachmentId);
+                        }
+                    });
                 }
-                mAttachmentStorageMap.put(accountId, currentStorage + attachment.mSize);
                 boolean deleted = false;
                 if ((attachment.mFlags & Attachment.FLAG_DOWNLOAD_FORWARD) != 0) {
                     if (statusCode == EmailServiceStatus.ATTACHMENT_NOT_FOUND) {
@@ -841,22 +970,8 @@ public class AttachmentDownloadService extends Service implements Runnable {
         long perAccountMaxStorage =
             (long)(totalStorage * PREFETCH_MAXIMUM_ATTACHMENT_STORAGE / numberOfAccounts);
 
-        // Retrieve our idea of currently used attachment storage; since we don't track deletions,
-        // this number is the "worst case".  If the number is greater than what's allowed per
-        // account, we walk the directory to determine the actual number
-        Long accountStorage = mAttachmentStorageMap.get(account.mId);
-        if (accountStorage == null || (accountStorage > perAccountMaxStorage)) {
-            // Calculate the exact figure for attachment storage for this account
-            accountStorage = 0L;
-            File[] files = dir.listFiles();
-            if (files != null) {
-                for (File file : files) {
-                    accountStorage += file.length();
-                }
-            }
-            // Cache the value
-            mAttachmentStorageMap.put(account.mId, accountStorage);
-        }
+        // The provider keeps track of the attachment storage used by each account
+        long accountStorage = Account.getAttachmentStorage(mContext, account.mId);
 
         // Return true if we're using less than the maximum per account
         if (accountStorage < perAccountMaxStorage) {
@@ -938,6 +1053,16 @@ public class AttachmentDownloadService extends Service implements Runnable {
 
     @Override
     public void onCreate() {
+        // Partial downloads that nobody has tried to finish in a while are probably of
+        // attachments that are no longer wanted (or no longer exist).  Clearing them out
+        // needn't hold up the download queue.
+        EmailAsyncTask.runAsyncParallel(new Runnable() {
+            @Override
+            public void run() {
+                PartialFileBody.deleteStale(AttachmentUtilities.getPartialDownloadDirectory(
+                        AttachmentDownloadService.this), MAX_PARTIAL_DOWNLOAD_AGE);
+            }
+        });
         // Start up our service thread
         new Thread(this, "AttachmentDownloadService").start();
     }
@@ -53,7 +53,7 @@ import com.android.emailcommon.provider.EmailContent.Message;
 import com.android.emailcommon.provider.Mailbox;
 import com.android.emailcommon.utility.EmailAsyncTask;
 
-import java.util.List;
+import java.util.HashMap;
 
 /**
  * The email widget.
@@ -91,9 +91,6 @@ public class EmailWidget implements RemoteViewsService.RemoteViewsFactory,
     private static final Uri COMMAND_URI_VIEW_MESSAGE =
             COMMAND_URI.buildUpon().appendPath(COMMAND_NAME_VIEW_MESSAGE).build();
 
-    // TODO Can this be moved to the loader and made a database 'LIMIT'?
-    private static final int MAX_MESSAGE_LIST_COUNT = 25;
-
     private static String sSubjectSnippetDivider;
     private static int sSenderFontSize;
     private static int sSubjectFontSize;
@@ -127,6 +124,22 @@ public class EmailWidget implements RemoteViewsService.RemoteViewsFactory,
      */
     private EmailWidgetLoader.WidgetCursor mCursor;
 
+    /**
+     * The views of the rows that haven't changed since they were created, by message ID.  Only
+     * the rows that aren't in here have to be created again when the list is redrawn.
+     */
+    private HashMap<Long, RemoteViews> mRowViews = new HashMap<Long, RemoteViews>();
+
+    /**
+     * The relative dates shown by the views in {@link #mRowViews}, by message ID.  A view whose
+     * date would now read differently (e.g. "5 mins ago" has become "6 mins ago") is created
+     * again, rather than reused.
+     */
+    private HashMap<Long, String> mRowDates = new HashMap<Long, String>();
+
+    /** Whether the whole widget has to be redrawn with the next data that's loaded */
+    private boolean mRedrawNeeded = true;
+
     public EmailWidget(Context context, int _widgetId) {
         super();
         if (Email.DEBUG) {
@@ -174,6 +187,9 @@ public class EmailWidget implements RemoteViewsService.RemoteViewsFactory,
      */
     public void reset() {
         mLoader.reset();
+        synchronized (sWidgetLock) {
+            mRedrawNeeded = true;
+        }
         start();
     }
 
@@ -182,18 +198,58 @@ public class EmailWidget implements RemoteViewsService.RemoteViewsFactory,
     }
 
     /**
-     * Called when the loader finished loading data.  Update the widget.
+     * Called when the loader finished loading data.  Update the parts of the widget that changed.
      */
     @Override
     public void onLoadComplete(Loader<Cursor> loader, Cursor cursor) {
+        final boolean headerChanged;
+        final boolean rowsChanged;
         // Save away the cursor
         synchronized (sWidgetLock) {
+            final EmailWidgetLoader.WidgetCursor previous = mRedrawNeeded ? null : mCursor;
             mCursor = (EmailWidgetLoader.WidgetCursor) cursor;
             mAccountName = mCursor.getAccountName();
             mMailboxName = mCursor.getMailboxName();
+            mRedrawNeeded = false;
+            headerChanged = (previous == null) || !mCursor.hasSameHeader(previous);
+            rowsChanged = (previous == null) || !mCursor.hasSameRows(previous);
+            if (rowsChanged) {
+                retainUnchangedRowViews(previous);
+            }
+        }
+        if (headerChanged) {
+            updateHeader();
+        }
+        if (rowsChanged) {
+            mWidgetManager.notifyAppWidgetViewDataChanged(mWidgetId, R.id.message_list);
         }
-        updateHeader();
-        mWidgetManager.notifyAppWidgetViewDataChanged(mWidgetId, R.id.message_list);
+    }
+
+    /**
+     * Drop the views of the rows that are new or have changed since the previous cursor, so
+     * that only those are created again.  Must be called with sWidgetLock held.
+     */
+    private void retainUnchangedRowViews(EmailWidgetLoader.WidgetCursor previous) {
+        final HashMap<Long, RemoteViews> rowViews = new HashMap<Long, RemoteViews>();
+        final HashMap<Long, String> rowDates = new HashMap<Long, String>();
+        if (previous != null) {
+            final HashMap<Long, Integer> previousPositions = new HashMap<Long, Integer>();
+            for (int i = 0, count = previous.getCount(); i < count; i++) {
+                previousPositions.put(previous.getMessageId(i), i);
+            }
+            for (int i = 0, count = mCursor.getCount(); i < count; i++) {
+                final long messageId = mCursor.getMessageId(i);
+                final RemoteViews views = mRowViews.get(messageId);
+                final Integer previousPosition = previousPositions.get(messageId);
+                if (views != null && previousPosition != null
+                        && mCursor.isSameRow(i, previous, previousPosition)) {
+                    rowViews.put(messageId, views);
+                    rowDates.put(messageId, mRowDates.get(messageId));
+                }
+            }
+        }
+        mRowViews = rowViews;
+        mRowDates = rowDates;
     }
 
     /**
@@ -382,7 +438,15 @@ public class EmailWidget implements RemoteViewsService.RemoteViewsFactory,
             if (!isCursorValid() || !mCursor.moveToPosition(position)) {
                 return getLoadingView();
             }
-            RemoteViews views = new RemoteViews(mContext.getPackageName(),
+            final long id = mCursor.getLong(EmailWidgetLoader.WIDGET_COLUMN_ID);
+            long timestamp = mCursor.getLong(EmailWidgetLoader.WIDGET_COLUMN_TIMESTAMP);
+            // Get a nicely formatted date string (relative to today)
+            String date = DateUtils.getRelativeTimeSpanString(mContext, timestamp).toString();
+            RemoteViews views = mRowViews.get(id);
+            if (views != null && date.equals(mRowDates.get(id))) {
+                return views;
+            }
+            views = new RemoteViews(mContext.getPackageName(),
                     R.layout.widget_list_item);
             boolean isUnread = mCursor.getInt(EmailWidgetLoader.WIDGET_COLUMN_FLAG_READ) != 1;
             int drawableId = R.drawable.conversation_read_selector;
@@ -400,9 +464,6 @@ public class EmailWidget implements RemoteViewsService.RemoteViewsFactory,
             CharSequence styledFrom = addStyle(from, sSenderFontSize, sDefaultTextColor);
             views.setTextViewText(R.id.widget_from, styledFrom);
             views.setContentDescription(R.id.widget_from, rawSender);
-            long timestamp = mCursor.getLong(EmailWidgetLoader.WIDGET_COLUMN_TIMESTAMP);
-            // Get a nicely formatted date string (relative to today)
-            String date = DateUtils.getRelativeTimeSpanString(mContext, timestamp).toString();
             // Add style to date
             CharSequence styledDate = addStyle(date, sDateFontSize, sDefaultTextColor);
             views.setTextViewText(R.id.widget_date, styledDate);
@@ -446,6 +507,8 @@ public class EmailWidget implements RemoteViewsService.RemoteViewsFactory,
             setFillInIntent(views, R.id.widget_message, COMMAND_URI_VIEW_MESSAGE, messageId,
                     mailboxId);
 
+            mRowViews.put(id, views);
+            mRowDates.put(id, date);
             return views;
         }
     }
@@ -455,13 +518,18 @@ public class EmailWidget implements RemoteViewsService.RemoteViewsFactory,
         if (!isCursorValid())
             return 0;
         synchronized (sWidgetLock) {
-            return Math.min(mCursor.getCount(), MAX_MESSAGE_LIST_COUNT);
+            return Math.min(mCursor.getCount(), EmailWidgetLoader.MAX_MESSAGE_LIST_COUNT);
         }
     }
 
     @Override
     public long getItemId(int position) {
-        return position;
+        synchronized (sWidgetLock) {
+            if (!isCursorValid() || position >= mCursor.getCount()) {
+                return position;
+            }
+            return mCursor.getMessageId(position);
+        }
     }
 
     @Override
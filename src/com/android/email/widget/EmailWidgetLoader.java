@@ -24,10 +24,20 @@ import com.android.emailcommon.provider.EmailContent.Message;
 import com.android.emailcommon.provider.EmailContent.MessageColumns;
 import com.android.emailcommon.provider.Mailbox;
 
+import android.content.ContentUris;
 import android.content.Context;
 import android.content.res.Resources;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.CursorWrapper;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 
 /**
  * Loader for {@link EmailWidget}.
@@ -37,10 +47,21 @@ import android.database.CursorWrapper;
  * - The message count shown in the widget header.
  *   It's currently just the same as the message count, but this will be updated to the unread
  *   counts for inboxes.
+ *
+ * The messages are copied into a snapshot (see {@link WidgetCursor}), which the widget compares
+ * with the previous one to see which rows need to be rendered again.  The loader watches the
+ * message notification URIs itself, so that it knows which messages changed; if none of them
+ * can affect what the widget shows, the previous snapshot is reused without running the query.
  */
 class EmailWidgetLoader extends ThrottlingCursorLoader {
     private static final String SORT_TIMESTAMP_DESCENDING = MessageColumns.TIMESTAMP + " DESC";
 
+    /** The most messages the widget shows */
+    static final int MAX_MESSAGE_LIST_COUNT = 25;
+
+    /** If more messages than this change at once, we simply reload */
+    private static final int MAX_CHANGED_MESSAGES = 100;
+
     // The projection to be used by the WidgetLoader
     private static final String[] WIDGET_PROJECTION = new String[] {
             EmailContent.RECORD_ID, MessageColumns.DISPLAY_NAME, MessageColumns.TIMESTAMP,
@@ -64,23 +85,41 @@ class EmailWidgetLoader extends ThrottlingCursorLoader {
     private long mMailboxId;
 
     /**
-     * Cursor data specifically for use by the Email widget. Contains a cursor of messages in
-     * addition to a message count and account name. The later elements were opportunistically
+     * Cursor data specifically for use by the Email widget. Contains a snapshot of the messages
+     * in addition to a message count and account name. The later elements were opportunistically
      * placed in this cursor. We could have defined multiple loaders for these items.
+     *
+     * The snapshot belongs to the cursor, so it can still be compared with another one after
+     * the cursor has been closed.
      */
     static class WidgetCursor extends CursorWrapper {
+        private final ArrayList<Object[]> mRows;
         private final int mMessageCount;
         private final String mAccountName;
         private final String mMailboxName;
 
-        public WidgetCursor(Cursor cursor, int messageCount, String accountName,
+        public WidgetCursor(ArrayList<Object[]> rows, int messageCount, String accountName,
                 String mailboxName) {
-            super(cursor);
+            super(createCursor(rows));
+            mRows = rows;
             mMessageCount = messageCount;
             mAccountName = accountName;
             mMailboxName = mailboxName;
         }
 
+        private static Cursor createCursor(ArrayList<Object[]> rows) {
+            MatrixCursor cursor = new MatrixCursor(WIDGET_PROJECTION, rows.size());
+            for (Object[] row : rows) {
+                cursor.addRow(row);
+            }
+            return cursor;
+        }
+
+        /** @return a new cursor over the same data */
+        WidgetCursor copy() {
+            return new WidgetCursor(mRows, mMessageCount, mAccountName, mMailboxName);
+        }
+
         /**
          * Gets the count to be shown on the widget header. If the currently viewed mailbox ID is
          * not {@link Mailbox#QUERY_ALL_FAVORITES}, it is the unread count, which is different from
@@ -97,22 +136,168 @@ class EmailWidgetLoader extends ThrottlingCursorLoader {
         public String getMailboxName() {
             return mMailboxName;
         }
+
+        /** Gets the id of the message at the given position */
+        long getMessageId(int position) {
+            return (Long) mRows.get(position)[WIDGET_COLUMN_ID];
+        }
+
+        /** @return whether the message at the given position has the same values in both */
+        boolean isSameRow(int position, WidgetCursor other, int otherPosition) {
+            return Arrays.equals(mRows.get(position), other.mRows.get(otherPosition));
+        }
+
+        /** @return whether the header shows the same information for both */
+        boolean hasSameHeader(WidgetCursor other) {
+            return mMessageCount == other.mMessageCount
+                    && TextUtils.equals(mAccountName, other.mAccountName)
+                    && TextUtils.equals(mMailboxName, other.mMailboxName);
+        }
+
+        /** @return whether both contain the same messages, with the same values */
+        boolean hasSameRows(WidgetCursor other) {
+            if (mRows.size() != other.mRows.size()) {
+                return false;
+            }
+            for (int i = 0; i < mRows.size(); i++) {
+                if (!isSameRow(i, other, i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
     }
 
     private final Context mContext;
 
+    /** The result of the last full load; null if there's none, or it can't be reused */
+    private volatile WidgetCursor mLastResult;
+    /** The messages that have changed since the last load */
+    private final HashSet<Long> mChangedMessageIds = new HashSet<Long>();
+    /** Whether a change since the last load couldn't be tied to particular messages */
+    private boolean mUnknownChange = true;
+    /** How many times the loader was reset; a load started before a reset can't be reused */
+    private int mResetCount;
+    private ContentObserver mMessageObserver;
+
     EmailWidgetLoader(Context context) {
         super(context, Message.CONTENT_URI, WIDGET_PROJECTION, null,
                 null, SORT_TIMESTAMP_DESCENDING);
         mContext = context;
     }
 
+    /**
+     * Watches the messages, noting which ones changed.  (A cursor's own observer isn't told.)
+     */
+    private class MessageObserver extends ContentObserver {
+        MessageObserver() {
+            super(new Handler());
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            // Older platforms don't tell us which URI changed
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            long messageId = -1;
+            if (uri != null) {
+                try {
+                    messageId = ContentUris.parseId(uri);
+                } catch (NumberFormatException e) {
+                    // e.g. an update of many messages at once
+                }
+            }
+            synchronized (mChangedMessageIds) {
+                if (messageId > 0 && mChangedMessageIds.size() < MAX_CHANGED_MESSAGES) {
+                    mChangedMessageIds.add(messageId);
+                } else {
+                    mUnknownChange = true;
+                }
+            }
+            onContentChanged();
+        }
+    }
+
     @Override
-    public Cursor loadInBackground() {
-        final Cursor messagesCursor = super.loadInBackground();
+    protected void onStartLoading() {
+        if (mMessageObserver == null) {
+            mMessageObserver = new MessageObserver();
+            mContext.getContentResolver().registerContentObserver(
+                    Message.NOTIFIER_URI, true, mMessageObserver);
+        }
+        super.onStartLoading();
+    }
 
-        // Reset the notification Uri to our Message table notifier URI
-        messagesCursor.setNotificationUri(mContext.getContentResolver(), Message.NOTIFIER_URI);
+    @Override
+    protected void onReset() {
+        super.onReset();
+        if (mMessageObserver != null) {
+            mContext.getContentResolver().unregisterContentObserver(mMessageObserver);
+            mMessageObserver = null;
+        }
+        synchronized (mChangedMessageIds) {
+            mLastResult = null;
+            mResetCount++;
+            mChangedMessageIds.clear();
+            mUnknownChange = true;
+        }
+    }
+
+    /**
+     * @return the ids of the messages that changed since the last load, or null if we can't
+     * tell which ones did
+     */
+    private long[] takeChangedMessageIds() {
+        synchronized (mChangedMessageIds) {
+            long[] ids = null;
+            if (!mUnknownChange) {
+                ids = new long[mChangedMessageIds.size()];
+                int i = 0;
+                for (long id : mChangedMessageIds) {
+                    ids[i++] = id;
+                }
+            }
+            mChangedMessageIds.clear();
+            mUnknownChange = false;
+            return ids;
+        }
+    }
+
+    /**
+     * @return whether any of the given messages is (or was) one of the widget's messages
+     */
+    private boolean isAnyMessageAffected(long[] messageIds, WidgetCursor previous) {
+        if (messageIds.length == 0) {
+            return false;
+        }
+        StringBuilder ids = new StringBuilder();
+        for (long id : messageIds) {
+            for (int i = 0, count = previous.getCount(); i < count; i++) {
+                if (previous.getMessageId(i) == id) {
+                    return true;
+                }
+            }
+            ids.append((ids.length() == 0) ? '(' : ',').append(id);
+        }
+        ids.append(')');
+        return EmailContent.count(mContext, Message.CONTENT_URI,
+                "(" + getSelection() + ") AND " + EmailContent.RECORD_ID + " IN " + ids,
+                getSelectionArgs()) > 0;
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+        final int resetCount;
+        final long[] changedMessageIds;
+        final WidgetCursor previous;
+        synchronized (mChangedMessageIds) {
+            resetCount = mResetCount;
+            changedMessageIds = takeChangedMessageIds();
+            previous = mLastResult;
+        }
 
         final int messageCount;
         if (mMailboxId != Mailbox.QUERY_ALL_FAVORITES) {
@@ -121,8 +306,47 @@ class EmailWidgetLoader extends ThrottlingCursorLoader {
                     getSelectionArgs());
         } else {
             // Just use the number of all messages shown.
-            messageCount = messagesCursor.getCount();
+            messageCount = EmailContent.count(mContext, Message.CONTENT_URI, getSelection(),
+                    getSelectionArgs());
         }
+
+        // If none of the messages that changed are in the widget's mailbox, there's nothing new
+        // to show.  (A change to a message outside of the mailbox can still change the count,
+        // e.g. when an unread message is moved out of it.)
+        if (previous != null && changedMessageIds != null
+                && messageCount == previous.getMessageCount()
+                && !isAnyMessageAffected(changedMessageIds, previous)) {
+            return previous.copy();
+        }
+
+        final ArrayList<Object[]> rows = new ArrayList<Object[]>();
+        final Cursor messagesCursor = mContext.getContentResolver().query(
+                EmailContent.uriWithLimit(getUri(), MAX_MESSAGE_LIST_COUNT), getProjection(),
+                getSelection(), getSelectionArgs(), getSortOrder());
+        if (messagesCursor != null) {
+            try {
+                final int columnCount = messagesCursor.getColumnCount();
+                while (messagesCursor.moveToNext()) {
+                    Object[] row = new Object[columnCount];
+                    for (int i = 0; i < columnCount; i++) {
+                        switch (messagesCursor.getType(i)) {
+                            case Cursor.FIELD_TYPE_NULL:
+                                break;
+                            case Cursor.FIELD_TYPE_INTEGER:
+                                row[i] = messagesCursor.getLong(i);
+                                break;
+                            default:
+                                row[i] = messagesCursor.getString(i);
+                                break;
+                        }
+                    }
+                    rows.add(row);
+                }
+            } finally {
+                messagesCursor.close();
+            }
+        }
+
         Account account = Account.restoreAccountWithId(mContext, mAccountId);
         final String accountName;
         if (account != null) {
@@ -157,7 +381,14 @@ class EmailWidgetLoader extends ThrottlingCursorLoader {
             }
         }
 
-        return new WidgetCursor(messagesCursor, messageCount, accountName, mailboxName);
+        final WidgetCursor result = new WidgetCursor(rows, messageCount, accountName, mailboxName);
+        synchronized (mChangedMessageIds) {
+            // The loader may have been pointed at another mailbox since this load started
+            if (resetCount == mResetCount) {
+                mLastResult = result;
+            }
+        }
+        return result;
     }
 
     /**
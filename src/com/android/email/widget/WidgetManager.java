@@ -94,6 +94,13 @@ public class WidgetManager {
         return widget;
     }
 
+    /**
+     * Returns whether the given widget is running here, in which case it keeps itself up to date.
+     */
+    public boolean hasWidget(int widgetId) {
+        return mWidgets.containsKey(widgetId);
+    }
+
     private EmailWidget get(int widgetId) {
         return mWidgets.get(widgetId);
     }
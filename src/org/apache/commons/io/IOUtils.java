@@ -16,6 +16,10 @@
  */
 package org.apache.commons.io;
 
+//BEGIN android-changed
+import com.android.emailcommon.utility.BufferPool;
+//END android-changed
+
 import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
@@ -1019,14 +1023,21 @@ public class IOUtils {
      */
     public static long copyLarge(InputStream input, OutputStream output)
             throws IOException {
-        byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
-        long count = 0;
-        int n = 0;
-        while (-1 != (n = input.read(buffer))) {
-            output.write(buffer, 0, n);
-            count += n;
+        //BEGIN android-changed
+        // ANDROID:  Use a pooled scratch buffer instead of allocating one per copy
+        byte[] buffer = BufferPool.acquireBytes();
+        try {
+            long count = 0;
+            int n = 0;
+            while (-1 != (n = input.read(buffer))) {
+                output.write(buffer, 0, n);
+                count += n;
+            }
+            return count;
+        } finally {
+            BufferPool.releaseBytes(buffer);
         }
-        return count;
+        //END android-changed
     }
 
     /**
@@ -1122,14 +1133,21 @@ public class IOUtils {
      * @since Commons IO 1.3
      */
     public static long copyLarge(Reader input, Writer output) throws IOException {
-        char[] buffer = new char[DEFAULT_BUFFER_SIZE];
-        long count = 0;
-        int n = 0;
-        while (-1 != (n = input.read(buffer))) {
-            output.write(buffer, 0, n);
-            count += n;
+        //BEGIN android-changed
+        // ANDROID:  Use a pooled scratch buffer instead of allocating one per copy
+        char[] buffer = BufferPool.acquireChars();
+        try {
+            long count = 0;
+            int n = 0;
+            while (-1 != (n = input.read(buffer))) {
+                output.write(buffer, 0, n);
+                count += n;
+            }
+            return count;
+        } finally {
+            BufferPool.releaseChars(buffer);
         }
-        return count;
+        //END android-changed
     }
 
     /**
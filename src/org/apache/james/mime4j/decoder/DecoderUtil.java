@@ -29,6 +29,13 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+//BEGIN android-changed
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+//END android-changed
 
 /**
  * Static methods for decoding strings, byte arrays and encoded words.
@@ -38,6 +45,49 @@ import java.io.UnsupportedEncodingException;
  */
 public class DecoderUtil {
     private static Log log = LogFactory.getLog(DecoderUtil.class);
+
+    //BEGIN android-changed: per-thread scratch buffers for decoding encoded words
+    /**
+     * ANDROID:  Initial size of the per-thread scratch buffers used to decode encoded words.
+     * Subjects and display names rarely exceed this, so the buffers seldom need to grow.
+     */
+    private static final int SCRATCH_INITIAL_SIZE = 256;
+
+    /**
+     * ANDROID:  Per-thread scratch space for {@link #decodeEncodedWords(String)}, so that the
+     * steady path allocates nothing but the resulting strings.
+     */
+    private static final class Scratch {
+        byte[] bytes;
+        ByteBuffer byteBuffer;
+        CharBuffer chars;
+
+        Scratch() {
+            ensureByteCapacity(SCRATCH_INITIAL_SIZE);
+            chars = CharBuffer.allocate(SCRATCH_INITIAL_SIZE);
+        }
+
+        void ensureByteCapacity(int size) {
+            if (bytes == null || bytes.length < size) {
+                bytes = new byte[Math.max(size, SCRATCH_INITIAL_SIZE)];
+                byteBuffer = ByteBuffer.wrap(bytes);
+            }
+        }
+
+        void ensureCharCapacity(int size) {
+            if (chars.capacity() < size) {
+                chars = CharBuffer.allocate(size);
+            }
+        }
+    }
+
+    private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+    //END android-changed
     
     /**
      * Decodes a string containing quoted-printable encoded data. 
@@ -220,40 +270,44 @@ public class DecoderUtil {
             return null;
 
         String mimeCharset = body.substring(begin + 2, qm1);
-        String encoding = body.substring(qm1 + 1, qm2);
-        String encodedText = body.substring(qm2 + 1, end - 2);
 
-        String charset = CharsetUtil.toJavaCharset(mimeCharset);
+        //BEGIN android-changed
+        // ANDROID:  Resolve through the bounded label cache instead of walking the alias
+        // tables and calling Charset.forName() for every encoded word.
+        Charset charset = CharsetUtil.lookupDecodingCharset(mimeCharset);
         if (charset == null) {
             if (log.isWarnEnabled()) {
                 log.warn("MIME charset '" + mimeCharset + "' in encoded word '"
                         + body.substring(begin, end) + "' doesn't have a "
-                        + "corresponding Java charset");
-            }
-            return null;
-        } else if (!CharsetUtil.isDecodingSupported(charset)) {
-            if (log.isWarnEnabled()) {
-                log.warn("Current JDK doesn't support decoding of charset '"
-                        + charset + "' (MIME charset '" + mimeCharset
-                        + "' in encoded word '" + body.substring(begin, end)
-                        + "')");
+                        + "corresponding Java charset or decoding it isn't supported");
             }
             return null;
         }
+        //END android-changed
 
-        if (encodedText.length() == 0) {
+        //BEGIN android-changed
+        int textStart = qm2 + 1;
+        int textEnd = end - 2;
+        if (textStart == textEnd) {
             if (log.isWarnEnabled()) {
                 log.warn("Missing encoded text in encoded word: '"
                         + body.substring(begin, end) + "'");
             }
             return null;
         }
+        //END android-changed
 
         try {
-            if (encoding.equalsIgnoreCase("Q")) {
-                return DecoderUtil.decodeQ(encodedText, charset);
-            } else if (encoding.equalsIgnoreCase("B")) {
-                return DecoderUtil.decodeB(encodedText, charset);
+            //BEGIN android-changed
+            // ANDROID:  Decode straight from the header string into per-thread scratch
+            // buffers, rather than through substring/InputStream/ByteArrayOutputStream.
+            Scratch s = scratch.get();
+            int length;
+            char encoding = qm2 == qm1 + 2 ? body.charAt(qm1 + 1) : 0;
+            if (encoding == 'Q' || encoding == 'q') {
+                length = decodeQInto(body, textStart, textEnd, s);
+            } else if (encoding == 'B' || encoding == 'b') {
+                length = decodeBase64Into(body, textStart, textEnd, s);
             } else {
                 if (log.isWarnEnabled()) {
                     log.warn("Warning: Unknown encoding in encoded word '"
@@ -261,13 +315,8 @@ public class DecoderUtil {
                 }
                 return null;
             }
-        } catch (UnsupportedEncodingException e) {
-            // should not happen because of isDecodingSupported check above
-            if (log.isWarnEnabled()) {
-                log.warn("Unsupported encoding in encoded word '"
-                        + body.substring(begin, end) + "'", e);
-            }
-            return null;
+            return decodeChars(charset, length, s);
+            //END android-changed
         } catch (RuntimeException e) {
             if (log.isWarnEnabled()) {
                 log.warn("Could not decode encoded word '"
@@ -276,4 +325,126 @@ public class DecoderUtil {
             return null;
         }
     }
+
+    //BEGIN android-changed: decoding encoded words without intermediate copies
+    /**
+     * ANDROID:  Decodes 'Q' encoded text (RFC 2047) found between <code>start</code> and
+     * <code>end</code> into the scratch byte array.  Follows the same rules as
+     * {@link #decodeQ(String, String)}, including its handling of malformed escapes.
+     *
+     * @return the number of decoded bytes.
+     */
+    private static int decodeQInto(String body, int start, int end, Scratch s) {
+        // Like QuotedPrintableInputStream, drop transport padding before the end of the text
+        while (end > start && (body.charAt(end - 1) == ' ' || body.charAt(end - 1) == '\t')) {
+            end--;
+        }
+        s.ensureByteCapacity(end - start);
+        byte[] out = s.bytes;
+        int count = 0;
+        int i = start;
+        while (i < end) {
+            char c = body.charAt(i++);
+            if (c == '_') {
+                out[count++] = ' ';
+            } else if (c != '=') {
+                out[count++] = (byte) c;
+            } else if (i + 1 < end && hexValue(body.charAt(i)) >= 0
+                    && hexValue(body.charAt(i + 1)) >= 0) {
+                out[count++] = (byte) ((hexValue(body.charAt(i)) << 4)
+                        | hexValue(body.charAt(i + 1)));
+                i += 2;
+            } else {
+                // Malformed escape: keep the '=' and let the next char be decoded as usual
+                out[count++] = '=';
+            }
+        }
+        return count;
+    }
+
+    /**
+     * ANDROID:  Decodes 'B' encoded text (RFC 2047) found between <code>start</code> and
+     * <code>end</code> into the scratch byte array.  Like {@link Base64InputStream}, characters
+     * outside the alphabet are skipped and decoding stops at the first '='.
+     *
+     * @return the number of decoded bytes.
+     */
+    private static int decodeBase64Into(String body, int start, int end, Scratch s) {
+        s.ensureByteCapacity(((end - start) / 4 + 1) * 3);
+        byte[] out = s.bytes;
+        int count = 0;
+        int accum = 0;
+        int inCount = 0;
+        for (int i = start; i < end; i++) {
+            char c = body.charAt(i);
+            if (c == '=') {
+                break;
+            }
+            int value = c < 128 ? BASE64_VALUES[c] : -1;
+            if (value < 0) {
+                continue;
+            }
+            accum = (accum << 6) | value;
+            if (++inCount == 4) {
+                out[count++] = (byte) (accum >> 16);
+                out[count++] = (byte) (accum >> 8);
+                out[count++] = (byte) accum;
+                accum = 0;
+                inCount = 0;
+            }
+        }
+        if (inCount == 3) {
+            out[count++] = (byte) (accum >> 10);
+            out[count++] = (byte) (accum >> 2);
+        } else if (inCount == 2) {
+            out[count++] = (byte) (accum >> 4);
+        }
+        return count;
+    }
+
+    /**
+     * ANDROID:  Converts the first <code>length</code> scratch bytes to a String using this
+     * thread's cached decoder for <code>charset</code>.
+     */
+    private static String decodeChars(Charset charset, int length, Scratch s) {
+        CharsetDecoder decoder = CharsetUtil.getThreadDecoder(charset);
+        ByteBuffer in = s.byteBuffer;
+        in.clear();
+        in.limit(length);
+        s.ensureCharCapacity((int) Math.ceil(length * (double) decoder.maxCharsPerByte()) + 1);
+        CharBuffer out = s.chars;
+        out.clear();
+        CoderResult result = decoder.decode(in, out, true);
+        if (!result.isOverflow()) {
+            result = decoder.flush(out);
+        }
+        if (result.isOverflow()) {
+            // Should not happen given maxCharsPerByte(), but don't silently truncate
+            throw new IllegalStateException("Decoded text overflowed scratch buffer");
+        }
+        return new String(out.array(), 0, out.position());
+    }
+
+    private static int hexValue(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'A' && c <= 'F') {
+            return 0xA + (c - 'A');
+        } else if (c >= 'a' && c <= 'f') {
+            return 0xA + (c - 'a');
+        }
+        return -1;
+    }
+
+    private static final byte[] BASE64_VALUES = new byte[128];
+    static {
+        for (int i = 0; i < BASE64_VALUES.length; i++) {
+            BASE64_VALUES[i] = -1;
+        }
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            BASE64_VALUES[alphabet.charAt(i)] = (byte) i;
+        }
+    }
+    //END android-changed
 }
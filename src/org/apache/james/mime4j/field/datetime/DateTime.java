@@ -19,6 +19,10 @@
 
 package org.apache.james.mime4j.field.datetime;
 
+//BEGIN android-changed
+import com.android.emailcommon.utility.Utility;
+//END android-changed
+
 import org.apache.james.mime4j.field.datetime.parser.DateTimeParser;
 import org.apache.james.mime4j.field.datetime.parser.ParseException;
 import org.apache.james.mime4j.field.datetime.parser.TokenMgrError;
@@ -50,6 +54,19 @@ public class DateTime {
         this.timeZone = timeZone;
     }
 
+    //BEGIN android-changed
+    private DateTime(int year, int month, int day, int hour, int minute, int second, int timeZone) {
+        this.year = year;
+        this.date = convertToDate(year, month, day, hour, minute, second, timeZone);
+        this.month = month;
+        this.day = day;
+        this.hour = hour;
+        this.minute = minute;
+        this.second = second;
+        this.timeZone = timeZone;
+    }
+    //END android-changed
+
     private int convertToYear(String yearString) {
         int year = Integer.parseInt(yearString);
         switch (yearString.length()) {
@@ -67,6 +84,16 @@ public class DateTime {
     }
 
     public static Date convertToDate(int year, int month, int day, int hour, int minute, int second, int timeZone) {
+        //BEGIN android-changed: no calendar for the usual dates
+        long millis = Utility.utcDateTimeToMillis(year, month, day, hour, minute, second);
+        if (millis != Long.MIN_VALUE) {
+            if (timeZone != Integer.MIN_VALUE) {
+                int minutes = ((timeZone / 100) * 60) + timeZone % 100;
+                millis -= minutes * 60 * 1000L;
+            }
+            return new Date(millis);
+        }
+        //END android-changed
         Calendar c = new GregorianCalendar(TimeZone.getTimeZone("GMT+0"));
         c.set(year, month - 1, day, hour, minute, second);
         c.set(Calendar.MILLISECOND, 0);
@@ -117,6 +144,12 @@ public class DateTime {
 
 
     public static DateTime parse(String dateString) throws ParseException {
+        //BEGIN android-changed: the usual form doesn't need the generated parser
+        DateTime dateTime = parseUsualForm(dateString);
+        if (dateTime != null) {
+            return dateTime;
+        }
+        //END android-changed
         try {
             return new DateTimeParser(new StringReader(dateString)).parseAll();
         }
@@ -124,4 +157,97 @@ public class DateTime {
             throw new ParseException(err.getMessage());
         }
     }
+
+    //BEGIN android-changed
+    private static final String DAYS_OF_WEEK = "MonTueWedThuFriSatSun";
+    private static final String MONTHS = "JanFebMarAprMayJunJulAugSepOctNovDec";
+
+    /**
+     * Parses the form that nearly all messages use, like "Wed, 27 Oct 2010 11:06:38 -0700" or
+     * "27 Oct 2010 11:06 +0000 (UTC)", by hand: the generated parser is slow, and it keeps its
+     * comment nesting in a static field.  It gives the same result as the generated parser.
+     *
+     * @return the date and time, or null if the string isn't in that form; the generated parser
+     * handles the rest (named zones, two digit years, folding white space and so on).
+     */
+    private static DateTime parseUsualForm(String s) {
+        final int length = s.length();
+        int i = 0;
+        if (length > 5 && s.charAt(3) == ',' && s.charAt(4) == ' ') {
+            if (indexOf(DAYS_OF_WEEK, s, 0) < 0) {
+                return null;
+            }
+            i = 5;
+        }
+        // The day; one or two digits
+        int dayEnd = i + 1;
+        if (dayEnd < length && s.charAt(dayEnd) != ' ') {
+            dayEnd++;
+        }
+        // Then " Mon yyyy HH:mm"; at least the " +zzzz" zone follows
+        if (dayEnd + 21 > length || s.charAt(dayEnd) != ' ' || s.charAt(dayEnd + 4) != ' '
+                || s.charAt(dayEnd + 9) != ' ' || s.charAt(dayEnd + 12) != ':') {
+            return null;
+        }
+        final int day = Utility.parseDigits(s, i, dayEnd);
+        final int month = indexOf(MONTHS, s, dayEnd + 1) + 1;
+        final int year = Utility.parseDigits(s, dayEnd + 5, dayEnd + 9);
+        final int hour = Utility.parseDigits(s, dayEnd + 10, dayEnd + 12);
+        final int minute = Utility.parseDigits(s, dayEnd + 13, dayEnd + 15);
+        // The seconds are optional
+        int second = 0;
+        i = dayEnd + 15;
+        if (s.charAt(i) == ':') {
+            second = Utility.parseDigits(s, i + 1, i + 3);
+            i += 3;
+        }
+        if (i + 6 > length || s.charAt(i) != ' '
+                || (s.charAt(i + 1) != '+' && s.charAt(i + 1) != '-')) {
+            return null;
+        }
+        int zone = Utility.parseDigits(s, i + 2, i + 6);
+        if (day < 0 || month < 1 || year < 0 || hour < 0 || minute < 0 || second < 0
+                || zone < 0 || !isEndOrComment(s, i + 6)) {
+            return null;
+        }
+        if (s.charAt(i + 1) == '-') {
+            zone = -zone;
+        }
+        return new DateTime(year, month, day, hour, minute, second, zone);
+    }
+
+    /**
+     * @return the index, in threes, of the name in names that's at s[start], or -1.
+     */
+    private static int indexOf(String names, String s, int start) {
+        for (int i = 0; i < names.length(); i += 3) {
+            if (s.regionMatches(start, names, i, 3)) {
+                return i / 3;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return whether s[start] is the end of the string, or of a space and a comment without
+     * nested comments or quoted characters, that ends it.
+     */
+    private static boolean isEndOrComment(String s, int start) {
+        final int length = s.length();
+        if (start == length) {
+            return true;
+        }
+        if (start + 2 > length || s.charAt(start) != ' ' || s.charAt(start + 1) != '('
+                || s.charAt(length - 1) != ')') {
+            return false;
+        }
+        for (int i = start + 2; i < length - 1; i++) {
+            final char c = s.charAt(i);
+            if (c == '(' || c == ')' || c == '\\') {
+                return false;
+            }
+        }
+        return true;
+    }
+    //END android-changed
 }
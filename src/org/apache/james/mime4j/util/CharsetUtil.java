@@ -20,11 +20,18 @@
 package org.apache.james.mime4j.util;
 
 import java.io.UnsupportedEncodingException;
+//BEGIN android-changed
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+//END android-changed
 import java.nio.charset.IllegalCharsetNameException;
 import java.nio.charset.UnsupportedCharsetException;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.TreeSet;
+//BEGIN android-changed
+import java.util.concurrent.ConcurrentHashMap;
+//END android-changed
 
 //BEGIN android-changed: Stubbing out logging
 import org.apache.james.mime4j.Log;
@@ -1189,6 +1196,87 @@ public class CharsetUtil {
         return null;
     }
 
+    //BEGIN android-changed: cached charset lookups and reusable decoders
+    /**
+     * ANDROID:  Upper bound on the number of distinct raw labels kept in
+     * {@link #resolvedCharsets}.  Real mail uses a handful of charsets, but the labels come
+     * straight from untrusted headers, so the cache must not grow without limit.
+     */
+    private static final int RESOLVED_CHARSET_CACHE_LIMIT = 64;
+
+    /**
+     * ANDROID:  Maps raw MIME charset labels, exactly as they appear in a header, to the
+     * decoding-capable java.nio Charset they resolve to.  Lets the steady path skip the
+     * lower-casing, alias table walk and Charset.forName() lookup.
+     */
+    private static final ConcurrentHashMap<String, java.nio.charset.Charset> resolvedCharsets =
+            new ConcurrentHashMap<String, java.nio.charset.Charset>();
+
+    /**
+     * ANDROID:  Per-thread decoders, one per charset.  CharsetDecoder is stateful and not
+     * thread-safe, so each sync/UI thread keeps its own and resets it before every use.
+     */
+    private static final ThreadLocal<HashMap<java.nio.charset.Charset, CharsetDecoder>>
+            threadDecoders = new ThreadLocal<HashMap<java.nio.charset.Charset, CharsetDecoder>>() {
+        @Override
+        protected HashMap<java.nio.charset.Charset, CharsetDecoder> initialValue() {
+            return new HashMap<java.nio.charset.Charset, CharsetDecoder>();
+        }
+    };
+
+    /**
+     * ANDROID:  Resolves a raw MIME charset label to a Charset that the current VM can decode,
+     * using a bounded cache keyed by the label as given.
+     *
+     * @param mimeCharset the charset label, e.g. from an encoded word or a Content-Type.
+     * @return the Charset, or <code>null</code> if the label is unknown or decoding of the
+     *         charset is not supported.
+     */
+    public static java.nio.charset.Charset lookupDecodingCharset(String mimeCharset) {
+        java.nio.charset.Charset charset = resolvedCharsets.get(mimeCharset);
+        if (charset != null) {
+            return charset;
+        }
+        String javaCharset = toJavaCharset(mimeCharset);
+        if (javaCharset == null || !isDecodingSupported(javaCharset)) {
+            return null;
+        }
+        try {
+            charset = java.nio.charset.Charset.forName(javaCharset);
+        } catch (IllegalCharsetNameException e) {
+            return null;
+        } catch (UnsupportedCharsetException e) {
+            return null;
+        }
+        if (resolvedCharsets.size() < RESOLVED_CHARSET_CACHE_LIMIT) {
+            resolvedCharsets.putIfAbsent(mimeCharset, charset);
+        }
+        return charset;
+    }
+
+    /**
+     * ANDROID:  Returns this thread's reusable decoder for the given charset, already reset.
+     * Malformed and unmappable input is replaced, matching <code>new String(bytes, charset)</code>.
+     * The decoder must not be handed to another thread.
+     *
+     * @param charset the charset to decode.
+     * @return a reset decoder owned by the calling thread.
+     */
+    public static CharsetDecoder getThreadDecoder(java.nio.charset.Charset charset) {
+        HashMap<java.nio.charset.Charset, CharsetDecoder> decoders = threadDecoders.get();
+        CharsetDecoder decoder = decoders.get(charset);
+        if (decoder == null) {
+            decoder = charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            decoders.put(charset, decoder);
+        } else {
+            decoder.reset();
+        }
+        return decoder;
+    }
+    //END android-changed
+
     public static java.nio.charset.Charset getCharset(String charsetName) {
         String defaultCharset = "ISO-8859-1";
 
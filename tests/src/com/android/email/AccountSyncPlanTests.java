@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email;
+
+import com.android.emailcommon.mail.MessagingException;
+import com.android.emailcommon.provider.Mailbox;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of AccountSyncPlan
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.AccountSyncPlanTests email
+ */
+@SmallTest
+public class AccountSyncPlanTests extends TestCase {
+    private ExecutorService mExecutor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mExecutor = Executors.newCachedThreadPool();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mExecutor.shutdownNow();
+        super.tearDown();
+    }
+
+    private static ArrayList<Mailbox> createMailboxes(int count) {
+        ArrayList<Mailbox> mailboxes = new ArrayList<Mailbox>();
+        for (int i = 0; i < count; i++) {
+            Mailbox mailbox = new Mailbox();
+            mailbox.mId = i;
+            mailboxes.add(mailbox);
+        }
+        return mailboxes;
+    }
+
+    /**
+     * Syncs a mailbox by sleeping, the longer the earlier the mailbox, and fails the mailboxes
+     * whose ids are in {@link #mFailures}.  Keeps track of how many syncs run at once.
+     */
+    private static class SleepingSyncer implements AccountSyncPlan.MailboxSyncer<Long> {
+        final ArrayList<Long> mFailures = new ArrayList<Long>();
+        final StringBuilder mReports = new StringBuilder();
+        Thread mReportThread;
+        int mRunning;
+        int mMaxRunning;
+
+        @Override
+        public Long sync(Mailbox mailbox) throws MessagingException {
+            synchronized (this) {
+                mRunning++;
+                mMaxRunning = Math.max(mMaxRunning, mRunning);
+            }
+            try {
+                Thread.sleep(50 - 5 * mailbox.mId);
+            } catch (InterruptedException e) {
+            }
+            synchronized (this) {
+                mRunning--;
+            }
+            if (mFailures.contains(mailbox.mId)) {
+                throw new MessagingException("failed");
+            }
+            return mailbox.mId * 10;
+        }
+
+        @Override
+        public void onSynced(Mailbox mailbox, Long results) {
+            assertSame(mReportThread, Thread.currentThread());
+            assertEquals(mailbox.mId * 10, (long) results);
+            mReports.append(mailbox.mId).append(' ');
+        }
+
+        @Override
+        public void onFailed(Mailbox mailbox, MessagingException e) {
+            assertSame(mReportThread, Thread.currentThread());
+            mReports.append('!').append(mailbox.mId).append(' ');
+        }
+    }
+
+    public void testConcurrency() {
+        assertEquals(1, new AccountSyncPlan(createMailboxes(5), 1).getConcurrency());
+        assertEquals(1, new AccountSyncPlan(createMailboxes(5), 0).getConcurrency());
+        assertEquals(3, new AccountSyncPlan(createMailboxes(5), 3).getConcurrency());
+        assertEquals(2, new AccountSyncPlan(createMailboxes(2), 3).getConcurrency());
+        assertEquals(1, new AccountSyncPlan(createMailboxes(0), 3).getConcurrency());
+    }
+
+    /**
+     * Mailboxes are synced in parallel, but reported in order on the calling thread.
+     */
+    public void testRunInParallel() {
+        SleepingSyncer syncer = new SleepingSyncer();
+        syncer.mReportThread = Thread.currentThread();
+        syncer.mFailures.add(2L);
+        new AccountSyncPlan(createMailboxes(8), 3).run(mExecutor, syncer);
+        assertEquals("0 1 !2 3 4 5 6 7 ", syncer.mReports.toString());
+        assertTrue(syncer.mMaxRunning > 1);
+        assertTrue(syncer.mMaxRunning <= 3);
+    }
+
+    /**
+     * With one mailbox at a time, everything runs on the calling thread.
+     */
+    public void testRunSequentially() {
+        SleepingSyncer syncer = new SleepingSyncer();
+        syncer.mReportThread = Thread.currentThread();
+        syncer.mFailures.add(0L);
+        new AccountSyncPlan(createMailboxes(3), 1).run(mExecutor, syncer);
+        assertEquals("!0 1 2 ", syncer.mReports.toString());
+        assertEquals(1, syncer.mMaxRunning);
+    }
+
+    /**
+     * An interrupt doesn't cut the plan short, but is passed on to the caller.
+     */
+    public void testInterrupted() {
+        SleepingSyncer syncer = new SleepingSyncer();
+        syncer.mReportThread = Thread.currentThread();
+        Thread.currentThread().interrupt();
+        new AccountSyncPlan(createMailboxes(4), 2).run(mExecutor, syncer);
+        assertTrue(Thread.interrupted());
+        assertEquals("0 1 2 3 ", syncer.mReports.toString());
+    }
+
+    /**
+     * A runtime exception on a worker is rethrown on the calling thread.
+     */
+    public void testRuntimeException() {
+        final SleepingSyncer syncer = new SleepingSyncer() {
+            @Override
+            public Long sync(Mailbox mailbox) throws MessagingException {
+                if (mailbox.mId == 1) {
+                    throw new IllegalStateException();
+                }
+                return super.sync(mailbox);
+            }
+        };
+        syncer.mReportThread = Thread.currentThread();
+        try {
+            new AccountSyncPlan(createMailboxes(3), 2).run(mExecutor, syncer);
+            fail("Exception was not rethrown");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals("0 ", syncer.mReports.toString());
+    }
+}
@@ -295,6 +295,58 @@ public class ControllerProviderOpsTests extends ProviderTestCase2<EmailProvider>
         assertEquals(Mailbox.TYPE_TRASH, mailbox2get.mType);
     }
 
+    /**
+     * Test deleting several messages at once, from different mailboxes and accounts
+     */
+    public void testDeleteMessages() {
+        Account account1 = ProviderTestUtils.setupAccount("messages-delete", true,
+                mProviderContext);
+        long account1Id = account1.mId;
+        Mailbox box = ProviderTestUtils.setupMailbox("box1", account1Id, true, mProviderContext);
+        Mailbox trashBox = ProviderTestUtils.setupMailbox("box2", account1Id, false,
+                mProviderContext);
+        trashBox.mType = Mailbox.TYPE_TRASH;
+        trashBox.save(mProviderContext);
+        Mailbox draftBox = ProviderTestUtils.setupMailbox("box3", account1Id, false,
+                mProviderContext);
+        draftBox.mType = Mailbox.TYPE_DRAFTS;
+        draftBox.save(mProviderContext);
+
+        // A second account, without a trash mailbox
+        Account account2 = ProviderTestUtils.setupAccount("messages-delete-notrash", true,
+                mProviderContext);
+        Mailbox box2 = ProviderTestUtils.setupMailbox("box4", account2.mId, true,
+                mProviderContext);
+
+        long message1Id = ProviderTestUtils.setupMessage("message1", account1Id, box.mId, false,
+                true, mProviderContext).mId;
+        long message2Id = ProviderTestUtils.setupMessage("message2", account1Id, box.mId, false,
+                true, mProviderContext).mId;
+        long message3Id = ProviderTestUtils.setupMessage("message3", account1Id, trashBox.mId,
+                false, true, mProviderContext).mId;
+        long message4Id = ProviderTestUtils.setupMessage("message4", account1Id, draftBox.mId,
+                false, true, mProviderContext).mId;
+        long message5Id = ProviderTestUtils.setupMessage("message5", account2.mId, box2.mId,
+                false, true, mProviderContext).mId;
+
+        mTestController.deleteMessagesSync(
+                new long[] { message1Id, message2Id, message3Id, message4Id, message5Id });
+
+        // Messages in a regular mailbox are moved to the trash
+        assertEquals(trashBox.mId,
+                Message.restoreMessageWithId(mProviderContext, message1Id).mMailboxKey);
+        assertEquals(trashBox.mId,
+                Message.restoreMessageWithId(mProviderContext, message2Id).mMailboxKey);
+        // Messages already in the trash, and drafts, are deleted
+        assertNull(Message.restoreMessageWithId(mProviderContext, message3Id));
+        assertNull(Message.restoreMessageWithId(mProviderContext, message4Id));
+        // A trash mailbox is created if necessary
+        long trash2Id = Message.restoreMessageWithId(mProviderContext, message5Id).mMailboxKey;
+        assertEquals(Mailbox.TYPE_TRASH, Mailbox.getMailboxType(mProviderContext, trash2Id));
+        assertEquals(account2.mId,
+                Mailbox.restoreMailboxWithId(mProviderContext, trash2Id).mAccountKey);
+    }
+
     /**
      * Test read/unread flag
      */
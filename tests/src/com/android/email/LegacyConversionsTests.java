@@ -331,6 +331,41 @@ public class LegacyConversionsTests extends ProviderTestCase2<EmailProvider> {
         assertEquals(4, EmailContent.count(mProviderContext, uri, null, null));
     }
 
+    /**
+     * Test that when several attachments have bodies, all of them are written (in parallel)
+     * before updateAttachments() returns, and the attachment list keeps the part order.
+     */
+    public void testAddAttachmentsWithBodies() throws MessagingException, IOException {
+        final long accountId = 1;
+        final long mailboxId = 1;
+        final int numAttachments = 6;
+        final EmailContent.Message localMessage = ProviderTestUtils.setupMessage(
+                "local-message", accountId, mailboxId, false, true, mProviderContext);
+
+        ArrayList<Part> attachments = new ArrayList<Part>();
+        for (int i = 0; i < numAttachments; i++) {
+            MimeBodyPart part = new MimeBodyPart(new TextBody("attachment body " + i),
+                    "text/plain");
+            part.setHeader(MimeHeader.HEADER_CONTENT_DISPOSITION,
+                    "attachment;\n filename=\"file-" + i + "\"");
+            attachments.add(part);
+        }
+        LegacyConversions.updateAttachments(mProviderContext, localMessage, attachments);
+
+        assertEquals(numAttachments, localMessage.mAttachments.size());
+        for (int i = 0; i < numAttachments; i++) {
+            Attachment attachment = localMessage.mAttachments.get(i);
+            assertEquals("file-" + i, attachment.mFileName);
+            assertEquals(("attachment body " + i).length(), attachment.mSize);
+            assertNotNull(attachment.mContentUri);
+
+            Attachment saved = Attachment.restoreAttachmentWithId(mProviderContext,
+                    attachment.mId);
+            assertEquals(attachment.mSize, saved.mSize);
+            assertEquals(attachment.mContentUri, saved.mContentUri);
+        }
+    }
+
     /**
      * Prepare a legacy message with 1+ attachments
      * @param numAttachments how many attachments to add
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.test.ProviderTestCase2;
+
+import com.android.email.provider.ContentCache;
+import com.android.email.provider.EmailProvider;
+import com.android.email.provider.ProviderTestUtils;
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.Attachment;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.emailcommon.provider.Mailbox;
+import com.android.emailcommon.utility.AttachmentUtilities;
+
+import java.util.ArrayList;
+
+/**
+ * Tests of the MessagingController class that depend on the underlying provider.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.MessagingControllerProviderTests email
+ */
+public class MessagingControllerProviderTests extends ProviderTestCase2<EmailProvider> {
+
+    private Context mProviderContext;
+
+    public MessagingControllerProviderTests() {
+        super(EmailProvider.class, EmailContent.AUTHORITY);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mProviderContext = getMockContext();
+        // Invalidate all caches, since we reset the database for each test
+        ContentCache.invalidateAllCaches();
+    }
+
+    private Mailbox setupMailbox(String name, long accountId, int type, long lastTouchedTime,
+            int syncInterval) {
+        Mailbox mailbox = ProviderTestUtils.setupMailbox(name, accountId, false,
+                mProviderContext, type);
+        mailbox.mLastTouchedTime = lastTouchedTime;
+        mailbox.mSyncInterval = syncInterval;
+        mailbox.save(mProviderContext);
+        return mailbox;
+    }
+
+    private static String getServerIds(ArrayList<Mailbox> mailboxes) {
+        StringBuilder sb = new StringBuilder();
+        for (Mailbox mailbox : mailboxes) {
+            sb.append(mailbox.mServerId).append(' ');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * checkMail syncs the mailboxes that have a sync interval of their own along with the inbox;
+     * the others (e.g. most IMAP folders) are only synced when the user opens them.
+     */
+    public void testGetCheckedMailboxes() {
+        Account account = ProviderTestUtils.setupAccount("account", true, mProviderContext);
+        Account other = ProviderTestUtils.setupAccount("other", true, mProviderContext);
+        Mailbox inbox = setupMailbox("inbox", account.mId, Mailbox.TYPE_INBOX, 100, 15);
+        setupMailbox("drafts", account.mId, Mailbox.TYPE_DRAFTS, 100, 15);
+        setupMailbox("never", account.mId, Mailbox.TYPE_MAIL, 0, Mailbox.CHECK_INTERVAL_NEVER);
+        setupMailbox("recent", account.mId, Mailbox.TYPE_MAIL, 5, Mailbox.CHECK_INTERVAL_NEVER);
+        setupMailbox("otherbox", other.mId, Mailbox.TYPE_MAIL, 10, 15);
+        assertEquals("", getServerIds(MessagingController.getCheckedMailboxes(
+                mProviderContext, account.mId, inbox.mId)));
+
+        setupMailbox("pushed", account.mId, Mailbox.TYPE_MAIL, 0, Mailbox.CHECK_INTERVAL_PUSH);
+        setupMailbox("sent", account.mId, Mailbox.TYPE_SENT, 0, 60);
+        assertEquals("pushed sent ", getServerIds(MessagingController.getCheckedMailboxes(
+                mProviderContext, account.mId, inbox.mId)));
+    }
+
+    /**
+     * A local search result is copied with its attachments, but their files aren't, so the
+     * account's attachment storage stays the same.
+     */
+    public void testCopyToSearchMailbox() {
+        Account account = ProviderTestUtils.setupAccount("account", true, mProviderContext);
+        Mailbox inbox = setupMailbox("inbox", account.mId, Mailbox.TYPE_INBOX, 0,
+                Mailbox.CHECK_INTERVAL_NEVER);
+        Mailbox search = setupMailbox("search", account.mId, Mailbox.TYPE_SEARCH, 0,
+                Mailbox.CHECK_INTERVAL_NEVER);
+        Message message = ProviderTestUtils.setupMessage("message", account.mId, inbox.mId, true,
+                true, mProviderContext);
+        Attachment att = ProviderTestUtils.setupAttachment(message.mId, "filename", 11, false,
+                mProviderContext);
+        att.mAccountKey = account.mId;
+        att.mContentUri = AttachmentUtilities.getAttachmentUri(account.mId, 1).toString();
+        att.save(mProviderContext);
+        assertEquals(11, Account.getAttachmentStorage(mProviderContext, account.mId));
+
+        MessagingController.copyToSearchMailbox(mProviderContext,
+                Message.restoreMessageWithId(mProviderContext, message.mId), inbox, search.mId);
+
+        assertEquals(11, Account.getAttachmentStorage(mProviderContext, account.mId));
+        Cursor c = mProviderContext.getContentResolver().query(Message.CONTENT_URI,
+                Message.ID_COLUMN_PROJECTION, MessageColumns.MAILBOX_KEY + "=?",
+                new String[] {Long.toString(search.mId)}, null);
+        try {
+            assertTrue(c.moveToFirst());
+            Attachment[] copies =
+                    Attachment.restoreAttachmentsWithMessageId(mProviderContext, c.getLong(0));
+            assertEquals(1, copies.length);
+            assertNull(copies[0].mContentUri);
+        } finally {
+            c.close();
+        }
+    }
+}
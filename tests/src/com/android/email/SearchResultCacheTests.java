@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email;
+
+import com.android.email.SearchResultCache.Session;
+
+import android.test.AndroidTestCase;
+import android.test.MoreAsserts;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+
+/**
+ * Tests of SearchResultCache
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.SearchResultCacheTests email
+ */
+@SmallTest
+public class SearchResultCacheTests extends AndroidTestCase {
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getCacheDir(), "searchResultCacheTest");
+        mFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testGetPut() {
+        SearchResultCache cache = new SearchResultCache(mFile);
+        assertNull(cache.get(1, 2, "foo"));
+
+        cache.put(new Session(1, 2, "foo", new long[] {30, 20, 10}, 4, 1000));
+        Session session = cache.get(1, 2, "foo");
+        assertNotNull(session);
+        MoreAsserts.assertEquals(new long[] {30, 20, 10}, session.mUids);
+        assertEquals(7, session.getCount());
+
+        // The key includes the account, mailbox and filter
+        assertNull(cache.get(3, 2, "foo"));
+        assertNull(cache.get(1, 3, "foo"));
+        assertNull(cache.get(1, 2, "bar"));
+    }
+
+    public void testPersistence() {
+        SearchResultCache cache = new SearchResultCache(mFile);
+        cache.put(new Session(1, 2, "foo", new long[] {30, 20, 10}, 4, 1000));
+        cache.put(new Session(1, 2, "bar", new long[0], 0, 2000));
+
+        // A new cache (e.g. after a process restart) reads the saved sessions
+        SearchResultCache restored = new SearchResultCache(mFile);
+        Session session = restored.get(1, 2, "foo");
+        assertNotNull(session);
+        MoreAsserts.assertEquals(new long[] {30, 20, 10}, session.mUids);
+        assertEquals(4, session.mLocalCount);
+        assertEquals(1000, session.mTimestamp);
+        assertEquals(0, restored.get(1, 2, "bar").getCount());
+    }
+
+    public void testEviction() {
+        SearchResultCache cache = new SearchResultCache(mFile);
+        for (int i = 0; i < SearchResultCache.MAX_SESSIONS; i++) {
+            cache.put(new Session(1, 2, "filter" + i, new long[] {i}, 0, 0));
+        }
+        // Touch the oldest session, so that the second one is evicted instead
+        assertNotNull(cache.get(1, 2, "filter0"));
+        cache.put(new Session(1, 2, "new", new long[0], 0, 0));
+        assertNotNull(cache.get(1, 2, "filter0"));
+        assertNull(cache.get(1, 2, "filter1"));
+        assertNotNull(cache.get(1, 2, "new"));
+    }
+
+    public void testIsReusable() {
+        Session session = new Session(1, 2, "foo", new long[0], 0, 1000);
+        assertTrue(session.isReusable(1000));
+        assertTrue(session.isReusable(1000 + SearchResultCache.MAX_REUSE_AGE - 1));
+        assertFalse(session.isReusable(1000 + SearchResultCache.MAX_REUSE_AGE));
+        // Clock went backwards
+        assertFalse(session.isReusable(999));
+    }
+}
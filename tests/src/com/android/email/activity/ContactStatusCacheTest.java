@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.activity;
+
+import com.android.email.activity.ContactStatusLoader.Result;
+import com.android.email.activity.ContactStatusLoaderTest.MockContactProvider;
+
+import android.database.MatrixCursor;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.StatusUpdates;
+import android.test.ProviderTestCase2;
+
+/**
+ * Test for {@link ContactStatusCache}
+ */
+public class ContactStatusCacheTest extends ProviderTestCase2<MockContactProvider> {
+    private static final String EMAIL = "a@b.c";
+
+    private MockContactProvider mProvider;
+
+    public ContactStatusCacheTest() {
+        super(MockContactProvider.class, ContactsContract.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProvider = getProvider();
+        ContactStatusCache.reset();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        ContactStatusCache.reset();
+        super.tearDown();
+    }
+
+    /** Prepare the provider's results for a contact that's away and has no photo */
+    private void offerContact() {
+        MatrixCursor cursor = new MatrixCursor(ContactStatusLoader.PROJECTION_PHOTO_ID_PRESENCE);
+        cursor.addRow(new Object[]{12345, StatusUpdates.AWAY});
+        mProvider.mCursors.offer(cursor);
+        mProvider.mCursors.offer(new MatrixCursor(ContactStatusLoader.PHOTO_PROJECTION));
+    }
+
+    public void testCached() {
+        ContactStatusCache.init(getMockContext());
+        offerContact();
+
+        Result r = ContactStatusCache.get(getMockContext(), EMAIL);
+        assertEquals(android.R.drawable.presence_away, r.mPresenceResId);
+        final int queries = mProvider.mUris.size();
+        assertTrue(queries >= 2);
+
+        // Served from the cache, whatever the case of the address
+        assertSame(r, ContactStatusCache.get(getMockContext(), EMAIL));
+        assertSame(r, ContactStatusCache.get(getMockContext(), "A@B.C"));
+        assertEquals(queries, mProvider.mUris.size());
+
+        // Looked up again once the cache has been cleared
+        ContactStatusCache.clear();
+        r = ContactStatusCache.get(getMockContext(), EMAIL);
+        assertTrue(r.isUnknown());
+        assertTrue(mProvider.mUris.size() > queries);
+    }
+
+    public void testNotCachedBeforeInit() {
+        offerContact();
+
+        Result r = ContactStatusCache.get(getMockContext(), EMAIL);
+        assertEquals(android.R.drawable.presence_away, r.mPresenceResId);
+        final int queries = mProvider.mUris.size();
+
+        // Without an observer, nothing is kept
+        r = ContactStatusCache.get(getMockContext(), EMAIL);
+        assertTrue(r.isUnknown());
+        assertTrue(mProvider.mUris.size() > queries);
+    }
+
+    public void testEmptyAddress() {
+        ContactStatusCache.init(getMockContext());
+        assertSame(Result.UNKNOWN, ContactStatusCache.get(getMockContext(), null));
+        assertSame(Result.UNKNOWN, ContactStatusCache.get(getMockContext(), ""));
+        assertEquals(0, mProvider.mUris.size());
+    }
+}
@@ -57,6 +57,8 @@ public class ContactStatusLoaderTest
     protected void setUp() throws Exception {
         super.setUp();
         mProvider = getProvider();
+        // The loader goes through the cache, which would otherwise remember earlier tests
+        ContactStatusCache.clear();
     }
 
     // Contact doesn't exist
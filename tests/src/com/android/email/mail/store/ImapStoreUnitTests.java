@@ -27,6 +27,7 @@ import android.test.MoreAsserts;
 import android.test.suitebuilder.annotation.SmallTest;
 
 import com.android.email.DBTestHelper;
+import com.android.email.MockClock;
 import com.android.email.MockSharedPreferences;
 import com.android.email.MockVendorPolicy;
 import com.android.email.VendorPolicyLoader;
@@ -37,8 +38,10 @@ import com.android.email.mail.store.imap.ImapTestUtils;
 import com.android.email.mail.transport.MockTransport;
 import com.android.emailcommon.TempDirectory;
 import com.android.emailcommon.internet.MimeBodyPart;
+import com.android.emailcommon.internet.MimeHeader;
 import com.android.emailcommon.internet.MimeMultipart;
 import com.android.emailcommon.internet.MimeUtility;
+import com.android.emailcommon.internet.PartialFileBody;
 import com.android.emailcommon.internet.TextBody;
 import com.android.emailcommon.mail.Address;
 import com.android.emailcommon.mail.AuthenticationFailedException;
@@ -59,8 +62,10 @@ import com.android.emailcommon.utility.Utility;
 
 import org.apache.commons.io.IOUtils;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Timer;
 import java.util.regex.Pattern;
 
 /**
@@ -1055,6 +1060,55 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         // TODO: Test NO response.
     }
 
+    /**
+     * Test fetching a part into a PartialFileBody, which is done a chunk at a time
+     */
+    public void testFetchPartialAttachment() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE);
+        final Message message = mFolder.createMessage("1");
+
+        final MimeBodyPart part = new MimeBodyPart();
+        part.setSize(8);
+        part.setHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA, "2");
+        part.setHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING, "base64");
+        final File file = new File(TempDirectory.getTempDirectory(), "partial");
+        final PartialFileBody body = PartialFileBody.open(file, "base64");
+        body.delete();
+        part.setBody(body);
+        final FetchProfile fp = new FetchProfile();
+        fp.add(part);
+
+        // The first chunk is refused by the server
+        mock.expect(getNextTag(false) + " UID FETCH 1 \\(UID BODY.PEEK\\[2\\]<0."
+                + ImapFolder.PARTIAL_FETCH_CHUNK_SIZE + ">\\)",
+                new String[] {
+                "* 9 fETCH (uID 1)",
+                getNextTag(true) + " nO TRY AGAIN"
+        });
+        try {
+            mFolder.fetch(new Message[] { message }, fp, null);
+            fail("MessagingException expected");
+        } catch (MessagingException expected) {
+        }
+        assertFalse(body.isComplete());
+        assertEquals(0, body.getEncodedOffset());
+
+        // The next attempt gets it all
+        mock.expect(getNextTag(false) + " UID FETCH 1 \\(UID BODY.PEEK\\[2\\]<0."
+                + ImapFolder.PARTIAL_FETCH_CHUNK_SIZE + ">\\)",
+                new String[] {
+                "* 9 fETCH (uID 1 bODY[2]<0> {8}",
+                "YWJjZA==)", // abcd in base64
+                getNextTag(true) + " oK SUCCESS"
+        });
+        mFolder.fetch(new Message[] { message }, fp, null);
+        assertTrue(body.isComplete());
+        assertEquals("abcd", Utility.fromUtf8(IOUtils.toByteArray(body.getInputStream())));
+        body.delete();
+    }
+
     /**
      * Test for proper operations on servers that return "NIL" for empty message bodies.
      */
@@ -1289,6 +1343,102 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         // TODO: Test NO response.
     }
 
+    /** The STATUS items that getFolderStates() asks for, as a pattern */
+    private static final String STATUS_ITEMS_PATTERN =
+            "\\(MESSAGES UIDNEXT UIDVALIDITY UNSEEN\\)";
+
+    public void testGetFolderState() {
+        assertEquals("3:44:17:2", ImapStore.getFolderState(ImapTestUtils.parseResponse(
+                "* STATUS \"INBOX\" (MESSAGES 17 UIDNEXT 44 UIDVALIDITY 3 UNSEEN 2)")
+                .getListOrEmpty(2)));
+        assertEquals("3:44::", ImapStore.getFolderState(ImapTestUtils.parseResponse(
+                "* STATUS \"INBOX\" (UIDVALIDITY 3 UIDNEXT 44)").getListOrEmpty(2)));
+        // Without UIDNEXT, a new message could go unnoticed
+        assertNull(ImapStore.getFolderState(ImapTestUtils.parseResponse(
+                "* STATUS \"INBOX\" (MESSAGES 17 UIDVALIDITY 3 UNSEEN 2)").getListOrEmpty(2)));
+    }
+
+    /**
+     * Without LIST-STATUS, the folders' states are asked for with a STATUS command each, all
+     * sent at once.
+     */
+    public void testGetFolderStatesWithStatus() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        expectLogin(mock);
+
+        mock.expect(getNextTag(false) + " STATUS \"INBOX\" " + STATUS_ITEMS_PATTERN,
+                new String[] {
+                "* STATUS \"INBOX\" (MESSAGES 17 UIDNEXT 44 UIDVALIDITY 3 UNSEEN 2)",
+                getNextTag(true) + " OK STATUS completed"
+                });
+        mock.expect(getNextTag(false) + " STATUS \"gone\" " + STATUS_ITEMS_PATTERN,
+                new String[] {
+                getNextTag(true) + " NO Mailbox doesn't exist"
+                });
+        mock.expect(getNextTag(false) + " STATUS \"Drafts\" " + STATUS_ITEMS_PATTERN,
+                new String[] {
+                "* STATUS \"Drafts\" (MESSAGES 0 UIDNEXT 1 UIDVALIDITY 5 UNSEEN 0)",
+                getNextTag(true) + " OK STATUS completed"
+                });
+        ArrayList<String> names = new ArrayList<String>();
+        names.add("INBOX");
+        names.add("gone");
+        names.add("Drafts");
+        HashMap<String, String> states = mStore.getFolderStates(names);
+        assertEquals(2, states.size());
+        assertEquals("3:44:17:2", states.get("INBOX"));
+        assertEquals("5:1:0:0", states.get("Drafts"));
+    }
+
+    /**
+     * With LIST-STATUS, the folder list comes with the folders' states, which saves the next
+     * getFolderStates() from asking again.  After that, it takes one LIST of just the folders
+     * asked about.
+     */
+    public void testGetFolderStatesWithListStatus() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        mock.expect(null, "* oK Imap 2000 Ready To Assist You");
+        mock.expect(getNextTag(false) + " CAPABILITY", new String[] {
+                "* cAPABILITY iMAP4rev1 lIST-sTATUS",
+                getNextTag(true) + " oK CAPABILITY completed"});
+        mock.expect(getNextTag(false) + " LOGIN user \"password\"",
+                getNextTag(true) + " oK user authenticated (Success)");
+
+        expectNoop(mock, true);
+        final String listCommand = " LIST \"\" \"\\*\" RETURN \\(STATUS "
+                + STATUS_ITEMS_PATTERN + "\\)";
+        mock.expect(getNextTag(false) + listCommand,
+                new String[] {
+                "* lIST (\\HAsNoChildren) \"/\" \"inbox\"",
+                "* sTATUS \"inbox\" (MESSAGES 17 UIDNEXT 44 UIDVALIDITY 3 UNSEEN 2)",
+                "* lIST (\\hAsnochildren) \"/\" \"Drafts\"",
+                "* sTATUS \"Drafts\" (MESSAGES 0 UIDNEXT 1 UIDVALIDITY 5 UNSEEN 0)",
+                "* lIST (\\nOselect) \"/\" \"no select\"",
+                getNextTag(true) + " oK SUCCESS"
+                });
+        assertEquals(3, mStore.updateFolders().length);
+
+        ArrayList<String> names = new ArrayList<String>();
+        names.add("INBOX");
+        names.add("Drafts");
+        HashMap<String, String> states = mStore.getFolderStates(names);
+        assertEquals(2, states.size());
+        assertEquals("3:44:17:2", states.get("INBOX"));
+        assertEquals("5:1:0:0", states.get("Drafts"));
+
+        names.remove("Drafts");
+        mock.expect(getNextTag(false) + " LIST \"\" \\(\"INBOX\"\\) RETURN \\(STATUS "
+                + STATUS_ITEMS_PATTERN + "\\)",
+                new String[] {
+                "* lIST (\\HAsNoChildren) \"/\" \"inbox\"",
+                "* sTATUS \"inbox\" (MESSAGES 18 UIDNEXT 45 UIDVALIDITY 3 UNSEEN 3)",
+                getNextTag(true) + " oK SUCCESS"
+                });
+        states = mStore.getFolderStates(names);
+        assertEquals(1, states.size());
+        assertEquals("3:45:18:3", states.get("INBOX"));
+    }
+
     public void testEncodeFolderName() {
         // null prefix
         assertEquals("",
@@ -1459,7 +1609,6 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         }
 
         // READ-WRITE
-        expectNoop(mock, true); // Need it because we reuse the connection.
         mock.expect(getNextTag(false) + " SELECT \\\"test\\\"",
                 new String[] {
                 "* 1 eXISTS",
@@ -1476,7 +1625,6 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         assertFalse(folder.isOpen());
 
         // READ-ONLY
-        expectNoop(mock, true); // Need it because we reuse the connection.
         mock.expect(getNextTag(false) + " SELECT \\\"test\\\"",
                 new String[] {
                 "* 2 eXISTS",
@@ -1489,7 +1637,6 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         assertEquals(OpenMode.READ_ONLY, folder.getMode());
 
         // Try to re-open as read-write.  Should send SELECT again.
-        expectNoop(mock, true); // Need it because we reuse the connection.
         mock.expect(getNextTag(false) + " SELECT \\\"test\\\"",
                 new String[] {
                 "* 15 eXISTS",
@@ -1516,9 +1663,6 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
 
         assertTrue(folder.exists());
 
-        // Connection verification
-        expectNoop(mock, true);
-
         // Doesn't exist
         folder = mStore.getFolder("no such folder");
         mock.expect(getNextTag(false) + " STATUS \\\"no such folder\\\" \\(UIDVALIDITY\\)",
@@ -1545,9 +1689,6 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
 
         assertTrue(folder.create(FolderType.HOLDS_MESSAGES));
 
-        // Connection verification
-        expectNoop(mock, true);
-
         // Failure
         mock.expect(getNextTag(false) + " CREATE \\\"&ZeVnLIqe-\\\"",
                 new String[] {
@@ -1984,6 +2125,9 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
      */
     public void testGetConnection() throws Exception {
         MockTransport mock = openAndInjectMockTransport();
+        MockClock clock = new MockClock();
+        Timer timer = new Timer();
+        mStore.setConnectionPoolForTest(new ImapConnectionPool(clock, timer));
 
         // Start: No pooled connections.
         assertEquals(0, mStore.getConnectionPoolForTest().size());
@@ -2022,14 +2166,23 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         mStore.poolConnection(con1);
         assertEquals(1, mStore.getConnectionPoolForTest().size());
 
-        // Get another connection.  Should get con1, after verifying the connection.
+        // Get another connection right away.  Should get con1, without verifying the connection.
+        final ImapConnection con1b = mStore.getConnection();
+        assertEquals(0, mStore.getConnectionPoolForTest().size()); // No connections left in pool
+        assertSame(con1, con1b);
+        assertEquals(0, mStore.getConnectionPoolForTest().getNoopCount());
+
+        // Save con1 again, and let it sit for a while.  It's verified before it's reused.
+        mStore.poolConnection(con1);
+        clock.advance(ImapConnectionPool.NOOP_IDLE_MILLIS);
         saveTag = resetTag(saveTag);
         mock.expect(getNextTag(false) + " NOOP", new String[] {getNextTag(true) + " oK success"});
 
-        final ImapConnection con1b = mStore.getConnection();
+        final ImapConnection con1c = mStore.getConnection();
         assertEquals(0, mStore.getConnectionPoolForTest().size()); // No connections left in pool
-        assertSame(con1, con1b);
+        assertSame(con1, con1c);
         assertTrue(con1.isTransportOpenForTest()); // We opened it.
+        assertEquals(1, mStore.getConnectionPoolForTest().getNoopCount());
 
         // Save con2.
         mStore.poolConnection(con2);
@@ -2038,7 +2191,8 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         // Resume con2 tags ...
         resetTag(saveTag);
 
-        // Try to get connection, but this time, connection gets closed.
+        // Try to get connection after a while, but this time, connection gets closed.
+        clock.advance(ImapConnectionPool.NOOP_IDLE_MILLIS);
         mock.expect(getNextTag(false) + " NOOP", new String[] {getNextTag(true) + "* bYE bye"});
         final ImapConnection con3 = mStore.getConnection();
         assertNotNull(con3);
@@ -2047,6 +2201,16 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         // It should be a new connection.
         assertNotSame(con1, con3);
         assertNotSame(con2, con3);
+        assertEquals(2, mStore.getConnectionPoolForTest().getReuseCount());
+
+        // Connections that sit in the pool for too long are closed.
+        mStore.poolConnection(con1);
+        clock.advance(ImapConnectionPool.MAX_IDLE_MILLIS);
+        mStore.getConnectionPoolForTest().sweep();
+        assertEquals(0, mStore.getConnectionPoolForTest().size());
+        assertFalse(con1.isTransportOpenForTest());
+
+        timer.cancel();
     }
 
     public void testCheckSettings() throws Exception {
@@ -2159,7 +2323,6 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
                 );
 
         // Try to open the folders.
-        expectNoop(mock, true);
         mock.expect(getNextTag(false) + " SELECT \"" + FOLDER_1_QUOTED + "\"", new String[] {
             "* FLAGS (\\Answered \\Flagged \\Draft \\Deleted \\Seen)",
             "* OK [PERMANENTFLAGS (\\Answered \\Flagged \\Draft \\Deleted \\Seen \\*)]",
@@ -2171,7 +2334,6 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         folders[2].open(OpenMode.READ_WRITE);
         folders[2].close(false);
 
-        expectNoop(mock, true);
         mock.expect(getNextTag(false) + " SELECT \"" + FOLDER_2 + "\"", new String[] {
             "* FLAGS (\\Answered \\Flagged \\Draft \\Deleted \\Seen)",
             "* OK [PERMANENTFLAGS (\\Answered \\Flagged \\Draft \\Deleted \\Seen \\*)]",
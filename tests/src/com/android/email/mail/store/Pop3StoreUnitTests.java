@@ -39,6 +39,9 @@ import com.android.emailcommon.mail.MessagingException;
 import com.android.emailcommon.provider.Account;
 import com.android.emailcommon.provider.HostAuth;
 
+import java.io.File;
+import java.util.ArrayList;
+
 /**
  * This is a series of unit tests for the POP3 Store class.  These tests must be locally
  * complete - no server(s) required.
@@ -49,6 +52,12 @@ public class Pop3StoreUnitTests extends AndroidTestCase {
 
     final static int PER_MESSAGE_SIZE = 100;
 
+    /** Identifies the server and user of the account of setUp(), in a UIDL snapshot */
+    final static String UIDL_SNAPSHOT_KEY = "user@server:999";
+
+    /** The smallest maildrop that keeps a UIDL snapshot */
+    final static int UIDL_SNAPSHOT_MIN_MESSAGES = 1000;
+
     /* These values are provided by setUp() */
     private Pop3Store mStore = null;
     private Pop3Store.Pop3Folder mFolder = null;
@@ -79,6 +88,7 @@ public class Pop3StoreUnitTests extends AndroidTestCase {
         testAccount.save(mMockContext);
         mStore = (Pop3Store) Pop3Store.newInstance(testAccount, mMockContext);
         mFolder = (Pop3Store.Pop3Folder) mStore.getFolder("INBOX");
+        mStore.getUidlSnapshotFile().delete();
     }
 
     /**
@@ -472,7 +482,8 @@ public class Pop3StoreUnitTests extends AndroidTestCase {
      * further along in each case, to test various recovery points.
      *
      * This test confirms that Pop3Store needs to call close() in the IOExceptionHandler in
-     * Pop3Folder.getMessages(), due to non-numeric data in a single-line UIDL.
+     * Pop3Folder.getMessages(), due to non-numeric data in a single-line UIDL (here, the one that
+     * checks a UIDL snapshot).
      */
     public void testCatchClosed1c() throws MessagingException {
 
@@ -482,11 +493,12 @@ public class Pop3StoreUnitTests extends AndroidTestCase {
         setupOpenFolder(mockTransport, 6000, null);
         mFolder.open(OpenMode.READ_ONLY);
         assertEquals(6000, mFolder.getMessageCount());
+        writeUidlSnapshot(6000);
 
         // index the message(s) - it should fail, because our stream is broken
         try {
             // setupUidlSequence(mockTransport, 1);
-            mockTransport.expect("UIDL 1", "+OK " + "bad-data" + " " + "THE-UIDL");
+            mockTransport.expect("UIDL 6000", "+OK " + "bad-data" + " " + "THE-UIDL");
 
             Message[] messages = mFolder.getMessages(1, 1, null);
             fail("Bad UIDL should cause getMessages() to throw.");
@@ -867,6 +879,112 @@ public class Pop3StoreUnitTests extends AndroidTestCase {
         checkFetchedMessage(singleMessage[0], 2, false);
     }
 
+    /**
+     * A large maildrop keeps the UIDL listing of the last sync.  The next sync only asks about
+     * the messages that have arrived since, unless the listing is out of date.
+     */
+    public void testUidlSnapshot() throws MessagingException {
+        final int count = UIDL_SNAPSHOT_MIN_MESSAGES;
+        MockTransport mockTransport = openAndInjectMockTransport();
+
+        // The first sync takes the whole listing
+        setupOpenFolder(mockTransport, count, null);
+        mFolder.open(OpenMode.READ_ONLY);
+        setupUidlSequence(mockTransport, count);
+        Message[] messages = mFolder.getMessages(count - 1, count, null);
+        assertEquals(2, messages.length);
+        assertEquals(getSingleMessageUID(count), messages[1].getUid());
+        mockTransport.expect("QUIT", "");
+        mFolder.close(false);
+
+        // Three messages have arrived; the last known one is checked, and the new ones are asked
+        // about, pipelined
+        setupOpenFolder(mockTransport, count + 3, "UIDL,PIPELINING");
+        mFolder.open(OpenMode.READ_ONLY);
+        for (int msgNum = count; msgNum <= count + 3; msgNum++) {
+            mockTransport.expect("UIDL " + msgNum,
+                    "+OK " + msgNum + " " + getSingleMessageUID(msgNum));
+        }
+        messages = mFolder.getMessages(count, count + 3, null);
+        assertEquals(4, messages.length);
+        for (int i = 0; i < messages.length; i++) {
+            assertEquals(getSingleMessageUID(count + i), messages[i].getUid());
+        }
+        mockTransport.expect("QUIT", "");
+        mFolder.close(false);
+
+        // Nothing has changed since, so the snapshot isn't saved again
+        final File file = mStore.getUidlSnapshotFile();
+        assertTrue(file.setLastModified(0));
+        setupOpenFolder(mockTransport, count + 3, "UIDL,PIPELINING");
+        mFolder.open(OpenMode.READ_ONLY);
+        mockTransport.expect("UIDL " + (count + 3),
+                "+OK " + (count + 3) + " " + getSingleMessageUID(count + 3));
+        messages = mFolder.getMessages(count + 3, count + 3, null);
+        assertEquals(getSingleMessageUID(count + 3), messages[0].getUid());
+        assertEquals(0, file.lastModified());
+        mockTransport.expect("QUIT", "");
+        mFolder.close(false);
+
+        // Messages have been deleted, so the snapshot is out of date
+        setupOpenFolder(mockTransport, count + 2, "UIDL,PIPELINING");
+        mFolder.open(OpenMode.READ_ONLY);
+        setupUidlSequence(mockTransport, count + 2);
+        messages = mFolder.getMessages(count + 2, count + 2, null);
+        assertEquals(getSingleMessageUID(count + 2), messages[0].getUid());
+
+        assertEquals(count + 2, Pop3UidlSnapshot.read(mStore.getUidlSnapshotFile(),
+                UIDL_SNAPSHOT_KEY).size());
+        assertNull(Pop3UidlSnapshot.read(mStore.getUidlSnapshotFile(), "other@server:999"));
+    }
+
+    /**
+     * If the server can pipeline, the RETR and TOP commands of a fetch are sent ahead of the
+     * responses.
+     */
+    public void testPipelinedFetch() throws MessagingException {
+        MockTransport mockTransport = openAndInjectMockTransport();
+        setupOpenFolder(mockTransport, 3, "UIDL,TOP,PIPELINING");
+        mFolder.open(OpenMode.READ_ONLY);
+        setupUidlSequence(mockTransport, 3);
+        Message[] messages = mFolder.getMessages(1, 3, null);
+        assertEquals(3, messages.length);
+
+        for (int msgNum = 1; msgNum <= 3; msgNum++) {
+            mockTransport.expect("RETR " + msgNum, getSingleMessageResponse());
+        }
+        FetchProfile fp = new FetchProfile();
+        fp.add(FetchProfile.Item.BODY);
+        mFolder.fetch(messages, fp, null);
+        for (int i = 0; i < messages.length; i++) {
+            checkFetchedMessage(messages[i], i + 1, false);
+        }
+
+        // The server refuses TOP for one message; it's retrieved with RETR once the others are
+        // done
+        mockTransport.expect("TOP 1 673", getSingleMessageResponse());
+        mockTransport.expect("TOP 2 673", "-ERR can't do that");
+        mockTransport.expect("TOP 3 673", getSingleMessageResponse());
+        mockTransport.expect("RETR 2", getSingleMessageResponse());
+        fp = new FetchProfile();
+        fp.add(FetchProfile.Item.BODY_SANE);
+        mFolder.fetch(messages, fp, null);
+        for (int i = 0; i < messages.length; i++) {
+            checkFetchedMessage(messages[i], i + 1, false);
+        }
+    }
+
+    /**
+     * Writes a UIDL snapshot of a maildrop like that of {@link #setupUidlSequence}.
+     */
+    private void writeUidlSnapshot(int numMessages) {
+        ArrayList<String> uids = new ArrayList<String>();
+        for (int msgNum = 1; msgNum <= numMessages; ++msgNum) {
+            uids.add(getSingleMessageUID(msgNum));
+        }
+        Pop3UidlSnapshot.write(mStore.getUidlSnapshotFile(), UIDL_SNAPSHOT_KEY, uids);
+    }
+
     /**
      * Set up a basic MockTransport. open it, and inject it into mStore
      */
@@ -1049,13 +1167,31 @@ public class Pop3StoreUnitTests extends AndroidTestCase {
             transport.expect(retrCommand, "+OK message follows");
         }
 
-        transport.expect(null, "Date: 26 Aug 76 1429 EDT");
-        transport.expect(null, "From: Jones@Registry.Org");
-        transport.expect(null, "To:   Smith@Registry.Org");
-        transport.expect(null, "CC:   Chris@Registry.Org");
-        transport.expect(null, "Reply-To: Roger@Registry.Org");
-        transport.expect(null, "");
-        transport.expect(null, ".");
+        for (String line : SINGLE_MESSAGE_LINES) {
+            transport.expect(null, line);
+        }
+    }
+
+    /** The lines of the message of setupSingleMessage(), after the "+OK" */
+    private static final String[] SINGLE_MESSAGE_LINES = new String[] {
+        "Date: 26 Aug 76 1429 EDT",
+        "From: Jones@Registry.Org",
+        "To:   Smith@Registry.Org",
+        "CC:   Chris@Registry.Org",
+        "Reply-To: Roger@Registry.Org",
+        "",
+        "."
+    };
+
+    /**
+     * @return the whole response to a RETR or TOP of the message of setupSingleMessage(), for
+     * a pipelined command
+     */
+    private static String[] getSingleMessageResponse() {
+        String[] response = new String[SINGLE_MESSAGE_LINES.length + 1];
+        response[0] = "+OK message follows";
+        System.arraycopy(SINGLE_MESSAGE_LINES, 0, response, 1, SINGLE_MESSAGE_LINES.length);
+        return response;
     }
 
     /**
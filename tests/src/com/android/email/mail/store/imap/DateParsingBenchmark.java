@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store.imap;
+
+import com.android.emailcommon.utility.Utility;
+
+import org.apache.james.mime4j.field.datetime.DateTime;
+import org.apache.james.mime4j.field.datetime.parser.DateTimeParser;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.io.StringReader;
+import java.text.SimpleDateFormat;
+import java.util.GregorianCalendar;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Times the hand-written date parsers that run for every message of a sync against what they
+ * replaced: {@link ImapString#parseDateTime} against a SimpleDateFormat for INTERNALDATEs,
+ * {@link DateTime#parse} against the generated mime4j parser for "Date" headers, and
+ * {@link Utility#parseEmailDateTimeToMillis} against a GregorianCalendar for the ISO 8601 dates
+ * of meeting invitations.
+ *
+ * The sample dates include the irregular forms seen from servers and clients (single-digit days,
+ * upper-case months, comments, two-digit years), and each test also checks that both parsers
+ * agree on every one of them; the date header ones are not covered by any other test.
+ */
+@LargeTest
+public class DateParsingBenchmark extends AndroidTestCase {
+    private static final String TAG = "DateParsingBenchmark";
+    private static final int ITERATIONS = 2000;
+
+    /** INTERNALDATEs, as servers send them */
+    private static final String[] IMAP_DATES = new String[] {
+        "27-Oct-2010 18:06:38 +0000",
+        "01-Jan-2009 11:34:56 -0100",
+        " 5-Jun-2012 09:15:02 -0700",
+        "5-Jun-2012 09:15:02 -0700",
+        "29-Feb-2012 23:59:59 +0530",
+        "14-Mar-2011 07:00:00 +0900",
+        "31-Dec-1999 23:59:59 -0500",
+        "03-JUL-2012 12:00:00 +0200",
+    };
+
+    /** "Date" headers, as clients write them; the last few need the generated parser */
+    private static final String[] MESSAGE_DATES = new String[] {
+        "Wed, 27 Oct 2010 11:06:38 -0700",
+        "Tue, 5 Jun 2012 16:42:17 +0000",
+        "Thu, 07 Jun 2012 08:15:02 -0400 (EDT)",
+        "Mon, 14 Mar 2011 07:00:00 +0900",
+        "14 Mar 2011 07:00 +0100",
+        "Fri, 1 Jan 2010 00:00:00 +0000 (UTC)",
+        "Sat, 31 Dec 2011 23:59:59 -0800",
+        "Tue, 05 Jun 2012 16:42:17 GMT",
+        "Thu, 10 Dec 09 15:08:08 -0700",
+        "Mon,  4 Jun 2012 10:00:00 +0200",
+    };
+
+    /** The dates of meeting invitations */
+    private static final String[] ISO_DATES = new String[] {
+        "2010-02-23T16:00:00.000Z",
+        "2012-06-05T09:30:00.000Z",
+        "2011-12-31T23:59:59.000Z",
+        "2012-02-29T12:00:00Z",
+    };
+
+    public void testImapDates() throws Exception {
+        final SimpleDateFormat format = new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss Z", Locale.US);
+
+        long formatTime = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (String date : IMAP_DATES) {
+                format.parse(date);
+            }
+        }
+        formatTime = SystemClock.elapsedRealtime() - formatTime;
+
+        long fastTime = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (String date : IMAP_DATES) {
+                ImapString.parseDateTime(date);
+            }
+        }
+        fastTime = SystemClock.elapsedRealtime() - fastTime;
+
+        Log.d(TAG, IMAP_DATES.length + " INTERNALDATEs x" + ITERATIONS + ": SimpleDateFormat="
+                + formatTime + "ms by hand=" + fastTime + "ms");
+        for (String date : IMAP_DATES) {
+            assertEquals(date, format.parse(date.trim()).getTime(),
+                    ImapString.parseDateTime(date));
+        }
+    }
+
+    public void testMessageDates() throws Exception {
+        long generatedTime = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (String date : MESSAGE_DATES) {
+                new DateTimeParser(new StringReader(date)).parseAll();
+            }
+        }
+        generatedTime = SystemClock.elapsedRealtime() - generatedTime;
+
+        long fastTime = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (String date : MESSAGE_DATES) {
+                DateTime.parse(date);
+            }
+        }
+        fastTime = SystemClock.elapsedRealtime() - fastTime;
+
+        Log.d(TAG, MESSAGE_DATES.length + " Date headers x" + ITERATIONS + ": generated parser="
+                + generatedTime + "ms with fast path=" + fastTime + "ms");
+        for (String date : MESSAGE_DATES) {
+            assertEquals(date, new DateTimeParser(new StringReader(date)).parseAll().getDate(),
+                    DateTime.parse(date).getDate());
+        }
+    }
+
+    public void testIsoDates() {
+        long calendarTime = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (String date : ISO_DATES) {
+                parseWithCalendar(date);
+            }
+        }
+        calendarTime = SystemClock.elapsedRealtime() - calendarTime;
+
+        long fastTime = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (String date : ISO_DATES) {
+                Utility.parseEmailDateTimeToMillis(date);
+            }
+        }
+        fastTime = SystemClock.elapsedRealtime() - fastTime;
+
+        Log.d(TAG, ISO_DATES.length + " ISO 8601 dates x" + ITERATIONS + ": calendar="
+                + calendarTime + "ms by hand=" + fastTime + "ms");
+        for (String date : ISO_DATES) {
+            assertEquals(date, parseWithCalendar(date), Utility.parseEmailDateTimeToMillis(date));
+        }
+    }
+
+    /** How Utility.parseEmailDateTimeToMillis() used to do it */
+    private static long parseWithCalendar(String date) {
+        GregorianCalendar cal = new GregorianCalendar(Integer.parseInt(date.substring(0, 4)),
+                Integer.parseInt(date.substring(5, 7)) - 1, Integer.parseInt(date.substring(8, 10)),
+                Integer.parseInt(date.substring(11, 13)), Integer.parseInt(date.substring(14, 16)),
+                Integer.parseInt(date.substring(17, 19)));
+        cal.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return cal.getTimeInMillis();
+    }
+}
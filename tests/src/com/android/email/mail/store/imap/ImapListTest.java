@@ -161,6 +161,56 @@ public class ImapListTest extends TestCase {
         assertElement(null, buildList(K1).getKeyedElementOrNull("abcd", false));
     }
 
+    public void testGetKeyedElementOrNullIndexed() {
+        final ImapString K1 = new ImapSimpleString("aBCd");
+        final ImapString K2 = new ImapSimpleString("Def");
+        final ImapString K3 = new ImapSimpleString("abC");
+        final ImapString UID = new ImapSimpleString(ImapConstants.UID);
+        final ImapString UID_VALUE = new ImapSimpleString("123");
+
+        // Long enough to be indexed
+        ImapList list = buildList(
+                K1, STRING_1,
+                K2, K3,
+                K3, STRING_2,
+                UID, UID_VALUE,
+                K3, STRING_1); // Only the first "abc" counts
+        assertTrue(list.size() >= ImapList.KEY_INDEX_MIN_SIZE);
+
+        assertElement(null,     list.getKeyedElementOrNull("ab", false));
+        assertElement(STRING_1, list.getKeyedElementOrNull("abcd", false));
+        assertElement(K3,       list.getKeyedElementOrNull("def", false));
+        assertElement(STRING_2, list.getKeyedElementOrNull("ABC", false));
+        assertElement(UID_VALUE, list.getKeyedElementOrNull(ImapConstants.UID, false));
+        assertElement(UID_VALUE, list.getKeyedElementOrNull("uid", false));
+        assertElement(null, list.getKeyedElementOrNull(null, false));
+
+        // Prefix matches still work
+        assertElement(STRING_1, list.getKeyedElementOrNull("ab", true));
+        assertElement(K3,       list.getKeyedElementOrNull("de", true));
+
+        // Same results as scanning the list
+        for (String key : new String[] {"ab", "abcd", "def", "abc", "uid", "xyz"}) {
+            assertElement(list.scanForKeyedElement(key, false),
+                    list.getKeyedElementOrNull(key, false));
+        }
+
+        // Elements added later are found
+        list.add(new ImapSimpleString("new"));
+        list.add(LIST_1);
+        assertElement(LIST_1, list.getKeyedElementOrNull("NEW", false));
+    }
+
+    public void testIntern() {
+        assertSame(ImapConstants.FETCH, ImapConstants.intern(new String("FETCH")));
+        assertSame(ImapConstants.UID, ImapConstants.intern(new String("UID")));
+        final String other = new String("BODY[]");
+        assertSame(other, ImapConstants.intern(other));
+        // Case matters
+        final String lower = new String("fetch");
+        assertSame(lower, ImapConstants.intern(lower));
+    }
+
     public void getKeyedListOrEmpty() {
         final ImapString K1 = new ImapSimpleString("Key");
         ImapList list = buildList(K1, LIST_1);
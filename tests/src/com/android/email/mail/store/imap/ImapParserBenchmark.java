@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store.imap;
+
+import com.android.email.mail.transport.DiscourseLogger;
+import com.android.emailcommon.TempDirectory;
+import com.android.emailcommon.utility.Utility;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Times how long {@link ImapResponseParser} takes to read a 500-message envelope fetch, made of
+ * FETCH responses recorded from real servers, and how long the five lookups per message that
+ * ImapFolder.fetchInternal() does take with the key index of {@link ImapList}, compared with a
+ * linear scan of the list.
+ *
+ * Run it by hand and read the timings from logcat.  It fails only if the parser loses responses,
+ * or if an indexed lookup finds a different element than the scan does.
+ */
+@LargeTest
+public class ImapParserBenchmark extends AndroidTestCase {
+    private static final String TAG = "ImapParserBenchmark";
+    private static final int MESSAGES = 500;
+    private static final int ITERATIONS = 20;
+
+    /** The keys looked up for each message of an envelope fetch */
+    private static final String[] KEYS = new String[] {
+        ImapConstants.UID, ImapConstants.FLAGS, ImapConstants.INTERNALDATE,
+        ImapConstants.RFC822_SIZE, ImapConstants.BODYSTRUCTURE
+    };
+
+    /**
+     * The FETCH responses of {@link #MESSAGES} messages, taking turns with the recorded responses
+     * of {@link ImapTestUtils#RECORDED_FETCH_RESPONSES}.
+     */
+    private static String buildFetchResponses() {
+        final String[] recorded = ImapTestUtils.RECORDED_FETCH_RESPONSES;
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 1; i <= MESSAGES; i++) {
+            sb.append(String.format(Locale.US, recorded[i % recorded.length], i, 1000 + i));
+        }
+        sb.append("99 OK SUCCESS\r\n");
+        return sb.toString();
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TempDirectory.setTempDirectory(getContext());
+    }
+
+    private static ArrayList<ImapResponse> parse(byte[] data) throws Exception {
+        final ImapResponseParser parser = new ImapResponseParser(
+                new ByteArrayInputStream(data), new DiscourseLogger(4));
+        final ArrayList<ImapResponse> responses = new ArrayList<ImapResponse>();
+        ImapResponse response;
+        do {
+            response = parser.readResponse();
+            responses.add(response);
+        } while (!response.isTagged());
+        return responses;
+    }
+
+    public void testParseFetchResponses() throws Exception {
+        final byte[] data = Utility.toAscii(buildFetchResponses());
+
+        long time = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            parse(data);
+        }
+        time = SystemClock.elapsedRealtime() - time;
+
+        Log.d(TAG, "parse " + MESSAGES + " FETCH responses x" + ITERATIONS + ": " + time + "ms");
+        assertEquals(MESSAGES + 1, parse(data).size());
+    }
+
+    public void testKeyedLookups() throws Exception {
+        final ArrayList<ImapResponse> responses = parse(Utility.toAscii(buildFetchResponses()));
+        final ArrayList<ImapList> fetchLists = new ArrayList<ImapList>();
+        for (ImapResponse response : responses) {
+            if (response.isDataResponse(1, ImapConstants.FETCH)) {
+                fetchLists.add(response.getListOrEmpty(2));
+            }
+        }
+        assertEquals(MESSAGES, fetchLists.size());
+
+        long scanTime = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (ImapList list : fetchLists) {
+                for (String key : KEYS) {
+                    list.scanForKeyedElement(key, false);
+                }
+            }
+        }
+        scanTime = SystemClock.elapsedRealtime() - scanTime;
+
+        long indexTime = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (ImapList list : fetchLists) {
+                for (String key : KEYS) {
+                    list.getKeyedElementOrNull(key, false);
+                }
+            }
+        }
+        indexTime = SystemClock.elapsedRealtime() - indexTime;
+
+        Log.d(TAG, KEYS.length + " lookups in " + MESSAGES + " FETCH lists x" + ITERATIONS
+                + ": scan=" + scanTime + "ms index=" + indexTime + "ms");
+        for (ImapList list : fetchLists) {
+            for (String key : KEYS) {
+                assertSame(list.scanForKeyedElement(key, false),
+                        list.getKeyedElementOrNull(key, false));
+            }
+        }
+    }
+}
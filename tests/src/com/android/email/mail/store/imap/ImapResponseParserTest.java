@@ -32,6 +32,7 @@ import android.test.suitebuilder.annotation.SmallTest;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
 @SmallTest
 public class ImapResponseParserTest extends AndroidTestCase {
@@ -220,6 +221,86 @@ public class ImapResponseParserTest extends AndroidTestCase {
                 ), r);
     }
 
+    /** Consumes the literals of FETCH responses, reading at most a few bytes of each */
+    private static class TestLiteralConsumer implements ImapResponseParser.LiteralConsumer {
+        private final int mReadLength;
+        final StringBuilder mConsumed = new StringBuilder();
+
+        TestLiteralConsumer(int readLength) {
+            mReadLength = readLength;
+        }
+
+        @Override
+        public boolean consumeLiteral(ImapResponse response, ImapList list, InputStream in)
+                throws IOException {
+            if (!response.isDataResponse(1, ImapConstants.FETCH)) {
+                return false;
+            }
+            mConsumed.append(list.getKeyedStringOrEmpty(ImapConstants.UID).getString())
+                    .append(' ').append(list.getStringOrEmpty(list.size() - 1).getString())
+                    .append('=');
+            for (int i = 0; i < mReadLength; i++) {
+                int b = in.read();
+                if (b == -1) {
+                    break;
+                }
+                mConsumed.append((char) b);
+            }
+            mConsumed.append(';');
+            return true;
+        }
+    }
+
+    public void testLiteralConsumer() throws Exception {
+        final String responses =
+                "* 1 FETCH (UID 10 BODY[] {5}\r\n" +
+                "ABCDE BODY[2] {3}\r\n" +
+                "xyz)\r\n" +
+                "* test {3}\r\n" +
+                "ABC\r\n" +
+                "* 2 FETCH (UID 11 BODY[] {4}\r\n" +
+                "wxyz)\r\n";
+
+        // Literals are consumed as they're parsed, and replaced with empty strings
+        TestLiteralConsumer consumer = new TestLiteralConsumer(100);
+        ImapResponseParser p = generateParser(100000, responses);
+        ImapResponse r = p.readResponse(consumer);
+        assertElement(buildResponse(null, false,
+                new ImapSimpleString("1"),
+                new ImapSimpleString("FETCH"),
+                buildList(
+                        new ImapSimpleString("UID"),
+                        new ImapSimpleString("10"),
+                        new ImapSimpleString("BODY[]"),
+                        ImapString.EMPTY,
+                        new ImapSimpleString("BODY[2]"),
+                        ImapString.EMPTY)
+                ), r);
+        assertEquals("10 BODY[]=ABCDE;10 BODY[2]=xyz;", consumer.mConsumed.toString());
+
+        // Literals the consumer declines are kept as usual
+        r = p.readResponse(consumer);
+        assertElement(buildResponse(null, false,
+                new ImapSimpleString("test"),
+                new ImapMemoryLiteral(createFixedLengthInputStream("ABC"))
+                ), r);
+
+        // Whatever the consumer doesn't read is skipped
+        consumer = new TestLiteralConsumer(2);
+        p = generateParser(100000, responses);
+        p.readResponse(consumer);
+        p.readResponse(consumer);
+        r = p.readResponse(consumer);
+        assertEquals("11", r.getListOrEmpty(2).getKeyedStringOrEmpty("UID").getString());
+        assertEquals("10 BODY[]=AB;10 BODY[2]=xy;11 BODY[]=wx;", consumer.mConsumed.toString());
+
+        // Without a consumer, nothing changes
+        p = generateParser(100000, responses);
+        r = p.readResponse();
+        assertEquals("ABCDE",
+                r.getListOrEmpty(2).getKeyedStringOrEmpty("BODY[]").getString());
+    }
+
     public void testAlert() throws Exception {
         ImapResponse r;
         final ImapResponseParser p = generateParser(100000,
@@ -19,6 +19,7 @@ package com.android.email.mail.store.imap;
 import static com.android.email.mail.store.imap.ImapTestUtils.createFixedLengthInputStream;
 
 import com.android.emailcommon.TempDirectory;
+import com.android.emailcommon.utility.BufferPool;
 import com.android.emailcommon.utility.Utility;
 
 import org.apache.commons.io.IOUtils;
@@ -27,6 +28,7 @@ import android.test.AndroidTestCase;
 import android.test.suitebuilder.annotation.SmallTest;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Date;
 import java.util.Locale;
 
@@ -104,6 +106,68 @@ public class ImapStringTest extends AndroidTestCase {
         assertNull(nonDate.getDateOrNull());
     }
 
+    public void testParseDateTime() {
+        final long expected = Date.UTC(109, 0, 1, 12, 34, 56);
+        assertEquals(expected, ImapString.parseDateTime("01-Jan-2009 11:34:56 -0100"));
+        assertEquals(expected, ImapString.parseDateTime(" 1-Jan-2009 11:34:56 -0100"));
+        assertEquals(expected, ImapString.parseDateTime("1-Jan-2009 11:34:56 -0100"));
+        assertEquals(expected, ImapString.parseDateTime("01-JAN-2009 11:34:56 -0100"));
+        assertEquals(expected, ImapString.parseDateTime("01-Jan-2009 18:04:56 +0530"));
+        assertEquals(expected, ImapString.parseDateTime("01-Jan-2009 12:34:56 +0000"));
+        assertEquals(Date.UTC(112, 1, 29, 23, 59, 59),
+                ImapString.parseDateTime("29-Feb-2012 23:59:59 +0000"));
+
+        // Not in the form that's parsed by hand; left to the SimpleDateFormat
+        assertEquals(Long.MIN_VALUE, ImapString.parseDateTime(""));
+        assertEquals(Long.MIN_VALUE, ImapString.parseDateTime("1234"));
+        assertEquals(Long.MIN_VALUE, ImapString.parseDateTime("01-Jan-2009 11:34:56 GMT"));
+        assertEquals(Long.MIN_VALUE, ImapString.parseDateTime("01-Jan-2009 11:34:56 0100"));
+        assertEquals(Long.MIN_VALUE, ImapString.parseDateTime("01-Foo-2009 11:34:56 -0100"));
+        assertEquals(Long.MIN_VALUE, ImapString.parseDateTime("01/Jan/2009 11:34:56 -0100"));
+        assertEquals(Long.MIN_VALUE, ImapString.parseDateTime("01-Jan-2009 24:34:56 -0100"));
+        assertEquals(Long.MIN_VALUE, ImapString.parseDateTime("01-Jan-1009 11:34:56 -0100"));
+
+        // Which still parses the rest of what it always did
+        assertEquals("1 Jan 1009 12:34:56 GMT",
+                new ImapSimpleString("01-Jan-1009 11:34:56 -0100").getDateOrNull().toGMTString());
+    }
+
+    /**
+     * Dates are parsed on several connections at once.
+     */
+    public void testGetDateOrNullOnSeveralThreads() throws Exception {
+        final String[] dates = new String[] {
+            "01-Jan-2009 11:34:56 -0100", "27-Oct-2010 18:06:38 +0000", "5-Jun-2012 09:15:02 -0700"
+        };
+        final Date[] expected = new Date[dates.length];
+        for (int i = 0; i < dates.length; i++) {
+            expected[i] = new ImapSimpleString(dates[i]).getDateOrNull();
+        }
+        final Throwable[] failure = new Throwable[1];
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 1000; i++) {
+                            final int j = i % dates.length;
+                            assertEquals(expected[j],
+                                    new ImapSimpleString(dates[j]).getDateOrNull());
+                        }
+                    } catch (Throwable e) {
+                        failure[0] = e;
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(failure[0]);
+    }
+
     /**
      * Confirms that getDateOrNull() works fine regardless of the current locale.
      */
@@ -130,6 +194,37 @@ public class ImapStringTest extends AndroidTestCase {
         doLiteralTest(new ImapMemoryLiteral(createFixedLengthInputStream(CONTENT)), CONTENT);
     }
 
+    /**
+     * Only large literals use a pooled buffer, which isn't returned while a stream over it is
+     * still being read.
+     */
+    public void testImapMemoryLiteralPooling() throws Exception {
+        BufferPool.reset();
+        ImapMemoryLiteral small = new ImapMemoryLiteral(createFixedLengthInputStream("abc"));
+        assertEquals(0, BufferPool.getByteAcquireCount());
+        small.destroy();
+
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < ImapMemoryLiteral.MIN_POOLED_LENGTH) {
+            sb.append("0123456789");
+        }
+        final String content = sb.toString();
+        ImapMemoryLiteral large = new ImapMemoryLiteral(createFixedLengthInputStream(content));
+        assertEquals(1, BufferPool.getByteAcquireCount());
+        assertEquals(1, BufferPool.getByteAllocationCount());
+        doLiteralTest(large, content);
+
+        // A stream that's been started still reads the literal after it's destroyed...
+        InputStream in = large.getAsStream();
+        assertEquals('0', in.read());
+        large.destroy();
+        assertEquals(content.substring(1), Utility.fromAscii(IOUtils.toByteArray(in)));
+
+        // ... and the buffer goes back to the pool once the stream has been read.
+        BufferPool.acquireBytes();
+        assertEquals(1, BufferPool.getByteAllocationCount());
+    }
+
     /** Test for ImapTempFileLiteral */
     public void testImapTempFileLiteral() throws Exception {
         final String CONTENT = "def";
@@ -35,6 +35,38 @@ import junit.framework.Assert;
 public final class ImapTestUtils {
     private ImapTestUtils() {}
 
+    /**
+     * FETCH responses as servers sent them (the same ones that ImapStoreUnitTests plays back), as
+     * format strings of the message sequence number and the UID: an envelope fetch, a simple
+     * BODYSTRUCTURE, and a multipart BODYSTRUCTURE with literals.
+     */
+    public static final String[] RECORDED_FETCH_RESPONSES = new String[] {
+        "* %d fETCH (uID %d rFC822.sIZE 120626 iNTERNALDATE \"17-may-2010 22:00:15 +0000\""
+                + "fLAGS (\\Seen) bODY[hEADER.FIELDS (dAte sUbject fRom cOntent-type tO cC"
+                + " mEssage-id)] {279}\r\n"
+                + "From: Xxxxxx Yyyyy <userxx@android.com>\r\n"
+                + "Date: Mon, 17 May 2010 14:59:52 -0700\r\n"
+                + "Message-ID: <x0000000000000000000000000000000000000000000000y@android.com>\r\n"
+                + "Subject: ssubject\r\n"
+                + "To: android.test01@android.com\r\n"
+                + "Content-Type: multipart/mixed; boundary=a00000000000000000000000000b\r\n"
+                + "\r\n"
+                + ")\r\n",
+        "* %d fETCH (uID %d bODYSTRUCTURE (\"tEXT\" \"pLAIN\" nIL"
+                + " nIL nIL nIL 18 3 nIL nIL nIL))\r\n",
+        "* %d fETCH (uID %d bODYSTRUCTURE ((\"tEXT\" \"pLAIN\" () {20}\r\n"
+                + "long content id#@!@#"
+                + " NIL \"7BIT\" 18 3 NIL NIL NIL)"
+                + "(\"IMAGE\" \"PNG\" (\"NAME\" {10}\r\n"
+                + "device.png) NIL NIL \"BASE64\" {6}\r\n"
+                + "117840 NIL (\"aTTACHMENT\" (\"fILENAME\" \"device.png\")) NIL)"
+                + "(\"TEXT\" \"HTML\" () NIL NIL \"7BIT\" 100 NIL 123 (\"aTTACHMENT\""
+                + "(\"fILENAME\" {15}\r\n"
+                + "attachment.html \"SIZE\" 555)) NIL)"
+                + "((\"TEXT\" \"HTML\" NIL NIL \"BASE64\")(\"XXX\" \"YYY\"))"
+                + "\"mIXED\" (\"bOUNDARY\" \"00032556278a7005e40486d159ca\") NIL NIL))\r\n"
+    };
+
     // Generic constants used by various tests.
     public static final ImapString STRING_1 = new ImapSimpleString("aBc");
     public static final ImapString STRING_2 = new ImapSimpleString("X y z");
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Inflater;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of {@link DeflateCompression}
+ */
+public class DeflateCompressionTest extends TestCase {
+    private static final String COMMAND = "1 UID FETCH 1:* (UID FLAGS)\r\n";
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        assertTrue(DeflateCompression.isSupported());
+    }
+
+    /** Shortcut to create a byte array */
+    private static byte[] b(String chars) {
+        byte[] ret = new byte[chars.length()];
+        for (int i = 0; i < chars.length(); i++) {
+            ret[i] = (byte) chars.charAt(i);
+        }
+        return ret;
+    }
+
+    /** A "server" whose input is nothing, and whose output we can look at */
+    private static DeflateCompression newCompression(ByteArrayOutputStream wire) {
+        return new DeflateCompression(new ByteArrayInputStream(new byte[0]), wire);
+    }
+
+    /**
+     * Each flush must send everything written so far, so that the other side doesn't wait for
+     * more.
+     */
+    public void testFlush() throws Exception {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        OutputStream out = newCompression(wire).getOutputStream();
+        Inflater inflater = new Inflater(true);
+        byte[] inflated = new byte[1024];
+
+        for (int i = 0; i < 3; i++) {
+            wire.reset();
+            out.write(b(COMMAND));
+            out.flush();
+            assertTrue(wire.size() > 0);
+            inflater.setInput(wire.toByteArray());
+            int n = inflater.inflate(inflated);
+            assertEquals(COMMAND, new String(inflated, 0, n, "ISO-8859-1"));
+            assertTrue(inflater.needsInput());
+        }
+        inflater.end();
+    }
+
+    public void testRoundTrip() throws IOException {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        DeflateCompression sender = newCompression(wire);
+        OutputStream out = sender.getOutputStream();
+        for (int i = 0; i < 100; i++) {
+            out.write(b("* " + i + " FETCH (UID " + (1000 + i) + " FLAGS (\\Seen))\r\n"));
+        }
+        out.flush();
+
+        DeflateCompression receiver = new DeflateCompression(
+                new ByteArrayInputStream(wire.toByteArray()), new ByteArrayOutputStream());
+        LineInputStream in = new LineInputStream(receiver.getInputStream());
+        for (int i = 0; i < 100; i++) {
+            assertEquals("* " + i + " FETCH (UID " + (1000 + i) + " FLAGS (\\Seen))",
+                    in.readLine());
+        }
+        // The data has all been inflated, but the stream hasn't ended
+        assertNull(in.readLine());
+
+        // Repetitive protocol lines compress well, both ways
+        assertTrue(sender.getCompressionRatio() > 2);
+        assertTrue(receiver.getCompressionRatio() > 2);
+    }
+
+    public void testCorruptInput() throws IOException {
+        InputStream in = new DeflateCompression(new ByteArrayInputStream(
+                new byte[] { (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff }),
+                new ByteArrayOutputStream()).getInputStream();
+        try {
+            in.read(new byte[16], 0, 16);
+            fail("Corrupt input was inflated");
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testClosed() throws IOException {
+        DeflateCompression compression = newCompression(new ByteArrayOutputStream());
+        compression.getInputStream().close();
+        compression.getOutputStream().close();
+        try {
+            compression.getInputStream().read();
+            fail("Read from a closed stream");
+        } catch (IOException expected) {
+        }
+        try {
+            compression.getOutputStream().write(b(COMMAND));
+            fail("Wrote to a closed stream");
+        } catch (IOException expected) {
+        }
+        assertEquals(0f, newCompression(new ByteArrayOutputStream()).getCompressionRatio());
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.transport;
+
+import android.test.MoreAsserts;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of {@link LineInputStream}
+ */
+public class LineInputStreamTest extends TestCase {
+
+    /** Shortcut to create a byte array */
+    private static byte[] b(String chars) {
+        byte[] ret = new byte[chars.length()];
+        for (int i = 0; i < chars.length(); i++) {
+            ret[i] = (byte) chars.charAt(i);
+        }
+        return ret;
+    }
+
+    /** A stream that returns at most a few bytes per read, like a slow socket */
+    private static class TrickleInputStream extends ByteArrayInputStream {
+        private final int mMaxRead;
+
+        TrickleInputStream(byte[] data, int maxRead) {
+            super(data);
+            mMaxRead = maxRead;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, mMaxRead));
+        }
+    }
+
+    private static final String LINES = "+OK ready\r\n1 1234\r\nbare LF\nstray\rCR\r\n\r\nlast";
+
+    private static void checkLines(InputStream in, int bufferSize) throws IOException {
+        LineInputStream lis = new LineInputStream(in, bufferSize);
+        assertEquals("+OK ready", lis.readLine());
+        assertEquals("1 1234", lis.readLine());
+        assertEquals("bare LF", lis.readLine());
+        assertEquals("strayCR", lis.readLine());
+        assertEquals("", lis.readLine());
+        assertEquals("last", lis.readLine());
+        assertNull(lis.readLine());
+    }
+
+    public void testReadLine() throws IOException {
+        checkLines(new ByteArrayInputStream(b(LINES)), LineInputStream.BUFFER_SIZE);
+        // Lines that span several refills of a small buffer
+        for (int bufferSize = 1; bufferSize < 8; bufferSize++) {
+            checkLines(new ByteArrayInputStream(b(LINES)), bufferSize);
+            checkLines(new TrickleInputStream(b(LINES), 3), bufferSize);
+        }
+    }
+
+    public void testNonAscii() throws IOException {
+        LineInputStream lis = new LineInputStream(new ByteArrayInputStream(
+                new byte[] { 'a', (byte) 0xe9, (byte) 0xff, '\r', '\n' }));
+        assertEquals("a\u00e9\u00ff", lis.readLine());
+    }
+
+    public void testMixedReads() throws IOException {
+        LineInputStream lis = new LineInputStream(
+                new ByteArrayInputStream(b("+OK 6 octets\r\nabcdef.\r\nnext\r\n")), 8);
+        assertEquals("+OK 6 octets", lis.readLine());
+        byte[] data = new byte[6];
+        int count = 0;
+        while (count < data.length) {
+            count += lis.read(data, count, data.length - count);
+        }
+        MoreAsserts.assertEquals(b("abcdef"), data);
+        assertEquals('.', lis.read());
+        assertEquals("", lis.readLine());
+        assertEquals("next", lis.readLine());
+        assertEquals(-1, lis.read());
+    }
+
+    public void testLargeRead() throws IOException {
+        byte[] data = new byte[LineInputStream.BUFFER_SIZE * 3];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        LineInputStream lis = new LineInputStream(new ByteArrayInputStream(data));
+        byte[] read = new byte[data.length];
+        int count = 0;
+        int n;
+        while ((n = lis.read(read, count, read.length - count)) > 0) {
+            count += n;
+        }
+        assertEquals(data.length, count);
+        MoreAsserts.assertEquals(data, read);
+    }
+
+    public void testClosed() throws IOException {
+        LineInputStream lis = new LineInputStream(new ByteArrayInputStream(b("line\r\n")));
+        lis.close();
+        try {
+            lis.readLine();
+            fail("Read from a closed stream");
+        } catch (IOException expected) {
+        }
+    }
+}
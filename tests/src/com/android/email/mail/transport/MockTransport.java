@@ -177,6 +177,25 @@ public class MockTransport implements Transport {
         return mTrustCertificates;
     }
 
+    /**
+     * The mock's lines aren't streams that could be compressed, so compression is never offered
+     * to the protocols.
+     */
+    @Override
+    public boolean canTryCompression() {
+        return false;
+    }
+
+    @Override
+    public void startCompression() {
+        SmtpSenderUnitTests.fail("Compression isn't supported by MockTransport");
+    }
+
+    @Override
+    public float getCompressionRatio() {
+        return 0;
+    }
+
     /**
      * Check that TLS was started
      */
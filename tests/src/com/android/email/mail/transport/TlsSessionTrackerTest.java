@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.transport;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of {@link TlsSessionTracker}
+ */
+public class TlsSessionTrackerTest extends TestCase {
+    private static final byte[] SESSION_1 = new byte[] { 1, 2, 3 };
+    private static final byte[] SESSION_2 = new byte[] { 4, 5, 6 };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TlsSessionTracker.reset();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TlsSessionTracker.reset();
+        super.tearDown();
+    }
+
+    public void testOnHandshake() {
+        // The first session with a server is new; reusing it is a resumption
+        assertFalse(TlsSessionTracker.onHandshake("imap.test", 993, SESSION_1, false, 300));
+        assertTrue(TlsSessionTracker.onHandshake("imap.test", 993, SESSION_1.clone(), false, 50));
+        assertTrue(TlsSessionTracker.onHandshake("imap.test", 993, SESSION_1, false, 30));
+
+        // Sessions are tracked per server
+        assertFalse(TlsSessionTracker.onHandshake("smtp.test", 465, SESSION_1, false, 200));
+        assertFalse(TlsSessionTracker.onHandshake("imap.test", 143, SESSION_1, false, 200));
+
+        // A new session replaces the old one
+        assertFalse(TlsSessionTracker.onHandshake("imap.test", 993, SESSION_2, false, 250));
+        assertTrue(TlsSessionTracker.onHandshake("imap.test", 993, SESSION_2, false, 40));
+
+        // Without a session ID, we can't tell
+        assertFalse(TlsSessionTracker.onHandshake("pop.test", 995, null, false, 100));
+        assertFalse(TlsSessionTracker.onHandshake("pop.test", 995, null, false, 100));
+        assertFalse(TlsSessionTracker.onHandshake("pop.test", 995, new byte[0], false, 100));
+        assertFalse(TlsSessionTracker.onHandshake("pop.test", 995, new byte[0], false, 100));
+
+        // ... unless the session predates the handshake, e.g. it was resumed from a ticket
+        assertTrue(TlsSessionTracker.onHandshake("pop.test", 995, null, true, 20));
+        assertTrue(TlsSessionTracker.onHandshake("pop.test", 995, SESSION_2, true, 20));
+
+        assertEquals(5, TlsSessionTracker.getResumedHandshakeCount());
+        assertEquals(8, TlsSessionTracker.getFullHandshakeCount());
+        assertEquals("TLS handshakes with imap.test:993: 2 full (avg 275ms), 3 resumed (avg 40ms)",
+                TlsSessionTracker.getStats("imap.test", 993));
+    }
+}
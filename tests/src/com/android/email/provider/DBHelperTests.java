@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import com.android.emailcommon.mail.Address;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.Message;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of the database upgrades in DBHelper
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.provider.DBHelperTests email
+ */
+@SmallTest
+public class DBHelperTests extends TestCase {
+    private static final String[] ADDRESS_COLUMNS = new String[] {
+        Message.FROM_LIST, Message.TO_LIST, Message.CC_LIST, Message.BCC_LIST,
+        Message.REPLY_TO_LIST
+    };
+
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL("create table " + Message.TABLE_NAME + " (" + EmailContent.RECORD_ID
+                + " integer primary key autoincrement, " + Message.FROM_LIST + " text, "
+                + Message.TO_LIST + " text, " + Message.CC_LIST + " text, " + Message.BCC_LIST
+                + " text, " + Message.REPLY_TO_LIST + " text)");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        super.tearDown();
+    }
+
+    private long insertMessage(String from, String to, String cc) {
+        ContentValues cv = new ContentValues();
+        cv.put(Message.FROM_LIST, from);
+        cv.put(Message.TO_LIST, to);
+        cv.put(Message.CC_LIST, cc);
+        return mDb.insert(Message.TABLE_NAME, null, cv);
+    }
+
+    private String[] getAddressLists(long id) {
+        Cursor c = mDb.query(Message.TABLE_NAME, ADDRESS_COLUMNS, EmailContent.RECORD_ID + "=?",
+                new String[] {Long.toString(id)}, null, null, null);
+        try {
+            assertTrue(c.moveToFirst());
+            String[] lists = new String[ADDRESS_COLUMNS.length];
+            for (int i = 0; i < lists.length; i++) {
+                lists[i] = c.getString(i);
+            }
+            return lists;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Version 40 repacks the address lists of messages, written as CSV of RFC822 addresses, in
+     * the compact format of Address.pack().  Lists that are already packed are left alone.
+     */
+    public void testUpgradeFromVersion39ToVersion40() {
+        final String from = "\"Smith, Jane\" <jane@example.com>";
+        final String to = "bob@example.com, \"Al\" <al@example.com>";
+        final long rfc822Id = insertMessage(from, to, null);
+        final String packed = Address.pack(new Address[] {
+                new Address("carl@example.com", "Carl"), new Address("dee@example.com")});
+        final long packedId = insertMessage(packed, packed, "eve@example.com");
+
+        DBHelper.upgradeFromVersion39ToVersion40(mDb);
+
+        String[] lists = getAddressLists(rfc822Id);
+        assertEquals(Address.pack(Address.parse(from)), lists[0]);
+        assertEquals(Address.pack(Address.parse(to)), lists[1]);
+        assertNull(lists[2]);
+        assertNull(lists[3]);
+        assertNull(lists[4]);
+        Address[] toAddresses = Address.unpack(lists[1]);
+        assertEquals(2, toAddresses.length);
+        assertEquals("al@example.com", toAddresses[1].getAddress());
+        assertEquals("Al", toAddresses[1].getPersonal());
+
+        lists = getAddressLists(packedId);
+        assertEquals(packed, lists[0]);
+        assertEquals(packed, lists[1]);
+        assertEquals("eve@example.com", lists[2]);
+    }
+}
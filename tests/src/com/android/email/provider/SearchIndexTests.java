@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.Body;
+import com.android.emailcommon.provider.EmailContent.BodyColumns;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.emailcommon.provider.Mailbox;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.HashSet;
+
+/**
+ * Tests of the local full-text search index maintained by EmailProvider
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.provider.SearchIndexTests email
+ */
+@SmallTest
+public class SearchIndexTests extends ProviderTestCase2<EmailProvider> {
+    private Context mMockContext;
+
+    public SearchIndexTests() {
+        super(EmailProvider.class, EmailContent.AUTHORITY);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mMockContext = getMockContext();
+        // Invalidate all caches, since we reset the database for each test
+        ContentCache.invalidateAllCaches();
+    }
+
+    /** @return the ids of the messages in a mailbox that match a search */
+    private HashSet<Long> search(long mailboxId, String filter) {
+        Uri uri = Message.SEARCH_URI.buildUpon()
+                .appendQueryParameter(EmailContent.PARAMETER_SEARCH_FILTER, filter).build();
+        Cursor c = mMockContext.getContentResolver().query(uri, EmailContent.ID_PROJECTION,
+                MessageColumns.MAILBOX_KEY + "=?", new String[] {Long.toString(mailboxId)},
+                null);
+        HashSet<Long> ids = new HashSet<Long>();
+        try {
+            while (c.moveToNext()) {
+                ids.add(c.getLong(EmailContent.ID_PROJECTION_COLUMN));
+            }
+        } finally {
+            c.close();
+        }
+        return ids;
+    }
+
+    public void testBuildMatchExpression() {
+        assertNull(SearchIndex.buildMatchExpression(null));
+        assertNull(SearchIndex.buildMatchExpression(" \"-* "));
+        assertEquals("budget*", SearchIndex.buildMatchExpression("Budget"));
+        assertEquals("john* or* budget*",
+                SearchIndex.buildMatchExpression("  \"John\" OR budget* "));
+    }
+
+    public void testStripHtml() {
+        assertEquals(" Hello  world   ", SearchIndex.stripHtml(
+                "<p>Hello <b>world</b></p><script>var x = 1;</script>", 1000));
+        assertEquals("a b", SearchIndex.stripHtml("a&nbsp;b", 1000));
+        assertEquals("AT&T", SearchIndex.stripHtml("AT&T", 1000));
+        assertEquals("abc", SearchIndex.stripHtml("abcdef", 3));
+    }
+
+    public void testIndexMaintenance() {
+        Account account = ProviderTestUtils.setupAccount("search", true, mMockContext);
+        Mailbox box = ProviderTestUtils.setupMailbox("inbox", account.mId, true, mMockContext);
+        Message m1 = ProviderTestUtils.setupMessage("alpha", account.mId, box.mId, true, true,
+                mMockContext);
+        Message m2 = ProviderTestUtils.setupMessage("beta", account.mId, box.mId, false, true,
+                mMockContext);
+
+        // Subject, sender, and body are all indexed; terms are prefixes
+        assertEquals(2, search(box.mId, "subject").size());
+        assertTrue(search(box.mId, "from alph").contains(m1.mId));
+        assertEquals(1, search(box.mId, "body text").size());
+        assertEquals(0, search(box.mId, "gamma").size());
+        assertEquals(0, search(box.mId + 1, "subject").size());
+
+        // Changing the subject updates the index
+        ContentValues cv = new ContentValues();
+        cv.put(MessageColumns.SUBJECT, "gamma");
+        mMockContext.getContentResolver().update(
+                ContentUris.withAppendedId(Message.CONTENT_URI, m2.mId), cv, null, null);
+        assertTrue(search(box.mId, "gamma").contains(m2.mId));
+        assertEquals(1, search(box.mId, "subject").size());
+
+        // Deleted messages disappear from the index
+        mMockContext.getContentResolver().delete(
+                ContentUris.withAppendedId(Message.CONTENT_URI, m1.mId), null, null);
+        assertEquals(0, search(box.mId, "alpha").size());
+    }
+
+    /**
+     * A rebuild indexes the existing messages in batches, and is only needed once.
+     */
+    public void testRebuild() {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        try {
+            assertFalse(SearchIndex.isAvailable(db));
+            db.execSQL("create table " + Message.TABLE_NAME + " (" + EmailContent.RECORD_ID
+                    + " integer primary key, " + MessageColumns.SUBJECT + " text, "
+                    + MessageColumns.FROM_LIST + " text, " + MessageColumns.TO_LIST + " text, "
+                    + MessageColumns.CC_LIST + " text, " + MessageColumns.BCC_LIST + " text, "
+                    + MessageColumns.SNIPPET + " text)");
+            db.execSQL("create table " + Body.TABLE_NAME + " (" + BodyColumns.MESSAGE_KEY
+                    + " integer, " + BodyColumns.TEXT_CONTENT + " text, "
+                    + BodyColumns.HTML_CONTENT + " text)");
+            // More than one batch
+            final int count = 250;
+            for (int i = 1; i <= count; i++) {
+                db.execSQL("insert into " + Message.TABLE_NAME + " (" + EmailContent.RECORD_ID
+                        + ", " + MessageColumns.SUBJECT + ") values (" + i + ", 'subject" + i
+                        + "')");
+            }
+            db.execSQL("insert into " + Body.TABLE_NAME + " values (7, 'gamma', null)");
+
+            SearchIndex.createTable(db);
+            SearchIndex.markForRebuild(db);
+            assertTrue(SearchIndex.isAvailable(db));
+            assertTrue(SearchIndex.needsRebuild(db));
+
+            SearchIndex.rebuild(db);
+            assertFalse(SearchIndex.needsRebuild(db));
+            assertEquals(count, DatabaseUtils.longForQuery(db,
+                    "select count(*) from " + SearchIndex.TABLE_NAME, null));
+            assertEquals(7, DatabaseUtils.longForQuery(db, "select docid from "
+                    + SearchIndex.TABLE_NAME + " where " + SearchIndex.TABLE_NAME
+                    + " match 'gamma'", null));
+        } finally {
+            db.close();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Tests of ThumbnailCache
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.provider.ThumbnailCacheTests email
+ */
+@SmallTest
+public class ThumbnailCacheTests extends AndroidTestCase {
+    private File mDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = new File(getContext().getCacheDir(), "thumbnail-cache-test");
+        mDir.mkdirs();
+        deleteFiles();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteFiles();
+        mDir.delete();
+        super.tearDown();
+    }
+
+    private void deleteFiles() {
+        for (File file : mDir.listFiles()) {
+            file.delete();
+        }
+    }
+
+    private File createFile(String name, int length, long lastModified) throws IOException {
+        File file = new File(mDir, name);
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[length]);
+        out.close();
+        file.setLastModified(lastModified);
+        return file;
+    }
+
+    public void testComputeSampleSize() {
+        assertEquals(1, ThumbnailCache.computeSampleSize(62, 62, 62, 62));
+        assertEquals(1, ThumbnailCache.computeSampleSize(123, 1000, 62, 62));
+        assertEquals(2, ThumbnailCache.computeSampleSize(124, 1000, 62, 62));
+        assertEquals(32, ThumbnailCache.computeSampleSize(2592, 1944, 62, 62));
+        // Never upsample
+        assertEquals(1, ThumbnailCache.computeSampleSize(10, 10, 62, 62));
+    }
+
+    public void testTrimBySize() throws IOException {
+        long now = System.currentTimeMillis();
+        File oldest = createFile("thmb_1_1_100_62x62", 100, now - 30000);
+        File middle = createFile("thmb_1_2_100_62x62", 100, now - 20000);
+        File newest = createFile("thmb_1_3_100_62x62", 100, now - 10000);
+
+        ThumbnailCache.trim(mDir, 300, 10);
+        assertTrue(oldest.exists());
+
+        ThumbnailCache.trim(mDir, 250, 10);
+        assertFalse(oldest.exists());
+        assertTrue(middle.exists());
+        assertTrue(newest.exists());
+    }
+
+    public void testTrimByCount() throws IOException {
+        long now = System.currentTimeMillis();
+        File oldest = createFile("thmb_1_1_100_62x62", 10, now - 30000);
+        File middle = createFile("thmb_1_2_100_62x62", 10, now - 20000);
+        File newest = createFile("thmb_1_3_100_62x62", 10, now - 10000);
+        // Files that aren't (complete) thumbnails are left alone, and aren't counted
+        File temp = createFile("thmb_1_4_100_62x62123.tmp", 10, now - 40000);
+        File other = createFile("other", 10, now - 40000);
+
+        ThumbnailCache.trim(mDir, 1000, 1);
+        assertFalse(oldest.exists());
+        assertFalse(middle.exists());
+        assertTrue(newest.exists());
+        assertTrue(temp.exists());
+        assertTrue(other.exists());
+    }
+}
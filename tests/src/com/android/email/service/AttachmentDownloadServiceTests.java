@@ -16,8 +16,10 @@
 
 package com.android.email.service;
 
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.net.ConnectivityManager;
 
 import com.android.email.AccountTestCase;
 import com.android.email.EmailConnectivityManager;
@@ -26,10 +28,13 @@ import com.android.email.service.AttachmentDownloadService.DownloadRequest;
 import com.android.email.service.AttachmentDownloadService.DownloadSet;
 import com.android.email.service.EmailServiceUtils.NullEmailService;
 import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
 import com.android.emailcommon.provider.EmailContent.Attachment;
+import com.android.emailcommon.provider.EmailContent.AttachmentColumns;
 import com.android.emailcommon.provider.EmailContent.Message;
 import com.android.emailcommon.provider.Mailbox;
 import com.android.emailcommon.service.EmailServiceStatus;
+import com.android.emailcommon.utility.AttachmentUtilities;
 
 import java.io.File;
 import java.util.Iterator;
@@ -159,22 +164,37 @@ public class AttachmentDownloadServiceTests extends AccountTestCase {
         assertTrue(mDownloadSet.mDownloadsInProgress.containsKey(att4.mId));
     }
 
+    public void testDownloadLimits() {
+        assertEquals(4, mDownloadSet.getMaxSimultaneousDownloads(ConnectivityManager.TYPE_WIFI));
+        assertEquals(2,
+                mDownloadSet.getMaxSimultaneousDownloads(ConnectivityManager.TYPE_MOBILE));
+        // One slot is always left for user requests
+        assertEquals(3, mDownloadSet.getMaxBackgroundDownloads(ConnectivityManager.TYPE_WIFI));
+
+        // Small downloads don't tell us anything about throughput
+        mDownloadSet.recordDownloadThroughput(1000, 1000);
+        assertEquals(0, mDownloadSet.mDownloadThroughput);
+        // Fast downloads don't limit background downloads
+        mDownloadSet.recordDownloadThroughput(1024 * 1024, 1000);
+        assertEquals(1024 * 1024, mDownloadSet.mDownloadThroughput);
+        assertEquals(3, mDownloadSet.getMaxBackgroundDownloads(ConnectivityManager.TYPE_WIFI));
+        // Slow downloads do, once they bring down the average
+        for (int i = 0; i < 20; i++) {
+            mDownloadSet.recordDownloadThroughput(64 * 1024, 16000);
+        }
+        assertEquals(1, mDownloadSet.getMaxBackgroundDownloads(ConnectivityManager.TYPE_WIFI));
+    }
+
     /**
-     * A mock file directory containing a single (Mock)File.  The total space, usable space, and
-     * length of the single file can be set
+     * A mock file directory whose total space and usable space can be set
      */
     private static class MockDirectory extends File {
         private static final long serialVersionUID = 1L;
         private long mTotalSpace;
         private long mUsableSpace;
-        private MockFile[] mFiles;
-        private final MockFile mMockFile = new MockFile();
-
 
         public MockDirectory(String path) {
             super(path);
-            mFiles = new MockFile[1];
-            mFiles[0] = mMockFile;
         }
 
         private void setTotalAndUsableSpace(long total, long usable) {
@@ -191,32 +211,6 @@ public class AttachmentDownloadServiceTests extends AccountTestCase {
         public long getUsableSpace() {
             return mUsableSpace;
         }
-
-        public void setFileLength(long length) {
-            mMockFile.mLength = length;
-        }
-
-        @Override
-        public File[] listFiles() {
-            return mFiles;
-        }
-    }
-
-    /**
-     * A mock file that reports back a pre-set length
-     */
-    private static class MockFile extends File {
-        private static final long serialVersionUID = 1L;
-        private long mLength = 0;
-
-        public MockFile() {
-            super("_mock");
-        }
-
-        @Override
-        public long length() {
-            return mLength;
-        }
     }
 
     private static class MockConnectivityManager extends EmailConnectivityManager {
@@ -251,16 +245,58 @@ public class AttachmentDownloadServiceTests extends AccountTestCase {
         // Now, test per-account storage
         // Mock storage @ 100 total and 50 available
         mMockDirectory.setTotalAndUsableSpace(100L, 50L);
-        // Mock a file of length 12, but need to uncache previous amount first
-        mService.mAttachmentStorageMap.remove(mAccountId);
-        mMockDirectory.setFileLength(11);
+        // Store a downloaded attachment of length 11
+        Message message = ProviderTestUtils.setupMessage("message", mAccountId, mMailboxId, false,
+                true, mMockContext);
+        Attachment att = ProviderTestUtils.setupAttachment(message.mId, "filename", 11, false,
+                mMockContext);
+        att.mAccountKey = mAccountId;
+        att.mContentUri = AttachmentUtilities.getAttachmentUri(mAccountId, 1).toString();
+        att.save(mMockContext);
+        assertEquals(11, Account.getAttachmentStorage(mMockContext, mAccountId));
         // We can prefetch since 11 < 50/4
         assertTrue(mService.canPrefetchForAccount(mAccount, mMockDirectory));
-        // Mock a file of length 13, but need to uncache previous amount first
-        mService.mAttachmentStorageMap.remove(mAccountId);
-        mMockDirectory.setFileLength(13);
+        // Make the attachment length 13
+        ContentValues cv = new ContentValues();
+        cv.put(AttachmentColumns.SIZE, 13);
+        att.update(mMockContext, cv);
+        assertEquals(13, Account.getAttachmentStorage(mMockContext, mAccountId));
         // We can't prefetch since 13 > 50/4
         assertFalse(mService.canPrefetchForAccount(mAccount, mMockDirectory));
+        // Deleting the message (and its attachment) frees the storage
+        EmailContent.delete(mMockContext, Message.CONTENT_URI, message.mId);
+        assertEquals(0, Account.getAttachmentStorage(mMockContext, mAccountId));
+        assertTrue(mService.canPrefetchForAccount(mAccount, mMockDirectory));
+    }
+
+    public void testAttachmentStorageOnDownload() {
+        Message message = ProviderTestUtils.setupMessage("message", mAccountId, mMailboxId, false,
+                true, mMockContext);
+        // An attachment that hasn't been downloaded yet doesn't count
+        Attachment att = ProviderTestUtils.setupAttachment(message.mId, "filename", 11, false,
+                mMockContext);
+        att.mAccountKey = mAccountId;
+        att.save(mMockContext);
+        assertEquals(0, Account.getAttachmentStorage(mMockContext, mAccountId));
+        // Until it's downloaded
+        ContentValues cv = new ContentValues();
+        cv.put(AttachmentColumns.CONTENT_URI,
+                AttachmentUtilities.getAttachmentUri(mAccountId, att.mId).toString());
+        att.update(mMockContext, cv);
+        assertEquals(11, Account.getAttachmentStorage(mMockContext, mAccountId));
+    }
+
+    public void testAttachmentStorageIgnoresOtherAttachments() {
+        Message message = ProviderTestUtils.setupMessage("message", mAccountId, mMailboxId, false,
+                true, mMockContext);
+        // Attachments that aren't in the attachment directory (e.g. those of outgoing messages)
+        // don't count
+        Attachment att = ProviderTestUtils.setupAttachment(message.mId, "filename", 100, false,
+                mMockContext);
+        att.mAccountKey = mAccountId;
+        att.mContentUri = "content://media/external/images/media/1";
+        att.save(mMockContext);
+        assertEquals(0, Account.getAttachmentStorage(mMockContext, mAccountId));
     }
 
     public void testCanPrefetchForAccountNoBackgroundDownload() {
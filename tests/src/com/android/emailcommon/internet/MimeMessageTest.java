@@ -545,5 +545,29 @@ public class MimeMessageTest extends AndroidTestCase {
         assertEquals(expected, actual);
     }
 
+    /**
+     * The usual forms of the "Date" header are parsed by hand; anything else still goes to the
+     * generated parser.  Both must agree.
+     */
+    public void testSentDateForms() throws MessagingException, IOException {
+        final Date expected = new Date(Date.UTC(110, 9, 27, 18, 6, 0));
+        final String[] dates = new String[] {
+            "Wed, 27 Oct 2010 11:06:00 -0700",
+            "27 Oct 2010 18:06:00 +0000",
+            "Wed, 27 Oct 2010 11:06 -0700",
+            "Wed, 27 Oct 2010 11:06:00 -0700 (PDT)",
+            "Wed, 27 Oct 2010 20:36:00 +0230",
+            // These aren't in the usual form
+            "Wed, 27 Oct 10 11:06:00 -0700",
+            "Wed,  27 Oct 2010 18:06:00 GMT",
+            "Wed, 27 Oct 2010 11:06:00 -0700 (PDT (Pacific))",
+        };
+        for (String date : dates) {
+            MimeMessage mm = new MimeMessage(new ByteArrayInputStream(
+                    ("To:a@b.com\r\nDate: " + date + "\r\n\r\n").getBytes("us-ascii")));
+            assertEquals(date, expected, mm.getSentDate());
+        }
+    }
+
     // TODO more test for writeTo()
 }
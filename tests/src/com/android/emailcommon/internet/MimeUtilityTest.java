@@ -149,6 +149,21 @@ public class MimeUtilityTest extends TestCase {
         assertEquals(SHORT_UNICODE, result1);
     }
     
+    /**
+     * Test that repeated decodes through the cached charsets and per-thread scratch buffers
+     * produce the same results, including for charset label aliases and unknown charsets
+     */
+    public void testDecodeRepeatedCharsets() {
+        for (int i = 0; i < 3; i++) {
+            assertEquals(SHORT_UNICODE, MimeUtility.decode(SHORT_UNICODE_ENCODED));
+            assertEquals("this is some=text",
+                    MimeUtility.decode("=?iso-8859-1?q?this=20is_some=3Dtext?="));
+            assertEquals("Hello World",
+                    MimeUtility.decode("=?latin1?B?SGVsbG8gV29ybGQ=?="));
+            assertEquals("=?x-unknown?Q?a?=", MimeUtility.decode("=?x-unknown?Q?a?="));
+        }
+    }
+
     // TODO:  tests for decode(String s)
 
     /**
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.internet;
+
+import com.android.emailcommon.utility.Utility;
+
+import org.apache.commons.io.IOUtils;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+
+/**
+ * Tests of PartialFileBody
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.emailcommon.internet.PartialFileBodyTests email
+ */
+@SmallTest
+public class PartialFileBodyTests extends AndroidTestCase {
+    // "The quick brown fox jumps over the lazy dog." in base64, with line breaks
+    private static final String TEXT = "The quick brown fox jumps over the lazy dog.";
+    private static final String ENCODED =
+            "VGhlIHF1aWNrIGJyb3du\r\nIGZveCBqdW1wcyBvdmVy\r\nIHRoZSBsYXp5IGRvZy4=\r\n";
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getCacheDir(), "partialFileBodyTest");
+        PartialFileBody.open(mFile, null).delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        PartialFileBody.open(mFile, null).delete();
+        super.tearDown();
+    }
+
+    /** Append the chunk of {@code encoded} that the body asks for next */
+    private static void appendChunk(PartialFileBody body, String encoded, int chunkSize)
+            throws Exception {
+        int start = (int) body.getEncodedOffset();
+        int end = Math.min(encoded.length(), start + chunkSize);
+        body.append(new ByteArrayInputStream(Utility.toAscii(encoded.substring(start, end))),
+                chunkSize);
+    }
+
+    private static String readBody(PartialFileBody body) throws Exception {
+        return Utility.fromAscii(IOUtils.toByteArray(body.getInputStream()));
+    }
+
+    public void testBase64Chunks() throws Exception {
+        // Chunks that split quanta and line breaks; a chunk needs room for at least one quantum
+        for (int chunkSize = 6; chunkSize < ENCODED.length() + 2; chunkSize++) {
+            PartialFileBody body = PartialFileBody.open(mFile, "base64");
+            int chunks = 0;
+            while (!body.isComplete()) {
+                appendChunk(body, ENCODED, chunkSize);
+                assertTrue(++chunks < 100);
+            }
+            assertEquals(TEXT, readBody(body));
+            assertEquals(TEXT.length(), body.getDecodedLength());
+            body.delete();
+        }
+    }
+
+    public void testBase64WithoutPadding() throws Exception {
+        PartialFileBody body = PartialFileBody.open(mFile, "base64");
+        appendChunk(body, "YWJjZA", 100);
+        assertTrue(body.isComplete());
+        assertEquals("abcd", readBody(body));
+    }
+
+    public void testResume() throws Exception {
+        PartialFileBody body = PartialFileBody.open(mFile, "base64");
+        appendChunk(body, ENCODED, 10);
+        final long offset = body.getEncodedOffset();
+        final long length = body.getDecodedLength();
+        assertEquals(8, offset);
+        assertEquals(6, length);
+
+        // Simulate data written after the state was last saved
+        FileOutputStream out = new FileOutputStream(mFile, true);
+        out.write(Utility.toAscii("junk"));
+        out.close();
+
+        // A new body (e.g. in a new process) picks up from the saved state
+        body = PartialFileBody.open(mFile, "base64");
+        assertEquals(offset, body.getEncodedOffset());
+        assertEquals(length, body.getDecodedLength());
+        assertEquals(TEXT.substring(0, 6), readBody(body));
+        while (!body.isComplete()) {
+            appendChunk(body, ENCODED, 10);
+        }
+        assertEquals(TEXT, readBody(body));
+
+        // A different encoding can't use the saved state
+        body = PartialFileBody.open(mFile, "7bit");
+        assertEquals(0, body.getEncodedOffset());
+        assertFalse(body.isComplete());
+    }
+
+    public void testIdentityChunks() throws Exception {
+        PartialFileBody body = PartialFileBody.open(mFile, "7bit");
+        while (!body.isComplete()) {
+            appendChunk(body, TEXT, 11);
+        }
+        assertEquals(TEXT, readBody(body));
+        assertEquals(TEXT.length(), body.getEncodedOffset());
+    }
+
+    public void testIsResumable() {
+        assertTrue(PartialFileBody.isResumable("base64"));
+        assertTrue(PartialFileBody.isResumable("8BIT"));
+        assertTrue(PartialFileBody.isResumable(null));
+        assertFalse(PartialFileBody.isResumable("quoted-printable"));
+    }
+}
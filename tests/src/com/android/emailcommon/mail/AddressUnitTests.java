@@ -670,6 +670,49 @@ public class AddressUnitTests extends AndroidTestCase {
         }
     }
 
+    /**
+     * Tests that the packed-list view helpers return the same results as going through
+     * unpack(), for both the packed format and CSV of RFC822 addresses.
+     */
+    public void testUnpackViews() {
+        assertNull(Address.unpackFirstAddress(null));
+        assertNull(Address.unpackFirstFriendly(""));
+        assertNull(Address.unpackToFriendly(null));
+
+        for (Address[] list : PACK_CASES) {
+            for (String packed : new String[] {Address.pack(list), Address.toHeader(list)}) {
+                Address[] array = Address.unpack(packed);
+                assertEquals(packed, array[0].getAddress(), Address.unpackFirstAddress(packed));
+                assertEquals(packed, array[0].toFriendly(), Address.unpackFirstFriendly(packed));
+                assertEquals(packed, Address.toFriendly(array), Address.unpackToFriendly(packed));
+            }
+        }
+    }
+
+    /**
+     * Tests that CSV of RFC822 addresses (as stored by database versions 30-39) still unpacks,
+     * and repacks into the compact format.
+     */
+    public void testUnpackRfc822() {
+        for (Address[] list : PACK_CASES) {
+            String header = Address.toHeader(list);
+            Address[] unpacked = Address.unpack(header);
+            assertTrue(header, addressArrayEquals(list, unpacked));
+            assertEquals(header, Address.pack(list), Address.pack(unpacked));
+        }
+    }
+
+    /**
+     * Tests that delimiter chars in values can't corrupt the packed format.
+     */
+    public void testPackStripsDelimiters() {
+        Address address = new Address("john@gmail.com", "John\1\2 Doe");
+        Address[] unpacked = Address.unpack(Address.pack(new Address[] {address, PACK_ADDR_2}));
+        assertEquals(2, unpacked.length);
+        assertEquals("John Doe", unpacked[0].getPersonal());
+        assertEquals("foo@bar.com", unpacked[1].getAddress());
+    }
+
     public void testIsValidAddress() {
         String notValid[] = {"", "foo", "john@", "x@y", "x@y.", "foo.com"};
         String valid[] = {"x@y.z", "john@gmail.com", "a@b.c.d"};
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.utility;
+
+import android.test.AndroidTestCase;
+import android.test.MoreAsserts;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+@SmallTest
+public class BufferPoolTests extends AndroidTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        BufferPool.reset();
+    }
+
+    public void testByteBuffersAreReused() {
+        byte[] b1 = BufferPool.acquireBytes();
+        assertEquals(BufferPool.BYTE_BUFFER_SIZE, b1.length);
+        BufferPool.releaseBytes(b1);
+
+        byte[] b2 = BufferPool.acquireBytes();
+        assertSame(b1, b2);
+        assertEquals(2, BufferPool.getByteAcquireCount());
+        assertEquals(1, BufferPool.getByteAllocationCount());
+
+        // While b2 is out, a new buffer must be allocated
+        byte[] b3 = BufferPool.acquireBytes();
+        assertNotSame(b2, b3);
+        assertEquals(2, BufferPool.getByteAllocationCount());
+        BufferPool.releaseBytes(b2);
+        BufferPool.releaseBytes(b3);
+    }
+
+    public void testCharBuffersAreReused() {
+        char[] c1 = BufferPool.acquireChars();
+        assertEquals(BufferPool.CHAR_BUFFER_SIZE, c1.length);
+        BufferPool.releaseChars(c1);
+        assertSame(c1, BufferPool.acquireChars());
+        assertEquals(1, BufferPool.getCharAllocationCount());
+    }
+
+    public void testForeignBuffersAreDropped() {
+        BufferPool.releaseBytes(new byte[10]);
+        BufferPool.releaseBytes(null);
+        BufferPool.releaseChars(new char[10]);
+        assertEquals(BufferPool.BYTE_BUFFER_SIZE, BufferPool.acquireBytes().length);
+        assertEquals(BufferPool.CHAR_BUFFER_SIZE, BufferPool.acquireChars().length);
+    }
+
+    public void testRepeatedCopiesAllocateOnce() throws Exception {
+        byte[] data = new byte[BufferPool.BYTE_BUFFER_SIZE * 3 + 7];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        for (int i = 0; i < 10; i++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(data.length, IOUtils.copy(new ByteArrayInputStream(data), out));
+            MoreAsserts.assertEquals(data, out.toByteArray());
+        }
+        assertEquals(10, BufferPool.getByteAcquireCount());
+        assertEquals(1, BufferPool.getByteAllocationCount());
+    }
+}
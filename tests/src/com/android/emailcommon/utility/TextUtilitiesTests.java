@@ -278,6 +278,43 @@ public class TextUtilitiesTests extends AndroidTestCase {
         assertEquals(text.indexOf(" are visible"), ssb.getSpanEnd(span));
         assertEquals(text, ssb.toString());
     }
+
+    public void testHighlightSuffixTermText() {
+        // "she" and "hers" overlap; "he" is contained in both
+        String text = "ushers";
+        SpannableStringBuilder ssb =
+            (SpannableStringBuilder)TextUtilities.highlightTermsInText(text, "he she hers");
+        BackgroundColorSpan[] spans = ssb.getSpans(0, ssb.length(), BackgroundColorSpan.class);
+        assertEquals(2, spans.length);
+        assertEquals(1, ssb.getSpanStart(spans[0]));
+        assertEquals(4, ssb.getSpanEnd(spans[0]));
+        assertEquals(4, ssb.getSpanStart(spans[1]));
+        assertEquals(6, ssb.getSpanEnd(spans[1]));
+    }
+
+    public void testHighlightPrecompiledQuery() {
+        SearchTermMatcher matcher = SearchTermMatcher.compile("Visi gain");
+        assertFalse(matcher.isEmpty());
+        String str = "<html>Visible<style foo=\"bar\">Not</style>AgainVisible";
+        String expected = TextUtilities.highlightTermsInHtml(str, "Visi gain");
+        // The same matcher can be used any number of times
+        assertEquals(expected, TextUtilities.highlightMatchesInHtml(str, matcher));
+        assertEquals(expected, TextUtilities.highlightMatchesInHtml(str, matcher));
+
+        String text = "This should be visible";
+        SpannableStringBuilder ssb =
+            (SpannableStringBuilder)TextUtilities.highlightMatchesInText(text, matcher);
+        assertEquals(1, ssb.getSpans(0, ssb.length(), BackgroundColorSpan.class).length);
+
+        assertTrue(SearchTermMatcher.compile(null).isEmpty());
+        assertTrue(SearchTermMatcher.compile(" ").isEmpty());
+    }
+
+    public void testHighlightAcrossTagsHtml() {
+        // Terms don't match across tags
+        String str = "<html>Vis<b>ible</b></html>";
+        assertEquals(str, TextUtilities.highlightTermsInHtml(str, "visible"));
+    }
     // For debugging large HTML samples
 
 //    private String readLargeSnippet(String fn) {
@@ -159,6 +159,43 @@ public class UtilityUnitTests extends AndroidTestCase {
                 Utility.cleanUpMimeDate("Thu, 10 Dec 09 15:08:08 -0700"));
     }
 
+    public void testParseEmailDateTimeToMillis() {
+        assertEquals(0, Utility.parseEmailDateTimeToMillis("1970-01-01T00:00:00.000Z"));
+        assertEquals(1266940800000L,
+                Utility.parseEmailDateTimeToMillis("2010-02-23T16:00:00.000Z"));
+        assertEquals(951782400000L, Utility.parseEmailDateTimeToMillis("2000-02-29T00:00:00Z"));
+
+        // Outside of the fast path's range
+        assertEquals(-2208988800000L - 86400000L,
+                Utility.parseEmailDateTimeToMillis("1899-12-31T00:00:00.000Z"));
+    }
+
+    public void testUtcDateTimeToMillis() {
+        assertEquals(0, Utility.utcDateTimeToMillis(1970, 1, 1, 0, 0, 0));
+        assertEquals(1230768000000L, Utility.utcDateTimeToMillis(2009, 1, 1, 0, 0, 0));
+        assertEquals(1330560000000L, Utility.utcDateTimeToMillis(2012, 3, 1, 0, 0, 0));
+        assertEquals(1330473600000L, Utility.utcDateTimeToMillis(2012, 2, 29, 0, 0, 0));
+
+        // Carries over into the next unit, like a lenient calendar
+        assertEquals(Utility.utcDateTimeToMillis(2012, 3, 1, 0, 0, 0),
+                Utility.utcDateTimeToMillis(2012, 2, 30, 0, 0, 0));
+        assertEquals(Utility.utcDateTimeToMillis(2013, 1, 1, 0, 0, 0),
+                Utility.utcDateTimeToMillis(2012, 12, 31, 23, 59, 60));
+
+        assertEquals(Long.MIN_VALUE, Utility.utcDateTimeToMillis(2012, 0, 1, 0, 0, 0));
+        assertEquals(Long.MIN_VALUE, Utility.utcDateTimeToMillis(2012, 13, 1, 0, 0, 0));
+        assertEquals(Long.MIN_VALUE, Utility.utcDateTimeToMillis(1899, 12, 31, 0, 0, 0));
+        assertEquals(Long.MIN_VALUE, Utility.utcDateTimeToMillis(10000, 1, 1, 0, 0, 0));
+    }
+
+    public void testParseDigits() {
+        assertEquals(2010, Utility.parseDigits("2010-02-23", 0, 4));
+        assertEquals(2, Utility.parseDigits("2010-02-23", 5, 7));
+        assertEquals(-1, Utility.parseDigits("2010-02-23", 3, 5));
+        assertEquals(-1, Utility.parseDigits("2010-02-23", 8, 11));
+        assertEquals(-1, Utility.parseDigits("+1", 0, 2));
+    }
+
     private static class MyNewFileCreator implements NewFileCreator {
         private final HashSet<String> mExistingFileNames;
 